@@ -19,15 +19,27 @@ package com.android.tools.apk.analyzer;
 import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.tools.apk.analyzer.diff.generator.MinimalZipArchive;
+import com.android.tools.apk.analyzer.diff.generator.MinimalZipEntry;
 import com.android.tools.apk.analyzer.internal.ApkArchive;
 import com.android.tools.apk.analyzer.internal.AppBundleArchive;
 import com.android.tools.apk.analyzer.internal.ArchiveManagerImpl;
 import com.android.tools.apk.analyzer.internal.InstantAppBundleArchive;
+import com.android.tools.apk.analyzer.internal.ZipArchive;
 import com.android.utils.ILogger;
 import com.android.utils.NullLogger;
+import com.google.common.io.ByteStreams;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Objects;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 public class Archives {
 
@@ -46,6 +58,67 @@ public class Archives {
         return archiveManager.openArchive(path);
     }
 
+    /**
+     * The largest entry that {@link #readEntry} inflates itself; the largest array most VMs can
+     * allocate.
+     */
+    private static final long MAX_INFLATED_ENTRY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * Returns a read-only buffer with the contents of the file at {@code path} in {@code archive}.
+     *
+     * <p>Entries that are STORED (not compressed) in a zip archive, as {@code resources.arsc}
+     * normally is in APKs, are memory mapped straight from the archive file, so no copy of them is
+     * made on the heap. DEFLATED entries, such as compressed binary XML files, are inflated
+     * straight from the archive file into a single heap buffer of their uncompressed size; the
+     * binary XML and resource table parsers need random access, so their contents cannot be
+     * streamed. Any other file is read into a heap buffer.
+     */
+    @NonNull
+    public static ByteBuffer readEntry(@NonNull Archive archive, @NonNull Path path)
+            throws IOException {
+        Path root = archive.getContentRoot();
+        if (archive instanceof ZipArchive && path.getFileSystem() == root.getFileSystem()) {
+            String name = root.relativize(path.toAbsolutePath()).toString();
+            MinimalZipEntry entry = MinimalZipArchive.findEntry(archive.getPath().toFile(), name);
+            if (entry != null && entry.getCompressionMethod() == 0) {
+                try (FileChannel channel =
+                        FileChannel.open(archive.getPath(), StandardOpenOption.READ)) {
+                    // The mapping stays valid after the channel is closed.
+                    return channel.map(
+                            FileChannel.MapMode.READ_ONLY,
+                            entry.getFileOffsetOfCompressedData(),
+                            entry.getCompressedSize());
+                }
+            }
+            if (entry != null
+                    && entry.isDeflateCompressed()
+                    && entry.getUncompressedSize() <= MAX_INFLATED_ENTRY_SIZE) {
+                return inflateEntry(archive.getPath(), entry);
+            }
+        }
+        return ByteBuffer.wrap(Files.readAllBytes(path)).asReadOnlyBuffer();
+    }
+
+    @NonNull
+    private static ByteBuffer inflateEntry(
+            @NonNull Path archivePath, @NonNull MinimalZipEntry entry) throws IOException {
+        byte[] contents = new byte[(int) entry.getUncompressedSize()];
+        Inflater inflater = new Inflater(true);
+        try (FileChannel channel = FileChannel.open(archivePath, StandardOpenOption.READ)) {
+            channel.position(entry.getFileOffsetOfCompressedData());
+            InputStream in =
+                    new InflaterInputStream(
+                            ByteStreams.limit(
+                                    Channels.newInputStream(channel), entry.getCompressedSize()),
+                            inflater);
+            ByteStreams.readFully(in, contents);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(contents).asReadOnlyBuffer();
+    }
+
     /**
      * Returns the {@link ArchiveEntry} corresponding to the "main" {@code AndroidManifest.xml} file
      * of the archive.
@@ -18,139 +18,161 @@ package com.android.tools.apk.analyzer;
 import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
-import com.android.xml.XmlBuilder;
-import com.google.common.base.Charsets;
-import com.google.common.collect.Lists;
-import com.android.tools.apk.analyzer.arsc.BinaryResourceFile;
 import com.android.tools.apk.analyzer.arsc.BinaryResourceValue;
-import com.android.tools.apk.analyzer.arsc.Chunk;
+import com.android.tools.apk.analyzer.arsc.BinaryXmlPullParser;
 import com.android.tools.apk.analyzer.arsc.StringPoolChunk;
-import com.android.tools.apk.analyzer.arsc.XmlAttribute;
-import com.android.tools.apk.analyzer.arsc.XmlChunk;
-import com.android.tools.apk.analyzer.arsc.XmlEndElementChunk;
-import com.android.tools.apk.analyzer.arsc.XmlNamespaceEndChunk;
-import com.android.tools.apk.analyzer.arsc.XmlNamespaceStartChunk;
-import com.android.tools.apk.analyzer.arsc.XmlResourceMapChunk;
-import com.android.tools.apk.analyzer.arsc.XmlStartElementChunk;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
 public class BinaryXmlParser {
+    private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n";
+
+    /** The size of the character buffer used when writing decoded XML to a stream. */
+    private static final int WRITE_BUFFER_SIZE = 8192;
+
     @NonNull
     public static byte[] decodeXml(@NonNull String fileName, @NonNull byte[] bytes) {
-        BinaryResourceFile file = new BinaryResourceFile(bytes);
-        List<Chunk> chunks = file.getChunks();
-        if (chunks.size() != 1) {
-            //Logger.getInstance(BinaryXmlParser.class).warn("Expected 1, but got " + chunks.size() + " chunks while parsing " + fileName);
-            return bytes;
-        }
+        byte[] decoded = decodeXml(fileName, ByteBuffer.wrap(bytes));
+        return decoded != null ? decoded : bytes;
+    }
 
-        if (!(chunks.get(0) instanceof XmlChunk)) {
-            //Logger.getInstance(BinaryXmlParser.class)
-            //  .warn("First chunk in " + fileName + " is not an XmlChunk: " + chunks.get(0).getClass().getCanonicalName());
-            return bytes;
+    /**
+     * Decodes the binary XML file between the position and limit of {@code buffer}, which may be
+     * direct or read-only (e.g. a mapped archive entry). Returns null if the contents are not a
+     * binary XML document.
+     */
+    @Nullable
+    public static byte[] decodeXml(@NonNull String fileName, @NonNull ByteBuffer buffer) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            return decodeXml(fileName, buffer, out) ? out.toByteArray() : null;
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw
+            throw new UncheckedIOException(e);
         }
-
-        XmlPrinter printer = new XmlPrinter();
-        XmlChunk xmlChunk = (XmlChunk) chunks.get(0);
-
-        visitChunks(xmlChunk.getChunks(), printer);
-
-        String reconstructedXml =
-                "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" + printer.getReconstructedXml();
-        return reconstructedXml.getBytes(Charsets.UTF_8);
     }
 
-    private static void visitChunks(
-            @NonNull Map<Integer, Chunk> chunks, @NonNull XmlChunkHandler handler) {
-        // sort the chunks by their offset in the file in order to traverse them in the right order
-        List<Chunk> contentChunks = sortByOffset(chunks);
-
-        for (Chunk chunk : contentChunks) {
-            if (chunk instanceof StringPoolChunk) {
-                handler.stringPool((StringPoolChunk) chunk);
-            } else if (chunk instanceof XmlResourceMapChunk) {
-                handler.xmlResourceMap((XmlResourceMapChunk) chunk);
-            } else if (chunk instanceof XmlNamespaceStartChunk) {
-                handler.startNamespace((XmlNamespaceStartChunk) chunk);
-            } else if (chunk instanceof XmlNamespaceEndChunk) {
-                handler.endNamespace((XmlNamespaceEndChunk) chunk);
-            } else if (chunk instanceof XmlStartElementChunk) {
-                handler.startElement((XmlStartElementChunk) chunk);
-            } else if (chunk instanceof XmlEndElementChunk) {
-                handler.endElement((XmlEndElementChunk) chunk);
-            } else {
-                //Logger.getInstance(BinaryXmlParser.class).warn("XmlNode of type " + chunk.getClass().getCanonicalName() + " not handled.");
-            }
+    /**
+     * Decodes the binary XML file in {@code buffer} and writes it to {@code out} as UTF-8 text.
+     * The document is written as it is decoded, so memory use does not grow with its size. {@code
+     * out} is flushed but not closed. Returns false, without writing anything, if the contents are
+     * not a binary XML document.
+     */
+    public static boolean decodeXml(
+            @NonNull String fileName, @NonNull ByteBuffer buffer, @NonNull OutputStream out)
+            throws IOException {
+        if (!BinaryXmlPullParser.isXmlDocument(buffer)) {
+            return false;
         }
+        Writer writer =
+                new BufferedWriter(
+                        new OutputStreamWriter(out, StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+        decodeXml(fileName, buffer, writer);
+        writer.flush();
+        return true;
     }
 
-    @NonNull
-    private static List<Chunk> sortByOffset(Map<Integer, Chunk> contentChunks) {
-        List<Integer> offsets = Lists.newArrayList(contentChunks.keySet());
-        Collections.sort(offsets);
-        List<Chunk> chunks = new ArrayList<>(offsets.size());
-        for (Integer offset : offsets) {
-            chunks.add(contentChunks.get(offset));
+    /**
+     * Decodes the binary XML file in {@code buffer} and writes it to {@code out}, as {@link
+     * #decodeXml(String, ByteBuffer, OutputStream)} does. {@code out} is neither flushed nor
+     * closed.
+     */
+    public static boolean decodeXml(
+            @NonNull String fileName, @NonNull ByteBuffer buffer, @NonNull Writer out)
+            throws IOException {
+        if (!BinaryXmlPullParser.isXmlDocument(buffer)) {
+            //Logger.getInstance(BinaryXmlParser.class).warn("Expected a single XmlChunk while parsing " + fileName);
+            return false;
         }
 
-        return chunks;
+        // Nodes are printed as they are read, in file order, without building a chunk tree.
+        BinaryXmlPullParser parser = new BinaryXmlPullParser(buffer);
+        XmlPrinter printer = new XmlPrinter(out);
+        out.write(XML_DECLARATION);
+        for (int event = parser.next();
+                event != BinaryXmlPullParser.END_DOCUMENT;
+                event = parser.next()) {
+            switch (event) {
+                case BinaryXmlPullParser.START_NAMESPACE:
+                    printer.startNamespace(parser);
+                    break;
+                case BinaryXmlPullParser.START_TAG:
+                    printer.startElement(parser);
+                    break;
+                case BinaryXmlPullParser.END_TAG:
+                    printer.endElement(parser);
+                    break;
+                default:
+                    //Logger.getInstance(BinaryXmlParser.class).warn("XmlNode of type " + event + " not handled.");
+                    break;
+            }
+        }
+        return true;
     }
 
-    private interface XmlChunkHandler {
-        default void stringPool(@NonNull StringPoolChunk chunk) {}
-
-        default void xmlResourceMap(@NonNull XmlResourceMapChunk chunk) {}
-
-        default void startNamespace(@NonNull XmlNamespaceStartChunk chunk) {}
-
-        default void endNamespace(@NonNull XmlNamespaceEndChunk chunk) {}
+    /**
+     * Writes elements in the layout of {@code com.android.xml.XmlBuilder}: one attribute per line,
+     * indented by four spaces per level, with a blank line before every start tag but the first.
+     */
+    private static class XmlPrinter {
+        private static final String INDENT = "    ";
 
-        default void startElement(@NonNull XmlStartElementChunk chunk) {}
-
-        default void endElement(@NonNull XmlEndElementChunk chunk) {}
-    }
+        private enum Construct {
+            NULL,
+            START_TAG,
+            ATTRIBUTE,
+            END_TAG
+        }
 
-    private static class XmlPrinter implements XmlChunkHandler {
-        private final XmlBuilder builder;
+        private final Writer out;
         private Map<String, String> namespaces = new HashMap<>();
         private boolean namespacesAdded;
-        private StringPoolChunk stringPool;
+        private Construct lastConstruct = Construct.NULL;
+        private int indentationLevel;
 
-        public XmlPrinter() {
-            builder = new XmlBuilder();
+        public XmlPrinter(@NonNull Writer out) {
+            this.out = out;
         }
 
-        @Override
-        public void stringPool(@NonNull StringPoolChunk chunk) {
-            stringPool = chunk;
-        }
-
-        @Override
-        public void startNamespace(@NonNull XmlNamespaceStartChunk chunk) {
+        public void startNamespace(@NonNull BinaryXmlPullParser parser) {
             // collect all the namespaces in use, and print them out later when we the first tag is seen
-            namespaces.put(chunk.getUri(), chunk.getPrefix());
+            namespaces.put(parser.getNamespaceUri(), parser.getPrefix());
         }
 
-        @Override
-        public void startElement(@NonNull XmlStartElementChunk chunk) {
-            builder.startTag(chunk.getName());
+        public void startElement(@NonNull BinaryXmlPullParser parser) throws IOException {
+            if (lastConstruct == Construct.START_TAG || lastConstruct == Construct.ATTRIBUTE) {
+                out.write(">\n");
+            }
+            if (lastConstruct != Construct.NULL) {
+                out.write('\n');
+            }
+            indent();
+            out.write('<');
+            out.write(parser.getName());
+            indentationLevel++;
+            lastConstruct = Construct.START_TAG;
 
             // if this is the first tag, also print out the namespaces
             if (!namespacesAdded && !namespaces.isEmpty()) {
                 namespacesAdded = true;
                 for (Map.Entry<String, String> entry : namespaces.entrySet()) {
-                    builder.attribute(SdkConstants.XMLNS, entry.getValue(), entry.getKey());
+                    attribute(SdkConstants.XMLNS, entry.getValue(), entry.getKey());
                 }
             }
 
-            for (XmlAttribute xmlAttribute : chunk.getAttributes()) {
-                String prefix = notNullize(namespaces.get(xmlAttribute.namespace()));
-                builder.attribute(prefix, xmlAttribute.name(), getValue(xmlAttribute));
+            for (int i = 0; i < parser.getAttributeCount(); i++) {
+                String prefix = notNullize(namespaces.get(parser.getAttributeNamespace(i)));
+                attribute(prefix, parser.getAttributeName(i), getValue(parser, i));
             }
         }
 
@@ -158,25 +180,50 @@ public class BinaryXmlParser {
             return s == null ? "" : s;
         }
 
-        @Override
-        public void endElement(@NonNull XmlEndElementChunk chunk) {
-            builder.endTag(chunk.getName());
+        public void endElement(@NonNull BinaryXmlPullParser parser) throws IOException {
+            indentationLevel--;
+            if (lastConstruct == Construct.START_TAG || lastConstruct == Construct.ATTRIBUTE) {
+                out.write(" />\n");
+            } else {
+                indent();
+                out.write("</");
+                out.write(parser.getName());
+                out.write(">\n");
+            }
+            lastConstruct = Construct.END_TAG;
         }
 
-        @NonNull
-        public String getReconstructedXml() {
-            return builder.toString();
+        private void attribute(@NonNull String prefix, @NonNull String name, @NonNull String value)
+                throws IOException {
+            out.write('\n');
+            indent();
+            if (!prefix.isEmpty()) {
+                out.write(prefix);
+                out.write(':');
+            }
+            out.write(name);
+            out.write("=\"");
+            // XmlBuilder writes values as they are, so they are not escaped here either.
+            out.write(value);
+            out.write('"');
+            lastConstruct = Construct.ATTRIBUTE;
+        }
+
+        private void indent() throws IOException {
+            for (int i = 0; i < indentationLevel; i++) {
+                out.write(INDENT);
+            }
         }
 
         @NonNull
-        private String getValue(@NonNull XmlAttribute attribute) {
-            String rawValue = attribute.rawValue();
-            if (!(rawValue == null || rawValue.isEmpty())) {
+        private static String getValue(@NonNull BinaryXmlPullParser parser, int index) {
+            String rawValue = parser.getAttributeRawValue(index);
+            if (!rawValue.isEmpty()) {
                 return rawValue;
             }
 
-            BinaryResourceValue resValue = attribute.typedValue();
-            return formatValue(resValue, stringPool);
+            // string values without a raw value are printed as references (@string/0x..)
+            return formatValue(parser.getAttributeTypedValue(index), null);
         }
     }
 
@@ -22,7 +22,8 @@ import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
 
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Analyzes an APK to:
@@ -32,33 +33,71 @@ import java.util.Map.Entry;
  * <li>Blame strings in resources.arsc that have no base configuration.
  * <li>Blame resources on their different configurations.
  * </ul>
+ *
+ * <p>Resources and type chunk entries are referred to by dense int indices, and all blame relations
+ * are stored as {@link CompactIntMultimap}s, so no per-resource objects are kept around unless
+ * asked for. The {@code ...Indices} accessors expose the relations directly; the {@link
+ * ResourceEntry} based accessors are built from them on the first request and kept. A resource is
+ * identified by a packed id of the form 0xpptteeee (see {@link BinaryResourceIdentifier}), where
+ * pp is the index of its package in the resource table rather than the package id, since several
+ * packages may share an id. Resource indices follow the sorted order of packed ids, so the
+ * resources of a package are contiguous.
+ *
+ * <p>The per-package and per-type chunk work is done in parallel.
  */
 public class ArscBlamer {
 
-  /** Maps package key pool indices to blamed resources. */
-  private final Map<PackageChunk, List<ResourceEntry>[]> keyToBlame = new HashMap<>();
+  private static final int PACKAGE_SHIFT = 24;
+  private static final int TYPE_SHIFT = 16;
+  private static final int MAX_PACKAGES = 0x100;
+  private static final int MAX_ENTRIES = 0x10000;
+
+  /** Maps package key pool indices to blamed resource indices. */
+  private final Map<PackageChunk, CompactIntMultimap> keyToBlame = new LinkedHashMap<>();
+
+  /** Maps (0-based) type indices to blamed resource indices. */
+  private final Map<PackageChunk, CompactIntMultimap> typeToBlame = new LinkedHashMap<>();
 
-  /** Maps types to blamed resources. */
-  private final Map<PackageChunk, List<ResourceEntry>[]> typeToBlame = new HashMap<>();
+  /** Maps package to blamed resource indices. */
+  private final Map<PackageChunk, int[]> packageToBlame = new LinkedHashMap<>();
 
-  /** Maps package to blamed resources. */
-  private final Multimap<PackageChunk, ResourceEntry> packageToBlame = HashMultimap.create();
+  /** Maps string indices to blamed resource indices. */
+  private CompactIntMultimap stringToBlame;
 
-  /** Maps string indices to blamed resources. */
-  private final List<ResourceEntry>[] stringToBlame;
+  /** All type chunk entries in {@link #resourceTable}, in type chunk order. */
+  private TypeChunk.Entry[] typeEntries;
 
-  /** Maps type chunk entries to blamed resources. */
-  private final Multimap<TypeChunk.Entry, ResourceEntry> typeEntryToBlame = HashMultimap.create();
+  /** Index of the first entry of each package in {@link #typeEntries}, plus the total count. */
+  private int[] packageTypeEntryStart;
 
-  /** Maps resources to the type chunk entries they reference. */
-  private Multimap<ResourceEntry, TypeChunk.Entry> resourceEntries;
+  /** Sorted, distinct packed resource ids. A resource index is an index into this array. */
+  private int[] resources;
+
+  /** Maps type chunk entry indices to the resource index they belong to. */
+  private int[] typeEntryToResource;
+
+  /** Maps resource indices to the type chunk entry indices they reference. */
+  private CompactIntMultimap resourceToTypeEntries;
 
   /** Maps resources which have no base config to the type chunk entries they reference. */
   private Multimap<ResourceEntry, TypeChunk.Entry> baselessKeys;
 
+  /** The {@link ResourceEntry} of every resource, indexed by resource index. Created on request. */
+  private ResourceEntry[] resourceEntries;
+
+  /** {@link ResourceEntry} based views of the blame relations, each created on request. */
+  private Map<PackageChunk, List<ResourceEntry>[]> keyToBlamedResources;
+  private Map<PackageChunk, List<ResourceEntry>[]> typeToBlamedResources;
+  private Multimap<PackageChunk, ResourceEntry> packageToBlamedResources;
+  private List<ResourceEntry>[] stringToBlamedResources;
+  private Multimap<TypeChunk.Entry, ResourceEntry> typeEntryToBlamedResources;
+
   /** Contains all of the type chunks in {@link #resourceTable}. */
   private List<TypeChunk> typeChunks;
 
+  /** The packages of {@link #resourceTable}, indexed by the package bits of a packed id. */
+  private final List<PackageChunk> packages;
+
   /** This is the {@link ResourceTableChunk} inside of the resources.arsc file in the APK. */
   private final ResourceTableChunk resourceTable;
 
@@ -69,60 +108,90 @@ public class ArscBlamer {
    */
   public ArscBlamer(ResourceTableChunk resourceTable) {
     this.resourceTable = resourceTable;
-    this.stringToBlame = createEntryListArray(resourceTable.getStringPool().getStringCount());
+    this.packages = new ArrayList<>(resourceTable.getPackages());
+    Preconditions.checkState(packages.size() <= MAX_PACKAGES, "Too many packages to blame.");
   }
 
   /** Generates blame mappings. */
   public void blame() {
-    Multimap<ResourceEntry, TypeChunk.Entry> entries = getResourceEntries();
-    for (Entry<ResourceEntry, Collection<TypeChunk.Entry>> entry : entries.asMap().entrySet()) {
-      ResourceEntry resourceEntry = entry.getKey();
-      PackageChunk packageChunk = Preconditions.checkNotNull(
-          resourceTable.getPackage(resourceEntry.packageName()));
-      int keyCount = packageChunk.getKeyStringPool().getStringCount();
-      int typeCount = packageChunk.getTypeStringPool().getStringCount();
-      for (TypeChunk.Entry chunkEntry : entry.getValue()) {
-        blameKeyOrType(keyToBlame, packageChunk, chunkEntry.keyIndex(), resourceEntry, keyCount);
-        blameKeyOrType(typeToBlame, packageChunk, chunkEntry.parent().getId() - 1, resourceEntry,
-            typeCount);
-        blameFromTypeChunkEntry(chunkEntry);
-      }
-      blamePackage(packageChunk, resourceEntry);
-    }
-    Multimaps.invertFrom(entries, typeEntryToBlame);
-    for (TypeChunk.Entry entry : typeEntryToBlame.keySet()) {
-      blameFromTypeChunkEntry(entry);
+    indexResources();
+    List<PackageBlame> packageBlames = IntStream.range(0, packages.size()).parallel()
+        .filter(i -> packageTypeEntryStart[i] < packageTypeEntryStart[i + 1])
+        .mapToObj(this::blamePackage)
+        .collect(Collectors.toList());
+    for (PackageBlame packageBlame : packageBlames) {
+      keyToBlame.put(packageBlame.packageChunk, packageBlame.keys);
+      typeToBlame.put(packageBlame.packageChunk, packageBlame.types);
+      packageToBlame.put(packageBlame.packageChunk, packageBlame.resources);
     }
+    blameStrings();
   }
 
-  private void blameKeyOrType(Map<PackageChunk, List<ResourceEntry>[]> keyOrType,
-      PackageChunk packageChunk, int keyIndex, ResourceEntry entry, int entryCount) {
-    if (!keyOrType.containsKey(packageChunk)) {
-      keyOrType.put(packageChunk, createEntryListArray(entryCount));
+  /** Blames keys, types and the package itself of the package at {@code packageIndex}. */
+  private PackageBlame blamePackage(int packageIndex) {
+    PackageChunk packageChunk = packages.get(packageIndex);
+    int start = packageTypeEntryStart[packageIndex];
+    int end = packageTypeEntryStart[packageIndex + 1];
+    int[] keys = new int[end - start];
+    int[] types = new int[end - start];
+    int[] blamed = new int[end - start];
+    for (int i = start; i < end; ++i) {
+      TypeChunk.Entry chunkEntry = typeEntries[i];
+      keys[i - start] = chunkEntry.keyIndex();
+      types[i - start] = chunkEntry.parent().getId() - 1;
+      blamed[i - start] = typeEntryToResource[i];
     }
-    keyOrType.get(packageChunk)[keyIndex].add(entry);
+    int keyCount = packageChunk.getKeyStringPool().getStringCount();
+    int typeCount = packageChunk.getTypeStringPool().getStringCount();
+    // The resources of a package are contiguous in the resource index.
+    IntSummaryStatistics range = IntStream.of(blamed).summaryStatistics();
+    return new PackageBlame(packageChunk,
+        CompactIntMultimap.create(keyCount, keys, blamed),
+        CompactIntMultimap.create(typeCount, types, blamed),
+        IntStream.rangeClosed(range.getMin(), range.getMax()).toArray());
   }
 
-  private void blamePackage(PackageChunk packageChunk, ResourceEntry entry) {
-    packageToBlame.put(packageChunk, entry);
+  /** Blames every string referenced by a type chunk entry on that entry's resource. */
+  private void blameStrings() {
+    int[][] references = new int[typeEntries.length][];
+    IntStream.range(0, typeEntries.length).parallel()
+        .forEach(i -> references[i] = getStringIndices(typeEntries[i]));
+    int count = 0;
+    for (int[] indices : references) {
+      count += indices.length;
+    }
+    int[] strings = new int[count];
+    int[] blamed = new int[count];
+    count = 0;
+    for (int i = 0; i < references.length; ++i) {
+      for (int stringIndex : references[i]) {
+        strings[count] = stringIndex;
+        blamed[count++] = typeEntryToResource[i];
+      }
+    }
+    int stringCount = resourceTable.getStringPool().getStringCount();
+    stringToBlame = CompactIntMultimap.create(stringCount, strings, blamed);
   }
 
-  private void blameFromTypeChunkEntry(TypeChunk.Entry chunkEntry) {
-    for (BinaryResourceValue value : getAllResourceValues(chunkEntry)) {
-      for (ResourceEntry entry : typeEntryToBlame.get(chunkEntry)) {
-        switch (value.type()) {
-          case STRING:
-            blameString(value.data(), entry);
-            break;
-          default:
-            break;
-        }
+  /** Returns the distinct string pool indices referenced by {@code chunkEntry}. */
+  private static int[] getStringIndices(TypeChunk.Entry chunkEntry) {
+    Collection<BinaryResourceValue> values = getAllResourceValues(chunkEntry);
+    int[] result = new int[values.size()];
+    int count = 0;
+    for (BinaryResourceValue value : values) {
+      switch (value.type()) {
+        case STRING:
+          result[count++] = value.data();
+          break;
+        default:
+          break;
       }
     }
+    return Arrays.copyOf(result, count);
   }
 
   /** Returns all {@link BinaryResourceValue} for a single {@code entry}. */
-  private Collection<BinaryResourceValue> getAllResourceValues(TypeChunk.Entry entry) {
+  private static Collection<BinaryResourceValue> getAllResourceValues(TypeChunk.Entry entry) {
     Set<BinaryResourceValue> values = new HashSet<BinaryResourceValue>();
     BinaryResourceValue binaryResourceValue = entry.value();
     if (binaryResourceValue != null) {
@@ -134,33 +203,194 @@ public class ArscBlamer {
     return values;
   }
 
-  private void blameString(int stringIndex, ResourceEntry entry) {
-    stringToBlame[stringIndex].add(entry);
+  /**
+   * Assigns packed ids to all type chunk entries and builds the resource index. This is cheap, as
+   * no key or type names need to be resolved.
+   */
+  private void indexResources() {
+    if (resources != null) {
+      return;
+    }
+    List<TypeChunk> typeChunks = getTypeChunks();
+    int[] chunkStart = new int[typeChunks.size() + 1];
+    int[] chunkPackage = new int[typeChunks.size()];
+    packageTypeEntryStart = new int[packages.size() + 1];
+    int chunk = 0;  // getTypeChunks() lists type chunks package by package.
+    for (int packageIndex = 0; packageIndex < packages.size(); ++packageIndex) {
+      packageTypeEntryStart[packageIndex] = chunkStart[chunk];
+      for (TypeChunk typeChunk : packages.get(packageIndex).getTypeChunks()) {
+        chunkPackage[chunk] = packageIndex;
+        chunkStart[chunk + 1] = chunkStart[chunk] + typeChunk.getEntries().size();
+        ++chunk;
+      }
+    }
+    int entryCount = chunkStart[chunk];
+    packageTypeEntryStart[packages.size()] = entryCount;
+
+    typeEntries = new TypeChunk.Entry[entryCount];
+    int[] packedIds = new int[entryCount];
+    IntStream.range(0, typeChunks.size()).parallel().forEach(i -> {
+      TypeChunk typeChunk = typeChunks.get(i);
+      int packageBits = chunkPackage[i] << PACKAGE_SHIFT | typeChunk.getId() << TYPE_SHIFT;
+      int index = chunkStart[i];
+      for (Map.Entry<Integer, TypeChunk.Entry> entry : typeChunk.getEntries().entrySet()) {
+        Preconditions.checkState(entry.getKey() < MAX_ENTRIES, "Entry index out of range.");
+        typeEntries[index] = entry.getValue();
+        packedIds[index++] = packageBits | entry.getKey();
+      }
+    });
+
+    int[] sorted = packedIds.clone();
+    Arrays.parallelSort(sorted);
+    int count = 0;
+    for (int i = 0; i < sorted.length; ++i) {
+      if (i == 0 || sorted[i] != sorted[i - 1]) {
+        sorted[count++] = sorted[i];
+      }
+    }
+    int[] resources = Arrays.copyOf(sorted, count);
+    typeEntryToResource = new int[entryCount];
+    IntStream.range(0, entryCount).parallel()
+        .forEach(i -> typeEntryToResource[i] = Arrays.binarySearch(resources, packedIds[i]));
+    int[] typeEntryIndices = IntStream.range(0, entryCount).toArray();
+    resourceToTypeEntries =
+        CompactIntMultimap.create(count, typeEntryToResource, typeEntryIndices);
+    this.resources = resources;
+  }
+
+  /** Returns the number of distinct resources in resources.arsc. */
+  public int getResourceCount() {
+    indexResources();
+    return resources.length;
+  }
+
+  /** Returns the packed 0xpptteeee id of the resource at {@code resourceIndex}. */
+  public int getPackedResourceId(int resourceIndex) {
+    indexResources();
+    return resources[resourceIndex];
+  }
+
+  /** Creates the {@link ResourceEntry} for the resource at {@code resourceIndex}. */
+  public ResourceEntry getResourceEntry(int resourceIndex) {
+    indexResources();
+    return ResourceEntry.create(typeEntries[resourceToTypeEntries.get(resourceIndex, 0)]);
+  }
+
+  /** Returns the number of type chunk entries in resources.arsc. */
+  public int getTypeEntryCount() {
+    indexResources();
+    return typeEntries.length;
+  }
+
+  /** Returns the type chunk entry at {@code typeEntryIndex}. */
+  public TypeChunk.Entry getTypeEntry(int typeEntryIndex) {
+    indexResources();
+    return typeEntries[typeEntryIndex];
+  }
+
+  /**
+   * Returns the index of the resource blamed for the type chunk entry at {@code typeEntryIndex}.
+   */
+  public int getTypeEntryBlamedResource(int typeEntryIndex) {
+    indexResources();
+    return typeEntryToResource[typeEntryIndex];
+  }
+
+  /** Returns the type chunk entry indices referenced by the resource at {@code resourceIndex}. */
+  public int[] getResourceTypeEntries(int resourceIndex) {
+    indexResources();
+    return resourceToTypeEntries.get(resourceIndex);
   }
 
   /** Must first call {@link #blame}. */
-  public Map<PackageChunk, List<ResourceEntry>[]> getKeyToBlamedResources() {
+  public Map<PackageChunk, CompactIntMultimap> getKeyToBlamedResourceIndices() {
     return Collections.unmodifiableMap(keyToBlame);
   }
 
   /** Must first call {@link #blame}. */
-  public Map<PackageChunk, List<ResourceEntry>[]> getTypeToBlamedResources() {
+  public Map<PackageChunk, CompactIntMultimap> getTypeToBlamedResourceIndices() {
     return Collections.unmodifiableMap(typeToBlame);
   }
 
   /** Must first call {@link #blame}. */
-  public Multimap<PackageChunk, ResourceEntry> getPackageToBlamedResources() {
-    return Multimaps.unmodifiableMultimap(packageToBlame);
+  public Map<PackageChunk, int[]> getPackageToBlamedResourceIndices() {
+    return Collections.unmodifiableMap(packageToBlame);
   }
 
   /** Must first call {@link #blame}. */
+  public CompactIntMultimap getStringToBlamedResourceIndices() {
+    return Preconditions.checkNotNull(stringToBlame, "Must call #blame() first.");
+  }
+
+  /**
+   * Must first call {@link #blame}. Built from {@link #getKeyToBlamedResourceIndices} on the first
+   * call, with the resources of each key in resource index order.
+   */
+  public Map<PackageChunk, List<ResourceEntry>[]> getKeyToBlamedResources() {
+    Preconditions.checkNotNull(stringToBlame, "Must call #blame() first.");
+    if (keyToBlamedResources == null) {
+      keyToBlamedResources = toEntryListArrays(keyToBlame);
+    }
+    return keyToBlamedResources;
+  }
+
+  /**
+   * Must first call {@link #blame}. Built from {@link #getTypeToBlamedResourceIndices} on the first
+   * call, with the resources of each type in resource index order.
+   */
+  public Map<PackageChunk, List<ResourceEntry>[]> getTypeToBlamedResources() {
+    Preconditions.checkNotNull(stringToBlame, "Must call #blame() first.");
+    if (typeToBlamedResources == null) {
+      typeToBlamedResources = toEntryListArrays(typeToBlame);
+    }
+    return typeToBlamedResources;
+  }
+
+  /**
+   * Must first call {@link #blame}. Built from {@link #getPackageToBlamedResourceIndices} on the
+   * first call.
+   */
+  public Multimap<PackageChunk, ResourceEntry> getPackageToBlamedResources() {
+    Preconditions.checkNotNull(stringToBlame, "Must call #blame() first.");
+    if (packageToBlamedResources == null) {
+      ResourceEntry[] entries = getAllResourceEntries();
+      Multimap<PackageChunk, ResourceEntry> result = HashMultimap.create();
+      for (Map.Entry<PackageChunk, int[]> entry : packageToBlame.entrySet()) {
+        for (int resource : entry.getValue()) {
+          result.put(entry.getKey(), entries[resource]);
+        }
+      }
+      packageToBlamedResources = Multimaps.unmodifiableMultimap(result);
+    }
+    return packageToBlamedResources;
+  }
+
+  /**
+   * Must first call {@link #blame}. Built from {@link #getStringToBlamedResourceIndices} on the
+   * first call, with the resources of each string in resource index order.
+   */
   public List<ResourceEntry>[] getStringToBlamedResources() {
-    return stringToBlame;
+    if (stringToBlamedResources == null) {
+      stringToBlamedResources = toEntryLists(getStringToBlamedResourceIndices());
+    }
+    return stringToBlamedResources;
   }
 
-  /** Must first call {@link #blame}. */
+  /**
+   * Must first call {@link #blame}. Built from {@link #getTypeEntryBlamedResource} on the first
+   * call.
+   */
   public Multimap<TypeChunk.Entry, ResourceEntry> getTypeEntryToBlamedResources() {
-    return Multimaps.unmodifiableMultimap(typeEntryToBlame);
+    Preconditions.checkNotNull(stringToBlame, "Must call #blame() first.");
+    if (typeEntryToBlamedResources == null) {
+      ResourceEntry[] entries = getAllResourceEntries();
+      Multimap<TypeChunk.Entry, ResourceEntry> result = HashMultimap.create();
+      for (int i = 0; i < typeEntries.length; ++i) {
+        result.put(typeEntries[i], entries[typeEntryToResource[i]]);
+      }
+      typeEntryToBlamedResources = Multimaps.unmodifiableMultimap(result);
+    }
+    return typeEntryToBlamedResources;
   }
 
   /** Returns a multimap of keys for which there is no default resource. */
@@ -168,30 +398,33 @@ public class ArscBlamer {
     if (baselessKeys != null) {
       return baselessKeys;
     }
+    indexResources();
     Multimap<ResourceEntry, TypeChunk.Entry> result = HashMultimap.create();
-    for (Entry<ResourceEntry, Collection<TypeChunk.Entry>> entry
-        : getResourceEntries().asMap().entrySet()) {
-      Collection<TypeChunk.Entry> chunkEntries = entry.getValue();
-      if (!hasBaseConfiguration(chunkEntries)) {
-        result.putAll(entry.getKey(), chunkEntries);
+    for (int resource = 0; resource < resources.length; ++resource) {
+      if (!hasBaseConfiguration(resource)) {
+        ResourceEntry resourceEntry = getResourceEntry(resource);
+        for (int typeEntry : resourceToTypeEntries.get(resource)) {
+          result.put(resourceEntry, typeEntries[typeEntry]);
+        }
       }
     }
     baselessKeys = result;
     return result;
   }
 
-  /** Returns a multimap of resource entries to the chunk entries they reference in this APK. */
+  /**
+   * Returns a multimap of resource entries to the chunk entries they reference in this APK. This
+   * is a freshly built view of the compact index; prefer the index based accessors.
+   */
   public Multimap<ResourceEntry, TypeChunk.Entry> getResourceEntries() {
-    if (resourceEntries != null) {
-      return resourceEntries;
-    }
+    indexResources();
     Multimap<ResourceEntry, TypeChunk.Entry> result = HashMultimap.create();
-    for (TypeChunk typeChunk : getTypeChunks()) {
-      for (TypeChunk.Entry entry : typeChunk.getEntries().values()) {
-        result.put(ResourceEntry.create(entry), entry);
+    for (int resource = 0; resource < resources.length; ++resource) {
+      ResourceEntry resourceEntry = getResourceEntry(resource);
+      for (int typeEntry : resourceToTypeEntries.get(resource)) {
+        result.put(resourceEntry, typeEntries[typeEntry]);
       }
     }
-    resourceEntries = result;
     return result;
   }
 
@@ -201,7 +434,7 @@ public class ArscBlamer {
       return typeChunks;
     }
     List<TypeChunk> result = new ArrayList<>();
-    for (PackageChunk packageChunk : resourceTable.getPackages()) {
+    for (PackageChunk packageChunk : packages) {
       for (TypeChunk typeChunk : packageChunk.getTypeChunks()) {
         result.add(typeChunk);
       }
@@ -210,9 +443,43 @@ public class ArscBlamer {
     return result;
   }
 
-  private boolean hasBaseConfiguration(Collection<TypeChunk.Entry> entries) {
-    for (TypeChunk.Entry entry : entries) {
-      if (entry.parent().getConfiguration().isDefault()) {
+  /** Returns the {@link ResourceEntry} of every resource, indexed by resource index. */
+  private ResourceEntry[] getAllResourceEntries() {
+    if (resourceEntries != null) {
+      return resourceEntries;
+    }
+    indexResources();
+    ResourceEntry[] result = new ResourceEntry[resources.length];
+    for (int resource = 0; resource < resources.length; ++resource) {
+      result[resource] = getResourceEntry(resource);
+    }
+    resourceEntries = result;
+    return result;
+  }
+
+  private Map<PackageChunk, List<ResourceEntry>[]> toEntryListArrays(
+      Map<PackageChunk, CompactIntMultimap> blame) {
+    Map<PackageChunk, List<ResourceEntry>[]> result = new LinkedHashMap<>();
+    for (Map.Entry<PackageChunk, CompactIntMultimap> entry : blame.entrySet()) {
+      result.put(entry.getKey(), toEntryLists(entry.getValue()));
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  private List<ResourceEntry>[] toEntryLists(CompactIntMultimap blame) {
+    ResourceEntry[] entries = getAllResourceEntries();
+    List<ResourceEntry>[] result = createEntryListArray(blame.keyCount());
+    for (int key = 0; key < blame.keyCount(); ++key) {
+      for (int i = 0; i < blame.count(key); ++i) {
+        result[key].add(entries[blame.get(key, i)]);
+      }
+    }
+    return result;
+  }
+
+  private boolean hasBaseConfiguration(int resourceIndex) {
+    for (int typeEntry : resourceToTypeEntries.get(resourceIndex)) {
+      if (typeEntries[typeEntry].parent().getConfiguration().isDefault()) {
         return true;
       }
     }
@@ -235,4 +502,20 @@ public class ArscBlamer {
     }
   }
 
+  /** Blame computed for a single package, merged into the blamer once all packages are done. */
+  private static class PackageBlame {
+
+    private final PackageChunk packageChunk;
+    private final CompactIntMultimap keys;
+    private final CompactIntMultimap types;
+    private final int[] resources;
+
+    private PackageBlame(PackageChunk packageChunk, CompactIntMultimap keys,
+        CompactIntMultimap types, int[] resources) {
+      this.packageChunk = packageChunk;
+      this.keys = keys;
+      this.types = types;
+      this.resources = resources;
+    }
+  }
 }
@@ -34,7 +34,17 @@ public final class BinaryResourceFile implements SerializableResource {
   private final List<Chunk> chunks = new ArrayList<>();
 
   public BinaryResourceFile(byte[] buf) {
-    ByteBuffer buffer = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+    this(ByteBuffer.wrap(buf));
+  }
+
+  /**
+   * Maps the contents of {@code buf} between its position and limit. The buffer may be direct or
+   * read-only, such as a memory mapped STORED resources.arsc entry, in which case it is parsed in
+   * place without a heap copy of the file. Chunks copy out everything they keep, so {@code buf} is
+   * not referenced once this returns. The position of {@code buf} is not changed.
+   */
+  public BinaryResourceFile(ByteBuffer buf) {
+    ByteBuffer buffer = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
     while (buffer.remaining() > 0) {
       chunks.add(Chunk.newInstance(buffer));
     }
@@ -76,7 +76,13 @@ public final class BinaryResourceString {
     } else {
       length = characterCount * 2;
     }
-    return new String(buffer.array(), offset, length, type.charset());
+    if (buffer.hasArray()) {
+      return new String(buffer.array(), buffer.arrayOffset() + offset, length, type.charset());
+    }
+    // Direct or read-only buffers (e.g. a mapped file) are decoded in place.
+    ByteBuffer view = buffer.duplicate();
+    view.limit(offset + length).position(offset);
+    return type.charset().decode(view).toString();
   }
 
   /**
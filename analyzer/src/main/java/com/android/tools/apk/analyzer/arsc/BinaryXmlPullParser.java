@@ -0,0 +1,333 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.arsc;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A pull parser over a binary XML document, in the style of {@code XmlPullParser}.
+ *
+ * <p>Unlike an {@link XmlChunk}, which builds a {@link Chunk} for every node and keys them by
+ * offset, this parser walks the node chunks in file order directly on the buffer. Strings are
+ * decoded from the string pool the first time they are asked for, and attribute values are only
+ * materialized on request. The string pool and resource map chunks are consumed internally and are
+ * not reported as events.
+ */
+public final class BinaryXmlPullParser {
+
+  /** Before the first call to {@link #next}. */
+  public static final int START_DOCUMENT = 0;
+
+  /** There are no more nodes in the document. */
+  public static final int END_DOCUMENT = 1;
+
+  /** The start of an element; see {@link #getName} and the attribute accessors. */
+  public static final int START_TAG = 2;
+
+  /** The end of an element; see {@link #getName}. */
+  public static final int END_TAG = 3;
+
+  /** A CDATA node; see {@link #getText}. */
+  public static final int TEXT = 4;
+
+  /** The start of a namespace scope; see {@link #getPrefix} and {@link #getNamespaceUri}. */
+  public static final int START_NAMESPACE = 5;
+
+  /** The end of a namespace scope; see {@link #getPrefix} and {@link #getNamespaceUri}. */
+  public static final int END_NAMESPACE = 6;
+
+  /** The size in bytes of an XML node header: chunk metadata, line number and comment. */
+  private static final int NODE_HEADER_SIZE = 16;
+
+  private static final int UTF8_FLAG = 1 << 8;
+
+  private final ByteBuffer buffer;
+
+  /** The offset just past the enclosing {@link Chunk.Type#XML} chunk. */
+  private final int end;
+
+  /** The offset of the next chunk to read. */
+  private int position;
+
+  private int stringCount;
+  private int stringOffsets;
+  private int stringData;
+  private BinaryResourceString.Type stringType = BinaryResourceString.Type.UTF8;
+  private String[] strings = new String[0];
+
+  private int resourceMapOffset;
+  private int resourceMapCount;
+
+  private int eventType = START_DOCUMENT;
+  private int depth;
+  private int lineNumber = -1;
+
+  /** The first and second string index of the current node: namespace/name or prefix/uri. */
+  private int firstIndex = -1;
+  private int secondIndex = -1;
+
+  /** The offset of the first attribute or the CDATA typed value of the current node. */
+  private int valueOffset;
+  private int attributeCount;
+
+  /**
+   * Creates a parser over the binary XML document between the position and limit of
+   * {@code buffer}. The buffer itself is not modified.
+   *
+   * @throws IllegalArgumentException If the buffer does not start with an XML chunk.
+   */
+  public BinaryXmlPullParser(ByteBuffer buffer) {
+    this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    Preconditions.checkArgument(isXmlChunk(this.buffer), "Not a binary XML document.");
+    end = Math.min(this.buffer.getInt(4), this.buffer.limit());
+    position = this.buffer.getShort(2) & 0xFFFF;
+  }
+
+  /**
+   * Returns true if {@code buffer}, from its position to its limit, holds exactly one XML chunk.
+   */
+  public static boolean isXmlDocument(ByteBuffer buffer) {
+    ByteBuffer view = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    return isXmlChunk(view) && view.getInt(4) == view.limit();
+  }
+
+  private static boolean isXmlChunk(ByteBuffer buffer) {
+    return buffer.limit() >= Chunk.METADATA_SIZE
+        && buffer.getShort(0) == Chunk.Type.XML.code();
+  }
+
+  /**
+   * Advances to the next node in the document and returns its event type. Once the end of the
+   * document is reached, this keeps returning {@link #END_DOCUMENT}.
+   */
+  public int next() {
+    if (eventType == END_TAG) {
+      --depth;
+    }
+    while (position + Chunk.METADATA_SIZE <= end) {
+      int offset = position;
+      short type = buffer.getShort(offset);
+      int headerSize = buffer.getShort(offset + 2) & 0xFFFF;
+      int chunkSize = buffer.getInt(offset + 4);
+      Preconditions.checkState(chunkSize >= Chunk.METADATA_SIZE && chunkSize <= end - offset,
+          "Invalid chunk size %s at offset %s.", chunkSize, offset);
+      position = offset + chunkSize;
+      if (type == Chunk.Type.STRING_POOL.code()) {
+        readStringPool(offset, headerSize);
+      } else if (type == Chunk.Type.XML_RESOURCE_MAP.code()) {
+        resourceMapOffset = offset + headerSize;
+        resourceMapCount = (chunkSize - headerSize) / 4;
+      } else if (type == Chunk.Type.XML_START_ELEMENT.code()) {
+        readNode(offset, headerSize);
+        int attributeStart = buffer.getShort(offset + headerSize + 8) & 0xFFFF;
+        int attributeSize = buffer.getShort(offset + headerSize + 10) & 0xFFFF;
+        Preconditions.checkState(attributeSize == XmlAttribute.SIZE,
+            "attributeSize is wrong size. Got %s, want %s", attributeSize, XmlAttribute.SIZE);
+        attributeCount = buffer.getShort(offset + headerSize + 12) & 0xFFFF;
+        valueOffset = offset + headerSize + attributeStart;
+        ++depth;
+        return eventType = START_TAG;
+      } else if (type == Chunk.Type.XML_END_ELEMENT.code()) {
+        readNode(offset, headerSize);
+        return eventType = END_TAG;
+      } else if (type == Chunk.Type.XML_START_NAMESPACE.code()) {
+        readNode(offset, headerSize);
+        return eventType = START_NAMESPACE;
+      } else if (type == Chunk.Type.XML_END_NAMESPACE.code()) {
+        readNode(offset, headerSize);
+        return eventType = END_NAMESPACE;
+      } else if (type == Chunk.Type.XML_CDATA.code()) {
+        readNode(offset, headerSize);
+        // A CDATA node holds a single raw value index followed by its typed value.
+        secondIndex = -1;
+        valueOffset = offset + headerSize + 4;
+        return eventType = TEXT;
+      }
+      // Any other chunk has no meaning in an XML document and is skipped.
+    }
+    position = end;
+    lineNumber = -1;
+    firstIndex = -1;
+    secondIndex = -1;
+    attributeCount = 0;
+    return eventType = END_DOCUMENT;
+  }
+
+  private void readStringPool(int offset, int headerSize) {
+    stringCount = buffer.getInt(offset + 8);
+    int flags = buffer.getInt(offset + 16);
+    stringType = (flags & UTF8_FLAG) != 0
+        ? BinaryResourceString.Type.UTF8
+        : BinaryResourceString.Type.UTF16;
+    stringOffsets = offset + headerSize;
+    stringData = offset + buffer.getInt(offset + 20);
+    strings = new String[stringCount];
+  }
+
+  private void readNode(int offset, int headerSize) {
+    Preconditions.checkState(headerSize >= NODE_HEADER_SIZE,
+        "Invalid XML node header size %s at offset %s.", headerSize, offset);
+    lineNumber = buffer.getInt(offset + 8);
+    firstIndex = buffer.getInt(offset + headerSize);
+    secondIndex = buffer.getInt(offset + headerSize + 4);
+    attributeCount = 0;
+  }
+
+  /** Returns the type of the current event. */
+  public int getEventType() {
+    return eventType;
+  }
+
+  /**
+   * Returns the element depth: 0 outside the root element, incremented by each
+   * {@link #START_TAG} and decremented after the matching {@link #END_TAG}.
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /** Returns the source line number of the current node, or -1 if there is none. */
+  public int getLineNumber() {
+    return lineNumber;
+  }
+
+  /** Returns the namespace URI of the current element, or the empty string if not present. */
+  public String getNamespace() {
+    checkEventType(START_TAG, END_TAG);
+    return getString(firstIndex);
+  }
+
+  /** Returns the name of the current element. */
+  public String getName() {
+    checkEventType(START_TAG, END_TAG);
+    return getString(secondIndex);
+  }
+
+  /** Returns the prefix of the current namespace event. */
+  public String getPrefix() {
+    checkEventType(START_NAMESPACE, END_NAMESPACE);
+    return getString(firstIndex);
+  }
+
+  /** Returns the URI of the current namespace event. */
+  public String getNamespaceUri() {
+    checkEventType(START_NAMESPACE, END_NAMESPACE);
+    return getString(secondIndex);
+  }
+
+  /** Returns the raw character data of the current {@link #TEXT} event. */
+  public String getText() {
+    checkEventType(TEXT, TEXT);
+    return getString(firstIndex);
+  }
+
+  /** Returns the typed value of the current {@link #TEXT} event. */
+  public BinaryResourceValue getTypedText() {
+    checkEventType(TEXT, TEXT);
+    return readValue(valueOffset);
+  }
+
+  /** Returns the number of attributes of the current element, or 0 for any other event. */
+  public int getAttributeCount() {
+    return attributeCount;
+  }
+
+  /** Returns the namespace URI of an attribute, or the empty string if not present. */
+  public String getAttributeNamespace(int index) {
+    return getString(buffer.getInt(attributeOffset(index)));
+  }
+
+  /** Returns the name of an attribute. */
+  public String getAttributeName(int index) {
+    return getString(buffer.getInt(attributeOffset(index) + 4));
+  }
+
+  /**
+   * Returns the resource id of an attribute's name from the resource map, or 0 if the attribute
+   * has none.
+   */
+  public int getAttributeNameResource(int index) {
+    int nameIndex = buffer.getInt(attributeOffset(index) + 4);
+    return nameIndex >= 0 && nameIndex < resourceMapCount
+        ? buffer.getInt(resourceMapOffset + nameIndex * 4)
+        : 0;
+  }
+
+  /** Returns the raw character value of an attribute, or the empty string if not present. */
+  public String getAttributeRawValue(int index) {
+    return getString(buffer.getInt(attributeOffset(index) + 8));
+  }
+
+  /** Returns the type of an attribute's typed value, without creating a value. */
+  public BinaryResourceValue.Type getAttributeValueType(int index) {
+    return BinaryResourceValue.Type.fromCode(buffer.get(attributeOffset(index) + 15));
+  }
+
+  /** Returns the data of an attribute's typed value, without creating a value. */
+  public int getAttributeValueData(int index) {
+    return buffer.getInt(attributeOffset(index) + 16);
+  }
+
+  /** Returns the typed value of an attribute. */
+  public BinaryResourceValue getAttributeTypedValue(int index) {
+    return readValue(attributeOffset(index) + 12);
+  }
+
+  private int attributeOffset(int index) {
+    Preconditions.checkElementIndex(index, attributeCount);
+    return valueOffset + index * XmlAttribute.SIZE;
+  }
+
+  private BinaryResourceValue readValue(int offset) {
+    ByteBuffer view = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    view.position(offset);
+    return BinaryResourceValue.create(view);
+  }
+
+  /** Returns the number of strings in the document's string pool. */
+  public int getStringCount() {
+    return stringCount;
+  }
+
+  /**
+   * Returns a string from the document's string pool, or the empty string for index -1, which
+   * packed XML files use for "no string entry".
+   *
+   * @throws IndexOutOfBoundsException If the index is out of range.
+   */
+  public String getString(int index) {
+    if (index == -1) {
+      return "";
+    }
+    Preconditions.checkElementIndex(index, stringCount);
+    String result = strings[index];
+    if (result == null) {
+      int offset = stringData + buffer.getInt(stringOffsets + index * 4);
+      result = BinaryResourceString.decodeString(buffer, offset, stringType);
+      strings[index] = result;
+    }
+    return result;
+  }
+
+  private void checkEventType(int first, int second) {
+    Preconditions.checkState(eventType == first || eventType == second,
+        "Not available for event type %s.", eventType);
+  }
+}
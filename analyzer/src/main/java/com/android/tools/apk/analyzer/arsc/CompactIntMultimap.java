@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.arsc;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * An immutable multimap from dense int keys in {@code [0, keyCount)} to int values, stored in
+ * compressed sparse row form: one offset array and one value array, with no per-key objects.
+ *
+ * <p>Values of a key keep the order in which they were given to {@link #create}, and duplicate
+ * values are kept.
+ */
+public final class CompactIntMultimap {
+
+  /** The values of key {@code k} are {@code values[offsets[k]]..values[offsets[k + 1] - 1]}. */
+  private final int[] offsets;
+
+  private final int[] values;
+
+  private CompactIntMultimap(int[] offsets, int[] values) {
+    this.offsets = offsets;
+    this.values = values;
+  }
+
+  /**
+   * Creates a multimap holding the {@code (keys[i], values[i])} pairs.
+   *
+   * @param keyCount The number of keys. Every key must be in {@code [0, keyCount)}.
+   * @param keys The key of each pair.
+   * @param values The value of each pair.
+   */
+  static CompactIntMultimap create(int keyCount, int[] keys, int[] values) {
+    Preconditions.checkArgument(keys.length == values.length, "Keys and values differ in length.");
+    int[] offsets = new int[keyCount + 1];
+    for (int key : keys) {
+      ++offsets[key + 1];
+    }
+    for (int i = 0; i < keyCount; ++i) {
+      offsets[i + 1] += offsets[i];
+    }
+    // A stable counting sort, so values of a key stay in the order they were given.
+    int[] next = Arrays.copyOf(offsets, keyCount);
+    int[] sorted = new int[values.length];
+    for (int i = 0; i < keys.length; ++i) {
+      sorted[next[keys[i]]++] = values[i];
+    }
+    return new CompactIntMultimap(offsets, sorted);
+  }
+
+  /** Returns the number of keys, including those without values. */
+  public int keyCount() {
+    return offsets.length - 1;
+  }
+
+  /** Returns the total number of values over all keys. */
+  public int size() {
+    return values.length;
+  }
+
+  /** Returns the number of values of {@code key}. */
+  public int count(int key) {
+    return offsets[key + 1] - offsets[key];
+  }
+
+  /** Returns the {@code index}-th value of {@code key}. */
+  public int get(int key, int index) {
+    Preconditions.checkElementIndex(index, count(key));
+    return values[offsets[key] + index];
+  }
+
+  /** Returns a copy of the values of {@code key}. */
+  public int[] get(int key) {
+    return Arrays.copyOfRange(values, offsets[key], offsets[key + 1]);
+  }
+}
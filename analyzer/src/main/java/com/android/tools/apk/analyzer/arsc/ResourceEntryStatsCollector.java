@@ -19,17 +19,20 @@ package com.android.tools.apk.analyzer.arsc;
 import com.google.common.base.Preconditions;
 
 import java.io.IOException;
-import java.util.Collection;
+import java.io.UncheckedIOException;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.stream.IntStream;
 
 /**
  * Calculates extra information about an {@link ResourceEntry}, such as the total
  * APK size the entry is responsible for.
  *
+ * <p>Encoding strings and styles to measure them is done in parallel, but sizes are always added to
+ * the statistics in the same order, so the (floating point) results do not depend on scheduling.
+ *
  * This class is not thread-safe.
  */
 public class ResourceEntryStatsCollector {
@@ -46,7 +49,11 @@ public class ResourceEntryStatsCollector {
    */
   private static final int PACKAGE_CHUNK_OVERHEAD = 8;
 
-  private final Map<ResourceEntry, ResourceStatistics> stats = new HashMap<>();
+  /** Stats indexed by {@link ArscBlamer} resource index. Null until {@link #compute} is called. */
+  private ResourceStatistics[] stats;
+
+  /** Lazily created view of {@link #stats} keyed by {@link ResourceEntry}. */
+  private Map<ResourceEntry, ResourceStatistics> statsByEntry;
 
   private final ArscBlamer blamer;
 
@@ -64,26 +71,49 @@ public class ResourceEntryStatsCollector {
   }
 
   public void compute() throws IOException {
-    Preconditions.checkState(stats.isEmpty(), "Must only call #compute once.");
+    Preconditions.checkState(stats == null, "Must only call #compute once.");
     blamer.blame();
+    stats = new ResourceStatistics[blamer.getResourceCount()];
     computeStringPoolSizes();
     computePackageSizes();
   }
 
-  /** Returns entries for which there are computed stats. Must first call {@link #compute}. */
+  /**
+   * Returns entries for which there are computed stats. Resources with equal {@link ResourceEntry}
+   * keys, e.g. from packages with the same name or with collapsed resource names, have their stats
+   * added together. Must first call {@link #compute}.
+   */
   public Map<ResourceEntry, ResourceStatistics> getStats() {
-    Preconditions.checkState(!stats.isEmpty(), "Must call #compute() first.");
-    return Collections.unmodifiableMap(stats);
+    Preconditions.checkState(stats != null, "Must call #compute() first.");
+    if (statsByEntry == null) {
+      Map<ResourceEntry, ResourceStatistics> result = new HashMap<>();
+      for (int i = 0; i < stats.length; ++i) {
+        if (stats[i] != null) {
+          result.merge(blamer.getResourceEntry(i), stats[i], ResourceStatistics::sum);
+        }
+      }
+      statsByEntry = Collections.unmodifiableMap(result);
+    }
+    return statsByEntry;
   }
 
   /** Returns computed stats for a given entry. Must first call {@link #compute}. */
   public ResourceStatistics getStats(ResourceEntry entry) {
-    Preconditions.checkState(!stats.isEmpty(), "Must call #compute() first.");
-    return stats.containsKey(entry) ? stats.get(entry) : ResourceStatistics.EMPTY;
+    ResourceStatistics result = getStats().get(entry);
+    return result != null ? result : ResourceStatistics.EMPTY;
+  }
+
+  /**
+   * Returns computed stats for the {@link ArscBlamer} resource at {@code resourceIndex}. Must first
+   * call {@link #compute}.
+   */
+  public ResourceStatistics getStats(int resourceIndex) {
+    Preconditions.checkState(stats != null, "Must call #compute() first.");
+    return stats[resourceIndex] != null ? stats[resourceIndex] : ResourceStatistics.EMPTY;
   }
 
   private void computeStringPoolSizes() throws IOException {
-    computePoolSizes(resourceTable.getStringPool(), blamer.getStringToBlamedResources());
+    computePoolSizes(resourceTable.getStringPool(), blamer.getStringToBlamedResourceIndices());
   }
 
   private void computePackageSizes() throws IOException {
@@ -95,83 +125,108 @@ public class ResourceEntryStatsCollector {
   }
 
   private void computeTypePoolSizes() throws IOException {
-    for (Entry<PackageChunk, List<ResourceEntry>[]> entry
-        : blamer.getTypeToBlamedResources().entrySet()) {
+    for (Entry<PackageChunk, CompactIntMultimap> entry
+        : blamer.getTypeToBlamedResourceIndices().entrySet()) {
       computePoolSizes(entry.getKey().getTypeStringPool(), entry.getValue());
     }
   }
 
   private void computeKeyPoolSizes() throws IOException {
-    for (Entry<PackageChunk, List<ResourceEntry>[]> entry
-        : blamer.getKeyToBlamedResources().entrySet()) {
+    for (Entry<PackageChunk, CompactIntMultimap> entry
+        : blamer.getKeyToBlamedResourceIndices().entrySet()) {
       computePoolSizes(entry.getKey().getKeyStringPool(), entry.getValue());
     }
   }
 
   private void computeTypeSpecSizes() {
-    for (Entry<PackageChunk, List<ResourceEntry>[]> entry
-        : blamer.getTypeToBlamedResources().entrySet()) {
+    for (Entry<PackageChunk, CompactIntMultimap> entry
+        : blamer.getTypeToBlamedResourceIndices().entrySet()) {
       computeTypeSpecSizes(entry.getKey(), entry.getValue());
     }
   }
 
   private void computeTypeChunkSizes() {
-    for (Entry<TypeChunk.Entry, Collection<ResourceEntry>> entry
-        : blamer.getTypeEntryToBlamedResources().asMap().entrySet()) {
-      TypeChunk.Entry chunkEntry = entry.getKey();
+    // Every type chunk entry is blamed on exactly one resource.
+    for (int i = 0; i < blamer.getTypeEntryCount(); ++i) {
+      TypeChunk.Entry chunkEntry = blamer.getTypeEntry(i);
       TypeChunk typeChunk = chunkEntry.parent();
       int size = chunkEntry.size() + OFFSET_SIZE;
       int count = typeChunk.getEntries().size();
       int nullEntries = typeChunk.getTotalEntryCount() - typeChunk.getEntries().size();
       int overhead = typeChunk.getHeaderSize() + nullEntries * OFFSET_SIZE;
-      addSizes(entry.getValue(), overhead, size, count);
+      addSize(blamer.getTypeEntryBlamedResource(i), 1, overhead, size, count);
     }
   }
 
   private void computePackageChunkSizes() {
-    for (Entry<PackageChunk, Collection<ResourceEntry>> entry
-        : blamer.getPackageToBlamedResources().asMap().entrySet()) {
+    for (Entry<PackageChunk, int[]> entry
+        : blamer.getPackageToBlamedResourceIndices().entrySet()) {
       int overhead = entry.getKey().getHeaderSize() + PACKAGE_CHUNK_OVERHEAD;
-      addSizes(entry.getValue(), overhead, 0, 1);
+      int[] resources = entry.getValue();
+      for (int resource : resources) {
+        addSize(resource, resources.length, overhead, 0, 1);
+      }
     }
   }
 
   private void computePoolSizes(StringPoolChunk stringPool,
-      List<ResourceEntry>[] usages) throws IOException {
+      CompactIntMultimap usages) throws IOException {
     int overhead = stringPool.getHeaderSize();
     if (stringPool.getStyleCount() > 0) {
       overhead += STYLE_OVERHEAD;
     }
 
+    int[] sizes = computeStringAndStyleSizes(stringPool, usages.keyCount());
+
     // We have to iterate over the indices of the string pool, because it is possible that there are
     // indices which have *no* associated resource entry (i.e. references from XML files without an
     // entry in R).
     int count = 0;
-    for (int i = 0; i < usages.length; ++i) {
-      if (usages[i].isEmpty()) {
-        overhead += computeStringAndStyleSize(stringPool, i);
+    for (int i = 0; i < usages.keyCount(); ++i) {
+      if (usages.count(i) == 0) {
+        overhead += sizes[i];
       } else {
         ++count;
       }
     }
 
     // Now that we know the number of actual entries, we can compute the size.
-    for (int i = 0; i < usages.length; ++i) {
-      if (usages[i].isEmpty()) {
+    for (int i = 0; i < usages.keyCount(); ++i) {
+      if (usages.count(i) == 0) {
         continue;
       }
-      int size = computeStringAndStyleSize(stringPool, i);
-      addSizes(usages[i], overhead, size, count);
+      addSizes(usages, i, overhead, sizes[i], count);
+    }
+  }
+
+  /**
+   * Returns {@link #computeStringAndStyleSize} for the first {@code count} indices of
+   * {@code stringPool}, computed in parallel.
+   *
+   * @throws IOException Thrown if a style's length could not be computed.
+   */
+  private int[] computeStringAndStyleSizes(StringPoolChunk stringPool, int count)
+      throws IOException {
+    try {
+      return IntStream.range(0, count).parallel().map(i -> {
+        try {
+          return computeStringAndStyleSize(stringPool, i);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }).toArray();
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
     }
   }
 
   private void computeTypeSpecSizes(PackageChunk packageChunk,
-      List<ResourceEntry>[] usages) {
-    for (int i = 0; i < usages.length; ++i) {
+      CompactIntMultimap usages) {
+    for (int i = 0; i < usages.keyCount(); ++i) {
       // The 1 here is to convert back to a 1-based index.
       TypeSpecChunk typeSpec = packageChunk.getTypeSpecChunk(i + 1);
       // TypeSpecChunk entries share everything equally.
-      addSizes(usages[i], typeSpec.getOriginalChunkSize(), 0, 1);
+      addSizes(usages, i, typeSpec.getOriginalChunkSize(), 0, 1);
     }
   }
 
@@ -210,37 +265,52 @@ public class ResourceEntryStatsCollector {
   }
 
   /**
-   * Adds to the {@link #stats} of {@code entries} that reference a value in a chunk the bytes it's
-   * responsible for. This should only be called once per chunk-value pair.
+   * Adds to the {@link #stats} of the resources of {@code key} in {@code usages} that reference a
+   * value in a chunk the bytes it's responsible for. This should only be called once per
+   * chunk-value pair.
    *
-   * @param entries The resource entries referencing a single value in a chunk.
+   * @param usages Maps values in a chunk to the resource indices referencing them.
+   * @param key The value in a chunk that the resources reference.
    * @param overhead The number of bytes of overhead of a chunk. Typically the header size.
-   * @param size The size in bytes of a value in a chunk that {@code entries} reference.
+   * @param size The size in bytes of a value in a chunk that the resources reference.
    * @param count The total number of values in the chunk.
    */
-  private void addSizes(Collection<ResourceEntry> entries, int overhead, int size, int count) {
-    int usageCount = entries.size();
-    for (ResourceEntry resourceEntry : entries) {
-      // TODO(acornwall): Replace with Java 8's #getOrDefault when possible.
-      if (!stats.containsKey(resourceEntry)) {
-        stats.put(resourceEntry, new ResourceStatistics());
-      }
-      ResourceStatistics resourceStats = stats.get(resourceEntry);
-      if (usageCount == 1) {
-        resourceStats.addPrivateSize(size);
-      } else {
-        resourceStats.addSharedSize(size);
-      }
-      // Special case: If the chunk only has one relevant value, removing this entry will remove the
-      // entire chunk.
-      if (usageCount == 1 && count == 1) {
-        resourceStats.addPrivateSize(overhead);
-      }
-      resourceStats.addProportionalSize(size, usageCount);
-      resourceStats.addProportionalSize(overhead, usageCount * count);
+  private void addSizes(CompactIntMultimap usages, int key, int overhead, int size, int count) {
+    int usageCount = usages.count(key);
+    for (int i = 0; i < usageCount; ++i) {
+      addSize(usages.get(key, i), usageCount, overhead, size, count);
     }
   }
 
+  /**
+   * Adds to the {@link #stats} of a single resource referencing a value in a chunk the bytes it's
+   * responsible for.
+   *
+   * @param resource The resource index of the resource.
+   * @param usageCount The number of references to the value, including this one.
+   * @param overhead The number of bytes of overhead of a chunk. Typically the header size.
+   * @param size The size in bytes of the value.
+   * @param count The total number of values in the chunk.
+   */
+  private void addSize(int resource, int usageCount, int overhead, int size, int count) {
+    if (stats[resource] == null) {
+      stats[resource] = new ResourceStatistics();
+    }
+    ResourceStatistics resourceStats = stats[resource];
+    if (usageCount == 1) {
+      resourceStats.addPrivateSize(size);
+    } else {
+      resourceStats.addSharedSize(size);
+    }
+    // Special case: If the chunk only has one relevant value, removing this entry will remove the
+    // entire chunk.
+    if (usageCount == 1 && count == 1) {
+      resourceStats.addPrivateSize(overhead);
+    }
+    resourceStats.addProportionalSize(size, usageCount);
+    resourceStats.addProportionalSize(overhead, usageCount * count);
+  }
+
   /** Stats for an individual {@link ResourceEntry}. */
   public static class ResourceStatistics {
 
@@ -279,5 +349,14 @@ public class ResourceEntryStatsCollector {
     private void addProportionalSize(int numerator, int denominator) {
       this.proportionalSize += 1.0 * numerator / denominator;
     }
+
+    /** Returns new stats holding the sums of the sizes in {@code a} and {@code b}. */
+    private static ResourceStatistics sum(ResourceStatistics a, ResourceStatistics b) {
+      ResourceStatistics result = new ResourceStatistics();
+      result.privateSize = a.privateSize + b.privateSize;
+      result.sharedSize = a.sharedSize + b.sharedSize;
+      result.proportionalSize = a.proportionalSize + b.proportionalSize;
+      return result;
+    }
   }
 }
@@ -0,0 +1,97 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.applier;
+
+import com.android.tools.apk.analyzer.diff.shared.PatchConstants;
+import com.android.tools.apk.analyzer.diff.shared.TypedRange;
+
+/**
+ * Describes one delta in a patch: its format, the ranges of the delta-friendly files it works on
+ * and its length in bytes.
+ */
+public class DeltaDescriptor {
+  /**
+   * The format of the delta.
+   */
+  private final PatchConstants.DeltaFormat format;
+
+  /**
+   * The range of the delta-friendly old file that the delta reads from.
+   */
+  private final TypedRange<Void> deltaFriendlyOldFileRange;
+
+  /**
+   * The range of the delta-friendly new file that the delta produces.
+   */
+  private final TypedRange<Void> deltaFriendlyNewFileRange;
+
+  /**
+   * The length of the delta in bytes.
+   */
+  private final long deltaLength;
+
+  /**
+   * Constructs a new descriptor having the specified data.
+   *
+   * @param format the format of the delta
+   * @param deltaFriendlyOldFileRange the range of the delta-friendly old file that the delta reads
+   *     from
+   * @param deltaFriendlyNewFileRange the range of the delta-friendly new file that the delta
+   *     produces
+   * @param deltaLength the length of the delta in bytes
+   */
+  public DeltaDescriptor(
+      PatchConstants.DeltaFormat format,
+      TypedRange<Void> deltaFriendlyOldFileRange,
+      TypedRange<Void> deltaFriendlyNewFileRange,
+      long deltaLength) {
+    this.format = format;
+    this.deltaFriendlyOldFileRange = deltaFriendlyOldFileRange;
+    this.deltaFriendlyNewFileRange = deltaFriendlyNewFileRange;
+    this.deltaLength = deltaLength;
+  }
+
+  /**
+   * Returns the format of the delta.
+   * @return as described
+   */
+  public PatchConstants.DeltaFormat getFormat() {
+    return format;
+  }
+
+  /**
+   * Returns the range of the delta-friendly old file that the delta reads from.
+   * @return as described
+   */
+  public TypedRange<Void> getDeltaFriendlyOldFileRange() {
+    return deltaFriendlyOldFileRange;
+  }
+
+  /**
+   * Returns the range of the delta-friendly new file that the delta produces.
+   * @return as described
+   */
+  public TypedRange<Void> getDeltaFriendlyNewFileRange() {
+    return deltaFriendlyNewFileRange;
+  }
+
+  /**
+   * Returns the length of the delta in bytes.
+   * @return as described
+   */
+  public long getDeltaLength() {
+    return deltaLength;
+  }
+}
@@ -0,0 +1,344 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.applier;
+
+import com.android.tools.apk.analyzer.diff.applier.bsdiff.BsPatch;
+import com.android.tools.apk.analyzer.diff.shared.DeflatePool;
+import com.android.tools.apk.analyzer.diff.shared.DeltaFriendlyFile;
+import com.android.tools.apk.analyzer.diff.shared.JreDeflateParameters;
+import com.android.tools.apk.analyzer.diff.shared.TypedRange;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Deflater;
+
+/**
+ * Applies patches written by {@link
+ * com.android.tools.apk.analyzer.diff.generator.FileByFileV1DeltaGenerator}, e.g. to check that a
+ * patch reproduces the new archive exactly.
+ *
+ * <p>The old archive is streamed through the old file uncompression plan into a temporary
+ * delta-friendly old file, to which the bsdiff delta is applied to produce a temporary
+ * delta-friendly new file. The ranges of the recompression plan are then deflated on several
+ * threads with their recorded {@link JreDeflateParameters}, a few ranges ahead of the one being
+ * written, while the bytes between ranges are copied. Everything is written at its own position in
+ * the new archive, in file order.
+ */
+public class FileByFileV1DeltaApplier {
+  /**
+   * The number of ranges deflated ahead of the range being written, per thread. This bounds the
+   * memory held by deflated ranges that are waiting for earlier ranges to be written.
+   */
+  private static final int RANGES_AHEAD_PER_THREAD = 2;
+
+  /**
+   * The size of the chunks that deflated ranges are held in.
+   */
+  private static final int DEFLATED_CHUNK_SIZE = 65536;
+
+  /**
+   * The size of the buffers used for the delta-friendly files.
+   */
+  private static final int BUFFER_SIZE = 65536;
+
+  /**
+   * The directory to create temporary files in, or null for the default.
+   */
+  private final File tempDir;
+
+  /**
+   * The maximum number of threads to deflate ranges on.
+   */
+  private final int threads;
+
+  /**
+   * Creates an applier that creates temporary files in the default temporary-file directory and
+   * deflates ranges on as many threads as there are processors.
+   */
+  public FileByFileV1DeltaApplier() {
+    this(null, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates an applier with the specified configuration.
+   *
+   * @param tempDir the directory to create the delta-friendly files in, or null for the default
+   *     temporary-file directory
+   * @param threads the maximum number of threads to deflate ranges on; 1 deflates every range on
+   *     the calling thread
+   */
+  public FileByFileV1DeltaApplier(File tempDir, int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be >= 1");
+    }
+    this.tempDir = tempDir;
+    this.threads = threads;
+  }
+
+  /**
+   * Applies a patch to the old file, writing the new file. The patch stream is read to the end of
+   * the delta and is not closed.
+   *
+   * @param oldFile the old file to read (will not be modified)
+   * @param patchIn the stream to read the patch from
+   * @param newFile the file to write the new file to (will be overwritten if it exists)
+   * @throws PatchFormatException if the patch is malformed or does not fit the old file
+   * @throws IOException if unable to complete the operation due to an I/O error
+   */
+  public void applyDelta(File oldFile, InputStream patchIn, File newFile) throws IOException {
+    PatchApplyPlan plan = new PatchReader().readPatchApplyPlan(patchIn);
+    File deltaFriendlyOldFile = File.createTempFile("patch", ".old", tempDir);
+    File deltaFriendlyNewFile = null;
+    try {
+      deltaFriendlyNewFile = File.createTempFile("patch", ".new", tempDir);
+      writeDeltaFriendlyOldFile(plan, oldFile, deltaFriendlyOldFile);
+      writeDeltaFriendlyNewFile(
+          plan.getDeltaDescriptors().get(0), deltaFriendlyOldFile, patchIn, deltaFriendlyNewFile);
+      writeNewFile(plan.getDeltaFriendlyNewFileRecompressionPlan(), deltaFriendlyNewFile, newFile);
+    } finally {
+      deltaFriendlyOldFile.delete();
+      if (deltaFriendlyNewFile != null) {
+        deltaFriendlyNewFile.delete();
+      }
+    }
+  }
+
+  /**
+   * Uncompresses the ranges of the old file uncompression plan to create the delta-friendly old
+   * file.
+   */
+  private static void writeDeltaFriendlyOldFile(
+      PatchApplyPlan plan, File oldFile, File deltaFriendlyOldFile) throws IOException {
+    List<TypedRange<Void>> ranges = plan.getOldFileUncompressionPlan();
+    if (!ranges.isEmpty()) {
+      TypedRange<Void> last = ranges.get(ranges.size() - 1);
+      if (last.getOffset() + last.getLength() > oldFile.length()) {
+        throw new PatchFormatException("Uncompression ranges extend past the end of the old file");
+      }
+    }
+    try (FileOutputStream out = new FileOutputStream(deltaFriendlyOldFile);
+        BufferedOutputStream bufferedOut = new BufferedOutputStream(out, BUFFER_SIZE)) {
+      DeltaFriendlyFile.generateDeltaFriendlyFile(
+          ranges, oldFile, bufferedOut, false, DeltaFriendlyFile.DEFAULT_COPY_BUFFER_SIZE);
+    }
+    if (deltaFriendlyOldFile.length() != plan.getDeltaFriendlyOldFileSize()) {
+      throw new PatchFormatException(
+          "Delta-friendly old file is "
+              + deltaFriendlyOldFile.length()
+              + " bytes, expected "
+              + plan.getDeltaFriendlyOldFileSize()
+              + "; is this the right old file?");
+    }
+  }
+
+  /**
+   * Applies the delta to the delta-friendly old file to create the delta-friendly new file.
+   */
+  private static void writeDeltaFriendlyNewFile(
+      DeltaDescriptor delta,
+      File deltaFriendlyOldFile,
+      InputStream patchIn,
+      File deltaFriendlyNewFile)
+      throws IOException {
+    // In v1 the delta is the last thing in the patch, so it is fine to buffer past its end.
+    @SuppressWarnings("resource")
+    BufferedInputStream deltaIn = new BufferedInputStream(patchIn, BUFFER_SIZE);
+    try (RandomAccessFile oldData = new RandomAccessFile(deltaFriendlyOldFile, "r");
+        FileOutputStream out = new FileOutputStream(deltaFriendlyNewFile);
+        BufferedOutputStream bufferedOut = new BufferedOutputStream(out, BUFFER_SIZE)) {
+      BsPatch.applyPatch(oldData, bufferedOut, deltaIn);
+    }
+    if (deltaFriendlyNewFile.length() != delta.getDeltaFriendlyNewFileRange().getLength()) {
+      throw new PatchFormatException(
+          "Delta-friendly new file is "
+              + deltaFriendlyNewFile.length()
+              + " bytes, expected "
+              + delta.getDeltaFriendlyNewFileRange().getLength());
+    }
+  }
+
+  /**
+   * Recompresses the ranges of the recompression plan and copies the bytes between them to create
+   * the new file.
+   */
+  private void writeNewFile(
+      final List<TypedRange<JreDeflateParameters>> ranges,
+      File deltaFriendlyNewFile,
+      File newFile)
+      throws IOException {
+    try (RandomAccessFile in = new RandomAccessFile(deltaFriendlyNewFile, "r");
+        RandomAccessFile out = new RandomAccessFile(newFile, "rw")) {
+      final FileChannel inChannel = in.getChannel();
+      FileChannel outChannel = out.getChannel();
+      long inLength = inChannel.size();
+      ExecutorService executor =
+          threads > 1 && ranges.size() > 1
+              ? Executors.newFixedThreadPool(Math.min(threads, ranges.size()))
+              : null;
+      try {
+        // Deflate a few ranges ahead of the one being written, in file order.
+        int ahead = executor != null ? threads * RANGES_AHEAD_PER_THREAD : 1;
+        Deque<Future<List<ByteBuffer>>> pending = new ArrayDeque<>(ahead);
+        int submitted = 0;
+        long readOffset = 0;
+        long writeOffset = 0;
+        for (TypedRange<JreDeflateParameters> range : ranges) {
+          while (submitted < ranges.size() && pending.size() < ahead) {
+            final TypedRange<JreDeflateParameters> next = ranges.get(submitted++);
+            pending.add(submit(executor, () -> deflate(inChannel, next)));
+          }
+          writeOffset =
+              copy(inChannel, readOffset, range.getOffset() - readOffset, outChannel, writeOffset);
+          for (ByteBuffer chunk : get(pending.remove())) {
+            while (chunk.hasRemaining()) {
+              writeOffset += outChannel.write(chunk, writeOffset);
+            }
+          }
+          readOffset = range.getOffset() + range.getLength();
+        }
+        writeOffset = copy(inChannel, readOffset, inLength - readOffset, outChannel, writeOffset);
+        outChannel.truncate(writeOffset);
+      } finally {
+        if (executor != null) {
+          // Interrupts the other workers if one failed.
+          executor.shutdownNow();
+        }
+      }
+    }
+  }
+
+  /**
+   * Deflates a range of the delta-friendly new file with its recorded parameters.
+   * @return the deflated bytes, in chunks
+   */
+  private static List<ByteBuffer> deflate(FileChannel in, TypedRange<JreDeflateParameters> range)
+      throws IOException {
+    JreDeflateParameters parameters = range.getMetadata();
+    Deflater deflater =
+        DeflatePool.getShared()
+            .acquireDeflater(parameters.level, parameters.strategy, parameters.nowrap);
+    try {
+      // The same input buffer size as when the parameters were divined, for identical output.
+      byte[] inputBuffer = new byte[DeltaFriendlyFile.DEFAULT_COPY_BUFFER_SIZE];
+      List<ByteBuffer> chunks = new ArrayList<>();
+      byte[] chunk = new byte[DEFLATED_CHUNK_SIZE];
+      int chunkLength = 0;
+      long readOffset = range.getOffset();
+      long readEnd = range.getOffset() + range.getLength();
+      while (!deflater.finished()) {
+        if (deflater.needsInput()) {
+          if (readOffset < readEnd) {
+            int numRead =
+                in.read(
+                    ByteBuffer.wrap(
+                        inputBuffer, 0, (int) Math.min(inputBuffer.length, readEnd - readOffset)),
+                    readOffset);
+            if (numRead < 0) {
+              throw new PatchFormatException(
+                  "Recompression ranges extend past the end of the delta-friendly new file");
+            }
+            deflater.setInput(inputBuffer, 0, numRead);
+            readOffset += numRead;
+          } else {
+            deflater.finish();
+          }
+        }
+        if (chunkLength == chunk.length) {
+          chunks.add(ByteBuffer.wrap(chunk));
+          chunk = new byte[DEFLATED_CHUNK_SIZE];
+          chunkLength = 0;
+        }
+        chunkLength += deflater.deflate(chunk, chunkLength, chunk.length - chunkLength);
+      }
+      chunks.add(ByteBuffer.wrap(chunk, 0, chunkLength));
+      return chunks;
+    } finally {
+      DeflatePool.getShared().release(deflater);
+    }
+  }
+
+  /**
+   * Copies |length| bytes from |readOffset| in |in| to |writeOffset| in |out|.
+   * @return the offset in |out| after the copied bytes
+   */
+  private static long copy(
+      FileChannel in, long readOffset, long length, FileChannel out, long writeOffset)
+      throws IOException {
+    out.position(writeOffset);
+    long copied = 0;
+    while (copied < length) {
+      long numCopied = in.transferTo(readOffset + copied, length - copied, out);
+      if (numCopied <= 0) {
+        throw new PatchFormatException(
+            "Recompression ranges extend past the end of the delta-friendly new file");
+      }
+      copied += numCopied;
+    }
+    return writeOffset + length;
+  }
+
+  /**
+   * Runs a task on the executor, or right away on this thread if there is none.
+   */
+  private static <T> Future<T> submit(ExecutorService executor, Callable<T> task) {
+    if (executor != null) {
+      return executor.submit(task);
+    }
+    FutureTask<T> future = new FutureTask<>(task);
+    future.run();
+    return future;
+  }
+
+  /**
+   * Waits for a task and rethrows anything that failed while running it.
+   */
+  private static <T> T get(Future<T> result) throws IOException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while applying patch");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.applier;
+
+import com.android.tools.apk.analyzer.diff.shared.JreDeflateParameters;
+import com.android.tools.apk.analyzer.diff.shared.TypedRange;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The instructions read from the header of a patch: how to turn the old file into the
+ * delta-friendly old file, which deltas turn that into the delta-friendly new file and how to
+ * recompress the delta-friendly new file into the new file. This is the inverse of what {@link
+ * com.android.tools.apk.analyzer.diff.generator.PatchWriter} writes.
+ */
+public class PatchApplyPlan {
+  /**
+   * The plan for uncompressing the old file, in file order.
+   */
+  private final List<TypedRange<Void>> oldFileUncompressionPlan;
+
+  /**
+   * The expected size of the delta-friendly old file.
+   */
+  private final long deltaFriendlyOldFileSize;
+
+  /**
+   * The plan for recompressing the delta-friendly new file, in file order.
+   */
+  private final List<TypedRange<JreDeflateParameters>> deltaFriendlyNewFileRecompressionPlan;
+
+  /**
+   * The deltas to apply, in the order they appear in the patch.
+   */
+  private final List<DeltaDescriptor> deltaDescriptors;
+
+  /**
+   * Constructs a new plan.
+   *
+   * @param oldFileUncompressionPlan the plan for uncompressing the old file, in file order
+   * @param deltaFriendlyOldFileSize the expected size of the delta-friendly old file
+   * @param deltaFriendlyNewFileRecompressionPlan the plan for recompressing the delta-friendly new
+   *     file, in file order
+   * @param deltaDescriptors the deltas to apply, in the order they appear in the patch
+   */
+  public PatchApplyPlan(
+      List<TypedRange<Void>> oldFileUncompressionPlan,
+      long deltaFriendlyOldFileSize,
+      List<TypedRange<JreDeflateParameters>> deltaFriendlyNewFileRecompressionPlan,
+      List<DeltaDescriptor> deltaDescriptors) {
+    this.oldFileUncompressionPlan = Collections.unmodifiableList(oldFileUncompressionPlan);
+    this.deltaFriendlyOldFileSize = deltaFriendlyOldFileSize;
+    this.deltaFriendlyNewFileRecompressionPlan =
+        Collections.unmodifiableList(deltaFriendlyNewFileRecompressionPlan);
+    this.deltaDescriptors = Collections.unmodifiableList(deltaDescriptors);
+  }
+
+  /**
+   * Returns the plan for uncompressing the old file to create the delta-friendly old file.
+   * @return the plan, in file order
+   */
+  public List<TypedRange<Void>> getOldFileUncompressionPlan() {
+    return oldFileUncompressionPlan;
+  }
+
+  /**
+   * Returns the expected size of the delta-friendly old file.
+   * @return as described
+   */
+  public long getDeltaFriendlyOldFileSize() {
+    return deltaFriendlyOldFileSize;
+  }
+
+  /**
+   * Returns the plan for recompressing the delta-friendly new file to regenerate the new file.
+   * @return the plan, in file order
+   */
+  public List<TypedRange<JreDeflateParameters>> getDeltaFriendlyNewFileRecompressionPlan() {
+    return deltaFriendlyNewFileRecompressionPlan;
+  }
+
+  /**
+   * Returns the deltas to apply, in the order they appear in the patch.
+   * @return as described
+   */
+  public List<DeltaDescriptor> getDeltaDescriptors() {
+    return deltaDescriptors;
+  }
+}
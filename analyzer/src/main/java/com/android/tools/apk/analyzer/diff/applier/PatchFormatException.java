@@ -0,0 +1,31 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.applier;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a patch is malformed or does not fit the file it is applied to.
+ */
+@SuppressWarnings("serial")
+public class PatchFormatException extends IOException {
+  /**
+   * Construct an exception with the specified message
+   * @param message the message
+   */
+  public PatchFormatException(String message) {
+    super(message);
+  }
+}
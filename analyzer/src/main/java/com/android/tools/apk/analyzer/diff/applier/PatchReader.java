@@ -0,0 +1,180 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.applier;
+
+import com.android.tools.apk.analyzer.diff.shared.JreDeflateParameters;
+import com.android.tools.apk.analyzer.diff.shared.PatchConstants;
+import com.android.tools.apk.analyzer.diff.shared.TypedRange;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the header of patches written by {@link
+ * com.android.tools.apk.analyzer.diff.generator.PatchWriter}.
+ */
+public class PatchReader {
+
+  /**
+   * Reads the header of a v1 patch, up to but not including the bytes of its delta, and validates
+   * it. On return |in| is positioned at the first byte of the delta described by the only element
+   * of {@link PatchApplyPlan#getDeltaDescriptors()}.
+   *
+   * @param in the stream to read the patch from
+   * @return the plan for applying the patch
+   * @throws PatchFormatException if the patch is malformed or truncated
+   * @throws IOException if unable to read from the stream
+   */
+  public PatchApplyPlan readPatchApplyPlan(InputStream in) throws IOException {
+    // Deliberately left open, as closing it would close the stream that was passed in. It does no
+    // buffering of its own, so it never reads past the header.
+    @SuppressWarnings("resource")
+    DataInputStream dataIn = new DataInputStream(in);
+    try {
+      byte[] identifier = new byte[PatchConstants.IDENTIFIER.length()];
+      dataIn.readFully(identifier);
+      if (!PatchConstants.IDENTIFIER.equals(new String(identifier, StandardCharsets.US_ASCII))) {
+        throw new PatchFormatException("Bad identifier");
+      }
+      dataIn.readInt(); // Flags (reserved)
+      long deltaFriendlyOldFileSize =
+          checkNonNegative(dataIn.readLong(), "delta-friendly old file size");
+
+      // Read the old file uncompression instructions.
+      int numOldFileUncompressionInstructions =
+          (int) checkNonNegative(dataIn.readInt(), "old file uncompression instruction count");
+      List<TypedRange<Void>> oldFileUncompressionPlan =
+          new ArrayList<TypedRange<Void>>(Math.min(numOldFileUncompressionInstructions, 1024));
+      long lastEnd = 0;
+      for (int x = 0; x < numOldFileUncompressionInstructions; x++) {
+        long offset = checkNonNegative(dataIn.readLong(), "old file uncompression range offset");
+        long length = checkNonNegative(dataIn.readLong(), "old file uncompression range length");
+        lastEnd = checkRange(offset, length, lastEnd, "old file uncompression range");
+        oldFileUncompressionPlan.add(new TypedRange<Void>(offset, length, null));
+      }
+
+      // Read the delta-friendly new file recompression instructions.
+      int numDeltaFriendlyNewFileRecompressionInstructions =
+          (int)
+              checkNonNegative(
+                  dataIn.readInt(), "delta-friendly new file recompression instruction count");
+      List<TypedRange<JreDeflateParameters>> deltaFriendlyNewFileRecompressionPlan =
+          new ArrayList<TypedRange<JreDeflateParameters>>(
+              Math.min(numDeltaFriendlyNewFileRecompressionInstructions, 1024));
+      lastEnd = 0;
+      for (int x = 0; x < numDeltaFriendlyNewFileRecompressionInstructions; x++) {
+        long offset =
+            checkNonNegative(dataIn.readLong(), "delta-friendly new file recompression offset");
+        long length =
+            checkNonNegative(dataIn.readLong(), "delta-friendly new file recompression length");
+        lastEnd =
+            checkRange(offset, length, lastEnd, "delta-friendly new file recompression range");
+        PatchConstants.CompatibilityWindowId compatibilityWindowId =
+            PatchConstants.CompatibilityWindowId.fromPatchValue(dataIn.readByte());
+        if (compatibilityWindowId == null) {
+          throw new PatchFormatException("Unsupported compatibility window");
+        }
+        int level = dataIn.readUnsignedByte();
+        int strategy = dataIn.readUnsignedByte();
+        int nowrap = dataIn.readUnsignedByte();
+        if (level < 1 || level > 9 || strategy > 2 || nowrap > 1) {
+          throw new PatchFormatException(
+              "Bad deflate parameters: level=" + level + ", strategy=" + strategy
+                  + ", nowrap=" + nowrap);
+        }
+        deltaFriendlyNewFileRecompressionPlan.add(
+            new TypedRange<JreDeflateParameters>(
+                offset, length, JreDeflateParameters.of(level, strategy, nowrap == 1)));
+      }
+
+      // Read the descriptor of the delta. In v1 there is always exactly one, for the entire input.
+      int numDeltaRecords = dataIn.readInt();
+      if (numDeltaRecords != 1) {
+        throw new PatchFormatException("Expected exactly one delta, found " + numDeltaRecords);
+      }
+      PatchConstants.DeltaFormat deltaFormat =
+          PatchConstants.DeltaFormat.fromPatchValue(dataIn.readByte());
+      if (deltaFormat == null) {
+        throw new PatchFormatException("Unsupported delta format");
+      }
+      long deltaFriendlyOldFileWorkRangeOffset =
+          checkNonNegative(dataIn.readLong(), "delta-friendly old file work range offset");
+      long deltaFriendlyOldFileWorkRangeLength =
+          checkNonNegative(dataIn.readLong(), "delta-friendly old file work range length");
+      long deltaFriendlyNewFileWorkRangeOffset =
+          checkNonNegative(dataIn.readLong(), "delta-friendly new file work range offset");
+      long deltaFriendlyNewFileWorkRangeLength =
+          checkNonNegative(dataIn.readLong(), "delta-friendly new file work range length");
+      long deltaLength = checkNonNegative(dataIn.readLong(), "delta length");
+      if (deltaFriendlyOldFileWorkRangeOffset != 0
+          || deltaFriendlyOldFileWorkRangeLength != deltaFriendlyOldFileSize
+          || deltaFriendlyNewFileWorkRangeOffset != 0) {
+        throw new PatchFormatException("The delta must cover the whole delta-friendly files");
+      }
+      if (lastEnd > deltaFriendlyNewFileWorkRangeLength) {
+        throw new PatchFormatException(
+            "Recompression ranges extend past the end of the delta-friendly new file");
+      }
+      DeltaDescriptor descriptor =
+          new DeltaDescriptor(
+              deltaFormat,
+              new TypedRange<Void>(
+                  deltaFriendlyOldFileWorkRangeOffset, deltaFriendlyOldFileWorkRangeLength, null),
+              new TypedRange<Void>(
+                  deltaFriendlyNewFileWorkRangeOffset, deltaFriendlyNewFileWorkRangeLength, null),
+              deltaLength);
+
+      return new PatchApplyPlan(
+          oldFileUncompressionPlan,
+          deltaFriendlyOldFileSize,
+          deltaFriendlyNewFileRecompressionPlan,
+          Collections.singletonList(descriptor));
+    } catch (EOFException e) {
+      throw new PatchFormatException("Patch is truncated");
+    }
+  }
+
+  /**
+   * Checks that a value read from the patch is not negative.
+   * @return the value
+   */
+  private static long checkNonNegative(long value, String description)
+      throws PatchFormatException {
+    if (value < 0) {
+      throw new PatchFormatException("Bad " + description + ": " + value);
+    }
+    return value;
+  }
+
+  /**
+   * Checks that a range starts at or after the end of the previous range and does not overflow.
+   * @return the end of the range
+   */
+  private static long checkRange(long offset, long length, long lastEnd, String description)
+      throws PatchFormatException {
+    if (offset < lastEnd) {
+      throw new PatchFormatException(description + " out of order or overlapping: " + offset);
+    }
+    if (offset + length < offset) {
+      throw new PatchFormatException(description + " too long: " + length);
+    }
+    return offset + length;
+  }
+}
@@ -0,0 +1,163 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.applier.bsdiff;
+
+import com.android.tools.apk.analyzer.diff.applier.PatchFormatException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Applies patches written by {@link
+ * com.android.tools.apk.analyzer.diff.generator.bsdiff.BsDiffPatchWriter}.
+ */
+public class BsPatch {
+  /**
+   * The signature that begins every patch.
+   */
+  static final String SIGNATURE = "ENDSLEY/BSDIFF43";
+
+  /**
+   * The size of the buffers used to read old data and patch data. Entries are applied a buffer at a
+   * time rather than a byte at a time.
+   */
+  private static final int BUFFER_SIZE = 65536;
+
+  /**
+   * Mask for the sign bit of the signed-magnitude longs in patches.
+   */
+  private static final long NEGATIVE_MASK = 1L << 63;
+
+  /**
+   * Applies a patch from |patchData| to the data in |oldData|, writing the result to |newData|.
+   *
+   * @param oldData the data to which the patch should be applied
+   * @param newData the stream to write the result to
+   * @param patchData the patch, positioned at its signature. Reading is best buffered.
+   * @throws PatchFormatException if the patch is malformed, truncated or does not fit |oldData|
+   * @throws IOException if unable to read or write data
+   */
+  public static void applyPatch(
+      RandomAccessFile oldData, OutputStream newData, InputStream patchData) throws IOException {
+    byte[] signature = new byte[SIGNATURE.length()];
+    readFully(patchData, signature, 0, signature.length);
+    if (!SIGNATURE.equals(new String(signature, StandardCharsets.US_ASCII))) {
+      throw new PatchFormatException("Bad signature");
+    }
+    long newSize = readBsdiffLong(patchData);
+    if (newSize < 0) {
+      throw new PatchFormatException("Bad new size: " + newSize);
+    }
+
+    long oldSize = oldData.length();
+    byte[] oldBuffer = new byte[BUFFER_SIZE];
+    byte[] newBuffer = new byte[BUFFER_SIZE];
+    long oldWindowStart = 0;
+    int oldWindowLength = 0;
+    long oldPosition = 0;
+    long newPosition = 0;
+    while (newPosition < newSize) {
+      long diffLength = readBsdiffLong(patchData);
+      long extraLength = readBsdiffLong(patchData);
+      long oldPositionOffset = readBsdiffLong(patchData);
+      if (diffLength < 0 || extraLength < 0 || diffLength + extraLength > newSize - newPosition) {
+        throw new PatchFormatException(
+            "Bad entry at new position " + newPosition + ": diff=" + diffLength
+                + ", extra=" + extraLength);
+      }
+      if (diffLength > 0) {
+        if (oldPosition < 0 || diffLength > oldSize - oldPosition) {
+          throw new PatchFormatException(
+              "Diff of " + diffLength + " bytes at old position " + oldPosition
+                  + " is outside the old data");
+        }
+        // New bytes are the old bytes plus the diff bytes, modulo 256. Old data is read a window
+        // at a time, as consecutive entries tend to diff against nearby old data.
+        long position = oldPosition;
+        long remaining = diffLength;
+        while (remaining > 0) {
+          if (position < oldWindowStart || position >= oldWindowStart + oldWindowLength) {
+            oldWindowLength = (int) Math.min(BUFFER_SIZE, oldSize - position);
+            oldData.seek(position);
+            oldData.readFully(oldBuffer, 0, oldWindowLength);
+            oldWindowStart = position;
+          }
+          int offsetInWindow = (int) (position - oldWindowStart);
+          int count = (int) Math.min(remaining, oldWindowLength - offsetInWindow);
+          readFully(patchData, newBuffer, 0, count);
+          for (int i = 0; i < count; i++) {
+            newBuffer[i] += oldBuffer[offsetInWindow + i];
+          }
+          newData.write(newBuffer, 0, count);
+          position += count;
+          remaining -= count;
+        }
+      }
+      // Extra bytes are copied from the patch as they are.
+      long remaining = extraLength;
+      while (remaining > 0) {
+        int count = (int) Math.min(remaining, BUFFER_SIZE);
+        readFully(patchData, newBuffer, 0, count);
+        newData.write(newBuffer, 0, count);
+        remaining -= count;
+      }
+      newPosition += diffLength + extraLength;
+      oldPosition += diffLength + oldPositionOffset;
+    }
+  }
+
+  /**
+   * Reads a signed-magnitude long written by the patch writer, least significant byte first.
+   *
+   * @param in the stream to read from
+   * @return the value
+   * @throws PatchFormatException if the stream ends first or the value is negative zero
+   * @throws IOException if unable to read from the stream
+   */
+  static long readBsdiffLong(InputStream in) throws IOException {
+    byte[] bytes = new byte[8];
+    readFully(in, bytes, 0, 8);
+    long result = 0;
+    for (int i = 7; i >= 0; i--) {
+      result = (result << 8) | (bytes[i] & 0xff);
+    }
+    if ((result & NEGATIVE_MASK) != 0) {
+      result &= ~NEGATIVE_MASK;
+      if (result == 0) {
+        throw new PatchFormatException("Negative zero");
+      }
+      result = -result;
+    }
+    return result;
+  }
+
+  /**
+   * Reads exactly |length| bytes from the stream.
+   * @throws PatchFormatException if the stream ends first
+   */
+  private static void readFully(InputStream in, byte[] buffer, int offset, int length)
+      throws IOException {
+    while (length > 0) {
+      int numRead = in.read(buffer, offset, length);
+      if (numRead < 0) {
+        throw new PatchFormatException("Patch is truncated");
+      }
+      offset += numRead;
+      length -= numRead;
+    }
+  }
+}
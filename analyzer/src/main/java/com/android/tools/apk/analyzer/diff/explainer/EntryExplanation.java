@@ -15,6 +15,7 @@
 package com.android.tools.apk.analyzer.diff.explainer;
 
 import com.android.tools.apk.analyzer.diff.generator.ByteArrayHolder;
+import com.android.tools.apk.analyzer.diff.generator.MinimalZipEntry;
 import com.android.tools.apk.analyzer.diff.generator.RecommendationReason;
 
 /**
@@ -41,6 +42,11 @@ public class EntryExplanation {
    */
   private final long compressedSizeInPatch;
 
+  /**
+   * The entry in the new archive, or null if not known.
+   */
+  private final MinimalZipEntry newEntry;
+
   /**
    * Construct a new explanation for an entry.
    * @param path the path of the entry in the new archive
@@ -54,11 +60,30 @@ public class EntryExplanation {
       boolean isNew,
       RecommendationReason reasonIncludedIfNotNew,
       long compressedSizeInPatch) {
+    this(path, isNew, reasonIncludedIfNotNew, compressedSizeInPatch, null);
+  }
+
+  /**
+   * Construct a new explanation for an entry, remembering the entry it explains.
+   * @param path the path of the entry in the new archive
+   * @param isNew true if the entry only exists in the new archive
+   * @param reasonIncludedIfNotNew when isNew is false, the reason that the entry is included
+   * @param compressedSizeInPatch the <strong>approximate</strong> size of the entry in the patch
+   * stream
+   * @param newEntry the entry in the new archive, or null if not known
+   */
+  public EntryExplanation(
+      ByteArrayHolder path,
+      boolean isNew,
+      RecommendationReason reasonIncludedIfNotNew,
+      long compressedSizeInPatch,
+      MinimalZipEntry newEntry) {
     super();
     this.path = path;
     this.isNew = isNew;
     this.reasonIncludedIfNotNew = reasonIncludedIfNotNew;
     this.compressedSizeInPatch = compressedSizeInPatch;
+    this.newEntry = newEntry;
   }
 
   /**
@@ -96,4 +121,16 @@ public class EntryExplanation {
   public long getCompressedSizeInPatch() {
     return compressedSizeInPatch;
   }
+
+  /**
+   * Returns the entry in the new archive that this explains, as parsed by the
+   * {@link PatchExplainer}, or null if not known. Callers that pass their own entries to
+   * {@link PatchExplainer#explainPatch(java.io.File, java.util.List, java.io.File, java.util.List,
+   * com.android.tools.apk.analyzer.diff.generator.RecommendationModifier...)} get back the same
+   * objects, so they can match explanations to entries by identity rather than by path.
+   * @return as described
+   */
+  public MinimalZipEntry getNewEntry() {
+    return newEntry;
+  }
 }
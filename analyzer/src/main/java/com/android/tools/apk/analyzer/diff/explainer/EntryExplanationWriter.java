@@ -0,0 +1,181 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.explainer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes {@link EntryExplanation}s as JSON one at a time, as they are produced, so that the
+ * explanations for a large archive are never held in memory or rendered into one big string. Each
+ * entry is written as an object of the following form, with the path as a UTF-8 string and the
+ * reason as null for new entries: <code>
+ * <br>{"path":"&lt;path_string&gt;","isNew":&lt;true|false&gt;,
+ * "reasonIncluded":&lt;null|"&lt;reason_string&gt;"&gt;,"compressedSizeInPatch":&lt;number&gt;}
+ * </code>
+ * <p>
+ * Unlike {@link PatchExplanation#writeJson(java.io.PrintWriter)}, entries are written in the order
+ * they are given, without being grouped or sorted, and the output is strict JSON.
+ */
+public class EntryExplanationWriter implements Closeable {
+
+  /**
+   * The layout of the output.
+   */
+  public enum Format {
+    /**
+     * A single JSON array holding one object per entry, which is complete once the writer is
+     * closed.
+     */
+    JSON,
+
+    /**
+     * Newline-delimited JSON: one object per line, flushed as soon as it is written so that
+     * downstream tools can process entries as they arrive.
+     */
+    NDJSON
+  }
+
+  /**
+   * The writer to write to.
+   */
+  private final Writer writer;
+
+  /**
+   * The layout of the output.
+   */
+  private final Format format;
+
+  /**
+   * The number of entries written so far.
+   */
+  private long numEntriesWritten = 0;
+
+  /**
+   * Whether {@link #close()} has been called.
+   */
+  private boolean closed = false;
+
+  /**
+   * Creates a writer that writes to the specified {@link Writer}, which is closed along with it.
+   * @param writer the writer to write to
+   * @param format the layout of the output
+   */
+  public EntryExplanationWriter(Writer writer, Format format) {
+    this.writer = writer;
+    this.format = format;
+  }
+
+  /**
+   * Writes one entry.
+   * @param explanation the explanation to write
+   * @throws IOException if unable to write
+   */
+  public void write(EntryExplanation explanation) throws IOException {
+    if (closed) {
+      throw new IllegalStateException("Writer is closed");
+    }
+    if (format == Format.JSON) {
+      writer.write(numEntriesWritten == 0 ? "[\n  " : ",\n  ");
+    }
+    writer.write("{\"path\":");
+    writeString(new String(explanation.getPath().getData(), StandardCharsets.UTF_8));
+    writer.write(",\"isNew\":");
+    writer.write(Boolean.toString(explanation.isNew()));
+    writer.write(",\"reasonIncluded\":");
+    if (explanation.isNew() || explanation.getReasonIncludedIfNotNew() == null) {
+      writer.write("null");
+    } else {
+      writeString(explanation.getReasonIncludedIfNotNew().toString());
+    }
+    writer.write(",\"compressedSizeInPatch\":");
+    writer.write(Long.toString(explanation.getCompressedSizeInPatch()));
+    writer.write('}');
+    if (format == Format.NDJSON) {
+      writer.write('\n');
+      writer.flush();
+    }
+    numEntriesWritten++;
+  }
+
+  /**
+   * Returns the number of entries written so far.
+   * @return as described
+   */
+  public long getNumEntriesWritten() {
+    return numEntriesWritten;
+  }
+
+  /**
+   * Finishes the output, e.g. by closing the JSON array, and closes the underlying writer.
+   * @throws IOException if unable to write
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (format == Format.JSON) {
+        writer.write(numEntriesWritten == 0 ? "[]\n" : "\n]\n");
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Writes a JSON string literal, escaping quotes, backslashes and control characters.
+   * @param value the value of the string
+   * @throws IOException if unable to write
+   */
+  private void writeString(String value) throws IOException {
+    writer.write('"');
+    int start = 0;
+    for (int index = 0; index < value.length(); index++) {
+      char c = value.charAt(index);
+      if (c >= 0x20 && c != '"' && c != '\\') {
+        continue;
+      }
+      writer.write(value, start, index - start);
+      start = index + 1;
+      switch (c) {
+        case '"':
+          writer.write("\\\"");
+          break;
+        case '\\':
+          writer.write("\\\\");
+          break;
+        case '\n':
+          writer.write("\\n");
+          break;
+        case '\r':
+          writer.write("\\r");
+          break;
+        case '\t':
+          writer.write("\\t");
+          break;
+        default:
+          writer.write(String.format("\\u%04x", (int) c));
+          break;
+      }
+    }
+    writer.write(value, start, value.length() - start);
+    writer.write('"');
+  }
+}
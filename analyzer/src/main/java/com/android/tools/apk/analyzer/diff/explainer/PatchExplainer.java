@@ -16,6 +16,7 @@ package com.android.tools.apk.analyzer.diff.explainer;
 
 import com.android.tools.apk.analyzer.diff.generator.ByteArrayHolder;
 import com.android.tools.apk.analyzer.diff.generator.DeltaGenerator;
+import com.android.tools.apk.analyzer.diff.generator.DivinationCache;
 import com.android.tools.apk.analyzer.diff.generator.MinimalZipArchive;
 import com.android.tools.apk.analyzer.diff.generator.MinimalZipEntry;
 import com.android.tools.apk.analyzer.diff.generator.PreDiffExecutor;
@@ -30,17 +31,26 @@ import com.android.tools.apk.analyzer.diff.shared.DeflateUncompressor;
 import com.android.tools.apk.analyzer.diff.shared.RandomAccessFileInputStream;
 import com.android.tools.apk.analyzer.diff.shared.Uncompressor;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /** Explains where the data in a patch would come from. */
-// TODO: Add explicit logic for renames
 public class PatchExplainer {
   /**
    * A stream that discards everything written to it.
@@ -62,6 +72,40 @@ public class PatchExplainer {
     }
   }
 
+  /**
+   * An explanation that is computed on the thread that waits for it, once it is first waited for.
+   * Without a pool, this lets each explanation be written before the next one is computed.
+   */
+  private static class DeferredExplanation extends FutureTask<EntryExplanation> {
+    DeferredExplanation(Callable<EntryExplanation> callable) {
+      super(callable);
+    }
+
+    @Override
+    public EntryExplanation get() throws InterruptedException, ExecutionException {
+      // Does nothing if the explanation has already been computed.
+      run();
+      return super.get();
+    }
+  }
+
+  /**
+   * The default for the largest blob size to diff in memory. The in-memory suffix sort needs a few
+   * times the old blob size in heap, per thread.
+   */
+  public static final long DEFAULT_IN_MEMORY_LIMIT_BYTES = 1024 * 1024;
+
+  /**
+   * The largest blob size that can be diffed in memory, since in-memory blobs are held in byte
+   * arrays. Larger in-memory limits are clamped to this.
+   */
+  public static final long MAX_IN_MEMORY_LIMIT_BYTES = Integer.MAX_VALUE - 8;
+
+  /**
+   * The size of the buffer between a delta generator and the compressor.
+   */
+  private static final int DELTA_BUFFER_SIZE = 32 * 1024;
+
   /**
    * The compressor to use for compressing patch content.
    */
@@ -72,6 +116,27 @@ public class PatchExplainer {
    */
   private final DeltaGenerator deltaGenerator;
 
+  /**
+   * The maximum number of deltas to generate at the same time.
+   */
+  private final int threads;
+
+  /**
+   * Changed entries whose old and new blobs are both at most this many bytes are diffed entirely in
+   * memory, without temp files.
+   */
+  private final long inMemoryLimit;
+
+  /**
+   * Optional cache of the deflate parameters of new entries, or null to always divine them.
+   */
+  private final DivinationCache divinationCache;
+
+  /**
+   * The maximum number of uncompressed bytes to read to find renamed and modified entries, or 0.
+   */
+  private final long similarityBudget;
+
   /**
    * Construct a new patch explainer that will use the specified {@link Compressor} to establish
    * compressed patch size estimates and the specified {@link DeltaGenerator} to generate the deltas
@@ -80,8 +145,101 @@ public class PatchExplainer {
    * @param deltaGenerator the delta generator to use
    */
   public PatchExplainer(Compressor compressor, DeltaGenerator deltaGenerator) {
+    this(compressor, deltaGenerator, 1);
+  }
+
+  /**
+   * Construct a new patch explainer like {@link #PatchExplainer(Compressor, DeltaGenerator)} that
+   * generates the deltas for up to the specified number of changed entries at the same time. Each
+   * entry uses its own scratch storage, so the number of threads also bounds the storage used.
+   * @param compressor the compressor to use, which must be safe for concurrent use if more than one
+   *     thread is used
+   * @param deltaGenerator the delta generator to use, which must be safe for concurrent use if more
+   *     than one thread is used
+   * @param threads the maximum number of deltas to generate at the same time
+   */
+  public PatchExplainer(Compressor compressor, DeltaGenerator deltaGenerator, int threads) {
+    this(compressor, deltaGenerator, threads, DEFAULT_IN_MEMORY_LIMIT_BYTES);
+  }
+
+  /**
+   * Construct a new patch explainer like {@link #PatchExplainer(Compressor, DeltaGenerator, int)}
+   * that diffs changed entries in memory when their old and new blobs are both at most the
+   * specified size, and through temp files otherwise.
+   * @param compressor the compressor to use, which must be safe for concurrent use if more than one
+   *     thread is used
+   * @param deltaGenerator the delta generator to use, which must be safe for concurrent use if more
+   *     than one thread is used
+   * @param threads the maximum number of deltas to generate at the same time
+   * @param inMemoryLimit the largest blob size, in bytes, to diff in memory; 0 to always use temp
+   *     files. Values above {@link #MAX_IN_MEMORY_LIMIT_BYTES} are clamped to it
+   */
+  public PatchExplainer(
+      Compressor compressor, DeltaGenerator deltaGenerator, int threads, long inMemoryLimit) {
+    this(compressor, deltaGenerator, threads, inMemoryLimit, null);
+  }
+
+  /**
+   * Construct a new patch explainer like {@link #PatchExplainer(Compressor, DeltaGenerator, int,
+   * long)} that looks up the deflate parameters of new entries in the specified cache before
+   * divining them. Entries that are divined are added to the cache; saving it is up to the caller.
+   * @param compressor the compressor to use, which must be safe for concurrent use if more than one
+   *     thread is used
+   * @param deltaGenerator the delta generator to use, which must be safe for concurrent use if more
+   *     than one thread is used
+   * @param threads the maximum number of deltas to generate at the same time
+   * @param inMemoryLimit the largest blob size, in bytes, to diff in memory; 0 to always use temp
+   *     files. Values above {@link #MAX_IN_MEMORY_LIMIT_BYTES} are clamped to it
+   * @param divinationCache the cache to use, or null to always divine
+   */
+  public PatchExplainer(
+      Compressor compressor,
+      DeltaGenerator deltaGenerator,
+      int threads,
+      long inMemoryLimit,
+      DivinationCache divinationCache) {
+    this(compressor, deltaGenerator, threads, inMemoryLimit, divinationCache, 0);
+  }
+
+  /**
+   * Construct a new patch explainer like {@link #PatchExplainer(Compressor, DeltaGenerator, int,
+   * long, DivinationCache)} that also looks for diff bases for new entries that were renamed and
+   * modified, reading up to the specified number of uncompressed bytes per patch to do so. Entries
+   * with such a diff base are explained as changes rather than as new entries.
+   * @param compressor the compressor to use, which must be safe for concurrent use if more than one
+   *     thread is used
+   * @param deltaGenerator the delta generator to use, which must be safe for concurrent use if more
+   *     than one thread is used
+   * @param threads the maximum number of deltas to generate at the same time
+   * @param inMemoryLimit the largest blob size, in bytes, to diff in memory; 0 to always use temp
+   *     files. Values above {@link #MAX_IN_MEMORY_LIMIT_BYTES} are clamped to it
+   * @param divinationCache the cache to use, or null to always divine
+   * @param similarityBudget the budget, in bytes, for finding renamed and modified entries; 0 to
+   *     only find renamed entries whose content is identical
+   * @see PreDiffExecutor.Builder#withSimilarityBudget(long)
+   */
+  public PatchExplainer(
+      Compressor compressor,
+      DeltaGenerator deltaGenerator,
+      int threads,
+      long inMemoryLimit,
+      DivinationCache divinationCache,
+      long similarityBudget) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be >= 1");
+    }
+    if (inMemoryLimit < 0) {
+      throw new IllegalArgumentException("inMemoryLimit must be >= 0");
+    }
+    if (similarityBudget < 0) {
+      throw new IllegalArgumentException("similarityBudget must be >= 0");
+    }
     this.compressor = compressor;
     this.deltaGenerator = deltaGenerator;
+    this.threads = threads;
+    this.inMemoryLimit = Math.min(inMemoryLimit, MAX_IN_MEMORY_LIMIT_BYTES);
+    this.divinationCache = divinationCache;
+    this.similarityBudget = similarityBudget;
   }
 
   /**
@@ -98,112 +256,542 @@ public class PatchExplainer {
   public List<EntryExplanation> explainPatch(
       File oldFile, File newFile, RecommendationModifier... recommendationModifiers)
       throws IOException, InterruptedException {
-    List<EntryExplanation> result = new ArrayList<>();
+    return explainPatch(
+        oldFile,
+        MinimalZipArchive.listEntries(oldFile),
+        newFile,
+        MinimalZipArchive.listEntries(newFile),
+        recommendationModifiers);
+  }
 
-    // Isolate entries that are only found in the new archive.
-    Map<ByteArrayHolder, MinimalZipEntry> allOldEntries = mapEntries(oldFile);
-    Map<ByteArrayHolder, MinimalZipEntry> allNewEntries = mapEntries(newFile);
-    Map<ByteArrayHolder, MinimalZipEntry> completelyNewEntries = new HashMap<>(allNewEntries);
-    completelyNewEntries.keySet().removeAll(allOldEntries.keySet());
+  /**
+   * Explains the patch that would be generated for the specified input files, whose entries the
+   * caller has already listed with {@link MinimalZipArchive#listEntries(File)}. Neither file is
+   * parsed again, and {@link EntryExplanation#getNewEntry()} returns elements of |newEntries|, so
+   * the caller can join the explanations to its own model of the new file by identity.
+   *
+   * @param oldFile the old file
+   * @param oldEntries the entries of the old file
+   * @param newFile the new file
+   * @param newEntries the entries of the new file
+   * @param recommendationModifiers optionally, {@link RecommendationModifier}s to use during patch
+   *     planning. If null, a normal patch is generated.
+   * @return a list of the explanations for each entry that would be
+   * @throws IOException if unable to read data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public List<EntryExplanation> explainPatch(
+      File oldFile,
+      List<MinimalZipEntry> oldEntries,
+      File newFile,
+      List<MinimalZipEntry> newEntries,
+      RecommendationModifier... recommendationModifiers)
+      throws IOException, InterruptedException {
+    ExecutorService deltaExecutor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    try {
+      // No delta has started yet, so planning may use as many threads as the deltas will.
+      PreDiffPlan plan =
+          plan(
+              oldFile,
+              oldEntries,
+              newFile,
+              newEntries,
+              divinationCache,
+              similarityBudget,
+              threads,
+              recommendationModifiers);
+      return getAll(
+          startExplanations(
+              oldFile, mapEntries(oldEntries), newFile, newEntries, plan, deltaExecutor));
+    } finally {
+      if (deltaExecutor != null) {
+        // Interrupts any deltas still running if an earlier one failed.
+        deltaExecutor.shutdownNow();
+      }
+    }
+  }
 
-    // Now calculate the costs for the new files and track them in the explanations returned.
-    for (Map.Entry<ByteArrayHolder, MinimalZipEntry> entry : completelyNewEntries.entrySet()) {
-      long compressedSize = getCompressedSize(newFile, entry.getValue(), compressor);
-      result.add(
-          new EntryExplanation(
-              new ByteArrayHolder(entry.getValue().getFileNameBytes()),
-              true,
-              null,
-              compressedSize));
+  /**
+   * Explains the patch that would be generated for the specified input files, writing each
+   * explanation to |writer| as soon as it and all of the ones before it are done rather than
+   * collecting them. Explanations are written in the order {@link #explainPatch(File, File,
+   * RecommendationModifier...)} would return them. With one thread, each entry is explained only
+   * once the one before it has been written. The writer is not closed.
+   *
+   * @param oldFile the old file
+   * @param newFile the new file
+   * @param writer the writer to write the explanations to
+   * @param recommendationModifiers optionally, {@link RecommendationModifier}s to use during patch
+   *     planning. If null, a normal patch is generated.
+   * @throws IOException if unable to read data or to write the explanations
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public void explainPatch(
+      File oldFile,
+      File newFile,
+      EntryExplanationWriter writer,
+      RecommendationModifier... recommendationModifiers)
+      throws IOException, InterruptedException {
+    List<MinimalZipEntry> oldEntries = MinimalZipArchive.listEntries(oldFile);
+    List<MinimalZipEntry> newEntries = MinimalZipArchive.listEntries(newFile);
+    ExecutorService deltaExecutor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    try {
+      // No delta has started yet, so planning may use as many threads as the deltas will.
+      PreDiffPlan plan =
+          plan(
+              oldFile,
+              oldEntries,
+              newFile,
+              newEntries,
+              divinationCache,
+              similarityBudget,
+              threads,
+              recommendationModifiers);
+      writeAll(
+          startExplanations(
+              oldFile, mapEntries(oldEntries), newFile, newEntries, plan, deltaExecutor),
+          writer);
+    } finally {
+      if (deltaExecutor != null) {
+        // Interrupts any deltas still running if an earlier one failed.
+        deltaExecutor.shutdownNow();
+      }
     }
+  }
 
-    Uncompressor uncompressor = new DeflateUncompressor();
+  /**
+   * Explains the patches that would be generated from one old file to each of several new files,
+   * e.g. from a release to a number of candidate builds. The old file is parsed once, and the new
+   * files are planned and their deltas generated on the same threads, so a large target does not
+   * hold up the others. To also suffix sort each old entry only once, use a delta generator that
+   * shares a {@link com.android.tools.apk.analyzer.diff.generator.bsdiff.SuffixArrayCache}.
+   *
+   * @param oldFile the old file
+   * @param newFiles the new files
+   * @param recommendationModifiers optionally, {@link RecommendationModifier}s to use during patch
+   *     planning, which must be safe for concurrent use if more than one thread is used
+   * @return for each new file, in order, the explanations as {@link #explainPatch} would return
+   * @throws IOException if unable to read data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public List<List<EntryExplanation>> explainPatches(
+      File oldFile, List<File> newFiles, RecommendationModifier... recommendationModifiers)
+      throws IOException, InterruptedException {
+    List<MinimalZipEntry> oldEntries = MinimalZipArchive.listEntries(oldFile);
+    Map<ByteArrayHolder, MinimalZipEntry> oldEntriesByPath = mapEntries(oldEntries);
+    ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    try {
+      // Plan every pair first, so that planning the later pairs overlaps with the deltas of the
+      // earlier ones. Only this thread waits on results, so sharing the pool cannot deadlock.
+      // Plans run alongside each other and the deltas, so each divines on its own pool thread.
+      List<List<MinimalZipEntry>> newEntries = new ArrayList<>(newFiles.size());
+      List<Future<PreDiffPlan>> plans = new ArrayList<>(newFiles.size());
+      for (File newFile : newFiles) {
+        List<MinimalZipEntry> entries = MinimalZipArchive.listEntries(newFile);
+        newEntries.add(entries);
+        if (executor == null) {
+          plans.add(
+              CompletableFuture.completedFuture(
+                  plan(
+                      oldFile,
+                      oldEntries,
+                      newFile,
+                      entries,
+                      divinationCache,
+                      similarityBudget,
+                      1,
+                      recommendationModifiers)));
+        } else {
+          plans.add(
+              executor.submit(
+                  () ->
+                      plan(
+                          oldFile,
+                          oldEntries,
+                          newFile,
+                          entries,
+                          divinationCache,
+                          similarityBudget,
+                          1,
+                          recommendationModifiers)));
+        }
+      }
+
+      List<List<Future<EntryExplanation>>> explanations = new ArrayList<>(newFiles.size());
+      for (int i = 0; i < newFiles.size(); i++) {
+        explanations.add(
+            startExplanations(
+                oldFile,
+                oldEntriesByPath,
+                newFiles.get(i),
+                newEntries.get(i),
+                get(plans.get(i)),
+                executor));
+      }
+
+      List<List<EntryExplanation>> result = new ArrayList<>(newFiles.size());
+      for (List<Future<EntryExplanation>> pending : explanations) {
+        result.add(getAll(pending));
+      }
+      return result;
+    } finally {
+      if (executor != null) {
+        // Interrupts any work still running if an earlier task failed.
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Plans the patch from the old file to the new file.
+   * @param oldFile the old file
+   * @param oldEntries the entries of the old file
+   * @param newFile the new file
+   * @param newEntries the entries of the new file
+   * @param divinationCache the cache of deflate parameters to use, or null
+   * @param similarityBudget the budget for finding renamed and modified entries, or 0
+   * @param threads the maximum number of threads to plan on, which should be 1 if other plans or
+   *     deltas are running at the same time
+   * @param recommendationModifiers the modifiers to use during patch planning
+   * @return the plan
+   * @throws IOException if unable to read data
+   */
+  private static PreDiffPlan plan(
+      File oldFile,
+      List<MinimalZipEntry> oldEntries,
+      File newFile,
+      List<MinimalZipEntry> newEntries,
+      DivinationCache divinationCache,
+      long similarityBudget,
+      int threads,
+      RecommendationModifier... recommendationModifiers)
+      throws IOException {
     PreDiffExecutor.Builder builder =
-        new PreDiffExecutor.Builder().readingOriginalFiles(oldFile, newFile);
+        new PreDiffExecutor.Builder()
+            .readingOriginalFiles(oldFile, newFile)
+            .withOriginalOldFileEntries(oldEntries)
+            .withOriginalNewFileEntries(newEntries)
+            .withSimilarityBudget(similarityBudget)
+            .withThreads(threads);
+    if (divinationCache != null) {
+      builder.withDivinationCache(divinationCache);
+    }
     for (RecommendationModifier modifier : recommendationModifiers) {
       builder.withRecommendationModifier(modifier);
     }
-    PreDiffExecutor executor = builder.build();
-    PreDiffPlan plan = executor.prepareForDiffing();
-    try (TempFileHolder oldTemp = new TempFileHolder();
-        TempFileHolder newTemp = new TempFileHolder();
-        TempFileHolder deltaTemp = new TempFileHolder()) {
-      for (QualifiedRecommendation qualifiedRecommendation : plan.getQualifiedRecommendations()) {
-
-        // Short-circuit for identical resources.
-        if (qualifiedRecommendation.getReason()
-            == RecommendationReason.COMPRESSED_BYTES_IDENTICAL) {
-          // Patch size should be effectively zero.
-          result.add(
-              new EntryExplanation(
-                  new ByteArrayHolder(qualifiedRecommendation.getNewEntry().getFileNameBytes()),
-                  false,
-                  qualifiedRecommendation.getReason(),
-                  0L));
-          continue;
-        }
+    return builder.build().prepareForDiffing();
+  }
 
-        if (qualifiedRecommendation.getOldEntry().getCrc32OfUncompressedData()
-                == qualifiedRecommendation.getNewEntry().getCrc32OfUncompressedData()
-            && qualifiedRecommendation.getOldEntry().getUncompressedSize()
-                == qualifiedRecommendation.getNewEntry().getUncompressedSize()) {
-          // If the path, size and CRC32 are the same assume it's a match. Patch size should be
-          // effectively zero.
-          result.add(
-              new EntryExplanation(
-                  new ByteArrayHolder(qualifiedRecommendation.getNewEntry().getFileNameBytes()),
-                  false,
-                  qualifiedRecommendation.getReason(),
-                  0L));
-          continue;
-        }
+  /**
+   * Starts explaining every entry of the new file: the entries only found in the new file first,
+   * followed by the entries in plan order.
+   * @param oldFile the old file
+   * @param oldEntriesByPath the entries of the old file, with paths as keys
+   * @param newFile the new file
+   * @param newEntries the entries of the new file
+   * @param plan the plan for the patch from the old file to the new file
+   * @param executor the executor to explain entries on, or null to explain each on this thread
+   *     when it is first waited for
+   * @return the pending explanations, in order
+   */
+  private List<Future<EntryExplanation>> startExplanations(
+      File oldFile,
+      Map<ByteArrayHolder, MinimalZipEntry> oldEntriesByPath,
+      File newFile,
+      List<MinimalZipEntry> newEntries,
+      PreDiffPlan plan,
+      ExecutorService executor) {
+    List<Future<EntryExplanation>> explanations = new ArrayList<>();
 
-        // Everything past here is a resource that has changed in some way.
-        // NB: This magically takes care of RecommendationReason.RESOURCE_CONSTRAINED. The logic
-        // below will keep the RESOURCE_CONSTRAINED entries compressed, running the delta on their
-        // compressed contents, and the resulting explanation will preserve the RESOURCE_CONSTRAINED
-        // reason. This will correctly attribute the size of these blobs to the RESOURCE_CONSTRAINED
-        // category.
-
-        // Get the inputs ready for running a delta: uncompress/copy the *old* content as necessary.
-        long oldOffset = qualifiedRecommendation.getOldEntry().getFileOffsetOfCompressedData();
-        long oldLength = qualifiedRecommendation.getOldEntry().getCompressedSize();
-        if (qualifiedRecommendation.getRecommendation().uncompressOldEntry) {
-          uncompress(oldFile, oldOffset, oldLength, uncompressor, oldTemp.file);
-        } else {
-          extractCopy(oldFile, oldOffset, oldLength, oldTemp.file);
-        }
+    // Isolate entries that are only found in the new archive, and that the plan found no diff base
+    // for under another path either.
+    Map<ByteArrayHolder, MinimalZipEntry> completelyNewEntries = mapEntries(newEntries);
+    completelyNewEntries.keySet().removeAll(oldEntriesByPath.keySet());
+    for (QualifiedRecommendation qualifiedRecommendation : plan.getQualifiedRecommendations()) {
+      completelyNewEntries.remove(
+          new ByteArrayHolder(qualifiedRecommendation.getNewEntry().getFileNameBytes()));
+    }
 
-        // Get the inputs ready for running a delta: uncompress/copy the *new* content as necessary.
-        long newOffset = qualifiedRecommendation.getNewEntry().getFileOffsetOfCompressedData();
-        long newLength = qualifiedRecommendation.getNewEntry().getCompressedSize();
-        if (qualifiedRecommendation.getRecommendation().uncompressNewEntry) {
-          uncompress(newFile, newOffset, newLength, uncompressor, newTemp.file);
-        } else {
-          extractCopy(newFile, newOffset, newLength, newTemp.file);
-        }
+    // Now calculate the costs for the new files and track them in the explanations returned.
+    for (MinimalZipEntry newEntry : completelyNewEntries.values()) {
+      explanations.add(start(executor, () -> explainNew(newFile, newEntry)));
+    }
 
-        // File is actually changed (or transitioned between compressed and uncompressed forms).
-        // Generate and compress a delta.
-        try (FileOutputStream deltaOut = new FileOutputStream(deltaTemp.file);
-            BufferedOutputStream bufferedDeltaOut = new BufferedOutputStream(deltaOut)) {
-          deltaGenerator.generateDelta(oldTemp.file, newTemp.file, bufferedDeltaOut);
-          bufferedDeltaOut.flush();
-          long compressedDeltaSize =
-              getCompressedSize(deltaTemp.file, 0, deltaTemp.file.length(), compressor);
-          result.add(
-              new EntryExplanation(
-                  new ByteArrayHolder(qualifiedRecommendation.getOldEntry().getFileNameBytes()),
-                  false,
-                  qualifiedRecommendation.getReason(),
-                  compressedDeltaSize));
-        }
+    // Explanations are collected in plan order, whichever order the deltas complete in.
+    for (QualifiedRecommendation qualifiedRecommendation : plan.getQualifiedRecommendations()) {
+
+      // Short-circuit for identical resources.
+      if (qualifiedRecommendation.getReason()
+          == RecommendationReason.COMPRESSED_BYTES_IDENTICAL) {
+        // Patch size should be effectively zero.
+        explanations.add(
+            CompletableFuture.completedFuture(
+                new EntryExplanation(
+                    new ByteArrayHolder(qualifiedRecommendation.getNewEntry().getFileNameBytes()),
+                    false,
+                    qualifiedRecommendation.getReason(),
+                    0L,
+                    qualifiedRecommendation.getNewEntry())));
+        continue;
+      }
+
+      if (qualifiedRecommendation.getOldEntry().getCrc32OfUncompressedData()
+              == qualifiedRecommendation.getNewEntry().getCrc32OfUncompressedData()
+          && qualifiedRecommendation.getOldEntry().getUncompressedSize()
+              == qualifiedRecommendation.getNewEntry().getUncompressedSize()) {
+        // If the path, size and CRC32 are the same assume it's a match. Patch size should be
+        // effectively zero.
+        explanations.add(
+            CompletableFuture.completedFuture(
+                new EntryExplanation(
+                    new ByteArrayHolder(qualifiedRecommendation.getNewEntry().getFileNameBytes()),
+                    false,
+                    qualifiedRecommendation.getReason(),
+                    0L,
+                    qualifiedRecommendation.getNewEntry())));
+        continue;
+      }
+
+      // Everything past here is a resource that has changed in some way.
+      explanations.add(
+          start(executor, () -> explainChange(oldFile, newFile, qualifiedRecommendation)));
+    }
+    return explanations;
+  }
+
+  /**
+   * Starts explaining one entry.
+   * @param executor the executor to explain the entry on, or null to explain it on the thread that
+   *     waits for it, once that thread first waits for it
+   * @param explanation computes the explanation
+   * @return the pending explanation
+   */
+  private static Future<EntryExplanation> start(
+      ExecutorService executor, Callable<EntryExplanation> explanation) {
+    return executor == null ? new DeferredExplanation(explanation) : executor.submit(explanation);
+  }
+
+  /**
+   * Explains an entry that is only found in the new file by measuring its compressed size.
+   * @param newFile the new file
+   * @param newEntry the entry in the new file
+   * @return the explanation for the entry
+   * @throws IOException if unable to read data
+   */
+  private EntryExplanation explainNew(File newFile, MinimalZipEntry newEntry) throws IOException {
+    return new EntryExplanation(
+        new ByteArrayHolder(newEntry.getFileNameBytes()),
+        true,
+        null,
+        getCompressedSize(newFile, newEntry, compressor),
+        newEntry);
+  }
+
+  /**
+   * Explains a changed entry by running the delta for it and measuring the compressed result. All
+   * intermediate data is owned by this call, so changes can be explained concurrently.
+   * @param oldFile the old file
+   * @param newFile the new file
+   * @param qualifiedRecommendation the recommendation for the changed entry
+   * @return the explanation for the entry
+   * @throws IOException if unable to read data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  private EntryExplanation explainChange(
+      File oldFile, File newFile, QualifiedRecommendation qualifiedRecommendation)
+      throws IOException, InterruptedException {
+    // NB: This magically takes care of RecommendationReason.RESOURCE_CONSTRAINED. The logic
+    // below will keep the RESOURCE_CONSTRAINED entries compressed, running the delta on their
+    // compressed contents, and the resulting explanation will preserve the RESOURCE_CONSTRAINED
+    // reason. This will correctly attribute the size of these blobs to the RESOURCE_CONSTRAINED
+    // category.
+    MinimalZipEntry oldEntry = qualifiedRecommendation.getOldEntry();
+    MinimalZipEntry newEntry = qualifiedRecommendation.getNewEntry();
+    boolean uncompressOld = qualifiedRecommendation.getRecommendation().uncompressOldEntry;
+    boolean uncompressNew = qualifiedRecommendation.getRecommendation().uncompressNewEntry;
+    long oldSize = uncompressOld ? oldEntry.getUncompressedSize() : oldEntry.getCompressedSize();
+    long newSize = uncompressNew ? newEntry.getUncompressedSize() : newEntry.getCompressedSize();
+
+    long compressedDeltaSize;
+    Uncompressor uncompressor = new DeflateUncompressor();
+    if (oldSize <= inMemoryLimit && newSize <= inMemoryLimit) {
+      // Small enough to keep the blobs and the delta on the heap, with no filesystem traffic.
+      byte[] oldBlob = readBlob(oldFile, oldEntry, uncompressOld, uncompressor);
+      byte[] newBlob = readBlob(newFile, newEntry, uncompressNew, uncompressor);
+      CountingOutputStream counter = new CountingOutputStream(new NullOutputStream());
+      try (OutputStream deltaOut = newCompressingStream(counter)) {
+        deltaGenerator.generateDelta(oldBlob, newBlob, deltaOut);
+      }
+      compressedDeltaSize = counter.getNumBytesWritten();
+    } else {
+      compressedDeltaSize =
+          getCompressedDeltaSize(
+              oldFile, oldEntry, uncompressOld, newFile, newEntry, uncompressNew, uncompressor);
+    }
+    return new EntryExplanation(
+        new ByteArrayHolder(newEntry.getFileNameBytes()),
+        false,
+        qualifiedRecommendation.getReason(),
+        compressedDeltaSize,
+        newEntry);
+  }
+
+  /**
+   * Returns a stream that compresses the delta written to it with {@link #compressor} into the
+   * specified stream. A compressor that compresses incrementally, like {@link
+   * com.android.tools.apk.analyzer.diff.shared.DeflateCompressor}, never stores the delta; any
+   * other spills it to a temp file rather than the heap. Closing the returned stream finishes the
+   * compressed data.
+   * @param compressedOut the stream to write the compressed delta to
+   * @return the stream to write the delta to
+   * @throws IOException if anything goes wrong
+   */
+  private OutputStream newCompressingStream(OutputStream compressedOut) throws IOException {
+    // Delta generators tend to write a byte at a time.
+    return new BufferedOutputStream(
+        compressor.newCompressingStream(compressedOut), DELTA_BUFFER_SIZE);
+  }
+
+  /**
+   * Generates a delta from temp files of the inputs and returns its compressed size.
+   * @param oldFile the old file
+   * @param oldEntry the entry in the old file
+   * @param uncompressOld whether to uncompress the old entry before diffing
+   * @param newFile the new file
+   * @param newEntry the entry in the new file
+   * @param uncompressNew whether to uncompress the new entry before diffing
+   * @param uncompressor the uncompressor to use
+   * @return the size of the delta if compressed with {@link #compressor}
+   * @throws IOException if unable to read data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  private long getCompressedDeltaSize(
+      File oldFile,
+      MinimalZipEntry oldEntry,
+      boolean uncompressOld,
+      File newFile,
+      MinimalZipEntry newEntry,
+      boolean uncompressNew,
+      Uncompressor uncompressor)
+      throws IOException, InterruptedException {
+    try (TempFileHolder oldTemp = new TempFileHolder();
+        TempFileHolder newTemp = new TempFileHolder()) {
+      // Get the inputs ready for running a delta: uncompress/copy the *old* content as necessary.
+      long oldOffset = oldEntry.getFileOffsetOfCompressedData();
+      long oldLength = oldEntry.getCompressedSize();
+      if (uncompressOld) {
+        uncompress(oldFile, oldOffset, oldLength, uncompressor, oldTemp.file);
+      } else {
+        extractCopy(oldFile, oldOffset, oldLength, oldTemp.file);
+      }
+
+      // Get the inputs ready for running a delta: uncompress/copy the *new* content as necessary.
+      long newOffset = newEntry.getFileOffsetOfCompressedData();
+      long newLength = newEntry.getCompressedSize();
+      if (uncompressNew) {
+        uncompress(newFile, newOffset, newLength, uncompressor, newTemp.file);
+      } else {
+        extractCopy(newFile, newOffset, newLength, newTemp.file);
+      }
+
+      // File is actually changed (or transitioned between compressed and uncompressed forms).
+      // Generate a delta and compress it as it is generated, only counting the compressed bytes.
+      CountingOutputStream counter = new CountingOutputStream(new NullOutputStream());
+      try (OutputStream deltaOut = newCompressingStream(counter)) {
+        deltaGenerator.generateDelta(oldTemp.file, newTemp.file, deltaOut);
       }
+      return counter.getNumBytesWritten();
     }
+  }
 
+  /**
+   * Reads an entry into memory, uncompressing it if requested.
+   * @param file the file to read from
+   * @param entry the entry to read
+   * @param uncompress whether to uncompress the entry or copy its raw bytes
+   * @param uncompressor the uncompressor to use
+   * @return the bytes of the entry
+   * @throws IOException if anything goes wrong
+   */
+  private static byte[] readBlob(
+      File file, MinimalZipEntry entry, boolean uncompress, Uncompressor uncompressor)
+      throws IOException {
+    try (RandomAccessFileInputStream rafis =
+        new RandomAccessFileInputStream(
+            file, entry.getFileOffsetOfCompressedData(), entry.getCompressedSize())) {
+      if (!uncompress) {
+        byte[] result = new byte[(int) entry.getCompressedSize()];
+        new DataInputStream(rafis).readFully(result);
+        return result;
+      }
+      ByteArrayOutputStream result =
+          new ByteArrayOutputStream((int) entry.getUncompressedSize());
+      uncompressor.uncompress(rafis, result);
+      return result.toByteArray();
+    }
+  }
+
+  /**
+   * Waits for all explanations, in order.
+   * @param explanations the pending explanations
+   * @return the explanations
+   * @throws IOException if unable to read data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  private static List<EntryExplanation> getAll(List<Future<EntryExplanation>> explanations)
+      throws IOException, InterruptedException {
+    List<EntryExplanation> result = new ArrayList<>(explanations.size());
+    for (Future<EntryExplanation> explanation : explanations) {
+      result.add(get(explanation));
+    }
     return result;
   }
 
+  /**
+   * Waits for all explanations, in order, writing each one as soon as it is done. Each is dropped
+   * once written, so that only the explanations still pending are held in memory.
+   * @param explanations the pending explanations
+   * @param writer the writer to write the explanations to
+   * @throws IOException if unable to read data or to write the explanations
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  private static void writeAll(
+      List<Future<EntryExplanation>> explanations, EntryExplanationWriter writer)
+      throws IOException, InterruptedException {
+    for (int i = 0; i < explanations.size(); i++) {
+      writer.write(get(explanations.get(i)));
+      explanations.set(i, null);
+    }
+  }
+
+  /**
+   * Waits for a result and rethrows anything that failed while computing it.
+   * @param future the pending result
+   * @return the result
+   * @throws IOException if unable to read data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  private static <T> T get(Future<T> future) throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof InterruptedException) {
+        throw (InterruptedException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
   /**
    * Determines the size of the entry if it were compressed with the specified compressor.
    * @param file the file to read from
@@ -271,24 +859,35 @@ public class PatchExplainer {
    */
   private long getCompressedSize(File file, long offset, long length, Compressor compressor)
       throws IOException {
+    try (RandomAccessFileInputStream rafis = new RandomAccessFileInputStream(file, offset, length)) {
+      return getCompressedSize(rafis, compressor);
+    }
+  }
+
+  /**
+   * Compresses a stream and returns the compressed size.
+   * @param in the stream to compress
+   * @param compressor the compressor to use for compressing
+   * @return the size of the stream if compressed with the specified compressor
+   * @throws IOException if anything goes wrong
+   */
+  private long getCompressedSize(InputStream in, Compressor compressor) throws IOException {
     try (OutputStream sink = new NullOutputStream();
-        CountingOutputStream counter = new CountingOutputStream(sink);
-        RandomAccessFileInputStream rafis = new RandomAccessFileInputStream(file, offset, length)) {
-      compressor.compress(rafis, counter);
+        CountingOutputStream counter = new CountingOutputStream(sink)) {
+      compressor.compress(in, counter);
       counter.flush();
       return counter.getNumBytesWritten();
     }
   }
 
   /**
-   * Convert a file into a map whose keys are {@link ByteArrayHolder} objects containing the entry
-   * paths and whose values are the corresponding {@link MinimalZipEntry} objects.
-   * @param file the file to scan, which must be a valid zip archive
+   * Convert a list of entries into a map whose keys are {@link ByteArrayHolder} objects containing
+   * the entry paths and whose values are the corresponding {@link MinimalZipEntry} objects.
+   * @param allEntries the entries of a zip archive
    * @return the mapping, as described
-   * @throws IOException if anything goes wrong
    */
-  private static Map<ByteArrayHolder, MinimalZipEntry> mapEntries(File file) throws IOException {
-    List<MinimalZipEntry> allEntries = MinimalZipArchive.listEntries(file);
+  private static Map<ByteArrayHolder, MinimalZipEntry> mapEntries(
+      List<MinimalZipEntry> allEntries) {
     Map<ByteArrayHolder, MinimalZipEntry> result = new HashMap<>(allEntries.size());
     for (MinimalZipEntry entry : allEntries) {
       result.put(new ByteArrayHolder(entry.getFileNameBytes()), entry);
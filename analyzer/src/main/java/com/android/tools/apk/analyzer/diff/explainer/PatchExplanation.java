@@ -218,62 +218,56 @@ public class PatchExplanation {
    * @param writer the writer to write the JSON to
    */
   public void writeJson(PrintWriter writer) {
-    StringBuilder buffer = new StringBuilder(); // For convenience
-    buffer.append("{\n");
-    buffer.append("  estimatedNewSize: ").append(getEstimatedNewSize()).append(",\n");
-    buffer.append("  estimatedChangedSize: ").append(getEstimatedChangedSize()).append(",\n");
-    buffer
-        .append("  estimatedResourceConstrainedSize: ")
-        .append(getEstimatedResourceConstrainedSize())
-        .append(",\n");
-    dumpJson(getExplainedAsNew(), "explainedAsNew", buffer, "  ");
-    buffer.append(",\n");
-    dumpJson(getExplainedAsChanged(), "explainedAsChanged", buffer, "  ");
-    buffer.append(",\n");
-    dumpJson(getExplainedAsUnchangedOrFree(), "explainedAsUnchangedOrFree", buffer, "  ");
-    buffer.append(",\n");
-    dumpJson(getExplainedAsResourceConstrained(), "explainedAsResourceConstrained", buffer, "  ");
-    buffer.append("\n");
-    buffer.append("}");
-    writer.write(buffer.toString());
+    // Written piece by piece rather than built up as one string, which for archives with many
+    // entries would be huge. See EntryExplanationWriter to write entries as they are explained.
+    writer.write("{\n");
+    writer.write("  estimatedNewSize: " + getEstimatedNewSize() + ",\n");
+    writer.write("  estimatedChangedSize: " + getEstimatedChangedSize() + ",\n");
+    writer.write(
+        "  estimatedResourceConstrainedSize: " + getEstimatedResourceConstrainedSize() + ",\n");
+    dumpJson(getExplainedAsNew(), "explainedAsNew", writer, "  ");
+    writer.write(",\n");
+    dumpJson(getExplainedAsChanged(), "explainedAsChanged", writer, "  ");
+    writer.write(",\n");
+    dumpJson(getExplainedAsUnchangedOrFree(), "explainedAsUnchangedOrFree", writer, "  ");
+    writer.write(",\n");
+    dumpJson(getExplainedAsResourceConstrained(), "explainedAsResourceConstrained", writer, "  ");
+    writer.write("\n");
+    writer.write("}");
     writer.flush();
   }
 
   private void dumpJson(
-      List<EntryExplanation> explanations, String listName, StringBuilder buffer, String indent) {
-    buffer.append(indent).append(listName).append(": [\n");
+      List<EntryExplanation> explanations, String listName, PrintWriter writer, String indent) {
+    writer.write(indent + listName + ": [\n");
+    String entryIndent = indent + "  ";
     Iterator<EntryExplanation> iterator = explanations.iterator();
     while (iterator.hasNext()) {
       EntryExplanation explanation = iterator.next();
-      dumpJson(explanation, buffer, indent + "  ");
+      dumpJson(explanation, writer, entryIndent);
       if (iterator.hasNext()) {
-        buffer.append(",");
+        writer.write(",");
       }
-      buffer.append("\n");
+      writer.write("\n");
     }
-    buffer.append(indent).append("]");
+    writer.write(indent + "]");
   }
 
-  private void dumpJson(EntryExplanation entryExplanation, StringBuilder buffer, String indent) {
+  private void dumpJson(EntryExplanation entryExplanation, PrintWriter writer, String indent) {
     String reasonString =
         entryExplanation.isNew()
             ? "undefined"
             : "'" + entryExplanation.getReasonIncludedIfNotNew().toString() + "'";
-    buffer
-        .append(indent)
-        .append("{ ")
-        .append("path: '")
-        .append(path(entryExplanation))
-        .append("', ")
-        .append("isNew: ")
-        .append(entryExplanation.isNew())
-        .append(", ")
-        .append("reasonIncluded: ")
-        .append(reasonString)
-        .append(", ")
-        .append("compressedSizeInPatch: ")
-        .append(entryExplanation.getCompressedSizeInPatch())
-        .append(" }");
+    writer.write(indent);
+    writer.write("{ path: '");
+    writer.write(path(entryExplanation));
+    writer.write("', isNew: ");
+    writer.write(Boolean.toString(entryExplanation.isNew()));
+    writer.write(", reasonIncluded: ");
+    writer.write(reasonString);
+    writer.write(", compressedSizeInPatch: ");
+    writer.write(Long.toString(entryExplanation.getCompressedSizeInPatch()));
+    writer.write(" }");
   }
 
   /**
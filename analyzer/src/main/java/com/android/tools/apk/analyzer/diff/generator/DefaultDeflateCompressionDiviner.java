@@ -14,20 +14,32 @@
 
 package com.android.tools.apk.analyzer.diff.generator;
 
-import com.android.tools.apk.analyzer.diff.shared.ByteArrayInputStreamFactory;
+import com.android.tools.apk.analyzer.diff.shared.ByteBufferInputStreamFactory;
 import com.android.tools.apk.analyzer.diff.shared.DefaultDeflateCompatibilityWindow;
+import com.android.tools.apk.analyzer.diff.shared.DeflatePool;
 import com.android.tools.apk.analyzer.diff.shared.JreDeflateParameters;
 import com.android.tools.apk.analyzer.diff.shared.MultiViewInputStreamFactory;
 import com.android.tools.apk.analyzer.diff.shared.RandomAccessFileInputStreamFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
@@ -77,8 +89,83 @@ public class DefaultDeflateCompressionDiviner {
     }
   }
 
+  /**
+   * The size of the buffer used to copy bytes between the inflater and the deflater.
+   */
+  private static final int COPY_BUFFER_SIZE = 32 * 1024;
+
+  /**
+   * The maximum number of uncompressed bytes at the start of an entry that every candidate is first
+   * checked against, before any candidate is verified against the whole entry. Zlib emits nothing
+   * until its first block is complete, which for typical data takes more than 64K of input.
+   */
+  private static final int PROBE_WINDOW_SIZE = 256 * 1024;
+
+  /**
+   * The number of matching compressed bytes after which a candidate passes the probe.
+   */
+  private static final int PROBE_MATCH_SIZE = 4 * 1024;
+
+  /**
+   * The maximum number of compressed bytes compared per candidate while probing. Deflate may expand
+   * incompressible data slightly, so this is a little larger than the window.
+   */
+  private static final int PROBE_OUTPUT_SIZE = PROBE_WINDOW_SIZE + 1024;
+
+  /**
+   * The maximum number of entries to divine at the same time.
+   */
+  private final int threads;
+
+  /**
+   * Optional cache of earlier results for {@link #divineDeflateParameters(File)}.
+   */
+  private final DivinationCache cache;
+
+  /**
+   * Creates a diviner that works on as many entries at the same time as there are processors.
+   * Callers that already run on a pool of their own should use {@link
+   * #DefaultDeflateCompressionDiviner(int)} instead, as each call would nest a pool per processor
+   * inside every thread of theirs.
+   */
+  public DefaultDeflateCompressionDiviner() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a diviner that works on up to the specified number of entries at the same time. Each
+   * call with more than one deflated entry starts a pool of its own of up to |threads| threads and
+   * shuts it down before returning; with 1, entries are divined on the calling thread. Callers
+   * that make several calls at the same time, or call from threads of a pool, should pass their
+   * own thread count or a share of it, e.g. 1 per concurrent call.
+   * @param threads the maximum number of entries to divine at the same time
+   */
+  public DefaultDeflateCompressionDiviner(int threads) {
+    this(threads, null);
+  }
+
+  /**
+   * Creates a diviner like {@link #DefaultDeflateCompressionDiviner(int)} that looks up the
+   * entries of archives in the specified cache before divining them, and adds the entries it
+   * divines to the cache. The cache is not saved; that is up to the caller.
+   * @param threads the maximum number of entries to divine at the same time
+   * @param cache the cache to use, or null to always divine
+   */
+  public DefaultDeflateCompressionDiviner(int threads, DivinationCache cache) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be >= 1");
+    }
+    this.threads = threads;
+    this.cache = cache;
+  }
+
   /**
    * Load the specified archive and attempt to divine deflate parameters for all entries within.
+   * Entries are divined on up to the number of threads given at construction, each of which
+   * reuses its own inflaters and deflaters, and read from a single memory mapping of the archive
+   * unless it is too large to map. The threads are a pool started for this call alone, on top of
+   * any threads of the caller's. If a {@link DivinationCache} was given at construction, entries
+   * found in it are not divined again.
    * @param archiveFile the archive file to work on
    * @return a list of results for each entry in the archive, in file order (not central directory
    * order). There is exactly one result per entry, regardless of whether or not that entry is
@@ -89,36 +176,164 @@ public class DefaultDeflateCompressionDiviner {
    * @see DivinationResult 
    */
   public List<DivinationResult> divineDeflateParameters(File archiveFile) throws IOException {
-    List<DivinationResult> results = new ArrayList<>();
-    for (MinimalZipEntry minimalZipEntry : MinimalZipArchive.listEntries(archiveFile)) {
-      JreDeflateParameters divinedParameters = null;
-      if (minimalZipEntry.isDeflateCompressed()) {
-        // TODO(pasc): Reuse streams to avoid churning file descriptors
-        MultiViewInputStreamFactory isFactory =
-            new RandomAccessFileInputStreamFactory(
-                archiveFile,
-                minimalZipEntry.getFileOffsetOfCompressedData(),
-                minimalZipEntry.getCompressedSize());
-
-        // Keep small entries in memory to avoid unnecessary file I/O.
-        if (minimalZipEntry.getCompressedSize() < (100 * 1024)) {
-          try (InputStream is = isFactory.newStream()) {
-            byte[] compressedBytes = new byte[(int) minimalZipEntry.getCompressedSize()];
-            is.read(compressedBytes);
-            divinedParameters =
-                divineDeflateParameters(new ByteArrayInputStreamFactory(compressedBytes));
-          } catch (Exception ignore) {
-            divinedParameters = null;
+    return divineDeflateParameters(archiveFile, MinimalZipArchive.listEntries(archiveFile));
+  }
+
+  /**
+   * As {@link #divineDeflateParameters(File)}, for an archive whose entries the caller has already
+   * listed with {@link MinimalZipArchive#listEntries(File)}. Each result refers to the same
+   * {@link MinimalZipEntry} object as the corresponding element of |entries|.
+   * @param archiveFile the archive file to work on
+   * @param entries the entries of the archive, in file order
+   * @return a list of results for each entry in |entries|, in the same order
+   * @throws IOException if unable to read the file
+   */
+  public List<DivinationResult> divineDeflateParameters(
+      File archiveFile, final List<MinimalZipEntry> entries) throws IOException {
+    final List<Integer> deflated = new ArrayList<>();
+    for (int i = 0; i < entries.size(); i++) {
+      if (entries.get(i).isDeflateCompressed()) {
+        deflated.add(i);
+      }
+    }
+
+    final ByteBuffer archive;
+    try (RandomAccessFile raf = new RandomAccessFile(archiveFile, "r")) {
+      // The mapping stays valid after the file is closed.
+      archive =
+          raf.length() <= Integer.MAX_VALUE
+              ? raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+              : null;
+    }
+
+    // Each worker takes the next deflated entry until none are left.
+    final JreDeflateParameters[] parameters = new JreDeflateParameters[entries.size()];
+    final AtomicInteger next = new AtomicInteger();
+    Callable<Void> worker =
+        () -> {
+          try (Workspace workspace = new Workspace()) {
+            for (int i = next.getAndIncrement(); i < deflated.size(); i = next.getAndIncrement()) {
+              int index = deflated.get(i);
+              parameters[index] = divine(archiveFile, archive, entries.get(index), workspace);
+            }
           }
-        } else {
-          divinedParameters = divineDeflateParameters(isFactory);
+          return null;
+        };
+
+    int workers = Math.min(threads, deflated.size());
+    if (workers <= 1) {
+      call(worker);
+    } else {
+      ExecutorService executor = Executors.newFixedThreadPool(workers);
+      try {
+        List<Future<Void>> results = new ArrayList<>(workers);
+        for (int w = 0; w < workers; w++) {
+          results.add(executor.submit(worker));
+        }
+        for (Future<Void> result : results) {
+          get(result);
         }
+      } finally {
+        // Interrupts the other workers if one failed.
+        executor.shutdownNow();
       }
-      results.add(new DivinationResult(minimalZipEntry, divinedParameters));
+    }
+
+    List<DivinationResult> results = new ArrayList<>(entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      results.add(new DivinationResult(entries.get(i), parameters[i]));
     }
     return results;
   }
 
+  /**
+   * Divines the parameters of one deflated entry.
+   * @param archiveFile the archive file
+   * @param archive a mapping of the whole archive file, or null to read the entry from the file
+   * @param entry the entry to divine
+   * @param workspace the (de)compressors and buffer of the calling thread
+   * @return the parameters, or null if they cannot be divined
+   * @throws IOException if unable to read the file
+   */
+  private JreDeflateParameters divine(
+      File archiveFile, ByteBuffer archive, MinimalZipEntry entry, Workspace workspace)
+      throws IOException {
+    long offset = entry.getFileOffsetOfCompressedData();
+    long length = entry.getCompressedSize();
+    MultiViewInputStreamFactory factory;
+    if (archive == null) {
+      factory = new RandomAccessFileInputStreamFactory(archiveFile, offset, length);
+    } else if (offset < 0 || length < 0 || offset + length > archive.capacity()) {
+      // The entry's data is not in the archive, so it cannot be reproduced.
+      return null;
+    } else {
+      ByteBuffer data = archive.duplicate();
+      data.limit((int) (offset + length)).position((int) offset);
+      factory = new ByteBufferInputStreamFactory(data);
+    }
+    if (cache == null) {
+      return divineDeflateParameters(factory, workspace);
+    }
+
+    // Hashing the compressed data is much cheaper than even one attempt at recompressing it.
+    CRC32 crc = new CRC32();
+    try (InputStream in = factory.newStream()) {
+      int numRead;
+      while ((numRead = in.read(workspace.copyBuffer)) >= 0) {
+        crc.update(workspace.copyBuffer, 0, numRead);
+      }
+    }
+    DivinationCache.Key key =
+        new DivinationCache.Key(
+            crc.getValue(),
+            length,
+            entry.getCrc32OfUncompressedData(),
+            entry.getUncompressedSize());
+    if (cache.contains(key)) {
+      return cache.get(key);
+    }
+    JreDeflateParameters parameters = divineDeflateParameters(factory, workspace);
+    cache.put(key, parameters);
+    return parameters;
+  }
+
+  /**
+   * Runs a task on this thread, rethrowing what it throws.
+   */
+  private static void call(Callable<Void> task) throws IOException {
+    try {
+      task.call();
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Waits for a task and rethrows anything that failed while running it.
+   */
+  private static void get(Future<Void> result) throws IOException {
+    try {
+      result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while divining deflate parameters");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
   /**
    * Returns an unmodifiable map whose keys are deflate strategies and whose values are the levels
    * that make sense to try with the corresponding strategy, in the recommended testing order.
@@ -159,22 +374,49 @@ public class DefaultDeflateCompressionDiviner {
    */
   public JreDeflateParameters divineDeflateParameters(
       MultiViewInputStreamFactory compressedDataInputStreamFactory) throws IOException {
-    byte[] copyBuffer = new byte[32 * 1024];
+    try (Workspace workspace = new Workspace()) {
+      return divineDeflateParameters(compressedDataInputStreamFactory, workspace);
+    }
+  }
+
+  /**
+   * Same as {@link #divineDeflateParameters(MultiViewInputStreamFactory)}, using the given
+   * (de)compressors and buffer, which are left ready for reuse.
+   */
+  private JreDeflateParameters divineDeflateParameters(
+      MultiViewInputStreamFactory compressedDataInputStreamFactory, Workspace workspace)
+      throws IOException {
     // Iterate over all relevant combinations of nowrap, strategy and level.
     for (boolean nowrap : new boolean[] {true, false}) {
-      Inflater inflater = new Inflater(nowrap);
-      Deflater deflater = new Deflater(0, nowrap);
+      Inflater inflater = workspace.inflater(nowrap);
+      Deflater deflater = workspace.deflater(nowrap);
+
+      // Most wrong candidates already differ within the first few kilobytes of output, so every
+      // candidate is first checked against a prefix that is inflated only once, and only the
+      // survivors are verified against the whole entry.
+      inflater.reset();
+      int prefixLength;
+      try {
+        prefixLength = readPrefix(inflater, compressedDataInputStreamFactory, workspace);
+      } catch (ZipException e) {
+        // Corruption or the wrong nowrap, as below.
+        continue;
+      }
 
       strategy_loop:
       for (int strategy : new int[] {0, 1, 2}) {
         deflater.setStrategy(strategy);
         for (int level : LEVELS_BY_STRATEGY.get(strategy)) {
           deflater.setLevel(level);
+          deflater.reset();
+          if (!probe(deflater, workspace, prefixLength)) {
+            continue;
+          }
           inflater.reset();
           deflater.reset();
           try {
-            if (matches(inflater, deflater, compressedDataInputStreamFactory, copyBuffer)) {
-              end(inflater, deflater);
+            if (matches(
+                inflater, deflater, compressedDataInputStreamFactory, workspace.copyBuffer)) {
               return JreDeflateParameters.of(level, strategy, nowrap);
             }
           } catch (ZipException e) {
@@ -184,22 +426,133 @@ public class DefaultDeflateCompressionDiviner {
           }
         }
       }
-      end(inflater, deflater);
     }
     return null;
   }
 
   /**
-   * Closes the (de)compressor and discards any unprocessed input. This method should be called when
-   * the (de)compressor is no longer being used. Once this method is called, the behavior
-   * De/Inflater is undefined.
+   * Inflates up to {@link #PROBE_WINDOW_SIZE} bytes from the start of the compressed delivery into
+   * the workspace's probe input, and reads up to {@link #PROBE_OUTPUT_SIZE} bytes of the compressed
+   * delivery itself into its expected output.
    *
-   * @see Inflater#end
-   * @see Deflater#end
+   * @param inflater the inflater for uncompressing the stream, which is left in an undefined state
+   * @param compressedDataInputStreamFactory the compressed delivery
+   * @param workspace the workspace whose probe buffers to fill
+   * @return the number of uncompressed bytes read into the probe input
+   * @throws IOException if anything goes wrong; in particular, {@link ZipException} is thrown if
+   *     there is a problem parsing the start of the compressed delivery
    */
-  private static void end(Inflater inflater, Deflater deflater) {
-    inflater.end();
-    deflater.end();
+  private static int readPrefix(
+      Inflater inflater,
+      MultiViewInputStreamFactory compressedDataInputStreamFactory,
+      Workspace workspace)
+      throws IOException {
+    try (InputStream in = compressedDataInputStreamFactory.newStream()) {
+      workspace.expectedLength = readFully(in, workspace.expectedOutput);
+    }
+    try (InflaterInputStream inflaterIn =
+        new InflaterInputStream(
+            compressedDataInputStreamFactory.newStream(), inflater, workspace.copyBuffer.length)) {
+      return readFully(inflaterIn, workspace.probeInput);
+    }
+  }
+
+  /**
+   * Reads from the stream until the buffer is full or the stream ends.
+   *
+   * @return the number of bytes read
+   */
+  private static int readFully(InputStream in, byte[] buffer) throws IOException {
+    int total = 0;
+    while (total < buffer.length) {
+      int numRead = in.read(buffer, total, buffer.length - total);
+      if (numRead < 0) {
+        break;
+      }
+      total += numRead;
+    }
+    return total;
+  }
+
+  /**
+   * Checks whether the specified deflater could produce the compressed delivery, by compressing
+   * only the uncompressed prefix read by {@link #readPrefix}. The output that the deflater emits
+   * before it is finished does not depend on the input still to come, so it must be a prefix of
+   * the compressed delivery if the deflater is the right one. The prefix is fed in small chunks so
+   * that the check stops at the first block of output; a deflater that emits nothing for the
+   * whole prefix cannot be ruled out.
+   *
+   * @param deflater the deflater to check, which is left in an undefined state
+   * @param workspace the workspace holding the prefix
+   * @param prefixLength the number of bytes in the prefix
+   * @return false if the deflater cannot reproduce the compressed delivery, otherwise true
+   */
+  private static boolean probe(Deflater deflater, Workspace workspace, int prefixLength) {
+    byte[] output = workspace.probeOutput;
+    int produced = 0;
+    for (int offset = 0; offset < prefixLength; offset += COPY_BUFFER_SIZE) {
+      deflater.setInput(
+          workspace.probeInput, offset, Math.min(COPY_BUFFER_SIZE, prefixLength - offset));
+      int checked = produced;
+      while (!deflater.needsInput() && produced < output.length) {
+        produced += deflater.deflate(output, produced, output.length - produced);
+      }
+      if (produced > workspace.expectedLength) {
+        return false;
+      }
+      for (int i = checked; i < produced; i++) {
+        if (output[i] != workspace.expectedOutput[i]) {
+          return false;
+        }
+      }
+      if (produced >= PROBE_MATCH_SIZE) {
+        return true;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The inflaters, deflaters and copy buffer that one thread uses to divine entries. Reusing them
+   * for every entry, rather than creating a pair per entry, avoids repeatedly allocating and
+   * freeing native zlib state. They are borrowed from the shared {@link DeflatePool}, so that
+   * successive divinations reuse them too.
+   */
+  private static final class Workspace implements AutoCloseable {
+    private final Inflater nowrapInflater = DeflatePool.getShared().acquireInflater(true);
+    private final Inflater wrapInflater = DeflatePool.getShared().acquireInflater(false);
+    private final Deflater nowrapDeflater = DeflatePool.getShared().acquireDeflater(0, 0, true);
+    private final Deflater wrapDeflater = DeflatePool.getShared().acquireDeflater(0, 0, false);
+    final byte[] copyBuffer = new byte[COPY_BUFFER_SIZE];
+    final byte[] probeInput = new byte[PROBE_WINDOW_SIZE];
+    final byte[] probeOutput = new byte[PROBE_OUTPUT_SIZE];
+    final byte[] expectedOutput = new byte[PROBE_OUTPUT_SIZE];
+
+    /** The number of valid bytes in |expectedOutput|. */
+    int expectedLength;
+
+    Inflater inflater(boolean nowrap) {
+      return nowrap ? nowrapInflater : wrapInflater;
+    }
+
+    Deflater deflater(boolean nowrap) {
+      return nowrap ? nowrapDeflater : wrapDeflater;
+    }
+
+    /**
+     * Gives the (de)compressors back to the pool, discarding any unprocessed input. Once this
+     * method is called, the De/Inflaters must not be used.
+     *
+     * @see DeflatePool#release(Inflater)
+     * @see DeflatePool#release(Deflater)
+     */
+    @Override
+    public void close() {
+      DeflatePool.getShared().release(nowrapInflater);
+      DeflatePool.getShared().release(wrapInflater);
+      DeflatePool.getShared().release(nowrapDeflater);
+      DeflatePool.getShared().release(wrapDeflater);
+    }
   }
 
   /**
@@ -17,6 +17,7 @@ package com.android.tools.apk.analyzer.diff.generator;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.Files;
 
 /**
  * An interface to be implemented by delta generators.
@@ -34,4 +35,26 @@ public interface DeltaGenerator {
    */
   public void generateDelta(File oldBlob, File newBlob, OutputStream deltaOut)
       throws IOException, InterruptedException;
+
+  /**
+   * Generates a delta in deltaOut that can be applied to oldBlob to produce newBlob, for blobs that
+   * are already in memory. The default implementation writes the blobs to temp files and calls
+   * {@link #generateDelta(File, File, OutputStream)}; implementations that can work on memory
+   * directly should override it.
+   *
+   * @param oldBlob the old blob
+   * @param newBlob the new blob
+   * @param deltaOut the stream to write the delta to
+   * @throws IOException in the event of an I/O error writing to the delta output stream
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public default void generateDelta(byte[] oldBlob, byte[] newBlob, OutputStream deltaOut)
+      throws IOException, InterruptedException {
+    try (TempFileHolder oldTemp = new TempFileHolder();
+        TempFileHolder newTemp = new TempFileHolder()) {
+      Files.write(oldTemp.file.toPath(), oldBlob);
+      Files.write(newTemp.file.toPath(), newBlob);
+      generateDelta(oldTemp.file, newTemp.file, deltaOut);
+    }
+  }
 }
@@ -0,0 +1,309 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.generator;
+
+import com.android.tools.apk.analyzer.diff.shared.JreDeflateParameters;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Remembers the results of {@link DefaultDeflateCompressionDiviner} in a file, so that archives
+ * that are divined again, e.g. the same release baseline in every CI run, only pay for divining the
+ * entries that changed.
+ *
+ * <p>Divination is deterministic for a given compressed byte stream, so results are keyed by the
+ * CRC32 and length of an entry's compressed data, together with the CRC32 and length of its
+ * uncompressed data. Entries whose parameters could not be divined are remembered as well.
+ *
+ * <p>The file is a text file with one result per line. Lines that cannot be parsed are ignored,
+ * so a damaged or foreign file only costs divining again. Nothing is written until {@link #save()} is
+ * called. This class is thread-safe.
+ *
+ * <p>Divined parameters only hold for the deflate implementation that reproduced them, so the
+ * header records the Java version and a fingerprint of the runtime's deflate output, and a file
+ * saved under a different runtime is discarded. {@code java.util.zip} does not report the version
+ * of the zlib it uses, so the fingerprint is the CRC32 of a fixed input deflated with every
+ * combination of level and strategy that divination tries; it changes whenever any of them would
+ * compress differently.
+ */
+public final class DivinationCache {
+  /** The first line of every cache file, identifying the runtime that divined its results. */
+  static final String HEADER =
+      "# deflate divination cache v2 java="
+          + System.getProperty("java.version")
+          + " deflate="
+          + Long.toHexString(deflateFingerprint());
+
+  /** The size of the input deflated by {@link #deflateFingerprint()}. */
+  private static final int FINGERPRINT_INPUT_SIZE = 64 * 1024;
+
+  /** Written in place of the parameters of entries that could not be divined. */
+  private static final String UNDIVINABLE = "-";
+
+  /** The file to save to. */
+  private final File file;
+
+  /** The divined parameters by key; null values for entries that could not be divined. */
+  private final Map<Key, JreDeflateParameters> results = new HashMap<>();
+
+  /** Whether |results| has changed since it was loaded or saved. */
+  private boolean dirty;
+
+  private long hitCount;
+  private long missCount;
+
+  private DivinationCache(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Loads the cache saved in the specified file, or creates an empty cache if the file does not
+   * exist yet.
+   *
+   * @param file the file to load from, and to save to later
+   * @return the cache
+   * @throws IOException if the file exists but cannot be read
+   */
+  public static DivinationCache load(File file) throws IOException {
+    if (file == null) {
+      throw new IllegalArgumentException("file cannot be null");
+    }
+    DivinationCache cache = new DivinationCache(file);
+    if (!file.exists()) {
+      return cache;
+    }
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      if (!HEADER.equals(reader.readLine())) {
+        // Foreign, or saved under another runtime: replace it on the next save.
+        cache.dirty = true;
+        return cache;
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        cache.parseLine(line);
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Returns the CRC32 of a fixed input, part text and part pseudo-random bytes, deflated with every
+   * level from 1 to 9 and every strategy from 0 to 2, as divination tries them.
+   */
+  private static long deflateFingerprint() {
+    byte[] input = new byte[FINGERPRINT_INPUT_SIZE];
+    byte[] text =
+        "The quick brown fox jumps over the lazy dog; <entry name=\"res/0\"/>\n"
+            .getBytes(StandardCharsets.US_ASCII);
+    int seed = 1;
+    for (int i = 0; i < input.length; i++) {
+      seed = seed * 1103515245 + 12345;
+      if (i < input.length / 2) {
+        input[i] = text[(i + (seed >>> 28)) % text.length];
+      } else {
+        input[i] = (byte) (seed >>> 16);
+      }
+    }
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[8192];
+    for (int strategy = 0; strategy <= 2; strategy++) {
+      for (int level = 1; level <= 9; level++) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+          deflater.setStrategy(strategy);
+          deflater.setInput(input);
+          deflater.finish();
+          while (!deflater.finished()) {
+            crc.update(buffer, 0, deflater.deflate(buffer));
+          }
+        } finally {
+          deflater.end();
+        }
+      }
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Parses one line written by {@link #save()} into |results|, ignoring it if it is malformed.
+   */
+  private void parseLine(String line) {
+    String[] fields = line.split(" ");
+    if (fields.length != 5 && fields.length != 7) {
+      return;
+    }
+    try {
+      Key key =
+          new Key(
+              Long.parseLong(fields[0], 16),
+              Long.parseLong(fields[1]),
+              Long.parseLong(fields[2], 16),
+              Long.parseLong(fields[3]));
+      JreDeflateParameters parameters = null;
+      if (fields.length == 7) {
+        parameters =
+            JreDeflateParameters.of(
+                Integer.parseInt(fields[4]),
+                Integer.parseInt(fields[5]),
+                Integer.parseInt(fields[6]) != 0);
+      } else if (!UNDIVINABLE.equals(fields[4])) {
+        return;
+      }
+      results.put(key, parameters);
+    } catch (IllegalArgumentException e) {
+      // Includes NumberFormatException. Skip the line.
+    }
+  }
+
+  /**
+   * Writes the cache to the file it was loaded from, if anything was added since it was loaded or
+   * last saved. The file is replaced atomically where the file system supports it, so a concurrent
+   * reader sees either the old or the new contents.
+   *
+   * @throws IOException if unable to write the file
+   */
+  public synchronized void save() throws IOException {
+    if (!dirty) {
+      return;
+    }
+    File parent = file.getAbsoluteFile().getParentFile();
+    File temp = File.createTempFile(file.getName(), ".tmp", parent);
+    try {
+      try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+        writer.write(HEADER);
+        writer.write('\n');
+        for (Map.Entry<Key, JreDeflateParameters> result : results.entrySet()) {
+          Key key = result.getKey();
+          writer.write(Long.toHexString(key.compressedCrc32));
+          writer.write(' ');
+          writer.write(Long.toString(key.compressedSize));
+          writer.write(' ');
+          writer.write(Long.toHexString(key.uncompressedCrc32));
+          writer.write(' ');
+          writer.write(Long.toString(key.uncompressedSize));
+          writer.write(' ');
+          JreDeflateParameters parameters = result.getValue();
+          if (parameters == null) {
+            writer.write(UNDIVINABLE);
+          } else {
+            writer.write(
+                parameters.level + " " + parameters.strategy + " " + (parameters.nowrap ? 1 : 0));
+          }
+          writer.write('\n');
+        }
+      }
+      try {
+        Files.move(
+            temp.toPath(),
+            file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      temp.delete();
+    }
+    dirty = false;
+  }
+
+  /**
+   * Returns whether a result is known for the specified key, counting a hit or a miss.
+   */
+  synchronized boolean contains(Key key) {
+    if (results.containsKey(key)) {
+      hitCount++;
+      return true;
+    }
+    missCount++;
+    return false;
+  }
+
+  /**
+   * Returns the result for the specified key, which may be null if the parameters could not be
+   * divined. Only meaningful if {@link #contains(Key)} returned true, as results are never removed.
+   */
+  synchronized JreDeflateParameters get(Key key) {
+    return results.get(key);
+  }
+
+  /**
+   * Remembers the result for the specified key.
+   * @param key the key
+   * @param parameters the divined parameters, or null if they could not be divined
+   */
+  synchronized void put(Key key, JreDeflateParameters parameters) {
+    results.put(key, parameters);
+    dirty = true;
+  }
+
+  /** Returns the number of entries whose parameters were found in the cache. */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /** Returns the number of entries whose parameters were not found in the cache. */
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /** Returns the number of results in the cache. */
+  public synchronized int size() {
+    return results.size();
+  }
+
+  /** Identifies the compressed data of one entry. */
+  static final class Key {
+    final long compressedCrc32;
+    final long compressedSize;
+    final long uncompressedCrc32;
+    final long uncompressedSize;
+
+    Key(long compressedCrc32, long compressedSize, long uncompressedCrc32, long uncompressedSize) {
+      this.compressedCrc32 = compressedCrc32;
+      this.compressedSize = compressedSize;
+      this.uncompressedCrc32 = uncompressedCrc32;
+      this.uncompressedSize = uncompressedSize;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(compressedCrc32 ^ (compressedSize * 31))
+          ^ Long.hashCode(uncompressedCrc32 ^ (uncompressedSize * 31)) * 17;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return compressedCrc32 == other.compressedCrc32
+          && compressedSize == other.compressedSize
+          && uncompressedCrc32 == other.uncompressedCrc32
+          && uncompressedSize == other.uncompressedSize;
+    }
+  }
+}
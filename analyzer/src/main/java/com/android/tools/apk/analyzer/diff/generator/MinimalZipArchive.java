@@ -16,8 +16,13 @@ package com.android.tools.apk.analyzer.diff.generator;
 
 import com.android.tools.apk.analyzer.diff.shared.RandomAccessFileInputStream;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -32,6 +37,28 @@ import java.util.zip.ZipException;
  */
 public class MinimalZipArchive {
 
+  /**
+   * The most that is read from the end of an archive to find the end-of-central-directory record:
+   * the record with the longest possible comment, preceded by the zip64 end-of-central-directory
+   * record and locator so that most zip64 archives need no further read.
+   */
+  private static final int MAX_TAIL_LENGTH =
+      MinimalZipParser.ZIP64_EOCD_LENGTH
+          + MinimalZipParser.ZIP64_EOCD_LOCATOR_LENGTH
+          + MinimalZipParser.EOCD_LENGTH
+          + 0xffff;
+
+  /**
+   * The size of the buffer through which the central directory is read. Entries are parsed a few
+   * bytes at a time, which would otherwise be a read of the file each.
+   */
+  private static final int CENTRAL_DIRECTORY_BUFFER_SIZE = 65536;
+
+  /**
+   * The length of the fixed part of a local entry, which is all that is parsed of it.
+   */
+  private static final int LOCAL_ENTRY_FIXED_LENGTH = 30;
+
   /**
    * Sorts {@link MinimalZipEntry} objects by {@link MinimalZipEntry#getFileOffsetOfLocalEntry()} in
    * ascending order.
@@ -58,32 +85,136 @@ public class MinimalZipArchive {
   }
 
   /**
-   * Internal implementation of {@link #listEntries(File)}.
+   * Finds a single entry of a zip archive by name. Only the central directory and the local entry
+   * of the matching file are read, which is much cheaper than {@link #listEntries(File)} when just
+   * one entry is needed.
+   * @param file the zip file to read
+   * @param fileName the name of the entry to find, as returned by
+   *     {@link MinimalZipEntry#getFileName()}
+   * @return the entry, including the offset of its compressed data, or null if there is none
+   * @throws IOException if anything goes wrong while reading
+   */
+  public static MinimalZipEntry findEntry(File file, String fileName) throws IOException {
+    try (RandomAccessFileInputStream in = new RandomAccessFileInputStream(file)) {
+      MinimalCentralDirectoryMetadata centralDirectoryMetadata = locateCentralDirectory(in);
+      InputStream centralDirectoryIn = openCentralDirectory(in, centralDirectoryMetadata);
+      for (int x = 0; x < centralDirectoryMetadata.getNumEntriesInCentralDirectory(); x++) {
+        MinimalZipEntry entry = MinimalZipParser.parseCentralDirectoryEntry(centralDirectoryIn);
+        if (fileName.equals(entry.getFileName())) {
+          // Don't allow reading into the central directory, for sanity.
+          in.setRange(
+              entry.getFileOffsetOfLocalEntry(),
+              centralDirectoryMetadata.getOffsetOfCentralDirectory()
+                  - entry.getFileOffsetOfLocalEntry());
+          long relativeDataOffset = parseLocalEntry(in);
+          entry.setFileOffsetOfCompressedData(
+              entry.getFileOffsetOfLocalEntry() + relativeDataOffset);
+          return entry;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Locates and parses the end-of-central-directory record, and the zip64 end-of-central-directory
+   * record if the archive has one. The end of the archive is read with a single read, which in
+   * most cases holds all of the records.
    * @param in the input stream to read from
-   * @return see {@link #listEntries(File)}
+   * @return the metadata describing the central directory
    * @throws IOException if anything goes wrong while reading
    */
-  private static List<MinimalZipEntry> listEntriesInternal(RandomAccessFileInputStream in)
-      throws IOException {
+  private static MinimalCentralDirectoryMetadata locateCentralDirectory(
+      RandomAccessFileInputStream in) throws IOException {
     // Step 1: Locate the end-of-central-directory record header.
-    long offsetOfEocd = MinimalZipParser.locateStartOfEocd(in, 32768);
-    if (offsetOfEocd == -1) {
+    int tailLength = (int) Math.min(MAX_TAIL_LENGTH, in.length());
+    long tailOffset = in.length() - tailLength;
+    byte[] tail = new byte[tailLength];
+    in.setRange(tailOffset, tailLength);
+    MinimalZipParser.readOrDie(in, tail, 0, tailLength);
+    int eocdInTail = MinimalZipParser.locateStartOfEocd(tail);
+    if (eocdInTail == -1) {
       // Archive is weird, abort.
-      throw new ZipException("EOCD record not found in last 32k of archive, giving up");
+      throw new ZipException("EOCD record not found in last 64k of archive, giving up");
     }
 
     // Step 2: Parse the end-of-central-directory data to locate the central directory itself
-    in.setRange(offsetOfEocd, in.length() - offsetOfEocd);
-    MinimalCentralDirectoryMetadata centralDirectoryMetadata = MinimalZipParser.parseEocd(in);
+    MinimalCentralDirectoryMetadata metadata =
+        MinimalZipParser.parseEocd(
+            new ByteArrayInputStream(tail, eocdInTail, tailLength - eocdInTail));
+    int locatorInTail = eocdInTail - MinimalZipParser.ZIP64_EOCD_LOCATOR_LENGTH;
+    if (locatorInTail < 0
+        || ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN).getInt(locatorInTail)
+            != MinimalZipParser.ZIP64_EOCD_LOCATOR_SIGNATURE) {
+      return metadata;
+    }
+
+    // Step 2a: This is a zip64 archive, whose real values are in the zip64 record.
+    long zip64EocdOffset =
+        MinimalZipParser.parseZip64EocdLocator(
+            new ByteArrayInputStream(
+                tail, locatorInTail, MinimalZipParser.ZIP64_EOCD_LOCATOR_LENGTH));
+    long zip64EocdEnd = zip64EocdOffset + MinimalZipParser.ZIP64_EOCD_LENGTH;
+    if (zip64EocdEnd > tailOffset + locatorInTail) {
+      throw new ZipException("Bad zip64 eocd offset: " + zip64EocdOffset);
+    }
+    if (zip64EocdOffset >= tailOffset) {
+      return MinimalZipParser.parseZip64Eocd(
+          new ByteArrayInputStream(
+              tail, (int) (zip64EocdOffset - tailOffset), MinimalZipParser.ZIP64_EOCD_LENGTH));
+    }
+    // The zip64 extensible data sector is large enough to push the record out of the tail.
+    in.setRange(zip64EocdOffset, MinimalZipParser.ZIP64_EOCD_LENGTH);
+    return MinimalZipParser.parseZip64Eocd(in);
+  }
+
+  /**
+   * Opens a buffered stream over the central directory.
+   * @param in the input stream to read from
+   * @param centralDirectoryMetadata the metadata describing the central directory
+   * @return the stream, which is only valid until the range of |in| is changed
+   * @throws IOException if the central directory is not within the archive
+   */
+  private static InputStream openCentralDirectory(
+      RandomAccessFileInputStream in, MinimalCentralDirectoryMetadata centralDirectoryMetadata)
+      throws IOException {
+    long offset = centralDirectoryMetadata.getOffsetOfCentralDirectory();
+    long length = centralDirectoryMetadata.getLengthOfCentralDirectory();
+    if (offset + length > in.length()) {
+      throw new ZipException("Central directory exceeds archive length");
+    }
+    in.setRange(offset, length);
+    return new BufferedInputStream(in, CENTRAL_DIRECTORY_BUFFER_SIZE);
+  }
+
+  /**
+   * Parses the local entry at the start of the current range of |in| with a single read.
+   * @param in the input stream to read from
+   * @return see {@link MinimalZipParser#parseLocalEntryAndGetCompressedDataOffset(InputStream)}
+   * @throws IOException if anything goes wrong while reading
+   */
+  private static long parseLocalEntry(RandomAccessFileInputStream in) throws IOException {
+    return MinimalZipParser.parseLocalEntryAndGetCompressedDataOffset(
+        new BufferedInputStream(in, LOCAL_ENTRY_FIXED_LENGTH));
+  }
+
+  /**
+   * Internal implementation of {@link #listEntries(File)}.
+   * @param in the input stream to read from
+   * @return see {@link #listEntries(File)}
+   * @throws IOException if anything goes wrong while reading
+   */
+  private static List<MinimalZipEntry> listEntriesInternal(RandomAccessFileInputStream in)
+      throws IOException {
+    // Steps 1 and 2: Locate the central directory.
+    MinimalCentralDirectoryMetadata centralDirectoryMetadata = locateCentralDirectory(in);
 
     // Step 3: Extract a list of all central directory entries (contiguous data stream)
-    in.setRange(
-        centralDirectoryMetadata.getOffsetOfCentralDirectory(),
-        centralDirectoryMetadata.getLengthOfCentralDirectory());
+    InputStream centralDirectoryIn = openCentralDirectory(in, centralDirectoryMetadata);
     List<MinimalZipEntry> minimalZipEntries =
         new ArrayList<MinimalZipEntry>(centralDirectoryMetadata.getNumEntriesInCentralDirectory());
     for (int x = 0; x < centralDirectoryMetadata.getNumEntriesInCentralDirectory(); x++) {
-      minimalZipEntries.add(MinimalZipParser.parseCentralDirectoryEntry(in));
+      minimalZipEntries.add(MinimalZipParser.parseCentralDirectoryEntry(centralDirectoryIn));
     }
 
     // Step 4: Sort the entries in file order, not central directory order.
@@ -102,7 +233,7 @@ public class MinimalZipArchive {
       }
       long rangeLength = offsetOfNextEntry - entry.getFileOffsetOfLocalEntry();
       in.setRange(entry.getFileOffsetOfLocalEntry(), rangeLength);
-      long relativeDataOffset = MinimalZipParser.parseLocalEntryAndGetCompressedDataOffset(in);
+      long relativeDataOffset = parseLocalEntry(in);
       entry.setFileOffsetOfCompressedData(entry.getFileOffsetOfLocalEntry() + relativeDataOffset);
     }
 
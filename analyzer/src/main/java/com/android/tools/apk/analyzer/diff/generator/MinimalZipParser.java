@@ -18,6 +18,9 @@ import com.android.tools.apk.analyzer.diff.shared.RandomAccessFileInputStream;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.zip.ZipException;
 
 /**
@@ -34,6 +37,10 @@ import java.util.zip.ZipException;
  * Please note that the parser does not attempt to verify the version-needed-to-extract field, since
  * there is no guarantee that all ZIP implementations have set the value correctly to the minimum
  * needed to truly support extraction.
+ * <p>
+ * Zip64 archives are supported to the extent of the zip64 end-of-central-directory record and
+ * locator and the zip64 extended information extra field of central directory entries, which is
+ * what it takes to find entries beyond 4 GB or larger than 4 GB.
  */
 class MinimalZipParser {
 
@@ -55,6 +62,49 @@ class MinimalZipParser {
    */
   public static final int LOCAL_ENTRY_SIGNATURE = 0x04034b50;
 
+  /**
+   * Standard 32-bit signature for a "zip64 end-of-central-directory" record. This is in
+   * little-endian order.
+   */
+  public static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+
+  /**
+   * Standard 32-bit signature for a "zip64 end-of-central-directory locator", which immediately
+   * precedes the end-of-central-directory record of a zip64 archive. This is in little-endian
+   * order.
+   */
+  public static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+
+  /**
+   * The length of the end-of-central-directory record, not counting the zip file comment.
+   */
+  public static final int EOCD_LENGTH = 22;
+
+  /**
+   * The length of the zip64 end-of-central-directory locator.
+   */
+  public static final int ZIP64_EOCD_LOCATOR_LENGTH = 20;
+
+  /**
+   * The length of the zip64 end-of-central-directory record, not counting the extensible data.
+   */
+  public static final int ZIP64_EOCD_LENGTH = 56;
+
+  /**
+   * The header ID of the zip64 extended information extra field.
+   */
+  private static final int ZIP64_EXTENDED_INFORMATION_ID = 0x0001;
+
+  /**
+   * The value of a 32-bit field whose real value is in a zip64 record.
+   */
+  private static final long ZIP64_MARKER_32 = 0xffffffffL;
+
+  /**
+   * The first byte of every signature, 'P', in each byte of a long.
+   */
+  private static final long SIGNATURE_FIRST_BYTES = 0x5050505050505050L;
+
   /**
    * Read exactly one byte, throwing an exception if unsuccessful.
    * @param in the stream to read from
@@ -112,6 +162,22 @@ class MinimalZipParser {
     return value;
   }
 
+  /**
+   * Reads 8 bytes from the current offset as a little-endian value.
+   * @param in the stream to read from
+   * @return the value as a java long
+   * @throws IOException if unable to read
+   * @throws ZipException if the value does not fit in a java long
+   */
+  private static long read64Bit(InputStream in) throws IOException {
+    long value = read32BitUnsigned(in);
+    value |= read32BitUnsigned(in) << 32;
+    if (value < 0) {
+      throw new ZipException("Value out of range");
+    }
+    return value;
+  }
+
   /**
    * Read exactly the specified amount of data into the specified buffer, throwing an exception if
    * unsuccessful.
@@ -121,7 +187,7 @@ class MinimalZipParser {
    * @param length the number of bytes to place into the buffer from the input stream
    * @throws IOException if unable to read
    */
-  private static void readOrDie(InputStream in, byte[] buffer, int offset, int length)
+  static void readOrDie(InputStream in, byte[] buffer, int offset, int length)
       throws IOException {
     if (length < 0) {
       throw new IllegalArgumentException("length must be >= 0");
@@ -129,7 +195,7 @@ class MinimalZipParser {
     int numRead = 0;
     while (numRead < length) {
       int readThisRound = in.read(buffer, offset + numRead, length - numRead);
-      if (numRead == -1) {
+      if (readThisRound == -1) {
         throw new IOException("EOF");
       }
       numRead += readThisRound;
@@ -180,7 +246,37 @@ class MinimalZipParser {
     long fileOffsetOfLocalEntry = read32BitUnsigned(in);
     byte[] fileNameBuffer = new byte[fileNameLength];
     readOrDie(in, fileNameBuffer, 0, fileNameBuffer.length);
-    skipOrDie(in, extrasLength + commentLength);
+    if (uncompressedSize == ZIP64_MARKER_32
+        || compressedSize == ZIP64_MARKER_32
+        || fileOffsetOfLocalEntry == ZIP64_MARKER_32) {
+      // The real values are in the zip64 extended information extra field, in this order, each
+      // present only if the 32-bit field says so.
+      byte[] extras = new byte[extrasLength];
+      readOrDie(in, extras, 0, extras.length);
+      ByteBuffer zip64Info = findExtraField(extras, ZIP64_EXTENDED_INFORMATION_ID);
+      if (zip64Info == null) {
+        throw new ZipException("Missing zip64 extended information");
+      }
+      try {
+        if (uncompressedSize == ZIP64_MARKER_32) {
+          uncompressedSize = zip64Info.getLong();
+        }
+        if (compressedSize == ZIP64_MARKER_32) {
+          compressedSize = zip64Info.getLong();
+        }
+        if (fileOffsetOfLocalEntry == ZIP64_MARKER_32) {
+          fileOffsetOfLocalEntry = zip64Info.getLong();
+        }
+      } catch (BufferUnderflowException e) {
+        throw new ZipException("Truncated zip64 extended information");
+      }
+      if (uncompressedSize < 0 || compressedSize < 0 || fileOffsetOfLocalEntry < 0) {
+        throw new ZipException("Zip64 value out of range");
+      }
+      skipOrDie(in, commentLength);
+    } else {
+      skipOrDie(in, extrasLength + commentLength);
+    }
     // General purpose flag bit 11 is an important hint for the character set used for file names.
     boolean generalPurposeFlagBit11 = (generalPurposeFlags & (0x1 << 10)) != 0;
     return new MinimalZipEntry(
@@ -193,6 +289,30 @@ class MinimalZipParser {
         fileOffsetOfLocalEntry);
   }
 
+  /**
+   * Finds an extra field by its header ID.
+   * @param extras the extra fields of an entry
+   * @param headerId the header ID to look for
+   * @return a little-endian view of the data of the field, or null if there is no such field
+   */
+  private static ByteBuffer findExtraField(byte[] extras, int headerId) {
+    ByteBuffer buffer = ByteBuffer.wrap(extras).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.remaining() >= 4) {
+      int id = buffer.getShort() & 0xffff;
+      int length = buffer.getShort() & 0xffff;
+      if (length > buffer.remaining()) {
+        return null;
+      }
+      if (id == headerId) {
+        ByteBuffer data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        data.limit(length);
+        return data;
+      }
+      buffer.position(buffer.position() + length);
+    }
+    return null;
+  }
+
   /**
    * Parses one local file entry and returns the offset from the first byte at which the compressed
    * data begins
@@ -230,7 +350,7 @@ class MinimalZipParser {
 
   /**
    * Find the end-of-central-directory record by scanning backwards from the end of a file looking
-   * for the signature of the record.
+   * for the signature of the record. The end of the file is read with a single read.
    * @param in the file to read from
    * @param searchBufferLength the length of the search buffer, starting from the end of the file
    * @return the offset in the file at which the first byte of the EOCD signature is located, or -1
@@ -259,11 +379,45 @@ class MinimalZipParser {
    * -1 if the complete signature is not found
    */
   public static int locateStartOfEocd(byte[] buffer) {
-    int last4Bytes = 0; // This is the 32 bits of data from the file
-    for (int offset = buffer.length - 1; offset >= 0; offset--) {
-      last4Bytes <<= 8;
-      last4Bytes |= buffer[offset];
-      if (last4Bytes == EOCD_SIGNATURE) {
+    return locateLastSignature(buffer, buffer.length, EOCD_SIGNATURE);
+  }
+
+  /**
+   * Finds the last complete occurrence of a signature that starts before |end|, scanning backwards
+   * eight bytes at a time: each long is searched for the first byte of the signature in one go,
+   * and only the offsets where that byte occurs are compared against the whole signature.
+   * @param buffer the buffer in which to search
+   * @param end the offset in the buffer at which to stop searching
+   * @param signature the little-endian signature to look for, whose first byte must be 'P'
+   * @return the offset in the buffer at which the first byte of the signature is located, or -1
+   * if the complete signature is not found
+   */
+  static int locateLastSignature(byte[] buffer, int end, int signature) {
+    ByteBuffer data = ByteBuffer.wrap(buffer, 0, end).order(ByteOrder.LITTLE_ENDIAN);
+    // The last offset at which a complete signature can start.
+    int offset = end - 4;
+    // Offsets at which the long ending there would run past the end are checked one at a time.
+    for (; offset >= 0 && offset + 8 > end; offset--) {
+      if (data.getInt(offset) == signature) {
+        return offset;
+      }
+    }
+    for (; offset >= 7; offset -= 8) {
+      // The bytes of the long that hold the first byte of the signature are zero in |x|, and have
+      // their high bit set in |found|, with false positives only above a zero byte.
+      long x = data.getLong(offset - 7) ^ SIGNATURE_FIRST_BYTES;
+      long found = (x - 0x0101010101010101L) & ~x & 0x8080808080808080L;
+      while (found != 0) {
+        int bit = 63 - Long.numberOfLeadingZeros(found);
+        int candidate = offset - 7 + (bit >>> 3);
+        if (data.getInt(candidate) == signature) {
+          return candidate;
+        }
+        found ^= 1L << bit;
+      }
+    }
+    for (; offset >= 0; offset--) {
+      if (data.getInt(offset) == signature) {
         return offset;
       }
     }
@@ -271,11 +425,13 @@ class MinimalZipParser {
   }
 
   /**
-   * Parse the end-of-central-directory record and return the critical information from it.
+   * Parse the end-of-central-directory record and return the critical information from it. In a
+   * zip64 archive, any of the values may be a marker meaning that the real value is in the zip64
+   * end-of-central-directory record; see {@link #parseZip64Eocd(InputStream)}.
    * @param in the input stream to read from, assumed to start at the first byte of the entry
    * @return the metadata
    * @throws IOException if unable to read
-   * @throws ZipException if the metadata indicates this is a zip64 archive, which is not supported
+   * @throws ZipException if the record is malformed
    */
   public static MinimalCentralDirectoryMetadata parseEocd(InputStream in)
       throws IOException, ZipException {
@@ -294,13 +450,63 @@ class MinimalZipParser {
     // Everything else from here to the EOF is the zip file comment, or junk. Ignore.
     skipOrDie(in, 2 + 2 + 2);
     int numEntriesInCentralDirectory = read16BitUnsigned(in);
-    if (numEntriesInCentralDirectory == 0xffff) {
-      // If 0xffff, this is a zip64 archive and this code doesn't handle that.
-      throw new ZipException("No support for zip64");
-    }
     long lengthOfCentralDirectory = read32BitUnsigned(in);
     long offsetOfCentralDirectory = read32BitUnsigned(in);
     return new MinimalCentralDirectoryMetadata(
         numEntriesInCentralDirectory, offsetOfCentralDirectory, lengthOfCentralDirectory);
   }
+
+  /**
+   * Parse the zip64 end-of-central-directory locator and return the offset of the zip64
+   * end-of-central-directory record.
+   * @param in the input stream to read from, assumed to start at the first byte of the locator
+   * @return as described
+   * @throws IOException if unable to read
+   * @throws ZipException if the locator is malformed
+   */
+  public static long parseZip64EocdLocator(InputStream in) throws IOException, ZipException {
+    // *** 4 bytes encode ZIP64_EOCD_LOCATOR_SIGNATURE, verify for sanity
+    // 4 bytes encode the disk number of the zip64 record, ignore.
+    // *** 8 bytes encode the file offset of the zip64 end-of-central-directory record [READ THIS]
+    // 4 bytes encode the total number of disks, ignore.
+    if (((int) read32BitUnsigned(in)) != ZIP64_EOCD_LOCATOR_SIGNATURE) {
+      throw new ZipException("Bad zip64 eocd locator");
+    }
+    skipOrDie(in, 4);
+    return read64Bit(in);
+  }
+
+  /**
+   * Parse the zip64 end-of-central-directory record and return the critical information from it.
+   * @param in the input stream to read from, assumed to start at the first byte of the record
+   * @return the metadata
+   * @throws IOException if unable to read
+   * @throws ZipException if the record is malformed or has more entries than this parser handles
+   */
+  public static MinimalCentralDirectoryMetadata parseZip64Eocd(InputStream in)
+      throws IOException, ZipException {
+    // *** 4 bytes encode ZIP64_EOCD_SIGNATURE, verify for sanity
+    // 8 bytes encode the size of the rest of the record, ignore.
+    // 2 bytes encode the version-made-by, ignore
+    // 2 bytes encode the version-needed-to-extract, ignore
+    // 4 bytes encode disk number for this archive, ignore.
+    // 4 bytes encode disk number for the central directory, ignore.
+    // 8 bytes encode num entries in the central directory on this disk, ignore.
+    // *** 8 bytes encode num entries in the central directory overall [READ THIS]
+    // *** 8 bytes encode the length of the central directory [READ THIS]
+    // *** 8 bytes encode the file offset of the central directory [READ THIS]
+    // Everything else is the zip64 extensible data sector. Ignore.
+    if (((int) read32BitUnsigned(in)) != ZIP64_EOCD_SIGNATURE) {
+      throw new ZipException("Bad zip64 eocd header");
+    }
+    skipOrDie(in, 8 + 2 + 2 + 4 + 4 + 8);
+    long numEntriesInCentralDirectory = read64Bit(in);
+    if (numEntriesInCentralDirectory > Integer.MAX_VALUE) {
+      throw new ZipException("Too many entries: " + numEntriesInCentralDirectory);
+    }
+    long lengthOfCentralDirectory = read64Bit(in);
+    long offsetOfCentralDirectory = read64Bit(in);
+    return new MinimalCentralDirectoryMetadata(
+        (int) numEntriesInCentralDirectory, offsetOfCentralDirectory, lengthOfCentralDirectory);
+  }
 }
@@ -39,6 +39,11 @@ public class PreDiffExecutor {
     private File originalNewFile;
     private File deltaFriendlyOldFile;
     private File deltaFriendlyNewFile;
+    private List<MinimalZipEntry> originalOldFileEntries;
+    private List<MinimalZipEntry> originalNewFileEntries;
+    private DivinationCache divinationCache;
+    private long similarityBudget;
+    private int threads = Runtime.getRuntime().availableProcessors();
     private List<RecommendationModifier> recommendationModifiers =
         new ArrayList<RecommendationModifier>();
 
@@ -76,6 +81,91 @@ public class PreDiffExecutor {
       return this;
     }
 
+    /**
+     * Sets the entries of the original old file, as returned by {@link
+     * MinimalZipArchive#listEntries(File)}, so that an old file shared by several executors is
+     * only parsed once. Optional; if not called, the old file is parsed when planning.
+     *
+     * @param originalOldFileEntries the entries of the original old file
+     * @return this builder
+     */
+    public Builder withOriginalOldFileEntries(List<MinimalZipEntry> originalOldFileEntries) {
+      if (originalOldFileEntries == null) {
+        throw new IllegalArgumentException("originalOldFileEntries cannot be null");
+      }
+      this.originalOldFileEntries = originalOldFileEntries;
+      return this;
+    }
+
+    /**
+     * Sets the entries of the original new file, as returned by {@link
+     * MinimalZipArchive#listEntries(File)}, so that callers that have already parsed the new file
+     * do not parse it again and can match the entries of the plan to their own by identity.
+     * Optional; if not called, the new file is parsed when planning.
+     *
+     * @param originalNewFileEntries the entries of the original new file
+     * @return this builder
+     */
+    public Builder withOriginalNewFileEntries(List<MinimalZipEntry> originalNewFileEntries) {
+      if (originalNewFileEntries == null) {
+        throw new IllegalArgumentException("originalNewFileEntries cannot be null");
+      }
+      this.originalNewFileEntries = originalNewFileEntries;
+      return this;
+    }
+
+    /**
+     * Sets a {@link DivinationCache} to look up the deflate parameters of the new file's entries
+     * in before divining them. Optional; the entries that are divined are added to the cache, which
+     * the caller should save when done.
+     *
+     * @param divinationCache the cache to use
+     * @return this builder
+     */
+    public Builder withDivinationCache(DivinationCache divinationCache) {
+      if (divinationCache == null) {
+        throw new IllegalArgumentException("divinationCache cannot be null");
+      }
+      this.divinationCache = divinationCache;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of uncompressed bytes to read, in both files, to find diff bases for
+     * entries of the new file that were renamed and modified, using a {@link
+     * com.android.tools.apk.analyzer.diff.generator.similarity.MinHashSimilarityFinder}. Optional;
+     * by default only renamed entries with identical content are found, which costs no reads.
+     *
+     * @param similarityBudget the budget in bytes, or 0 to not look for modified renames
+     * @return this builder
+     */
+    public Builder withSimilarityBudget(long similarityBudget) {
+      if (similarityBudget < 0) {
+        throw new IllegalArgumentException("similarityBudget must be >= 0");
+      }
+      this.similarityBudget = similarityBudget;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of threads to divine the deflate parameters of the new file's entries
+     * on, and to write each delta-friendly file on. Optional; defaults to the number of available
+     * processors. Each of these steps starts a pool of its own of up to this many threads, so
+     * callers that run several executors at the same time, or alongside other work, should pass
+     * their own thread count or a share of it rather than let each executor start a pool per
+     * processor.
+     *
+     * @param threads the maximum number of threads, at least 1
+     * @return this builder
+     */
+    public Builder withThreads(int threads) {
+      if (threads < 1) {
+        throw new IllegalArgumentException("threads must be >= 1");
+      }
+      this.threads = threads;
+      return this;
+    }
+
     /**
      * Appends an optional {@link RecommendationModifier} to be used during the generation of the
      * {@link PreDiffPlan} and/or delta-friendly blobs.
@@ -106,6 +196,11 @@ public class PreDiffExecutor {
           originalNewFile,
           deltaFriendlyOldFile,
           deltaFriendlyNewFile,
+          originalOldFileEntries,
+          originalNewFileEntries,
+          divinationCache,
+          similarityBudget,
+          threads,
           recommendationModifiers);
     }
   }
@@ -128,6 +223,29 @@ public class PreDiffExecutor {
    */
   private final File deltaFriendlyNewFile;
 
+  /**
+   * Optional entries of the original old file, already parsed by the caller. If null, the old file
+   * is parsed when planning.
+   */
+  private final List<MinimalZipEntry> originalOldFileEntries;
+
+  /**
+   * Optional entries of the original new file, already parsed by the caller. If null, the new file
+   * is parsed when planning.
+   */
+  private final List<MinimalZipEntry> originalNewFileEntries;
+
+  /** Optional cache of deflate parameters for the entries of the original new file. */
+  private final DivinationCache divinationCache;
+
+  /**
+   * The maximum number of uncompressed bytes to read to find renamed and modified entries, or 0.
+   */
+  private final long similarityBudget;
+
+  /** The maximum number of threads for each parallel step. */
+  private final int threads;
+
   /**
    * Optional {@link RecommendationModifier}s to be used for modifying the patch to be generated.
    */
@@ -139,11 +257,21 @@ public class PreDiffExecutor {
       File originalNewFile,
       File deltaFriendlyOldFile,
       File deltaFriendlyNewFile,
+      List<MinimalZipEntry> originalOldFileEntries,
+      List<MinimalZipEntry> originalNewFileEntries,
+      DivinationCache divinationCache,
+      long similarityBudget,
+      int threads,
       List<RecommendationModifier> recommendationModifiers) {
     this.originalOldFile = originalOldFile;
     this.originalNewFile = originalNewFile;
     this.deltaFriendlyOldFile = deltaFriendlyOldFile;
     this.deltaFriendlyNewFile = deltaFriendlyNewFile;
+    this.originalOldFileEntries = originalOldFileEntries;
+    this.originalNewFileEntries = originalNewFileEntries;
+    this.divinationCache = divinationCache;
+    this.similarityBudget = similarityBudget;
+    this.threads = threads;
     this.recommendationModifiers = recommendationModifiers;
   }
 
@@ -171,7 +299,8 @@ public class PreDiffExecutor {
 
   /**
    * Generate the delta-friendly files and return the plan for recompressing the delta-friendly new
-   * file back into the original new file.
+   * file back into the original new file. The uncompressed sizes of the planned entries say where
+   * each one goes in the delta-friendly files, so entries are uncompressed in parallel.
    *
    * @param preDiffPlan the plan to execute
    * @return as described
@@ -179,16 +308,66 @@ public class PreDiffExecutor {
    */
   private List<TypedRange<JreDeflateParameters>> generateDeltaFriendlyFiles(PreDiffPlan preDiffPlan)
       throws IOException {
-    try (FileOutputStream out = new FileOutputStream(deltaFriendlyOldFile);
-        BufferedOutputStream bufferedOut = new BufferedOutputStream(out)) {
-      DeltaFriendlyFile.generateDeltaFriendlyFile(
-          preDiffPlan.getOldFileUncompressionPlan(), originalOldFile, bufferedOut);
+    Map<Long, Long> oldUncompressedSizesByOffset = new HashMap<Long, Long>();
+    Map<Long, Long> newUncompressedSizesByOffset = new HashMap<Long, Long>();
+    for (QualifiedRecommendation recommendation : preDiffPlan.getQualifiedRecommendations()) {
+      MinimalZipEntry oldEntry = recommendation.getOldEntry();
+      MinimalZipEntry newEntry = recommendation.getNewEntry();
+      oldUncompressedSizesByOffset.put(
+          oldEntry.getFileOffsetOfCompressedData(), oldEntry.getUncompressedSize());
+      newUncompressedSizesByOffset.put(
+          newEntry.getFileOffsetOfCompressedData(), newEntry.getUncompressedSize());
     }
-    try (FileOutputStream out = new FileOutputStream(deltaFriendlyNewFile);
-        BufferedOutputStream bufferedOut = new BufferedOutputStream(out)) {
-      return DeltaFriendlyFile.generateDeltaFriendlyFile(
-          preDiffPlan.getNewFileUncompressionPlan(), originalNewFile, bufferedOut);
+    generateDeltaFriendlyFile(
+        preDiffPlan.getOldFileUncompressionPlan(),
+        oldUncompressedSizesByOffset,
+        originalOldFile,
+        deltaFriendlyOldFile);
+    return generateDeltaFriendlyFile(
+        preDiffPlan.getNewFileUncompressionPlan(),
+        newUncompressedSizesByOffset,
+        originalNewFile,
+        deltaFriendlyNewFile);
+  }
+
+  /**
+   * Generate one delta-friendly file, on up to {@link #threads} threads if the uncompressed size of
+   * every range is known.
+   *
+   * @param <T> the type of the data associated with the ranges
+   * @param rangesToUncompress the ranges to uncompress
+   * @param uncompressedSizesByOffset the uncompressed sizes of entries, by the offset of their
+   *     compressed data
+   * @param file the file to read from
+   * @param deltaFriendlyFile the file to write to
+   * @return the ranges in the delta-friendly file that correspond to the ranges in the original
+   *     file
+   * @throws IOException if anything goes wrong
+   */
+  private <T> List<TypedRange<T>> generateDeltaFriendlyFile(
+      List<TypedRange<T>> rangesToUncompress,
+      Map<Long, Long> uncompressedSizesByOffset,
+      File file,
+      File deltaFriendlyFile)
+      throws IOException {
+    long[] uncompressedLengths = new long[rangesToUncompress.size()];
+    for (int i = 0; i < uncompressedLengths.length; i++) {
+      Long size = uncompressedSizesByOffset.get(rangesToUncompress.get(i).getOffset());
+      if (size == null) {
+        // Not a range of any planned entry, so stream the whole file as it is uncompressed.
+        try (FileOutputStream out = new FileOutputStream(deltaFriendlyFile);
+            BufferedOutputStream bufferedOut = new BufferedOutputStream(out)) {
+          return DeltaFriendlyFile.generateDeltaFriendlyFile(rangesToUncompress, file, bufferedOut);
+        }
+      }
+      uncompressedLengths[i] = size;
     }
+    return DeltaFriendlyFile.generateDeltaFriendlyFile(
+        rangesToUncompress,
+        uncompressedLengths,
+        file,
+        deltaFriendlyFile,
+        threads);
   }
 
   /**
@@ -207,13 +386,22 @@ public class PreDiffExecutor {
     Map<ByteArrayHolder, JreDeflateParameters> originalNewArchiveJreDeflateParametersByPath =
         new HashMap<ByteArrayHolder, JreDeflateParameters>();
 
-    for (MinimalZipEntry zipEntry : MinimalZipArchive.listEntries(originalOldFile)) {
+    List<MinimalZipEntry> oldEntries =
+        originalOldFileEntries != null
+            ? originalOldFileEntries
+            : MinimalZipArchive.listEntries(originalOldFile);
+    for (MinimalZipEntry zipEntry : oldEntries) {
       ByteArrayHolder key = new ByteArrayHolder(zipEntry.getFileNameBytes());
       originalOldArchiveZipEntriesByPath.put(key, zipEntry);
     }
 
-    DefaultDeflateCompressionDiviner diviner = new DefaultDeflateCompressionDiviner();
-    for (DivinationResult divinationResult : diviner.divineDeflateParameters(originalNewFile)) {
+    DefaultDeflateCompressionDiviner diviner =
+        new DefaultDeflateCompressionDiviner(threads, divinationCache);
+    List<DivinationResult> divinationResults =
+        originalNewFileEntries != null
+            ? diviner.divineDeflateParameters(originalNewFile, originalNewFileEntries)
+            : diviner.divineDeflateParameters(originalNewFile);
+    for (DivinationResult divinationResult : divinationResults) {
       ByteArrayHolder key =
           new ByteArrayHolder(divinationResult.minimalZipEntry.getFileNameBytes());
       originalNewArchiveZipEntriesByPath.put(key, divinationResult.minimalZipEntry);
@@ -227,6 +415,7 @@ public class PreDiffExecutor {
             originalNewFile,
             originalNewArchiveZipEntriesByPath,
             originalNewArchiveJreDeflateParametersByPath,
+            similarityBudget,
             recommendationModifiers.toArray(new RecommendationModifier[] {}));
     return preDiffPlanner.generatePreDiffPlan();
   }
@@ -15,12 +15,14 @@
 package com.android.tools.apk.analyzer.diff.generator;
 
 import com.android.tools.apk.analyzer.diff.generator.similarity.Crc32SimilarityFinder;
+import com.android.tools.apk.analyzer.diff.generator.similarity.MinHashSimilarityFinder;
 import com.android.tools.apk.analyzer.diff.generator.similarity.SimilarityFinder;
 import com.android.tools.apk.analyzer.diff.shared.JreDeflateParameters;
 import com.android.tools.apk.analyzer.diff.shared.RandomAccessFileInputStream;
 import com.android.tools.apk.analyzer.diff.shared.TypedRange;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -64,6 +66,12 @@ class PreDiffPlanner {
    */
   private final List<RecommendationModifier> recommendationModifiers;
 
+  /**
+   * The maximum number of uncompressed bytes to read to find renamed entries whose content was also
+   * modified, or 0 to only find renamed entries whose content is identical.
+   */
+  private final long similarityBudget;
+
   /**
    * Constructs a new planner that will work on the specified inputs
    *
@@ -84,11 +92,50 @@ class PreDiffPlanner {
       Map<ByteArrayHolder, MinimalZipEntry> newArchiveZipEntriesByPath,
       Map<ByteArrayHolder, JreDeflateParameters> newArchiveJreDeflateParametersByPath,
       RecommendationModifier... recommendationModifiers) {
+    this(
+        oldFile,
+        oldArchiveZipEntriesByPath,
+        newFile,
+        newArchiveZipEntriesByPath,
+        newArchiveJreDeflateParametersByPath,
+        0,
+        recommendationModifiers);
+  }
+
+  /**
+   * Constructs a new planner like {@link #PreDiffPlanner(File, Map, File, Map, Map,
+   * RecommendationModifier...)} that also looks for diff bases for entries that were renamed and
+   * modified, with a {@link MinHashSimilarityFinder} limited to the specified budget.
+   *
+   * @param oldFile the old file, used to compare bytes between old and new entries as necessary
+   * @param oldArchiveZipEntriesByPath the entries in the old archive, with paths as keys
+   * @param newFile the new file, used to compare bytes between old and new entries as necessary
+   * @param newArchiveZipEntriesByPath the entries in the new archive, with paths as keys
+   * @param newArchiveJreDeflateParametersByPath the {@link JreDeflateParameters} for each entry in
+   *     the new archive, with paths as keys
+   * @param similarityBudget the maximum number of uncompressed bytes to read to find similar
+   *     entries, or 0 to only find renamed entries whose content is identical
+   * @param recommendationModifiers optionally, {@link RecommendationModifier}s to be applied after
+   *     the default recommendations have been made but before the {@link PreDiffPlan} is generated
+   *     in {@link #generatePreDiffPlan()}.
+   */
+  PreDiffPlanner(
+      File oldFile,
+      Map<ByteArrayHolder, MinimalZipEntry> oldArchiveZipEntriesByPath,
+      File newFile,
+      Map<ByteArrayHolder, MinimalZipEntry> newArchiveZipEntriesByPath,
+      Map<ByteArrayHolder, JreDeflateParameters> newArchiveJreDeflateParametersByPath,
+      long similarityBudget,
+      RecommendationModifier... recommendationModifiers) {
+    if (similarityBudget < 0) {
+      throw new IllegalArgumentException("similarityBudget must be >= 0");
+    }
     this.oldFile = oldFile;
     this.oldArchiveZipEntriesByPath = oldArchiveZipEntriesByPath;
     this.newFile = newFile;
     this.newArchiveZipEntriesByPath = newArchiveZipEntriesByPath;
     this.newArchiveJreDeflateParametersByPath = newArchiveJreDeflateParametersByPath;
+    this.similarityBudget = similarityBudget;
     this.recommendationModifiers =
           Collections.unmodifiableList(Arrays.asList(recommendationModifiers));
   }
@@ -155,6 +202,17 @@ class PreDiffPlanner {
     SimilarityFinder trivialRenameFinder =
         new Crc32SimilarityFinder(oldFile, oldArchiveZipEntriesByPath.values());
 
+    // This finds files that have been renamed and modified, but has to read their content to do so
+    // and is only used if there is a budget for that.
+    SimilarityFinder modifiedRenameFinder =
+        similarityBudget > 0
+            ? new MinHashSimilarityFinder(
+                oldFile,
+                oldArchiveZipEntriesByPath.values(),
+                similarityBudget,
+                MinHashSimilarityFinder.DEFAULT_MIN_SIMILARITY)
+            : null;
+
     // Iterate over every pair of entries and get a recommendation for what to do.
     for (Map.Entry<ByteArrayHolder, MinimalZipEntry> newEntry :
         newArchiveZipEntriesByPath.entrySet()) {
@@ -174,6 +232,18 @@ class PreDiffPlanner {
           // copies of the same file that are compressed differently, so don't bother with that
           // degenerate case.
           oldZipEntry = identicalEntriesInOldArchive.get(0);
+        } else if (modifiedRenameFinder != null) {
+          // Fall back to the most similar file, which is still a much better diff base than none.
+          List<MinimalZipEntry> similarEntriesInOldArchive;
+          try {
+            similarEntriesInOldArchive =
+                modifiedRenameFinder.findSimilarFiles(newFile, newEntry.getValue());
+          } catch (UncheckedIOException e) {
+            throw e.getCause();
+          }
+          if (!similarEntriesInOldArchive.isEmpty()) {
+            oldZipEntry = similarEntriesInOldArchive.get(0);
+          }
         }
       }
 
@@ -15,6 +15,7 @@
 package com.android.tools.apk.analyzer.diff.generator.bsdiff;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A Java implementation of the "bsdiff" algorithm based on the BSD-2 licensed source code available
@@ -135,6 +136,73 @@ class BsDiff {
     return searchForMatch(groupArray, oldData, newData, newStart, oldDataRangeStartA, pivot);
   }
 
+  /**
+   * Same as {@link #lengthOfMatch(RandomAccessObject, int, RandomAccessObject, int)}, for data held
+   * in big-endian byte buffers. Compares eight bytes at a time.
+   */
+  // Visible for testing only
+  static int lengthOfMatch(
+      final ByteBuffer oldData, final int oldStart, final ByteBuffer newData, final int newStart) {
+    final int max = Math.min(oldData.limit() - oldStart, newData.limit() - newStart);
+    return max > 0 ? BsUtil.mismatch(oldData, oldStart, newData, newStart, max) : max;
+  }
+
+  // Visible for testing only
+  static Match searchForMatchBaseCase(
+      final ByteBuffer groupArray,
+      final ByteBuffer oldData,
+      final ByteBuffer newData,
+      final int newStart,
+      final int oldDataRangeStartA,
+      final int oldDataRangeStartB) {
+    final int groupArrayOldDataRangeStartA = groupArray.getInt(oldDataRangeStartA * 4);
+    final int lengthOfMatchA =
+        lengthOfMatch(oldData, groupArrayOldDataRangeStartA, newData, newStart);
+    final int groupArrayOldDataRangeStartB = groupArray.getInt(oldDataRangeStartB * 4);
+    final int lengthOfMatchB =
+        lengthOfMatch(oldData, groupArrayOldDataRangeStartB, newData, newStart);
+
+    if (lengthOfMatchA > lengthOfMatchB) {
+      return Match.of(groupArrayOldDataRangeStartA, lengthOfMatchA);
+    }
+
+    return Match.of(groupArrayOldDataRangeStartB, lengthOfMatchB);
+  }
+
+  /**
+   * Same as {@link #searchForMatch(RandomAccessObject, RandomAccessObject, RandomAccessObject, int,
+   * int, int)}, for data held in big-endian byte buffers. Reads are absolute, so unlike the
+   * {@link RandomAccessObject} version this never moves a position and the buffers can be shared.
+   */
+  // Visible for testing only
+  static Match searchForMatch(
+      final ByteBuffer groupArray,
+      final ByteBuffer oldData,
+      final ByteBuffer newData,
+      final int newStart,
+      int oldDataRangeStartA,
+      int oldDataRangeStartB) {
+    // Same binary search as the RandomAccessObject version, unrolled into a loop.
+    while (oldDataRangeStartB - oldDataRangeStartA >= 2) {
+      final int pivot = oldDataRangeStartA + ((oldDataRangeStartB - oldDataRangeStartA) / 2);
+      final int groupArrayPivot = groupArray.getInt(pivot * 4);
+      if (BsUtil.lexicographicalCompare(
+              oldData,
+              groupArrayPivot,
+              oldData.limit() - groupArrayPivot,
+              newData,
+              newStart,
+              newData.limit() - newStart)
+          < 0) {
+        oldDataRangeStartA = pivot;
+      } else {
+        oldDataRangeStartB = pivot;
+      }
+    }
+    return searchForMatchBaseCase(
+        groupArray, oldData, newData, newStart, oldDataRangeStartA, oldDataRangeStartB);
+  }
+
   static class Match {
     final int start;
     final int length;
@@ -29,9 +29,95 @@ public class BsDiffDeltaGenerator implements DeltaGenerator {
    */
   private static final int MATCH_LENGTH_BYTES = 16;
 
+  /**
+   * The source of suffix arrays for old blobs, or null to sort every old blob afresh.
+   */
+  private final SuffixArrayCache suffixArrayCache;
+
+  /**
+   * The budget that suffix arrays sorted afresh are allocated from.
+   */
+  private final MemoryBudget memoryBudget;
+
+  /**
+   * The maximum number of threads that each suffix sort done afresh runs on.
+   */
+  private final int sortThreads;
+
+  public BsDiffDeltaGenerator() {
+    this(null);
+  }
+
+  /**
+   * Creates a generator that takes the suffix arrays of old blobs from the given cache, which pays
+   * off when the same old blobs are diffed against several new ones.
+   *
+   * @param suffixArrayCache the cache, or null to sort every old blob afresh
+   */
+  public BsDiffDeltaGenerator(SuffixArrayCache suffixArrayCache) {
+    this(suffixArrayCache, MemoryBudget.getDefault());
+  }
+
+  /**
+   * Creates a generator that allocates the suffix arrays of old blobs that it sorts afresh from the
+   * given budget, shared with any other generators given the same budget. Suffix arrays kept by the
+   * cache are in its own storage, bounded by its own limit; blobs given as byte arrays are counted
+   * against the budget either way. Runs on blobs given as files, which are mapped rather than read
+   * onto the heap, place their suffix arrays in the mapped budget before the heap budget.
+   *
+   * @param suffixArrayCache the cache, or null to sort every old blob afresh
+   * @param memoryBudget the budget to allocate from
+   */
+  public BsDiffDeltaGenerator(SuffixArrayCache suffixArrayCache, MemoryBudget memoryBudget) {
+    this(suffixArrayCache, memoryBudget, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a generator like {@link #BsDiffDeltaGenerator(SuffixArrayCache, MemoryBudget)} whose
+   * suffix sorts each run on up to the given number of threads. A generator that is shared by
+   * several concurrent diffs, e.g. by a multi-threaded patch explainer, should use 1 so that the
+   * sorts do not each start a pool per processor on top of the diff threads.
+   *
+   * @param suffixArrayCache the cache, or null to sort every old blob afresh
+   * @param memoryBudget the budget to allocate from
+   * @param sortThreads the maximum number of threads for each suffix sort done afresh
+   */
+  public BsDiffDeltaGenerator(
+      SuffixArrayCache suffixArrayCache, MemoryBudget memoryBudget, int sortThreads) {
+    if (memoryBudget == null) {
+      throw new IllegalArgumentException("memoryBudget must not be null");
+    }
+    if (sortThreads < 1) {
+      throw new IllegalArgumentException("sortThreads must be >= 1");
+    }
+    this.suffixArrayCache = suffixArrayCache;
+    this.memoryBudget = memoryBudget;
+    this.sortThreads = sortThreads;
+  }
+
   @Override
   public void generateDelta(File oldBlob, File newBlob, OutputStream deltaOut)
       throws IOException, InterruptedException {
-    BsDiffPatchWriter.generatePatch(oldBlob, newBlob, deltaOut, MATCH_LENGTH_BYTES);
+    try (MemoryBudget.Share share = memoryBudget.openPreferringMapped()) {
+      BsDiffPatchWriter.generatePatchWithSuffixSorter(
+          oldBlob, newBlob, deltaOut, getSuffixSorter(share), MATCH_LENGTH_BYTES);
+    }
+  }
+
+  @Override
+  public void generateDelta(byte[] oldBlob, byte[] newBlob, OutputStream deltaOut)
+      throws IOException, InterruptedException {
+    try (MemoryBudget.Share share = memoryBudget.open()) {
+      share.account((long) oldBlob.length + newBlob.length);
+      BsDiffPatchWriter.generatePatchWithSuffixSorter(
+          oldBlob, newBlob, deltaOut, getSuffixSorter(share), MATCH_LENGTH_BYTES);
+    }
+  }
+
+  /**
+   * Returns the cache if there is one, or a sorter that allocates from the share otherwise.
+   */
+  private SuffixSorter getSuffixSorter(MemoryBudget.Share share) {
+    return suffixArrayCache != null ? suffixArrayCache : new DivSuffixSorter(share, sortThreads);
   }
 }
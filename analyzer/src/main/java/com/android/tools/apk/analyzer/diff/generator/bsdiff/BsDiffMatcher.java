@@ -15,6 +15,7 @@
 package com.android.tools.apk.analyzer.diff.generator.bsdiff;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Implementation of matcher used by BsDiff. Exact matches between newData[a ... a + len - 1]
@@ -36,6 +37,14 @@ class BsDiffMatcher implements Matcher {
    */
   private final RandomAccessObject mGroupArray;
 
+  /**
+   * Views of |mOldData|, |mNewData| and |mGroupArray| for absolute access when all three are held
+   * in memory or mmapped, or null to go through {@link RandomAccessObject}.
+   */
+  private final ByteBuffer mOldBuffer;
+  private final ByteBuffer mNewBuffer;
+  private final ByteBuffer mGroupBuffer;
+
   /**
    * The index in |oldData| of the first byte of the match. Zero if no matches have been found yet.
    */
@@ -78,6 +87,13 @@ class BsDiffMatcher implements Matcher {
     mOldData = oldData;
     mNewData = newData;
     mGroupArray = groupArray;
+    ByteBuffer oldBuffer = BsUtil.asByteBuffer(oldData);
+    ByteBuffer newBuffer = BsUtil.asByteBuffer(newData);
+    ByteBuffer groupBuffer = BsUtil.asByteBuffer(groupArray);
+    boolean inMemory = oldBuffer != null && newBuffer != null && groupBuffer != null;
+    mOldBuffer = inMemory ? oldBuffer : null;
+    mNewBuffer = inMemory ? newBuffer : null;
+    mGroupBuffer = inMemory ? groupBuffer : null;
     mOldPos = 0;
     mMinimumMatchLength = minimumMatchLength;
   }
@@ -110,7 +126,11 @@ class BsDiffMatcher implements Matcher {
         throw new InterruptedException();
       }
       BsDiff.Match match =
-          BsDiff.searchForMatch(mGroupArray, oldData, newData, mNewPos, 0, (int) oldData.length());
+          mGroupBuffer != null
+              ? BsDiff.searchForMatch(
+                  mGroupBuffer, mOldBuffer, mNewBuffer, mNewPos, 0, (int) oldData.length())
+              : BsDiff.searchForMatch(
+                  mGroupArray, oldData, newData, mNewPos, 0, (int) oldData.length());
       mOldPos = match.start;
       mMatchLen = match.length;
       totalMatchLen += mMatchLen;
@@ -119,13 +139,8 @@ class BsDiffMatcher implements Matcher {
       for (; matchesCacheSize < mMatchLen; ++matchesCacheSize) {
         int oldIndex = mNewPos + previousOldOffset + matchesCacheSize;
         int newIndex = mNewPos + matchesCacheSize;
-        if (oldIndex < oldData.length()) {
-          oldData.seek(oldIndex);
-          newData.seek(newIndex);
-
-          if (oldData.readByte() == newData.readByte()) {
-            ++numMatches;
-          }
+        if (oldIndex < oldData.length() && bytesEqual(oldIndex, newIndex)) {
+          ++numMatches;
         }
       }
 
@@ -149,13 +164,9 @@ class BsDiffMatcher implements Matcher {
         // |numMatches - 1| because
         // oldData[mNewPos + previousOldOffset + 1 ... mNewPos + previousOldOffset + mMatchLen - 1]
         // matches newData[mNewPos + 1 ... mNewPos + mMatchLen - 1].
-        if (mNewPos + previousOldOffset < oldData.length()) {
-          oldData.seek(mNewPos + previousOldOffset);
-          newData.seek(mNewPos);
-
-          if (oldData.readByte() == newData.readByte()) {
-            --numMatches;
-          }
+        if (mNewPos + previousOldOffset < oldData.length()
+            && bytesEqual(mNewPos + previousOldOffset, mNewPos)) {
+          --numMatches;
         }
         ++mNewPos;
         --matchesCacheSize;
@@ -164,4 +175,14 @@ class BsDiffMatcher implements Matcher {
 
     return Matcher.NextMatch.of(false, 0, 0);
   }
+
+  /** Returns whether oldData[oldIndex] == newData[newIndex]. */
+  private boolean bytesEqual(int oldIndex, int newIndex) throws IOException {
+    if (mOldBuffer != null) {
+      return mOldBuffer.get(oldIndex) == mNewBuffer.get(newIndex);
+    }
+    mOldData.seek(oldIndex);
+    mNewData.seek(newIndex);
+    return mOldData.readByte() == mNewData.readByte();
+  }
 }
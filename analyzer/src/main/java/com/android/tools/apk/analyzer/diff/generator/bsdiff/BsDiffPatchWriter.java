@@ -287,16 +287,42 @@ public class BsDiffPatchWriter {
       final OutputStream outputStream,
       final int minimumMatchLength)
       throws IOException, InterruptedException {
+    generatePatchWithSuffixSorter(
+        oldData,
+        newData,
+        outputStream,
+        new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory()),
+        minimumMatchLength);
+  }
+
+  /**
+   * Generate a diff between the old data and the new, writing to the specified stream. The suffix
+   * array of the old data comes from the given sorter, e.g. a {@link SuffixArrayCache} shared by
+   * several diffs against the same old data.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param outputStream where output should be written
+   * @param suffixSorter the sorter that provides the suffix array of the old data
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider between the
+   *     oldData and newData. This can have a significant effect on both the generated patch size
+   *     and the amount of time and memory required to apply the patch.
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public static void generatePatchWithSuffixSorter(
+      final byte[] oldData,
+      final byte[] newData,
+      final OutputStream outputStream,
+      final SuffixSorter suffixSorter,
+      final int minimumMatchLength)
+      throws IOException, InterruptedException {
     try (RandomAccessObject oldDataRAO =
             new RandomAccessObject.RandomAccessByteArrayObject(oldData);
         RandomAccessObject newDataRAO =
             new RandomAccessObject.RandomAccessByteArrayObject(newData); ) {
-      generatePatch(
-          oldDataRAO,
-          newDataRAO,
-          outputStream,
-          new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory(),
-          minimumMatchLength);
+      generatePatchWithSuffixSorter(
+          oldDataRAO, newDataRAO, outputStream, suffixSorter, minimumMatchLength);
     }
   }
 
@@ -336,18 +362,44 @@ public class BsDiffPatchWriter {
       final OutputStream outputStream,
       final int minimumMatchLength)
       throws IOException, InterruptedException {
+    generatePatchWithSuffixSorter(
+        oldData,
+        newData,
+        outputStream,
+        new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessMmapObjectFactory("rw")),
+        minimumMatchLength);
+  }
+
+  /**
+   * Generate a diff between the old data and the new, writing to the specified stream. The suffix
+   * array of the old data comes from the given sorter, e.g. a {@link SuffixArrayCache} shared by
+   * several diffs against the same old data.
+   *
+   * @param oldData a file containing the old data
+   * @param newData a file containing the new data
+   * @param outputStream where output should be written
+   * @param suffixSorter the sorter that provides the suffix array of the old data
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider between the
+   *     oldData and newData. This can have a significant effect on both the generated patch size
+   *     and the amount of time and memory required to apply the patch.
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public static void generatePatchWithSuffixSorter(
+      final File oldData,
+      final File newData,
+      final OutputStream outputStream,
+      final SuffixSorter suffixSorter,
+      final int minimumMatchLength)
+      throws IOException, InterruptedException {
     try (RandomAccessFile oldDataRAF = new RandomAccessFile(oldData, "r");
         RandomAccessFile newDataRAF = new RandomAccessFile(newData, "r");
         RandomAccessObject oldDataRAO =
             new RandomAccessObject.RandomAccessMmapObject(oldDataRAF, "r");
         RandomAccessObject newDataRAO =
             new RandomAccessObject.RandomAccessMmapObject(newDataRAF, "r"); ) {
-      generatePatch(
-          oldDataRAO,
-          newDataRAO,
-          outputStream,
-          new RandomAccessObjectFactory.RandomAccessMmapObjectFactory("rw"),
-          minimumMatchLength);
+      generatePatchWithSuffixSorter(
+          oldDataRAO, newDataRAO, outputStream, suffixSorter, minimumMatchLength);
     }
 
     // Due to a bug in the JVM (http://bugs.java.com/view_bug.do?bug_id=6417205), we need to call
@@ -377,13 +429,40 @@ public class BsDiffPatchWriter {
       final RandomAccessObjectFactory randomAccessObjectFactory,
       final int minimumMatchLength)
       throws IOException, InterruptedException {
+    generatePatchWithSuffixSorter(
+        oldData,
+        newData,
+        outputStream,
+        new DivSuffixSorter(randomAccessObjectFactory),
+        minimumMatchLength);
+  }
+
+  /**
+   * Generate a diff between the old data and the new, writing to the specified stream.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param outputStream where output should be written
+   * @param suffixSorter the sorter that provides the suffix array of the old data
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider between the
+   *     oldData and newData. This can have a significant effect on both the generated patch size
+   *     and the amount of time and memory required to apply the patch.
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public static void generatePatchWithSuffixSorter(
+      final RandomAccessObject oldData,
+      final RandomAccessObject newData,
+      final OutputStream outputStream,
+      final SuffixSorter suffixSorter,
+      final int minimumMatchLength)
+      throws IOException, InterruptedException {
     // Write header (signature + new file length)
     outputStream.write("ENDSLEY/BSDIFF43".getBytes(StandardCharsets.US_ASCII));
     BsUtil.writeFormattedLong(newData.length(), outputStream);
 
     // Do the suffix search.
-    try (final RandomAccessObject groupArray =
-        new DivSuffixSorter(randomAccessObjectFactory).suffixSort(oldData)) {
+    try (final RandomAccessObject groupArray = suffixSorter.suffixSort(oldData)) {
       BsDiffMatcher matcher = new BsDiffMatcher(oldData, newData, groupArray, minimumMatchLength);
       generatePatchWithMatcher(oldData, newData, matcher, outputStream);
     }
@@ -17,6 +17,7 @@ package com.android.tools.apk.analyzer.diff.generator.bsdiff;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Utility functions to be shared between BsDiff and BsPatch.
@@ -103,4 +104,66 @@ class BsUtil {
 
     return length1 - length2;
   }
+
+  /**
+   * Returns a view of the data for absolute access if it is held in a {@link ByteBuffer}, on the
+   * heap or mmapped, so that callers can take a fast path around {@link RandomAccessObject}.
+   *
+   * @param data the data
+   * @return the view, or null if the data can only be read through {@link RandomAccessObject}
+   */
+  static ByteBuffer asByteBuffer(final RandomAccessObject data) {
+    return data instanceof RandomAccessObject.RandomAccessByteArrayObject
+        ? ((RandomAccessObject.RandomAccessByteArrayObject) data).asByteBuffer()
+        : null;
+  }
+
+  /**
+   * Returns the offset of the first byte that differs between two ranges of the same length,
+   * comparing eight bytes at a time.
+   *
+   * @param data1 first byte buffer, which must be big-endian
+   * @param start1 index in the first buffer at which to start comparing
+   * @param data2 second byte buffer, which must be big-endian
+   * @param start2 index in the second buffer at which to start comparing
+   * @param length the number of bytes to compare
+   * @return the offset of the first differing byte, or |length| if the ranges are equal
+   */
+  static int mismatch(
+      final ByteBuffer data1, final int start1, final ByteBuffer data2, final int start2,
+      final int length) {
+    int offset = 0;
+    for (; offset <= length - 8; offset += 8) {
+      final long difference = data1.getLong(start1 + offset) ^ data2.getLong(start2 + offset);
+      if (difference != 0) {
+        // Big-endian, so the first differing byte holds the highest set bit.
+        return offset + (Long.numberOfLeadingZeros(difference) >>> 3);
+      }
+    }
+    for (; offset < length; offset++) {
+      if (data1.get(start1 + offset) != data2.get(start2 + offset)) {
+        return offset;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Same as {@link #lexicographicalCompare(RandomAccessObject, int, int, RandomAccessObject, int,
+   * int)}, for data held in big-endian byte buffers.
+   */
+  static int lexicographicalCompare(
+      final ByteBuffer data1,
+      final int start1,
+      final int length1,
+      final ByteBuffer data2,
+      final int start2,
+      final int length2) {
+    final int length = Math.min(length1, length2);
+    final int offset = mismatch(data1, start1, data2, start2, length);
+    if (offset < length) {
+      return (data1.get(start1 + offset) & 0xff) - (data2.get(start2 + offset) & 0xff);
+    }
+    return length1 - length2;
+  }
 }
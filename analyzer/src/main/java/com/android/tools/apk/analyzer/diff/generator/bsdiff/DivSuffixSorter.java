@@ -16,7 +16,17 @@
 
 package com.android.tools.apk.analyzer.diff.generator.bsdiff;
 
+import com.android.tools.apk.analyzer.diff.generator.bsdiff.RandomAccessObject.RandomAccessByteArrayObject;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Taken from
@@ -31,6 +41,15 @@ import java.io.IOException;
  *
  * <p>This implementation is basically a translation of the C version given by Yuta Mori:
  * <tt>libdivsufsort-2.0.0, http://code.google.com/p/libdivsufsort/</tt>
+ *
+ * <p>Like the OpenMP build of libdivsufsort, inputs of at least {@link #PARALLEL_THRESHOLD} bytes
+ * have their type B* substrings sorted on several threads, one bucket at a time. This needs the
+ * input and the suffix array to be {@link RandomAccessByteArrayObject}s (which includes mmapped
+ * storage), so that each thread can have its own view of them; otherwise the sort is sequential.
+ * The suffix array of an input is unique, so the output does not depend on the number of threads.
+ *
+ * <p>Such objects are also read and written with absolute {@link ByteBuffer} accesses rather than
+ * a seek per element; any other {@link RandomAccessObject} goes through seek and read.
  */
 public final class DivSuffixSorter implements SuffixSorter {
 
@@ -74,14 +93,60 @@ public final class DivSuffixSorter implements SuffixSorter {
     7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7
   };
 
+  /** The input size, in bytes, from which type B* substrings are sorted on several threads. */
+  static final int PARALLEL_THRESHOLD = 1024 * 1024;
+
   /* fields */
   private final RandomAccessObjectFactory randomAccessObjectFactory;
+  private final int threads;
+  private final int parallelThreshold;
 
   private RandomAccessObject suffixArray;
   private RandomAccessObject input;
 
+  /**
+   * Views of {@link #suffixArray} and {@link #input} for absolute access when they are held in
+   * memory or mmapped, or null to fall back to seeking, e.g. for file-backed inputs too large to
+   * map.
+   */
+  private ByteBuffer suffixArrayBuffer;
+  private ByteBuffer inputBuffer;
+
+  /**
+   * Creates a sorter that sorts large inputs on up to one thread per available processor.
+   *
+   * @param randomAccessObjectFactory factory for the suffix array storage
+   */
   public DivSuffixSorter(RandomAccessObjectFactory randomAccessObjectFactory) {
+    this(randomAccessObjectFactory, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a sorter that sorts large inputs on up to the given number of threads. Each such sort
+   * starts a pool of its own, so callers that already run several sorts at once, such as a delta
+   * generator shared by concurrent diffs, should pass 1 here or split their own thread count
+   * between the sorts rather than nest a pool per processor inside each of them.
+   *
+   * @param randomAccessObjectFactory factory for the suffix array storage
+   * @param threads the maximum number of threads to sort type B* substrings on
+   */
+  public DivSuffixSorter(RandomAccessObjectFactory randomAccessObjectFactory, int threads) {
+    this(randomAccessObjectFactory, threads, PARALLEL_THRESHOLD);
+  }
+
+  /**
+   * @param randomAccessObjectFactory factory for the suffix array storage
+   * @param threads the maximum number of threads to sort type B* substrings on
+   * @param parallelThreshold the input size, in bytes, from which to use more than one thread
+   */
+  DivSuffixSorter(
+      RandomAccessObjectFactory randomAccessObjectFactory, int threads, int parallelThreshold) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be >= 1");
+    }
     this.randomAccessObjectFactory = randomAccessObjectFactory;
+    this.threads = threads;
+    this.parallelThreshold = parallelThreshold;
   }
 
   @Override
@@ -95,6 +160,7 @@ public final class DivSuffixSorter implements SuffixSorter {
     suffixArray.seek(0);
     suffixArray.writeInt(length);
     this.suffixArray = suffixArray;
+    this.suffixArrayBuffer = BsUtil.asByteBuffer(suffixArray);
 
     // Deal with small cases separately.
     if (length == 0) {
@@ -105,6 +171,7 @@ public final class DivSuffixSorter implements SuffixSorter {
     }
 
     this.input = input;
+    this.inputBuffer = BsUtil.asByteBuffer(input);
     int[] bucketA = new int[BUCKET_A_SIZE];
     int[] bucketB = new int[BUCKET_B_SIZE];
     /* Suffixsort. */
@@ -240,14 +307,21 @@ public final class DivSuffixSorter implements SuffixSorter {
       buf = m; // SA
       bufsize = n - (2 * m);
 
-      for (c0 = ALPHABET_SIZE - 2, j = m; 0 < j; --c0) {
-        if (Thread.interrupted()) {
-          throw new InterruptedException();
-        }
-        for (c1 = ALPHABET_SIZE - 1; c0 < c1; j = i, --c1) {
-          i = bucketB[(c0) * ALPHABET_SIZE + (c1)];
-          if (1 < (j - i)) {
-            ssSort(PAb, i, j, buf, bufsize, 2, n, readSuffixArray(i) == (m - 1));
+      if (threads > 1
+          && n >= parallelThreshold
+          && inputBuffer != null
+          && suffixArrayBuffer != null) {
+        ssSortParallel(bucketB, PAb, m, buf, bufsize, n);
+      } else {
+        for (c0 = ALPHABET_SIZE - 2, j = m; 0 < j; --c0) {
+          if (Thread.interrupted()) {
+            throw new InterruptedException();
+          }
+          for (c1 = ALPHABET_SIZE - 1; c0 < c1; j = i, --c1) {
+            i = bucketB[(c0) * ALPHABET_SIZE + (c1)];
+            if (1 < (j - i)) {
+              ssSort(PAb, i, j, buf, bufsize, 2, n, readSuffixArray(i) == (m - 1));
+            }
           }
         }
       }
@@ -310,6 +384,94 @@ public final class DivSuffixSorter implements SuffixSorter {
     return m;
   }
 
+  /**
+   * Sorts the type B* substrings of each bucket, as the sequential loop in {@link #sortTypeBstar}
+   * does, on up to {@link #threads} threads. Buckets are disjoint ranges of the suffix array, so
+   * they can be sorted independently; each thread gets its own slice of the work buffer and its own
+   * views of the input and the suffix array.
+   */
+  private void ssSortParallel(int[] bucketB, int PAb, int m, int buf, int bufsize, int n)
+      throws IOException, InterruptedException {
+    // Collect the buckets that need sorting, ordered by size so the largest are started first.
+    int[] starts = new int[BUCKET_B_SIZE];
+    int[] ends = new int[BUCKET_B_SIZE];
+    boolean[] lastSuffixes = new boolean[BUCKET_B_SIZE];
+    long[] order = new long[BUCKET_B_SIZE];
+    int count = 0;
+    for (int c0 = ALPHABET_SIZE - 2, i, j = m; 0 < j; --c0) {
+      for (int c1 = ALPHABET_SIZE - 1; c0 < c1; j = i, --c1) {
+        i = bucketB[(c0) * ALPHABET_SIZE + (c1)];
+        if (1 < (j - i)) {
+          starts[count] = i;
+          ends[count] = j;
+          lastSuffixes[count] = readSuffixArray(i) == (m - 1);
+          order[count] = ((long) (j - i) << 32) | count;
+          ++count;
+        }
+      }
+    }
+    Arrays.sort(order, 0, count);
+
+    int workers = Math.max(1, Math.min(threads, count));
+    int workerBufsize = bufsize / workers;
+    AtomicInteger next = new AtomicInteger(count);
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+    try {
+      List<Future<Void>> results = new ArrayList<>(workers);
+      for (int w = 0; w < workers; ++w) {
+        DivSuffixSorter worker =
+            new DivSuffixSorter(randomAccessObjectFactory, 1, Integer.MAX_VALUE);
+        worker.input = ((RandomAccessByteArrayObject) input).duplicate();
+        worker.suffixArray = ((RandomAccessByteArrayObject) suffixArray).duplicate();
+        worker.inputBuffer = BsUtil.asByteBuffer(worker.input);
+        worker.suffixArrayBuffer = BsUtil.asByteBuffer(worker.suffixArray);
+        int workerBuf = buf + w * workerBufsize;
+        results.add(
+            executor.submit(
+                () -> {
+                  for (int b = next.decrementAndGet(); 0 <= b; b = next.decrementAndGet()) {
+                    if (Thread.interrupted()) {
+                      throw new InterruptedException();
+                    }
+                    int bucket = (int) order[b];
+                    worker.ssSort(
+                        PAb,
+                        starts[bucket],
+                        ends[bucket],
+                        workerBuf,
+                        workerBufsize,
+                        2,
+                        n,
+                        lastSuffixes[bucket]);
+                  }
+                  return null;
+                }));
+      }
+      for (Future<Void> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
+          }
+          if (cause instanceof InterruptedException) {
+            throw (InterruptedException) cause;
+          }
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new IOException(cause);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   private final void ssSort(
       final int PA, int first, int last, int buf, int bufsize, int depth, int n, boolean lastsuffix)
       throws IOException {
@@ -2059,6 +2221,9 @@ public final class DivSuffixSorter implements SuffixSorter {
   }
 
   private int readInput(long pos) throws IOException {
+    if (inputBuffer != null) {
+      return inputBuffer.get((int) pos) & 0xff;
+    }
     input.seek(pos);
     return input.readUnsignedByte();
   }
@@ -2069,6 +2234,9 @@ public final class DivSuffixSorter implements SuffixSorter {
      * (which is always the length of the array) and shifts everything by one. So we do the
      * correction here.
      */
+    if (suffixArrayBuffer != null) {
+      return suffixArrayBuffer.getInt((int) (pos + 1) << 2);
+    }
     suffixArray.seekToIntAligned(pos + 1);
     return suffixArray.readInt();
   }
@@ -2079,6 +2247,10 @@ public final class DivSuffixSorter implements SuffixSorter {
      * (which is always the length of the array) and shifts everything by one. So we do the
      * correction here.
      */
+    if (suffixArrayBuffer != null) {
+      suffixArrayBuffer.putInt((int) (pos + 1) << 2, write);
+      return write;
+    }
     suffixArray.seekToIntAligned(pos + 1);
     suffixArray.writeInt(write);
     return write;
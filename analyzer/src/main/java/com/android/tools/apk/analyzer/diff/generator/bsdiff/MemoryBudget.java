@@ -0,0 +1,211 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.generator.bsdiff;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A budget of memory for the auxiliary storage of bsdiff runs, shared by runs on several threads.
+ * The largest such storage is the suffix array of the old data, four bytes per byte of input,
+ * which for large inputs can exhaust the heap if it is always allocated there.
+ *
+ * <p>Each run opens a {@link Share} for its duration and allocates through it. Each allocation is
+ * placed on the heap while the heap budget allows, then in a memory-mapped temp file while the
+ * mapped budget allows, and otherwise in a plain temp file, which is the slowest but needs no
+ * memory at all. Runs whose inputs are files, which are mapped rather than read onto the heap,
+ * can open a share that tries the mapped budget before the heap budget instead, so that they leave
+ * the heap to runs that already hold their inputs there. So that one large run cannot starve the
+ * others, a share may hold at most an equal part of each budget among the shares open at the time
+ * of the allocation. Reservations are returned when the share is closed.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class MemoryBudget {
+  private static final String FILE_NAME_PREFIX = "wavsprafof";
+
+  /**
+   * The budget used by default: a quarter of the maximum heap, and as much again for mapped files.
+   */
+  private static final MemoryBudget DEFAULT =
+      new MemoryBudget(Runtime.getRuntime().maxMemory() / 4, Runtime.getRuntime().maxMemory() / 4);
+
+  private final long heapBytes;
+  private final long mappedBytes;
+
+  /** The bytes reserved by all open shares. Guarded by |this|. */
+  private long heapBytesUsed;
+  private long mappedBytesUsed;
+
+  /** The number of open shares. Guarded by |this|. */
+  private int openShares;
+
+  /**
+   * @param heapBytes the total size, in bytes, of auxiliary storage to place on the heap
+   * @param mappedBytes the total size, in bytes, of auxiliary storage to place in memory-mapped
+   *     temp files once the heap budget is used up
+   */
+  public MemoryBudget(long heapBytes, long mappedBytes) {
+    if (heapBytes < 0 || mappedBytes < 0) {
+      throw new IllegalArgumentException("budgets must be >= 0");
+    }
+    this.heapBytes = heapBytes;
+    this.mappedBytes = mappedBytes;
+  }
+
+  /**
+   * Returns the budget shared by all users that do not specify one: a quarter of the maximum heap,
+   * and as much again for mapped files.
+   */
+  public static MemoryBudget getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Opens a share of the budget for one run, which must be closed when the run is done with the
+   * storage allocated through it.
+   */
+  public Share open() {
+    return open(false);
+  }
+
+  /**
+   * Opens a share like {@link #open()} whose allocations try the mapped budget before the heap
+   * budget, for runs whose inputs are files rather than byte arrays.
+   */
+  public Share openPreferringMapped() {
+    return open(true);
+  }
+
+  private Share open(boolean preferMapped) {
+    synchronized (this) {
+      openShares++;
+    }
+    return new Share(preferMapped);
+  }
+
+  /** Returns the bytes currently reserved on the heap by all open shares. */
+  public synchronized long getHeapBytesUsed() {
+    return heapBytesUsed;
+  }
+
+  /** Returns the bytes currently reserved in mapped files by all open shares. */
+  public synchronized long getMappedBytesUsed() {
+    return mappedBytesUsed;
+  }
+
+  /**
+   * The part of a {@link MemoryBudget} used by one run, which allocates its auxiliary storage
+   * through it.
+   */
+  public final class Share implements RandomAccessObjectFactory, Closeable {
+    /** The bytes reserved by this share. Guarded by the enclosing budget. */
+    private long heapBytesUsed;
+    private long mappedBytesUsed;
+    private boolean closed;
+
+    /** Whether allocations try the mapped budget before the heap budget. */
+    private final boolean preferMapped;
+
+    private Share(boolean preferMapped) {
+      this.preferMapped = preferMapped;
+    }
+
+    /**
+     * Creates storage of the specified size on the heap, in a memory-mapped temp file or in a
+     * plain temp file, whichever is the first that the budget allows. The heap is tried first
+     * unless the share was opened with {@link #openPreferringMapped()}.
+     */
+    @Override
+    public RandomAccessObject create(int size) throws IOException {
+      if (!preferMapped && tryReserve(size, true)) {
+        return new RandomAccessObject.RandomAccessByteArrayObject(size);
+      }
+      if (tryReserve(size, false)) {
+        return new RandomAccessObject.RandomAccessMmapObject(FILE_NAME_PREFIX, "rw", size);
+      }
+      if (preferMapped && tryReserve(size, true)) {
+        return new RandomAccessObject.RandomAccessByteArrayObject(size);
+      }
+      return new RandomAccessObject.RandomAccessFileObject(
+          File.createTempFile(FILE_NAME_PREFIX, "temp"), "rw", true);
+    }
+
+    /**
+     * Counts memory that the run already holds on the heap, such as inputs given as byte arrays,
+     * against this share, even past the budget, so that the allocations that follow spill sooner.
+     *
+     * @param bytes the number of bytes held
+     */
+    public void account(long bytes) {
+      if (bytes < 0) {
+        throw new IllegalArgumentException("bytes must be >= 0");
+      }
+      synchronized (MemoryBudget.this) {
+        checkOpen();
+        heapBytesUsed += bytes;
+        MemoryBudget.this.heapBytesUsed += bytes;
+      }
+    }
+
+    /**
+     * Reserves |size| bytes if both the budget and this share's part of it allow.
+     * @return true if reserved
+     */
+    private boolean tryReserve(long size, boolean heap) {
+      synchronized (MemoryBudget.this) {
+        checkOpen();
+        long total = heap ? heapBytes : mappedBytes;
+        long used = heap ? MemoryBudget.this.heapBytesUsed : MemoryBudget.this.mappedBytesUsed;
+        long usedByShare = heap ? heapBytesUsed : mappedBytesUsed;
+        if (used + size > total || usedByShare + size > total / openShares) {
+          return false;
+        }
+        if (heap) {
+          heapBytesUsed += size;
+          MemoryBudget.this.heapBytesUsed += size;
+        } else {
+          mappedBytesUsed += size;
+          MemoryBudget.this.mappedBytesUsed += size;
+        }
+        return true;
+      }
+    }
+
+    private void checkOpen() {
+      if (closed) {
+        throw new IllegalStateException("Share is closed");
+      }
+    }
+
+    /**
+     * Returns everything reserved by this share to the budget. The storage allocated through the
+     * share must no longer be in use.
+     */
+    @Override
+    public void close() {
+      synchronized (MemoryBudget.this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        MemoryBudget.this.heapBytesUsed -= heapBytesUsed;
+        MemoryBudget.this.mappedBytesUsed -= mappedBytesUsed;
+        openShares--;
+      }
+    }
+  }
+}
@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 
 // TODO(andrewhayden): clean up the implementations, we only really need two and they can be in
@@ -151,6 +152,33 @@ public interface RandomAccessObject extends DataInput, DataOutput, Closeable {
       // No-op, this is just used by the extending class RandomAccessMmapObject.
     }
 
+    /**
+     * Returns a view of the same data with its own position, so that another thread can read and
+     * write it. Closing the view does nothing, and the view must not be used once this object is
+     * closed; callers that hand out views, like {@link SuffixArrayCache}, must keep this object
+     * open until the last view is closed.
+     *
+     * @return the view
+     */
+    public RandomAccessByteArrayObject duplicate() {
+      RandomAccessByteArrayObject result = new RandomAccessByteArrayObject();
+      result.mByteBuffer = mByteBuffer.duplicate();
+      return result;
+    }
+
+    /**
+     * Returns a big-endian view of the data for absolute reads and writes, which unlike {@link
+     * #seek} followed by a read do not touch the position and are much cheaper in tight loops. The
+     * view shares the data, but not the position, of this object.
+     *
+     * @return the view
+     */
+    ByteBuffer asByteBuffer() {
+      ByteBuffer result = mByteBuffer.duplicate();
+      result.clear();
+      return result.order(ByteOrder.BIG_ENDIAN);
+    }
+
     @Override
     public long length() {
       return mByteBuffer.capacity();
@@ -470,6 +498,23 @@ public interface RandomAccessObject extends DataInput, DataOutput, Closeable {
 
     @Override
     public void close() throws IOException {
+      close(true);
+    }
+
+    /**
+     * Closes this object like {@link #close()}, but leaves the mapping to be released by whichever
+     * garbage collection comes next rather than forcing a full one. Where the platform does not
+     * allow a mapped file to be deleted, the backing file is only deleted on exit. This suits
+     * callers that close many objects, e.g. a cache evicting entries, which cannot afford a full
+     * collection for each.
+     *
+     * @throws IOException if unable to close the file channel
+     */
+    void closeWithoutCollecting() throws IOException {
+      close(false);
+    }
+
+    private void close(boolean collect) throws IOException {
       if (mFileChannel != null) {
         mFileChannel.close();
       }
@@ -484,7 +529,9 @@ public interface RandomAccessObject extends DataInput, DataOutput, Closeable {
       //
       // See https://github.com/andrewhayden/archive-patcher/issues/5 for more information.
       mByteBuffer = null;
-      System.gc();
+      if (collect) {
+        System.gc();
+      }
 
       if (mShouldDeleteFileOnRelease && mFile != null) {
         mFile.delete();
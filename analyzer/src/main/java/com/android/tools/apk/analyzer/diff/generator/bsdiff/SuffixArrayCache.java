@@ -0,0 +1,353 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.generator.bsdiff;
+
+import com.android.tools.apk.analyzer.diff.generator.bsdiff.RandomAccessObject.RandomAccessByteArrayObject;
+import com.android.tools.apk.analyzer.diff.generator.bsdiff.RandomAccessObject.RandomAccessMmapObject;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link SuffixSorter} that remembers the suffix arrays it computes, so that diffing the same old
+ * data against many new blobs (e.g. one released APK against several candidate builds) pays for
+ * suffix sorting only once.
+ *
+ * <p>Inputs are identified by their CRC32 and length. Suffix arrays are kept in memory-mapped temp
+ * files, and the least recently used ones are closed once their total size exceeds the budget
+ * given at construction. A suffix array that alone exceeds the budget is returned without being
+ * cached. Should two different inputs ever share a CRC32 and length, the patch is still correct,
+ * since bsdiff checks every match against the data, but it may be larger than necessary.
+ *
+ * <p>This class is thread-safe. Concurrent requests for the same input wait for a single sort.
+ * Each caller gets its own view of the cached suffix array, which it must close as usual. The cache
+ * counts the open views of each suffix array, so a view stays readable even if the cache evicts
+ * the array in the meantime; the array is only closed once it is out of the cache and its last
+ * view is closed. Evicted arrays are closed without forcing a garbage collection.
+ */
+public final class SuffixArrayCache implements SuffixSorter, Closeable {
+  /**
+   * The default budget, in bytes, for cached suffix arrays: enough for the suffix arrays of about
+   * 64 MiB of old data.
+   */
+  public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+  private final RandomAccessObjectFactory randomAccessObjectFactory;
+  private final long maxBytes;
+  private final int sortThreads;
+
+  /** Suffix arrays keyed by input length and CRC32, in access order. Guarded by |this|. */
+  private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** The total size of the completed suffix arrays in |entries|. Guarded by |this|. */
+  private long totalBytes;
+
+  private long hitCount;
+  private long missCount;
+
+  /**
+   * Creates a cache that stores suffix arrays in memory-mapped temp files.
+   *
+   * @param maxBytes the maximum total size, in bytes, of the cached suffix arrays. A suffix array
+   *     takes four bytes per byte of input.
+   */
+  public SuffixArrayCache(long maxBytes) {
+    this(maxBytes, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a cache that stores suffix arrays in memory-mapped temp files and sorts each input on
+   * up to the given number of threads.
+   *
+   * @param maxBytes the maximum total size, in bytes, of the cached suffix arrays. A suffix array
+   *     takes four bytes per byte of input.
+   * @param sortThreads the maximum number of threads for each sort, as for {@link
+   *     DivSuffixSorter#DivSuffixSorter(RandomAccessObjectFactory, int)}
+   */
+  public SuffixArrayCache(long maxBytes, int sortThreads) {
+    this(new RandomAccessObjectFactory.RandomAccessMmapObjectFactory("rw"), maxBytes, sortThreads);
+  }
+
+  /**
+   * @param randomAccessObjectFactory factory for the suffix array storage, which must create
+   *     {@link RandomAccessByteArrayObject}s so that views can be handed out
+   * @param maxBytes the maximum total size, in bytes, of the cached suffix arrays
+   */
+  SuffixArrayCache(RandomAccessObjectFactory randomAccessObjectFactory, long maxBytes) {
+    this(randomAccessObjectFactory, maxBytes, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param randomAccessObjectFactory factory for the suffix array storage, which must create
+   *     {@link RandomAccessByteArrayObject}s so that views can be handed out
+   * @param maxBytes the maximum total size, in bytes, of the cached suffix arrays
+   * @param sortThreads the maximum number of threads for each sort
+   */
+  SuffixArrayCache(
+      RandomAccessObjectFactory randomAccessObjectFactory, long maxBytes, int sortThreads) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must be >= 0");
+    }
+    if (sortThreads < 1) {
+      throw new IllegalArgumentException("sortThreads must be >= 1");
+    }
+    this.randomAccessObjectFactory = randomAccessObjectFactory;
+    this.maxBytes = maxBytes;
+    this.sortThreads = sortThreads;
+  }
+
+  @Override
+  public RandomAccessObject suffixSort(final RandomAccessObject data)
+      throws IOException, InterruptedException {
+    final long size = 4 * (data.length() + 1);
+    if (size > maxBytes) {
+      return new DivSuffixSorter(randomAccessObjectFactory, sortThreads).suffixSort(data);
+    }
+
+    final Long key = (data.length() << 32) | crc32(data);
+    final Entry entry;
+    final boolean sortHere;
+    synchronized (this) {
+      Entry existing = entries.get(key);
+      sortHere = existing == null;
+      if (sortHere) {
+        // A new sorter per input, as DivSuffixSorter keeps per-sort state in fields.
+        entry =
+            new Entry(
+                new FutureTask<>(
+                    () ->
+                        new DivSuffixSorter(randomAccessObjectFactory, sortThreads)
+                            .suffixSort(data)),
+                size);
+        entries.put(key, entry);
+        missCount++;
+      } else {
+        entry = existing;
+        hitCount++;
+      }
+      // Held by this caller until its view is handed out, so the entry is not closed before.
+      entry.references++;
+    }
+
+    boolean handedOut = false;
+    try {
+      if (sortHere) {
+        entry.task.run();
+      }
+      final RandomAccessObject suffixArray;
+      try {
+        suffixArray = entry.task.get();
+      } catch (ExecutionException e) {
+        boolean removed;
+        synchronized (this) {
+          removed = entries.remove(key, entry);
+        }
+        if (removed) {
+          release(entry);
+        }
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        if (cause instanceof InterruptedException) {
+          throw (InterruptedException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IOException(cause);
+      }
+
+      if (sortHere) {
+        List<Entry> evicted = new ArrayList<>();
+        synchronized (this) {
+          // Unless the cache was closed while sorting, in which case only the views hold the array.
+          if (entries.get(key) == entry) {
+            totalBytes += size;
+            evict(entry, evicted);
+          }
+        }
+        for (Entry e : evicted) {
+          closeSuffixArray(e);
+        }
+      }
+      View view = new View(entry, (RandomAccessByteArrayObject) suffixArray);
+      handedOut = true;
+      return view;
+    } finally {
+      if (!handedOut) {
+        release(entry);
+      }
+    }
+  }
+
+  /**
+   * Removes the least recently used completed entries, other than |keep|, until the cached suffix
+   * arrays fit the budget, dropping the cache's reference to each. The removed entries with no
+   * open views left are added to |evicted| so that they can be closed outside the lock.
+   */
+  private void evict(Entry keep, List<Entry> evicted) {
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (totalBytes > maxBytes && iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (entry != keep && entry.task.isDone()) {
+        iterator.remove();
+        totalBytes -= entry.size;
+        if (--entry.references == 0) {
+          evicted.add(entry);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops one reference to |entry|, closing its suffix array if that was the last one.
+   */
+  private void release(Entry entry) throws IOException {
+    synchronized (this) {
+      if (--entry.references > 0) {
+        return;
+      }
+    }
+    closeSuffixArray(entry);
+  }
+
+  private static long crc32(RandomAccessObject data) throws IOException {
+    CRC32 crc = new CRC32();
+    ByteBuffer buffer = BsUtil.asByteBuffer(data);
+    if (buffer != null) {
+      crc.update(buffer);
+    } else {
+      byte[] chunk = new byte[64 * 1024];
+      data.seek(0);
+      for (long remaining = data.length(); remaining > 0; ) {
+        int count = (int) Math.min(chunk.length, remaining);
+        data.readFully(chunk, 0, count);
+        crc.update(chunk, 0, count);
+        remaining -= count;
+      }
+    }
+    return crc.getValue();
+  }
+
+  /** Returns the number of requests that were served from the cache. */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /** Returns the number of requests that needed a suffix sort and were added to the cache. */
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /** Returns the total size, in bytes, of the suffix arrays currently in the cache. */
+  public synchronized long getSizeBytes() {
+    return totalBytes;
+  }
+
+  /**
+   * Empties the cache, closing every suffix array that has no open views. The others are closed
+   * along with their last view; until then, views handed out earlier stay readable. The cache can
+   * still be used and starts out empty.
+   */
+  @Override
+  public void close() throws IOException {
+    List<Entry> closing;
+    synchronized (this) {
+      closing = new ArrayList<>(entries.values());
+      entries.clear();
+      totalBytes = 0;
+    }
+    IOException failure = null;
+    for (Entry entry : closing) {
+      try {
+        release(entry);
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Closes the suffix array of an entry that nothing refers to any more. Nothing refers to an entry
+   * before its sort is done, and failed sorts have nothing to close. Mapped suffix arrays are
+   * closed without forcing a garbage collection, which would otherwise happen on every eviction.
+   */
+  private static void closeSuffixArray(Entry entry) throws IOException {
+    RandomAccessObject suffixArray;
+    try {
+      suffixArray = entry.task.get();
+    } catch (ExecutionException | InterruptedException ignored) {
+      // Nothing was stored.
+      return;
+    }
+    if (suffixArray instanceof RandomAccessMmapObject) {
+      ((RandomAccessMmapObject) suffixArray).closeWithoutCollecting();
+    } else {
+      suffixArray.close();
+    }
+  }
+
+  private static final class Entry {
+    final FutureTask<RandomAccessObject> task;
+    final long size;
+
+    /**
+     * The cache's own reference while the entry is cached, plus one for each caller waiting for the
+     * suffix array and each open view of it. Guarded by the cache.
+     */
+    int references = 1;
+
+    Entry(FutureTask<RandomAccessObject> task, long size) {
+      this.task = task;
+      this.size = size;
+    }
+  }
+
+  /** A view of a cached suffix array, which drops its reference to the entry when closed. */
+  private final class View extends RandomAccessByteArrayObject {
+    private final Entry entry;
+    private boolean closed;
+
+    View(Entry entry, RandomAccessByteArrayObject suffixArray) {
+      this.entry = entry;
+      mByteBuffer = suffixArray.duplicate().mByteBuffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+      synchronized (SuffixArrayCache.this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+      }
+      release(entry);
+    }
+  }
+}
@@ -0,0 +1,421 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.generator.similarity;
+
+import com.android.tools.apk.analyzer.diff.generator.MinimalZipEntry;
+import com.android.tools.apk.analyzer.diff.shared.DeflateUncompressor;
+import com.android.tools.apk.analyzer.diff.shared.RandomAccessFileInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.ZipException;
+
+/**
+ * Detects files with similar but not necessarily identical content, such as an asset that was both
+ * renamed and modified, by comparing MinHash sketches of their uncompressed content.
+ *
+ * <p>Each sketch holds the smallest hashes of all windows of {@link #WINDOW_LENGTH} bytes, found
+ * with a rolling hash, and the share of hashes two sketches have in common among the smallest of
+ * both estimates the share of windows the two files have in common. Only entries in the base
+ * archive with the same file extension as the new entry and an uncompressed size within a factor of
+ * {@link #MAX_SIZE_RATIO} of it are considered, closest in size first.
+ *
+ * <p>Sketching an entry means reading and uncompressing all of it, so the total number of
+ * uncompressed bytes read is limited to a budget given at construction. Sketches of base entries
+ * are kept and reused for later searches. Once the budget is spent, entries that have not been
+ * sketched yet are no longer considered. This class is not thread-safe.
+ *
+ * <p>{@link #findSimilarFiles(File, MinimalZipEntry)} throws {@link UncheckedIOException} if an
+ * archive cannot be read. Entries whose compressed data is invalid are treated as similar to
+ * nothing.
+ */
+public class MinHashSimilarityFinder extends SimilarityFinder {
+  /**
+   * The default for the maximum number of uncompressed bytes to read for sketches.
+   */
+  public static final long DEFAULT_BUDGET_BYTES = 64L * 1024 * 1024;
+
+  /**
+   * The default for the minimum estimated similarity, between 0 and 1, for an entry in the base
+   * archive to be considered similar.
+   */
+  public static final double DEFAULT_MIN_SIMILARITY = 0.5;
+
+  /**
+   * The number of bytes hashed together. Entries shorter than this are never similar to anything.
+   */
+  static final int WINDOW_LENGTH = 16;
+
+  /**
+   * The number of hashes in a sketch; the error of the estimates is about 1 / sqrt(SKETCH_SIZE).
+   */
+  static final int SKETCH_SIZE = 128;
+
+  /**
+   * The largest ratio of the uncompressed sizes of two entries that may be similar.
+   */
+  static final int MAX_SIZE_RATIO = 2;
+
+  /**
+   * The multiplier of the rolling hash.
+   */
+  private static final long MULTIPLIER = 0x100000001b3L;
+
+  /**
+   * MULTIPLIER to the power of WINDOW_LENGTH, to remove the byte leaving the window.
+   */
+  private static final long OUTGOING_MULTIPLIER;
+
+  static {
+    long power = 1;
+    for (int i = 0; i < WINDOW_LENGTH; i++) {
+      power *= MULTIPLIER;
+    }
+    OUTGOING_MULTIPLIER = power;
+  }
+
+  /**
+   * The sketch of entries that cannot be sketched.
+   */
+  private static final long[] EMPTY_SKETCH = new long[0];
+
+  /**
+   * The maximum number of uncompressed bytes to read for sketches.
+   */
+  private final long budgetBytes;
+
+  /**
+   * The minimum estimated similarity for an entry in the base archive to be considered similar.
+   */
+  private final double minSimilarity;
+
+  /**
+   * The entries in the base archive that can be sketched, by file extension.
+   */
+  private final Map<String, List<MinimalZipEntry>> baseEntriesByExtension = new HashMap<>();
+
+  /**
+   * The sketches of the entries in the base archive that have been sketched so far.
+   */
+  private final Map<MinimalZipEntry, long[]> baseSketches = new IdentityHashMap<>();
+
+  /**
+   * The uncompressed bytes read for sketches so far.
+   */
+  private long bytesRead;
+
+  /**
+   * Constructs a new similarity finder with the default budget and minimum similarity.
+   * @param baseArchive the base archive that contains the entries to be searched
+   * @param baseEntries the entries in the base archive that are eligible to be searched
+   */
+  public MinHashSimilarityFinder(File baseArchive, Collection<MinimalZipEntry> baseEntries) {
+    this(baseArchive, baseEntries, DEFAULT_BUDGET_BYTES, DEFAULT_MIN_SIMILARITY);
+  }
+
+  /**
+   * Constructs a new similarity finder with the specified parameters.
+   * @param baseArchive the base archive that contains the entries to be searched
+   * @param baseEntries the entries in the base archive that are eligible to be searched
+   * @param budgetBytes the maximum number of uncompressed bytes to read for sketches, in both
+   *     archives and over all searches
+   * @param minSimilarity the minimum estimated similarity, greater than 0 and at most 1, for an
+   *     entry in the base archive to be considered similar
+   */
+  public MinHashSimilarityFinder(
+      File baseArchive,
+      Collection<MinimalZipEntry> baseEntries,
+      long budgetBytes,
+      double minSimilarity) {
+    super(baseArchive, baseEntries);
+    if (budgetBytes < 0) {
+      throw new IllegalArgumentException("budgetBytes must be >= 0");
+    }
+    if (!(minSimilarity > 0 && minSimilarity <= 1)) {
+      throw new IllegalArgumentException("minSimilarity must be in (0, 1]");
+    }
+    this.budgetBytes = budgetBytes;
+    this.minSimilarity = minSimilarity;
+    for (MinimalZipEntry baseEntry : baseEntries) {
+      if (isSketchable(baseEntry)) {
+        String extension = getExtension(baseEntry);
+        List<MinimalZipEntry> entries = baseEntriesByExtension.get(extension);
+        if (entries == null) {
+          entries = new ArrayList<>();
+          baseEntriesByExtension.put(extension, entries);
+        }
+        entries.add(baseEntry);
+      }
+    }
+  }
+
+  @Override
+  public List<MinimalZipEntry> findSimilarFiles(File newArchive, MinimalZipEntry newEntry) {
+    if (!isSketchable(newEntry)) {
+      return Collections.emptyList();
+    }
+    final long newSize = newEntry.getUncompressedSize();
+    List<MinimalZipEntry> candidates = new ArrayList<>();
+    List<MinimalZipEntry> sameExtension = baseEntriesByExtension.get(getExtension(newEntry));
+    if (sameExtension != null) {
+      for (MinimalZipEntry baseEntry : sameExtension) {
+        long baseSize = baseEntry.getUncompressedSize();
+        if (baseSize <= newSize * MAX_SIZE_RATIO && newSize <= baseSize * MAX_SIZE_RATIO) {
+          candidates.add(baseEntry);
+        }
+      }
+    }
+    if (candidates.isEmpty() || !reserve(newSize)) {
+      return Collections.emptyList();
+    }
+    // Spend what is left of the budget on the candidates most likely to be similar.
+    Collections.sort(
+        candidates,
+        Comparator.comparingLong(baseEntry -> Math.abs(baseEntry.getUncompressedSize() - newSize)));
+
+    try {
+      long[] newSketch = sketch(newArchive, newEntry);
+      final Map<MinimalZipEntry, Double> similarities = new IdentityHashMap<>();
+      for (MinimalZipEntry candidate : candidates) {
+        long[] baseSketch = baseSketches.get(candidate);
+        if (baseSketch == null) {
+          if (!reserve(candidate.getUncompressedSize())) {
+            continue;
+          }
+          baseSketch = sketch(baseArchive, candidate);
+          baseSketches.put(candidate, baseSketch);
+        }
+        double similarity = estimateSimilarity(newSketch, baseSketch);
+        if (similarity >= minSimilarity) {
+          similarities.put(candidate, similarity);
+        }
+      }
+      List<MinimalZipEntry> result = new ArrayList<>(similarities.keySet());
+      // Most similar first; the sort is stable, so ties stay closest in size first.
+      Collections.sort(
+          result, Comparator.comparingDouble(baseEntry -> -similarities.get(baseEntry)));
+      return result;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns the number of uncompressed bytes read for sketches so far.
+   * @return as described
+   */
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  /**
+   * Takes the specified number of bytes from the budget, if there are that many left.
+   * @param bytes the number of bytes to be read
+   * @return true if the bytes were taken and may be read
+   */
+  private boolean reserve(long bytes) {
+    if (bytes > budgetBytes - bytesRead) {
+      return false;
+    }
+    bytesRead += bytes;
+    return true;
+  }
+
+  /**
+   * Returns whether the entry can be sketched: stored or deflated, and at least one window long.
+   */
+  private static boolean isSketchable(MinimalZipEntry entry) {
+    return (entry.getCompressionMethod() == 0 || entry.isDeflateCompressed())
+        && entry.getUncompressedSize() >= WINDOW_LENGTH;
+  }
+
+  /**
+   * Returns the extension of the entry's file name, e.g. "dex" for "classes2.dex", or an empty
+   * string if it has none.
+   */
+  private static String getExtension(MinimalZipEntry entry) {
+    String name = entry.getFileName();
+    int dot = name.lastIndexOf('.');
+    return dot > name.lastIndexOf('/') ? name.substring(dot + 1) : "";
+  }
+
+  /**
+   * Reads and uncompresses the entry, and returns its sketch.
+   * @param archive the archive that contains the entry
+   * @param entry the entry to sketch
+   * @return the sketch, sorted in ascending order, or an empty sketch if the compressed data of the
+   *     entry is invalid
+   * @throws IOException if unable to read the archive
+   */
+  private static long[] sketch(File archive, MinimalZipEntry entry) throws IOException {
+    Sketcher sketcher = new Sketcher();
+    try (RandomAccessFileInputStream in =
+        new RandomAccessFileInputStream(
+            archive, entry.getFileOffsetOfCompressedData(), entry.getCompressedSize())) {
+      if (entry.isDeflateCompressed()) {
+        new DeflateUncompressor().uncompress(in, sketcher);
+      } else {
+        byte[] buffer = new byte[32768];
+        int numRead;
+        while ((numRead = in.read(buffer)) >= 0) {
+          sketcher.write(buffer, 0, numRead);
+        }
+      }
+    } catch (ZipException e) {
+      return EMPTY_SKETCH;
+    }
+    return sketcher.getSketch();
+  }
+
+  /**
+   * Estimates the share of windows that two files have in common, from their sketches.
+   * @param a the sketch of one file, in ascending order
+   * @param b the sketch of the other file, in ascending order
+   * @return the estimate, between 0 and 1
+   */
+  static double estimateSimilarity(long[] a, long[] b) {
+    // Walk the smallest SKETCH_SIZE hashes of the union of both files' windows, and count the ones
+    // found in both.
+    int i = 0;
+    int j = 0;
+    int union = 0;
+    int common = 0;
+    while (union < SKETCH_SIZE && i < a.length && j < b.length) {
+      int order = Long.compareUnsigned(a[i], b[j]);
+      if (order == 0) {
+        common++;
+        i++;
+        j++;
+      } else if (order < 0) {
+        i++;
+      } else {
+        j++;
+      }
+      union++;
+    }
+    // A sketch that ran out holds every hash of its file, so the rest of the other sketch is not in
+    // the intersection but still counts towards the union.
+    union = Math.min(SKETCH_SIZE, union + (a.length - i) + (b.length - j));
+    return union == 0 ? 0 : (double) common / union;
+  }
+
+  /**
+   * Builds a sketch of everything written to it.
+   */
+  static final class Sketcher extends OutputStream {
+    /**
+     * The smallest distinct hashes so far, in unsigned order.
+     */
+    private final TreeSet<Long> smallest = new TreeSet<>(Long::compareUnsigned);
+
+    /**
+     * The last WINDOW_LENGTH bytes written, as a ring buffer.
+     */
+    private final byte[] window = new byte[WINDOW_LENGTH];
+
+    /**
+     * The index in |window| of the oldest byte, which the next byte replaces.
+     */
+    private int slot;
+
+    /**
+     * The number of bytes still to be written before the window is full.
+     */
+    private int untilFull = WINDOW_LENGTH;
+
+    /**
+     * The rolling hash of the bytes in |window|.
+     */
+    private long rollingHash;
+
+    /**
+     * The largest hash in |smallest| once it is full; only smaller hashes are added after that.
+     */
+    private long threshold = -1L;
+
+    @Override
+    public void write(int b) {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      long hash = rollingHash;
+      int index = slot;
+      for (int i = off; i < off + len; i++) {
+        int incoming = b[i] & 0xff;
+        hash = hash * MULTIPLIER + incoming - (window[index] & 0xff) * OUTGOING_MULTIPLIER;
+        window[index] = (byte) incoming;
+        index = index == WINDOW_LENGTH - 1 ? 0 : index + 1;
+        if (untilFull > 0) {
+          untilFull--;
+          if (untilFull > 0) {
+            continue;
+          }
+        }
+        long mixed = mix(hash);
+        if (Long.compareUnsigned(mixed, threshold) < 0 || smallest.size() < SKETCH_SIZE) {
+          add(mixed);
+        }
+      }
+      rollingHash = hash;
+      slot = index;
+    }
+
+    private void add(long hash) {
+      if (smallest.add(hash) && smallest.size() > SKETCH_SIZE) {
+        smallest.pollLast();
+      }
+      if (smallest.size() == SKETCH_SIZE) {
+        threshold = smallest.last();
+      }
+    }
+
+    /**
+     * Returns the sketch of everything written so far, in ascending unsigned order.
+     */
+    long[] getSketch() {
+      long[] sketch = new long[smallest.size()];
+      int i = 0;
+      for (long hash : smallest) {
+        sketch[i++] = hash;
+      }
+      return sketch;
+    }
+
+    /**
+     * Spreads the bits of the rolling hash, so that the smallest hashes are a uniform sample of the
+     * windows. This is the finalizer of MurmurHash3.
+     */
+    private static long mix(long hash) {
+      hash ^= hash >>> 33;
+      hash *= 0xff51afd7ed558ccdL;
+      hash ^= hash >>> 33;
+      hash *= 0xc4ceb93fe1a85ec3L;
+      hash ^= hash >>> 33;
+      return hash;
+    }
+  }
+}
@@ -14,6 +14,12 @@
 
 package com.android.tools.apk.analyzer.diff.shared;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -31,4 +37,54 @@ public interface Compressor {
    * @throws IOException if something goes awry while reading or writing
    */
   public void compress(InputStream uncompressedIn, OutputStream compressedOut) throws IOException;
+
+  /**
+   * Returns a stream that compresses everything written to it into compressedOut, producing the
+   * same compressed data as {@link #compress(InputStream, OutputStream)} would for the same bytes.
+   * Closing the returned stream finishes the compressed data and closes compressedOut. This allows
+   * data that is produced by writing to a stream, e.g. a delta, to be compressed as it is
+   * produced. The default implementation writes all of the uncompressed data to a temp file, so
+   * that data of any size can be handled without holding it in memory, and compresses it on close;
+   * implementations should override it to compress incrementally.
+   *
+   * @param compressedOut the stream to write the compressed data to
+   * @return the stream to write the uncompressed data to
+   * @throws IOException if something goes awry while setting up the stream
+   */
+  public default OutputStream newCompressingStream(final OutputStream compressedOut)
+      throws IOException {
+    final File tempFile = File.createTempFile("compressor", "tmp");
+    final OutputStream tempOut;
+    try {
+      tempOut = new BufferedOutputStream(new FileOutputStream(tempFile));
+    } catch (IOException e) {
+      tempFile.delete();
+      throw e;
+    }
+    return new FilterOutputStream(tempOut) {
+      private boolean closed;
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        try (OutputStream compressed = compressedOut) {
+          super.close();
+          try (InputStream uncompressedIn =
+              new BufferedInputStream(new FileInputStream(tempFile))) {
+            compress(uncompressedIn, compressed);
+          }
+        } finally {
+          tempFile.delete();
+        }
+      }
+    };
+  }
 }
@@ -23,7 +23,9 @@ import java.util.zip.DeflaterOutputStream;
 /**
  * Implementation of {@link Compressor} based on Java's built-in {@link Deflater}. Uses default
  * compression, the default strategy, and no-wrap by default along with a 32k read buffer and a 32k
- * write buffer. Buffers are allocated on-demand and discarded after use.
+ * write buffer. Buffers are allocated on-demand and discarded after use. Unless caching is enabled,
+ * {@link Deflater} instances are borrowed from the {@link DeflatePool#getShared() shared pool} for
+ * each use.
  */
 public class DeflateCompressor implements Compressor {
 
@@ -193,16 +195,18 @@ public class DeflateCompressor implements Compressor {
 
   /**
    * Returns the {@link Deflater} to be used, creating a new one if necessary and caching it for
-   * future use.
+   * future use. Without caching, the deflater is borrowed from the shared {@link DeflatePool}.
    * @return the deflater
    */
   protected Deflater createOrResetDeflater() {
     Deflater result = deflater;
     if (result == null) {
-      result = new Deflater(compressionLevel, nowrap);
-      result.setStrategy(strategy);
       if (caching) {
+        result = new Deflater(compressionLevel, nowrap);
+        result.setStrategy(strategy);
         deflater = result;
+      } else {
+        result = DeflatePool.getShared().acquireDeflater(compressionLevel, strategy, nowrap);
       }
     } else {
       result.reset();
@@ -210,6 +214,17 @@ public class DeflateCompressor implements Compressor {
     return result;
   }
 
+  /**
+   * Gives back a deflater from {@link #createOrResetDeflater()} that is no longer needed, unless it
+   * is the cached one.
+   * @param used the deflater
+   */
+  private void doneWith(Deflater used) {
+    if (used != deflater) {
+      DeflatePool.getShared().release(used);
+    }
+  }
+
   /**
    * Immediately releases any cached {@link Deflater} instance.
    */
@@ -220,16 +235,48 @@ public class DeflateCompressor implements Compressor {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The returned stream deflates as it is written to, so the uncompressed data is never held in
+   * memory as a whole.
+   */
+  @Override
+  public OutputStream newCompressingStream(OutputStream compressedOut) {
+    final Deflater used = createOrResetDeflater();
+    return new DeflaterOutputStream(compressedOut, used, outputBufferSize) {
+      private boolean closed = false;
+
+      @Override
+      public void close() throws IOException {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        try {
+          super.close();
+        } finally {
+          doneWith(used);
+        }
+      }
+    };
+  }
+
   @Override
   public void compress(InputStream uncompressedIn, OutputStream compressedOut) throws IOException {
     byte[] buffer = new byte[inputBufferSize];
-    DeflaterOutputStream deflaterOut =
-        new DeflaterOutputStream(compressedOut, createOrResetDeflater(), outputBufferSize);
-    int numRead = 0;
-    while ((numRead = uncompressedIn.read(buffer)) >= 0) {
-      deflaterOut.write(buffer, 0, numRead);
+    Deflater used = createOrResetDeflater();
+    try {
+      DeflaterOutputStream deflaterOut =
+          new DeflaterOutputStream(compressedOut, used, outputBufferSize);
+      int numRead = 0;
+      while ((numRead = uncompressedIn.read(buffer)) >= 0) {
+        deflaterOut.write(buffer, 0, numRead);
+      }
+      deflaterOut.finish();
+      deflaterOut.flush();
+    } finally {
+      doneWith(used);
     }
-    deflaterOut.finish();
-    deflaterOut.flush();
   }
 }
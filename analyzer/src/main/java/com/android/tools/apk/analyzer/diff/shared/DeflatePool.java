@@ -0,0 +1,290 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.shared;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A pool of {@link Deflater}s keyed by level, strategy and nowrap, and of {@link Inflater}s keyed
+ * by nowrap. Each instance holds native zlib state that is expensive to allocate and is only freed
+ * when the instance is ended, so components that deflate or inflate many entries borrow instances
+ * from here rather than creating and ending their own.
+ * <p>
+ * Borrowed instances are given back with {@link #release(Deflater)} and {@link #release(Inflater)},
+ * which reset them, and must not be used or ended after that. Instances that are never given back
+ * are simply garbage collected. At most |maxIdlePerKey| idle instances are kept for each key; any
+ * more are ended as they are given back.
+ * <p>
+ * This class is thread-safe.
+ */
+public class DeflatePool {
+  /**
+   * The default number of idle instances kept for each key: enough for every thread of a typical
+   * machine to have one.
+   */
+  public static final int DEFAULT_MAX_IDLE_PER_KEY =
+      Math.max(2, Runtime.getRuntime().availableProcessors());
+
+  /**
+   * The pool shared by all components that do not have a pool of their own.
+   */
+  private static final DeflatePool SHARED = new DeflatePool(DEFAULT_MAX_IDLE_PER_KEY);
+
+  /**
+   * The maximum number of idle instances kept for each key.
+   */
+  private final int maxIdlePerKey;
+
+  /**
+   * Idle deflaters, keyed as described in {@link #deflaterKey(int, int, boolean)}. Guarded by
+   * |this|.
+   */
+  private final Map<Integer, ArrayDeque<PooledDeflater>> idleDeflaters = new HashMap<>();
+
+  /**
+   * Idle inflaters, keyed by nowrap. Guarded by |this|.
+   */
+  private final Map<Boolean, ArrayDeque<PooledInflater>> idleInflaters = new HashMap<>();
+
+  private long deflatersCreated;
+  private long deflatersReused;
+  private long inflatersCreated;
+  private long inflatersReused;
+  private long instancesEnded;
+
+  /**
+   * Returns the pool shared by all components that do not have a pool of their own.
+   * @return as described
+   */
+  public static DeflatePool getShared() {
+    return SHARED;
+  }
+
+  /**
+   * Creates a new pool.
+   * @param maxIdlePerKey the maximum number of idle instances to keep for each key
+   */
+  public DeflatePool(int maxIdlePerKey) {
+    if (maxIdlePerKey < 0) {
+      throw new IllegalArgumentException("maxIdlePerKey must be >= 0");
+    }
+    this.maxIdlePerKey = maxIdlePerKey;
+  }
+
+  /**
+   * Borrows a deflater with the specified parameters, ready for a new stream.
+   * @param level the compression level, as for {@link Deflater#Deflater(int, boolean)}
+   * @param strategy the strategy, as for {@link Deflater#setStrategy(int)}
+   * @param nowrap the nowrap setting, as for {@link Deflater#Deflater(int, boolean)}
+   * @return the deflater, to be given back with {@link #release(Deflater)}
+   */
+  public Deflater acquireDeflater(int level, int strategy, boolean nowrap) {
+    if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("level must be in the range [-1,9]: " + level);
+    }
+    if (strategy < Deflater.DEFAULT_STRATEGY || strategy > Deflater.HUFFMAN_ONLY) {
+      throw new IllegalArgumentException("strategy must be in the range [0,2]: " + strategy);
+    }
+    synchronized (this) {
+      ArrayDeque<PooledDeflater> idle = idleDeflaters.get(deflaterKey(level, strategy, nowrap));
+      if (idle != null && !idle.isEmpty()) {
+        deflatersReused++;
+        return idle.pop();
+      }
+      deflatersCreated++;
+    }
+    PooledDeflater deflater = new PooledDeflater(this, level, strategy, nowrap);
+    deflater.setStrategy(strategy);
+    return deflater;
+  }
+
+  /**
+   * Gives back a deflater. Deflaters that did not come from this pool are ended.
+   * @param deflater the deflater to give back, which must not be used afterwards
+   */
+  public void release(Deflater deflater) {
+    if (!(deflater instanceof PooledDeflater) || ((PooledDeflater) deflater).pool != this) {
+      deflater.end();
+      return;
+    }
+    PooledDeflater pooled = (PooledDeflater) deflater;
+    // Undo any changes to the parameters, which take effect with the next stream.
+    pooled.reset();
+    pooled.setLevel(pooled.level);
+    pooled.setStrategy(pooled.strategy);
+    synchronized (this) {
+      ArrayDeque<PooledDeflater> idle =
+          idleDeflaters.computeIfAbsent(
+              deflaterKey(pooled.level, pooled.strategy, pooled.nowrap), k -> new ArrayDeque<>());
+      if (idle.size() < maxIdlePerKey) {
+        idle.push(pooled);
+        return;
+      }
+      instancesEnded++;
+    }
+    pooled.end();
+  }
+
+  /**
+   * Borrows an inflater with the specified nowrap setting, ready for a new stream.
+   * @param nowrap the nowrap setting, as for {@link Inflater#Inflater(boolean)}
+   * @return the inflater, to be given back with {@link #release(Inflater)}
+   */
+  public Inflater acquireInflater(boolean nowrap) {
+    synchronized (this) {
+      ArrayDeque<PooledInflater> idle = idleInflaters.get(nowrap);
+      if (idle != null && !idle.isEmpty()) {
+        inflatersReused++;
+        return idle.pop();
+      }
+      inflatersCreated++;
+    }
+    return new PooledInflater(this, nowrap);
+  }
+
+  /**
+   * Gives back an inflater. Inflaters that did not come from this pool are ended.
+   * @param inflater the inflater to give back, which must not be used afterwards
+   */
+  public void release(Inflater inflater) {
+    if (!(inflater instanceof PooledInflater) || ((PooledInflater) inflater).pool != this) {
+      inflater.end();
+      return;
+    }
+    PooledInflater pooled = (PooledInflater) inflater;
+    pooled.reset();
+    synchronized (this) {
+      ArrayDeque<PooledInflater> idle =
+          idleInflaters.computeIfAbsent(pooled.nowrap, k -> new ArrayDeque<>());
+      if (idle.size() < maxIdlePerKey) {
+        idle.push(pooled);
+        return;
+      }
+      instancesEnded++;
+    }
+    pooled.end();
+  }
+
+  /**
+   * Ends all idle instances. Instances that are borrowed at the time can still be given back.
+   */
+  public void clear() {
+    List<Deflater> deflaters = new ArrayList<>();
+    List<Inflater> inflaters = new ArrayList<>();
+    synchronized (this) {
+      for (ArrayDeque<PooledDeflater> idle : idleDeflaters.values()) {
+        deflaters.addAll(idle);
+      }
+      for (ArrayDeque<PooledInflater> idle : idleInflaters.values()) {
+        inflaters.addAll(idle);
+      }
+      idleDeflaters.clear();
+      idleInflaters.clear();
+      instancesEnded += deflaters.size() + inflaters.size();
+    }
+    for (Deflater deflater : deflaters) {
+      deflater.end();
+    }
+    for (Inflater inflater : inflaters) {
+      inflater.end();
+    }
+  }
+
+  /** Returns the number of deflaters this pool has created. */
+  public synchronized long getDeflatersCreated() {
+    return deflatersCreated;
+  }
+
+  /** Returns the number of times an idle deflater was handed out again instead. */
+  public synchronized long getDeflatersReused() {
+    return deflatersReused;
+  }
+
+  /** Returns the number of inflaters this pool has created. */
+  public synchronized long getInflatersCreated() {
+    return inflatersCreated;
+  }
+
+  /** Returns the number of times an idle inflater was handed out again instead. */
+  public synchronized long getInflatersReused() {
+    return inflatersReused;
+  }
+
+  /** Returns the number of instances ended because too many were idle or the pool was cleared. */
+  public synchronized long getInstancesEnded() {
+    return instancesEnded;
+  }
+
+  /** Returns the number of instances currently idle in the pool. */
+  public synchronized int getIdleCount() {
+    int count = 0;
+    for (ArrayDeque<PooledDeflater> idle : idleDeflaters.values()) {
+      count += idle.size();
+    }
+    for (ArrayDeque<PooledInflater> idle : idleInflaters.values()) {
+      count += idle.size();
+    }
+    return count;
+  }
+
+  /**
+   * Returns the key under which idle deflaters with the specified parameters are kept.
+   * @param level the compression level, from -1 to 9
+   * @param strategy the strategy, from 0 to 2
+   * @param nowrap the nowrap setting
+   * @return as described
+   */
+  private static int deflaterKey(int level, int strategy, boolean nowrap) {
+    return (level + 1) | (strategy << 4) | (nowrap ? 1 << 8 : 0);
+  }
+
+  /**
+   * A {@link Deflater} that remembers the pool and the parameters it was created for.
+   */
+  private static final class PooledDeflater extends Deflater {
+    final DeflatePool pool;
+    final int level;
+    final int strategy;
+    final boolean nowrap;
+
+    PooledDeflater(DeflatePool pool, int level, int strategy, boolean nowrap) {
+      super(level, nowrap);
+      this.pool = pool;
+      this.level = level;
+      this.strategy = strategy;
+      this.nowrap = nowrap;
+    }
+  }
+
+  /**
+   * An {@link Inflater} that remembers the pool and the nowrap setting it was created for.
+   */
+  private static final class PooledInflater extends Inflater {
+    final DeflatePool pool;
+    final boolean nowrap;
+
+    PooledInflater(DeflatePool pool, boolean nowrap) {
+      super(nowrap);
+      this.pool = pool;
+      this.nowrap = nowrap;
+    }
+  }
+}
@@ -23,8 +23,9 @@ import java.util.zip.InflaterInputStream;
 /**
  * Implementation of {@link Uncompressor} based on Java's built-in {@link Inflater}. Uses no-wrap by
  * default along with a 32k read buffer and a 32k write buffer. Buffers are allocated on-demand and
- * discarded after use. {@link Inflater} instances, which may be expensive, are also created
- * on-demand; This can be changed by using {@link #setCaching(boolean)}.
+ * discarded after use. {@link Inflater} instances, which may be expensive, are borrowed from the
+ * {@link DeflatePool#getShared() shared pool} for each use; This can be changed by using
+ * {@link #setCaching(boolean)}.
  */
 public class DeflateUncompressor implements Uncompressor {
   /**
@@ -137,15 +138,17 @@ public class DeflateUncompressor implements Uncompressor {
 
   /**
    * Returns the {@link Inflater} to be used, creating a new one if necessary and caching it for
-   * future use.
+   * future use. Without caching, the inflater is borrowed from the shared {@link DeflatePool}.
    * @return the inflater
    */
   protected Inflater createOrResetInflater() {
     Inflater result = inflater;
     if (result == null) {
-      result = new Inflater(nowrap);
       if (caching) {
+        result = new Inflater(nowrap);
         inflater = result;
+      } else {
+        result = DeflatePool.getShared().acquireInflater(nowrap);
       }
     } else {
       result.reset();
@@ -166,15 +169,18 @@ public class DeflateUncompressor implements Uncompressor {
   @Override
   public void uncompress(InputStream compressedIn, OutputStream uncompressedOut)
       throws IOException {
-    InflaterInputStream inflaterIn =
-        new InflaterInputStream(compressedIn, createOrResetInflater(), inputBufferSize);
-    byte[] buffer = new byte[outputBufferSize];
-    int numRead = 0;
-    while ((numRead = inflaterIn.read(buffer)) >= 0) {
-      uncompressedOut.write(buffer, 0, numRead);
-    }
-    if (!isCaching()) {
-      release();
+    Inflater used = createOrResetInflater();
+    try {
+      InflaterInputStream inflaterIn = new InflaterInputStream(compressedIn, used, inputBufferSize);
+      byte[] buffer = new byte[outputBufferSize];
+      int numRead = 0;
+      while ((numRead = inflaterIn.read(buffer)) >= 0) {
+        uncompressedOut.write(buffer, 0, numRead);
+      }
+    } finally {
+      if (used != inflater) {
+        DeflatePool.getShared().release(used);
+      }
     }
   }
 }
@@ -14,11 +14,27 @@
 
 package com.android.tools.apk.analyzer.diff.shared;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * Utilities for generating delta-friendly files.
@@ -135,4 +151,266 @@ public class DeltaFriendlyFile {
     }
     return inverseRanges;
   }
+
+  /**
+   * Generate one delta-friendly file like {@link #generateDeltaFriendlyFile(List, File,
+   * OutputStream)}, uncompressing ranges on up to the specified number of threads. Given the
+   * uncompressed length of every range, e.g. from the central directory of a zip archive, the
+   * position of every range and of every gap between ranges in the delta-friendly file is known up
+   * front, so each is read and written at its own position independently of the others.
+   *
+   * <p>With more than one thread, each call starts a pool of its own and shuts it down before
+   * returning, so callers that already run on several threads should pass their own share of
+   * threads, e.g. the count given to {@code PreDiffExecutor.Builder#withThreads}, rather than one
+   * per processor.
+   *
+   * <p>If any range does not uncompress to exactly its given length, or cannot be uncompressed at
+   * all, the file is generated again by streaming, so the result (or the exception thrown) is the
+   * same as that of {@link #generateDeltaFriendlyFile(List, File, OutputStream)} either way.
+   *
+   * @param <T> the type of the data associated with the ranges
+   * @param rangesToUncompress the ranges to be uncompressed during transformation to a
+   *     delta-friendly form, in file order and not overlapping
+   * @param uncompressedLengths the uncompressed length of each range, in the same order
+   * @param file the file to read from
+   * @param deltaFriendlyFile the file to write the delta-friendly file to (will be overwritten if
+   *     it exists)
+   * @param threads the maximum number of threads to use
+   * @return the ranges in the delta-friendly file that correspond to the ranges in the original
+   *     file, with identical metadata and in the same order
+   * @throws IOException if anything goes wrong
+   */
+  public static <T> List<TypedRange<T>> generateDeltaFriendlyFile(
+      List<TypedRange<T>> rangesToUncompress,
+      long[] uncompressedLengths,
+      File file,
+      File deltaFriendlyFile,
+      int threads)
+      throws IOException {
+    if (uncompressedLengths.length != rangesToUncompress.size()) {
+      throw new IllegalArgumentException("uncompressedLengths must match rangesToUncompress");
+    }
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be >= 1");
+    }
+    List<TypedRange<T>> inverseRanges = new ArrayList<TypedRange<T>>(rangesToUncompress.size());
+    boolean complete;
+    try (RandomAccessFile in = new RandomAccessFile(file, "r");
+        RandomAccessFile out = new RandomAccessFile(deltaFriendlyFile, "rw")) {
+      // Lay out the delta-friendly file: gaps are copied and ranges uncompressed in place.
+      List<Segment> segments = new ArrayList<>(rangesToUncompress.size() * 2 + 1);
+      long readOffset = 0;
+      long writeOffset = 0;
+      for (int i = 0; i < rangesToUncompress.size(); i++) {
+        TypedRange<T> rangeToUncompress = rangesToUncompress.get(i);
+        long gap = rangeToUncompress.getOffset() - readOffset;
+        if (gap < 0 || uncompressedLengths[i] < 0) {
+          throw new IllegalArgumentException("ranges must be in file order and not overlap");
+        }
+        if (gap > 0) {
+          segments.add(new Segment(readOffset, gap, writeOffset, gap, false));
+          writeOffset += gap;
+        }
+        segments.add(
+            new Segment(
+                rangeToUncompress.getOffset(),
+                rangeToUncompress.getLength(),
+                writeOffset,
+                uncompressedLengths[i],
+                true));
+        inverseRanges.add(
+            new TypedRange<T>(writeOffset, uncompressedLengths[i], rangeToUncompress.getMetadata()));
+        writeOffset += uncompressedLengths[i];
+        readOffset = rangeToUncompress.getOffset() + rangeToUncompress.getLength();
+      }
+      long bytesLeft = in.length() - readOffset;
+      if (bytesLeft > 0) {
+        segments.add(new Segment(readOffset, bytesLeft, writeOffset, bytesLeft, false));
+        writeOffset += bytesLeft;
+      }
+      out.setLength(writeOffset);
+      complete = writeSegments(segments, in.getChannel(), out.getChannel(), threads);
+    }
+    if (!complete) {
+      try (FileOutputStream out = new FileOutputStream(deltaFriendlyFile);
+          BufferedOutputStream bufferedOut = new BufferedOutputStream(out)) {
+        return generateDeltaFriendlyFile(rangesToUncompress, file, bufferedOut);
+      }
+    }
+    return inverseRanges;
+  }
+
+  /**
+   * Writes all segments on up to the specified number of threads, largest first.
+   * @return false if any segment did not produce exactly its expected length
+   */
+  private static boolean writeSegments(
+      final List<Segment> segments,
+      final FileChannel in,
+      final FileChannel out,
+      int threads)
+      throws IOException {
+    final List<Segment> bySize = new ArrayList<>(segments);
+    Collections.sort(bySize, (a, b) -> Long.compare(b.outLength, a.outLength));
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicBoolean mismatch = new AtomicBoolean();
+    Callable<Void> worker =
+        () -> {
+          Inflater inflater = DeflatePool.getShared().acquireInflater(true);
+          try {
+            byte[] inputBuffer = new byte[DEFAULT_COPY_BUFFER_SIZE];
+            byte[] outputBuffer = new byte[DEFAULT_COPY_BUFFER_SIZE];
+            for (int i = next.getAndIncrement();
+                i < bySize.size() && !mismatch.get();
+                i = next.getAndIncrement()) {
+              if (!bySize.get(i).write(in, out, inflater, inputBuffer, outputBuffer)) {
+                mismatch.set(true);
+              }
+            }
+          } finally {
+            DeflatePool.getShared().release(inflater);
+          }
+          return null;
+        };
+
+    int workers = Math.min(threads, bySize.size());
+    if (workers <= 1) {
+      try {
+        worker.call();
+      } catch (IOException | RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+    } else {
+      ExecutorService executor = Executors.newFixedThreadPool(workers);
+      try {
+        List<Future<Void>> results = new ArrayList<>(workers);
+        for (int w = 0; w < workers; w++) {
+          results.add(executor.submit(worker));
+        }
+        for (Future<Void> result : results) {
+          get(result);
+        }
+      } finally {
+        // Interrupts the other workers if one failed.
+        executor.shutdownNow();
+      }
+    }
+    return !mismatch.get();
+  }
+
+  /**
+   * Waits for a task and rethrows anything that failed while running it.
+   */
+  private static void get(Future<Void> result) throws IOException {
+    try {
+      result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while generating delta-friendly file");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * A part of the original file that is either copied or uncompressed to a known position in the
+   * delta-friendly file.
+   */
+  private static final class Segment {
+    final long inOffset;
+    final long inLength;
+    final long outOffset;
+    final long outLength;
+    final boolean uncompress;
+
+    Segment(long inOffset, long inLength, long outOffset, long outLength, boolean uncompress) {
+      this.inOffset = inOffset;
+      this.inLength = inLength;
+      this.outOffset = outOffset;
+      this.outLength = outLength;
+      this.uncompress = uncompress;
+    }
+
+    /**
+     * Copies or uncompresses this segment.
+     * @return false if the segment did not produce exactly |outLength| bytes
+     */
+    boolean write(
+        FileChannel in,
+        FileChannel out,
+        Inflater inflater,
+        byte[] inputBuffer,
+        byte[] outputBuffer)
+        throws IOException {
+      long readOffset = inOffset;
+      long readEnd = inOffset + inLength;
+      long written = 0;
+      if (!uncompress) {
+        while (readOffset < readEnd) {
+          int numRead = read(in, inputBuffer, readOffset, readEnd);
+          if (numRead < 0) {
+            return false;
+          }
+          writeFully(out, inputBuffer, numRead, outOffset + written);
+          readOffset += numRead;
+          written += numRead;
+        }
+        return true;
+      }
+
+      inflater.reset();
+      while (!inflater.finished()) {
+        if (inflater.needsInput()) {
+          int numRead = readOffset < readEnd ? read(in, inputBuffer, readOffset, readEnd) : -1;
+          if (numRead < 0) {
+            // Truncated.
+            return false;
+          }
+          inflater.setInput(inputBuffer, 0, numRead);
+          readOffset += numRead;
+        }
+        int numInflated;
+        try {
+          numInflated = inflater.inflate(outputBuffer);
+        } catch (DataFormatException e) {
+          return false;
+        }
+        if (numInflated == 0 && inflater.needsDictionary()) {
+          return false;
+        }
+        if (written + numInflated > outLength) {
+          return false;
+        }
+        writeFully(out, outputBuffer, numInflated, outOffset + written);
+        written += numInflated;
+      }
+      return written == outLength;
+    }
+
+    private static int read(FileChannel in, byte[] buffer, long offset, long end)
+        throws IOException {
+      return in.read(
+          ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - offset)), offset);
+    }
+
+    private static void writeFully(FileChannel out, byte[] buffer, int length, long offset)
+        throws IOException {
+      ByteBuffer source = ByteBuffer.wrap(buffer, 0, length);
+      while (source.hasRemaining()) {
+        offset += out.write(source, offset);
+      }
+    }
+  }
 }
@@ -22,8 +22,9 @@ import com.android.tools.apk.analyzer.ArchiveEntry;
 import com.android.tools.apk.analyzer.ArchiveNode;
 import com.android.tools.apk.analyzer.ArchiveTreeStructure;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import javax.swing.tree.DefaultMutableTreeNode;
 
 public class ApkDiffParser {
@@ -32,12 +33,15 @@ public class ApkDiffParser {
             @NonNull ArchiveContext oldFile, @NonNull ArchiveContext newFile) throws IOException {
         ArchiveNode oldRoot = ArchiveTreeStructure.create(oldFile);
         ArchiveNode newRoot = ArchiveTreeStructure.create(newFile);
-        return createTreeNode(oldRoot, newRoot);
+        return createTreeNode(oldRoot, newRoot, new ArchiveEntrySizes());
     }
 
     @NonNull
     private static DefaultMutableTreeNode createTreeNode(
-            @Nullable ArchiveNode oldFile, @Nullable ArchiveNode newFile) throws IOException {
+            @Nullable ArchiveNode oldFile,
+            @Nullable ArchiveNode newFile,
+            @NonNull ArchiveEntrySizes sizes)
+            throws IOException {
         if (oldFile == null && newFile == null) {
             throw new IllegalArgumentException("Both old and new files are null");
         }
@@ -47,7 +51,7 @@ public class ApkDiffParser {
         long oldSize = 0;
         long newSize = 0;
 
-        HashSet<String> childrenInOldFile = new HashSet<>();
+        Map<String, ArchiveNode> newChildren = getChildrenByName(newFile);
         final ArchiveEntry data = oldFile == null ? newFile.getData() : oldFile.getData();
         final String name =
                 data.getPath().getFileName() != null
@@ -56,27 +60,9 @@ public class ApkDiffParser {
         if (oldFile != null) {
             if (!oldFile.getChildren().isEmpty()) {
                 for (ArchiveNode oldChild : oldFile.getChildren()) {
-                    ArchiveNode newChild = null;
-                    if (newFile != null) {
-                        for (ArchiveNode archiveNode : newFile.getChildren()) {
-                            if (archiveNode
-                                    .getData()
-                                    .getPath()
-                                    .getFileName()
-                                    .toString()
-                                    .equals(
-                                            oldChild.getData()
-                                                    .getPath()
-                                                    .getFileName()
-                                                    .toString())) {
-                                newChild = archiveNode;
-                                break;
-                            }
-                        }
-                    }
-
-                    childrenInOldFile.add(oldChild.getData().getPath().getFileName().toString());
-                    DefaultMutableTreeNode childNode = createTreeNode(oldChild, newChild);
+                    // What is left in the map afterwards is only in the new file.
+                    ArchiveNode newChild = newChildren.remove(getChildName(oldChild));
+                    DefaultMutableTreeNode childNode = createTreeNode(oldChild, newChild, sizes);
                     node.add(childNode);
 
                     ApkDiffEntry entry = (ApkDiffEntry) childNode.getUserObject();
@@ -84,25 +70,21 @@ public class ApkDiffParser {
                     newSize += entry.getNewSize();
                 }
 
-                if (Files.size(oldFile.getData().getPath()) > 0) {
+                long entrySize = sizes.getSize(oldFile.getData());
+                if (entrySize > 0) {
                     // This is probably a zip inside the apk, and we should use it's size
-                    oldSize = Files.size(oldFile.getData().getPath());
+                    oldSize = entrySize;
                 } else if (oldFile.getParent() == null) {
-                    oldSize = Files.size(oldFile.getData().getArchive().getPath());
+                    oldSize = sizes.getArchiveSize(oldFile.getData().getArchive());
                 }
             } else {
-                oldSize += Files.size(oldFile.getData().getPath());
+                oldSize += sizes.getSize(oldFile.getData());
             }
         }
         if (newFile != null) {
             if (!newFile.getChildren().isEmpty()) {
-                for (ArchiveNode newChild : newFile.getChildren()) {
-                    if (childrenInOldFile.contains(
-                            newChild.getData().getPath().getFileName().toString())) {
-                        continue;
-                    }
-
-                    DefaultMutableTreeNode childNode = createTreeNode(null, newChild);
+                for (ArchiveNode newChild : newChildren.values()) {
+                    DefaultMutableTreeNode childNode = createTreeNode(null, newChild, sizes);
                     node.add(childNode);
 
                     ApkDiffEntry entry = (ApkDiffEntry) childNode.getUserObject();
@@ -110,14 +92,15 @@ public class ApkDiffParser {
                     newSize += entry.getNewSize();
                 }
 
-                if (Files.size(newFile.getData().getPath()) > 0) {
+                long entrySize = sizes.getSize(newFile.getData());
+                if (entrySize > 0) {
                     // This is probably a zip inside the apk, and we should use it's size
-                    newSize = Files.size(newFile.getData().getPath());
+                    newSize = entrySize;
                 } else if (newFile.getParent() == null) {
-                    newSize = Files.size(newFile.getData().getArchive().getPath());
+                    newSize = sizes.getArchiveSize(newFile.getData().getArchive());
                 }
             } else {
-                newSize += Files.size(newFile.getData().getPath());
+                newSize += sizes.getSize(newFile.getData());
             }
         }
 
@@ -125,4 +108,30 @@ public class ApkDiffParser {
         ApkEntry.sort(node);
         return node;
     }
+
+    /**
+     * Returns the children of {@code node} by file name, in their original order, or an empty map
+     * if {@code node} is null. Directories such as {@code res/drawable-*} can hold thousands of
+     * files, so old children are joined with new ones through this map, rather than by scanning
+     * the new children for each of them.
+     */
+    @NonNull
+    static Map<String, ArchiveNode> getChildrenByName(@Nullable ArchiveNode node) {
+        if (node == null) {
+            return new LinkedHashMap<>();
+        }
+        List<ArchiveNode> children = node.getChildren();
+        Map<String, ArchiveNode> childrenByName =
+                new LinkedHashMap<>(Math.max(16, children.size() * 4 / 3 + 1));
+        for (ArchiveNode child : children) {
+            childrenByName.putIfAbsent(getChildName(child), child);
+        }
+        return childrenByName;
+    }
+
+    /** Returns the file name of {@code child}, which must not be the root of an archive. */
+    @NonNull
+    static String getChildName(@NonNull ArchiveNode child) {
+        return child.getData().getPath().getFileName().toString();
+    }
 }
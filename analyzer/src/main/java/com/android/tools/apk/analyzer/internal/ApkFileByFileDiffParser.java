@@ -38,15 +38,15 @@ import com.android.tools.apk.analyzer.ArchiveTreeStructure;
 
 import com.android.tools.apk.analyzer.diff.explainer.EntryExplanation;
 import com.android.tools.apk.analyzer.diff.explainer.PatchExplainer;
+import com.android.tools.apk.analyzer.diff.generator.MinimalZipEntry;
 import com.android.tools.apk.analyzer.diff.generator.bsdiff.BsDiffDeltaGenerator;
+import com.android.tools.apk.analyzer.diff.generator.bsdiff.MemoryBudget;
+import com.android.tools.apk.analyzer.diff.generator.similarity.MinHashSimilarityFinder;
 import com.android.tools.apk.analyzer.diff.shared.DeflateCompressor;
 
 import com.google.common.annotations.VisibleForTesting;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import javax.swing.tree.DefaultMutableTreeNode;
@@ -56,27 +56,58 @@ public class ApkFileByFileDiffParser {
     public static DefaultMutableTreeNode createTreeNode(
             @NonNull ArchiveContext oldFile, @NonNull ArchiveContext newFile)
             throws IOException, InterruptedException {
+        return createTreeNode(oldFile, newFile, false);
+    }
+
+    /**
+     * Creates the tree of the estimated file-by-file patch from {@code oldFile} to {@code
+     * newFile}.
+     *
+     * @param findSimilarFiles whether to diff files that are renamed or modified beyond recognition
+     *     by path against the old file with the most similar content, rather than count them as
+     *     new. This can shrink the estimate, but takes extra time and memory.
+     */
+    @NonNull
+    public static DefaultMutableTreeNode createTreeNode(
+            @NonNull ArchiveContext oldFile,
+            @NonNull ArchiveContext newFile,
+            boolean findSimilarFiles)
+            throws IOException, InterruptedException {
         ArchiveNode oldRoot = ArchiveTreeStructure.create(oldFile);
         ArchiveNode newRoot = ArchiveTreeStructure.create(newFile);
 
         PatchExplainer explainer =
-                new PatchExplainer(new DeflateCompressor(), new BsDiffDeltaGenerator());
-        Map<String, Long> pathsToDiffSize = new HashMap<>();
+                new PatchExplainer(
+                        new DeflateCompressor(),
+                        // The explainer already runs one delta per processor.
+                        new BsDiffDeltaGenerator(null, MemoryBudget.getDefault(), 1),
+                        Runtime.getRuntime().availableProcessors(),
+                        PatchExplainer.DEFAULT_IN_MEMORY_LIMIT_BYTES,
+                        null,
+                        findSimilarFiles ? MinHashSimilarityFinder.DEFAULT_BUDGET_BYTES : 0);
+        // The patch is explained from the same parsed central directories that the trees are sized
+        // from, so each node finds its explanation through its zip entry rather than its path.
+        ArchiveEntrySizes sizes = new ArchiveEntrySizes();
+        Map<MinimalZipEntry, Long> patchSizes = new IdentityHashMap<>();
         List<EntryExplanation> explanationList =
                 explainer.explainPatch(
                         oldFile.getArchive().getPath().toFile(),
-                        newFile.getArchive().getPath().toFile());
+                        sizes.getZipEntries(oldFile.getArchive()),
+                        newFile.getArchive().getPath().toFile(),
+                        sizes.getZipEntries(newFile.getArchive()));
         for (EntryExplanation explanation : explanationList) {
-            String path = new String(explanation.getPath().getData(), StandardCharsets.UTF_8);
-            pathsToDiffSize.put(path, explanation.getCompressedSizeInPatch());
+            patchSizes.put(explanation.getNewEntry(), explanation.getCompressedSizeInPatch());
         }
-        return createTreeNode(oldRoot, newRoot, pathsToDiffSize);
+        return createTreeNode(oldRoot, newRoot, patchSizes, sizes);
     }
 
     @VisibleForTesting
     @NonNull
     static DefaultMutableTreeNode createTreeNode(
-            ArchiveNode oldFile, ArchiveNode newFile, Map<String, Long> pathsToDiffSize)
+            ArchiveNode oldFile,
+            ArchiveNode newFile,
+            Map<MinimalZipEntry, Long> patchSizes,
+            ArchiveEntrySizes sizes)
             throws IOException {
         if (oldFile == null && newFile == null) {
             throw new IllegalArgumentException("Both old and new files are null");
@@ -88,7 +119,7 @@ public class ApkFileByFileDiffParser {
         long newSize = 0;
         long patchSize = 0;
 
-        HashSet<String> childrenInOldFile = new HashSet<>();
+        Map<String, ArchiveNode> newChildren = ApkDiffParser.getChildrenByName(newFile);
         final ArchiveEntry data = oldFile == null ? newFile.getData() : oldFile.getData();
         final String name =
                 data.getPath().getFileName() != null
@@ -97,28 +128,10 @@ public class ApkFileByFileDiffParser {
         if (oldFile != null) {
             if (!oldFile.getChildren().isEmpty()) {
                 for (ArchiveNode oldChild : oldFile.getChildren()) {
-                    ArchiveNode newChild = null;
-                    if (newFile != null) {
-                        for (ArchiveNode archiveNode : newFile.getChildren()) {
-                            if (archiveNode
-                                    .getData()
-                                    .getPath()
-                                    .getFileName()
-                                    .toString()
-                                    .equals(
-                                            oldChild.getData()
-                                                    .getPath()
-                                                    .getFileName()
-                                                    .toString())) {
-                                newChild = archiveNode;
-                                break;
-                            }
-                        }
-                    }
-
-                    childrenInOldFile.add(oldChild.getData().getPath().getFileName().toString());
+                    // What is left in the map afterwards is only in the new file.
+                    ArchiveNode newChild = newChildren.remove(ApkDiffParser.getChildName(oldChild));
                     DefaultMutableTreeNode childNode =
-                            createTreeNode(oldChild, newChild, pathsToDiffSize);
+                            createTreeNode(oldChild, newChild, patchSizes, sizes);
                     node.add(childNode);
 
                     ApkDiffEntry entry = (ApkDiffEntry) childNode.getUserObject();
@@ -127,26 +140,22 @@ public class ApkFileByFileDiffParser {
                     patchSize += entry.getSize();
                 }
 
-                if (Files.size(oldFile.getData().getPath()) > 0) {
+                long entrySize = sizes.getSize(oldFile.getData());
+                if (entrySize > 0) {
                     // This is probably a zip inside the apk, and we should use it's size
-                    oldSize = Files.size(oldFile.getData().getPath());
+                    oldSize = entrySize;
                 } else if (oldFile.getParent() == null) {
-                    oldSize = Files.size(oldFile.getData().getArchive().getPath());
+                    oldSize = sizes.getArchiveSize(oldFile.getData().getArchive());
                 }
             } else {
-                oldSize += Files.size(oldFile.getData().getPath());
+                oldSize += sizes.getSize(oldFile.getData());
             }
         }
         if (newFile != null) {
             if (!newFile.getChildren().isEmpty()) {
-                for (ArchiveNode newChild : newFile.getChildren()) {
-                    if (childrenInOldFile.contains(
-                            newChild.getData().getPath().getFileName().toString())) {
-                        continue;
-                    }
-
+                for (ArchiveNode newChild : newChildren.values()) {
                     DefaultMutableTreeNode childNode =
-                            createTreeNode(null, newChild, pathsToDiffSize);
+                            createTreeNode(null, newChild, patchSizes, sizes);
                     node.add(childNode);
 
                     ApkDiffEntry entry = (ApkDiffEntry) childNode.getUserObject();
@@ -155,32 +164,17 @@ public class ApkFileByFileDiffParser {
                     patchSize += entry.getSize();
                 }
 
-                if (Files.size(newFile.getData().getPath()) > 0) {
+                long entrySize = sizes.getSize(newFile.getData());
+                if (entrySize > 0) {
                     // This is probably a zip inside the apk, and we should use it's size
-                    newSize = Files.size(newFile.getData().getPath());
-                    String relPath =
-                            newFile.getData()
-                                    .getArchive()
-                                    .getContentRoot()
-                                    .relativize(newFile.getData().getPath())
-                                    .toString();
-                    if (pathsToDiffSize.containsKey(relPath)) {
-                        patchSize = pathsToDiffSize.get(relPath);
-                    }
+                    newSize = entrySize;
+                    patchSize = getPatchSize(newFile, patchSizes, sizes, patchSize);
                 } else if (newFile.getParent() == null) {
-                    newSize = Files.size(newFile.getData().getArchive().getPath());
+                    newSize = sizes.getArchiveSize(newFile.getData().getArchive());
                 }
             } else {
-                newSize += Files.size(newFile.getData().getPath());
-                String relPath =
-                        newFile.getData()
-                                .getArchive()
-                                .getContentRoot()
-                                .relativize(newFile.getData().getPath())
-                                .toString();
-                if (pathsToDiffSize.containsKey(relPath)) {
-                    patchSize = pathsToDiffSize.get(relPath);
-                }
+                newSize += sizes.getSize(newFile.getData());
+                patchSize = getPatchSize(newFile, patchSizes, sizes, patchSize);
             }
         }
 
@@ -189,4 +183,18 @@ public class ApkFileByFileDiffParser {
         ApkEntry.sort(node);
         return node;
     }
+
+    /**
+     * Returns the size in the patch of the node's zip entry, or {@code defaultSize} if the entry
+     * was not explained, e.g. because it is inside a nested archive.
+     */
+    private static long getPatchSize(
+            @NonNull ArchiveNode newFile,
+            @NonNull Map<MinimalZipEntry, Long> patchSizes,
+            @NonNull ArchiveEntrySizes sizes,
+            long defaultSize) {
+        MinimalZipEntry zipEntry = sizes.getZipEntry(newFile.getData());
+        Long patchSize = zipEntry != null ? patchSizes.get(zipEntry) : null;
+        return patchSize != null ? patchSize : defaultSize;
+    }
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.apk.analyzer.internal;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.apk.analyzer.Archive;
+import com.android.tools.apk.analyzer.ArchiveEntry;
+import com.android.tools.apk.analyzer.diff.generator.MinimalZipArchive;
+import com.android.tools.apk.analyzer.diff.generator.MinimalZipEntry;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The entries of the archives of a compare tree, read from the central directory of each archive
+ * the first time it is asked for. Going through the zip file system provider for the size of every
+ * node is much slower for archives with many entries, and the parsed entries can be handed to the
+ * {@link com.android.tools.apk.analyzer.diff.explainer.PatchExplainer} so that the archives are
+ * not parsed again and its explanations can be matched to tree nodes by identity.
+ *
+ * <p>Entries that are not in the central directory are directories that are only implied by the
+ * names of their files, and have a size of 0 like any other directory; callers add up the sizes of
+ * their children. Only archives whose central directory cannot be read fall back to {@link
+ * Files#size(Path)} for the size of each entry.
+ */
+final class ArchiveEntrySizes {
+    /** The parsed central directory of each archive. */
+    private final Map<Archive, Listing> listings = new IdentityHashMap<>();
+
+    /**
+     * Returns the uncompressed size of the entry, as {@link Files#size(Path)} would for its path,
+     * e.g. 0 for a directory.
+     */
+    long getSize(@NonNull ArchiveEntry entry) throws IOException {
+        Listing listing = getListing(entry.getArchive());
+        if (listing.entriesByName == null) {
+            return Files.size(entry.getPath());
+        }
+        MinimalZipEntry zipEntry = listing.entriesByName.get(getName(entry));
+        return zipEntry != null ? zipEntry.getUncompressedSize() : 0;
+    }
+
+    /**
+     * Returns the size of the archive file itself, which is read once along with its central
+     * directory rather than each time a tree node asks for it.
+     */
+    long getArchiveSize(@NonNull Archive archive) throws IOException {
+        Listing listing = getListing(archive);
+        return listing.archiveSize >= 0 ? listing.archiveSize : Files.size(archive.getPath());
+    }
+
+    /**
+     * Returns the central directory entry of the entry, or null if it has none, e.g. because it is
+     * a directory implied by the names of its files or the archive cannot be parsed. Each call for
+     * the same entry returns the same object, which is also an element of {@link
+     * #getZipEntries(Archive)}.
+     */
+    @Nullable
+    MinimalZipEntry getZipEntry(@NonNull ArchiveEntry entry) {
+        Listing listing = getListing(entry.getArchive());
+        return listing.entriesByName != null ? listing.entriesByName.get(getName(entry)) : null;
+    }
+
+    /** Returns the entries of the archive's central directory, in file order. */
+    @NonNull
+    List<MinimalZipEntry> getZipEntries(@NonNull Archive archive) throws IOException {
+        Listing listing = getListing(archive);
+        if (listing.failure != null) {
+            throw new IOException(listing.failure.getMessage(), listing.failure);
+        }
+        return listing.entries;
+    }
+
+    @NonNull
+    private Listing getListing(@NonNull Archive archive) {
+        return listings.computeIfAbsent(archive, ArchiveEntrySizes::list);
+    }
+
+    @NonNull
+    private static Listing list(@NonNull Archive archive) {
+        long archiveSize;
+        List<MinimalZipEntry> entries;
+        try {
+            archiveSize = Files.size(archive.getPath());
+            entries = MinimalZipArchive.listEntries(archive.getPath().toFile());
+        } catch (IOException e) {
+            // Not a zip file, or not one this parser can read; sizes come from the file system.
+            return new Listing(-1, null, null, e);
+        }
+        Map<String, MinimalZipEntry> entriesByName =
+                new HashMap<>(Math.max(16, entries.size() * 4 / 3 + 1));
+        for (MinimalZipEntry zipEntry : entries) {
+            // The zip file system decodes all names as UTF-8.
+            String name = new String(zipEntry.getFileNameBytes(), StandardCharsets.UTF_8);
+            entriesByName.put(trimEnd(name), zipEntry);
+        }
+        return new Listing(archiveSize, entries, entriesByName, null);
+    }
+
+    /** Returns the name of the entry in its archive's central directory, without a trailing "/". */
+    @NonNull
+    private static String getName(@NonNull ArchiveEntry entry) {
+        String path = trimEnd(entry.getPath().toAbsolutePath().toString());
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    @NonNull
+    private static String trimEnd(@NonNull String name) {
+        return name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    /** The central directory of one archive, or why it could not be read. */
+    private static final class Listing {
+        /** The size of the archive file, or -1 if it could not be read. */
+        final long archiveSize;
+
+        @Nullable final List<MinimalZipEntry> entries;
+        @Nullable final Map<String, MinimalZipEntry> entriesByName;
+        @Nullable final IOException failure;
+
+        Listing(
+                long archiveSize,
+                @Nullable List<MinimalZipEntry> entries,
+                @Nullable Map<String, MinimalZipEntry> entriesByName,
+                @Nullable IOException failure) {
+            this.archiveSize = archiveSize;
+            this.entries = entries;
+            this.entriesByName = entriesByName;
+            this.failure = failure;
+        }
+    }
+}
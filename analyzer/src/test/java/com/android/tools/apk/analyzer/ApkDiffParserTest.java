@@ -26,7 +26,10 @@ import com.android.tools.apk.analyzer.internal.ApkEntry;
 import com.android.utils.ILogger;
 import com.android.utils.StdLogger;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import javax.swing.tree.DefaultMutableTreeNode;
 import org.junit.jupiter.api.Test;
 
@@ -75,6 +78,58 @@ public class ApkDiffParserTest {
         }
     }
 
+    @Test
+    public void testTreeCreation_LargeDirectory() throws IOException {
+        // Old has drawables 0-2999, new has 1000-3999 with one more byte each.
+        Path dir = Files.createTempDirectory("apkdiff");
+        Path oldApk = dir.resolve("old.apk");
+        Path newApk = dir.resolve("new.apk");
+        writeDrawables(oldApk, 0, 3000, 1);
+        writeDrawables(newApk, 1000, 4000, 2);
+        try (ArchiveContext archiveContext1 = Archives.open(oldApk, logger);
+                ArchiveContext archiveContext2 = Archives.open(newApk, logger)) {
+            DefaultMutableTreeNode treeNode =
+                    ApkDiffParser.createTreeNode(archiveContext1, archiveContext2);
+            DefaultMutableTreeNode drawables =
+                    (DefaultMutableTreeNode) treeNode.getChildAt(0).getChildAt(0);
+            ApkDiffEntry drawablesEntry = (ApkDiffEntry) ApkEntry.fromNode(drawables);
+            assertNotNull(drawablesEntry);
+            assertEquals(4000, drawables.getChildCount());
+            assertEquals(3000, drawablesEntry.getOldSize());
+            assertEquals(6000, drawablesEntry.getNewSize());
+
+            int inBoth = 0;
+            for (int i = 0; i < drawables.getChildCount(); i++) {
+                ApkDiffEntry entry =
+                        (ApkDiffEntry)
+                                ApkEntry.fromNode(
+                                        (DefaultMutableTreeNode) drawables.getChildAt(i));
+                assertNotNull(entry);
+                int index = Integer.parseInt(entry.getName().replaceAll("[^0-9]", ""));
+                assertEquals(index < 3000 ? 1 : 0, entry.getOldSize(), entry.getName());
+                assertEquals(index >= 1000 ? 2 : 0, entry.getNewSize(), entry.getName());
+                if (entry.getOldSize() > 0 && entry.getNewSize() > 0) {
+                    inBoth++;
+                }
+            }
+            assertEquals(2000, inBoth);
+        } finally {
+            Files.deleteIfExists(oldApk);
+            Files.deleteIfExists(newApk);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static void writeDrawables(Path apk, int from, int to, int size) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(apk))) {
+            for (int i = from; i < to; i++) {
+                out.putNextEntry(new ZipEntry("res/drawable/icon" + i + ".png"));
+                out.write(new byte[size]);
+                out.closeEntry();
+            }
+        }
+    }
+
     private static String dumpTree(@NonNull DefaultMutableTreeNode treeNode) {
         StringBuilder sb = new StringBuilder(30);
         dumpTree(sb, treeNode, 0);
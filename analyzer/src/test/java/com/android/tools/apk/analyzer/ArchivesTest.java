@@ -26,6 +26,7 @@ import com.android.utils.StdLogger;
 import com.google.common.jimfs.Configuration;
 import com.google.common.jimfs.Jimfs;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -191,4 +192,20 @@ public class ArchivesTest {
     public void binaryXml_rawXml() {
         assertFalse(archive.isBinaryXml(fs.getPath("/res/raw/foo.xml"), new byte[] {0x3, 0x0}));
     }
+
+    @Test
+    public void readEntry_storedAndDeflated() throws IOException {
+        try (ArchiveContext context =
+                Archives.open(TestResources.getFile("/arsc_test.apk").toPath(), logger)) {
+            Path root = context.getArchive().getContentRoot();
+            // resources.arsc is STORED and gets mapped, the manifest is DEFLATED and inflated
+            for (String name : new String[] {"resources.arsc", "AndroidManifest.xml"}) {
+                Path path = root.resolve(name);
+                ByteBuffer buffer = Archives.readEntry(context.getArchive(), path);
+                byte[] contents = new byte[buffer.remaining()];
+                buffer.get(contents);
+                assertArrayEquals(Files.readAllBytes(path), contents, name);
+            }
+        }
+    }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+public class BinaryXmlParserTest {
+    private static final short XML = 0x0003;
+    private static final short STRING_POOL = 0x0001;
+    private static final short START_ELEMENT = 0x0102;
+    private static final short END_ELEMENT = 0x0103;
+    private static final byte TYPE_STRING = 0x03;
+
+    /**
+     * Checks attribute values with XML special and non-ASCII characters against the output of the
+     * {@code XmlBuilder} based decoder, which wrote values without escaping them.
+     */
+    @Test
+    public void decodeXml_specialCharacters() throws Exception {
+        String[] strings = {
+            "root", "child", "text", "a & b < \"c\"", "name", "héllo ☃ 日本"
+        };
+        byte[] document =
+                document(
+                        strings,
+                        startElement(1, 0, 2, 3),
+                        startElement(2, 1, 4, 5),
+                        endElement(2, 1),
+                        endElement(3, 0));
+        String expected =
+                "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                        + "<root\n"
+                        + "    text=\"a & b < \"c\"\">\n"
+                        + "\n"
+                        + "    <child\n"
+                        + "        name=\"héllo ☃ 日本\" />\n"
+                        + "</root>\n";
+
+        assertArrayEquals(
+                expected.getBytes(StandardCharsets.UTF_8),
+                BinaryXmlParser.decodeXml("test.xml", document));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(true, BinaryXmlParser.decodeXml("test.xml", ByteBuffer.wrap(document), out));
+        assertEquals(expected, new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private static byte[] document(String[] strings, ByteBuffer... nodes) {
+        ByteBuffer pool = stringPool(strings);
+        int size = 8 + pool.limit();
+        for (ByteBuffer node : nodes) {
+            size += node.limit();
+        }
+        ByteBuffer result = allocate(size);
+        result.putShort(XML).putShort((short) 8).putInt(size).put(pool);
+        for (ByteBuffer node : nodes) {
+            result.put(node);
+        }
+        return result.array();
+    }
+
+    /** Returns a UTF-16 string pool chunk holding {@code strings}. */
+    private static ByteBuffer stringPool(String[] strings) {
+        int headerSize = 28;
+        int dataSize = 0;
+        for (String string : strings) {
+            dataSize += 2 + 2 * string.length() + 2;
+        }
+        int stringsStart = headerSize + 4 * strings.length;
+        int size = (stringsStart + dataSize + 3) & ~3;
+        ByteBuffer result = allocate(size);
+        result.putShort(STRING_POOL).putShort((short) headerSize).putInt(size);
+        result.putInt(strings.length).putInt(0).putInt(0).putInt(stringsStart).putInt(0);
+        int offset = 0;
+        for (String string : strings) {
+            result.putInt(offset);
+            offset += 2 + 2 * string.length() + 2;
+        }
+        for (String string : strings) {
+            result.putShort((short) string.length());
+            for (int i = 0; i < string.length(); i++) {
+                result.putChar(string.charAt(i));
+            }
+            result.putShort((short) 0);
+        }
+        result.rewind();
+        return result;
+    }
+
+    /** Returns a start element chunk with a single attribute without a namespace. */
+    private static ByteBuffer startElement(int line, int name, int attributeName, int value) {
+        ByteBuffer result = allocate(56);
+        result.putShort(START_ELEMENT).putShort((short) 16).putInt(56);
+        result.putInt(line).putInt(-1);
+        result.putInt(-1).putInt(name);
+        result.putShort((short) 20).putShort((short) 20).putShort((short) 1);
+        result.putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        result.putInt(-1).putInt(attributeName).putInt(value);
+        result.putShort((short) 8).put((byte) 0).put(TYPE_STRING).putInt(value);
+        result.rewind();
+        return result;
+    }
+
+    private static ByteBuffer endElement(int line, int name) {
+        ByteBuffer result = allocate(24);
+        result.putShort(END_ELEMENT).putShort((short) 16).putInt(24);
+        result.putInt(line).putInt(-1);
+        result.putInt(-1).putInt(name);
+        result.rewind();
+        return result;
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
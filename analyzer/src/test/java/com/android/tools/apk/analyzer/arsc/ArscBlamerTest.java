@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.arsc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import com.android.testutils.TestResources;
+import com.google.common.collect.Multimap;
+import com.google.common.io.ByteStreams;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipFile;
+
+/** Tests {@link ArscBlamer} and {@link ResourceEntryStatsCollector} on {@code arsc_test.apk}. */
+public final class ArscBlamerTest {
+
+  private ResourceTableChunk resourceTable;
+  private ArscBlamer blamer;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    resourceTable = readResourceTable(TestResources.getFile(getClass(), "/arsc_test.apk"));
+    blamer = new ArscBlamer(resourceTable);
+    blamer.blame();
+  }
+
+  @Test
+  public void entryAccessorsMatchIndices() {
+    assertEquals(3, blamer.getResourceCount());
+    assertEquals("[[layout/main], [string/app_name]]",
+        toString(blamer.getStringToBlamedResources()));
+
+    List<String> keys = new ArrayList<>();
+    for (List<ResourceEntry>[] blame : blamer.getKeyToBlamedResources().values()) {
+      keys.add(toString(blame));
+    }
+    assertEquals("[[[layout/main], [string/app_name], [id/text]]]", keys.toString());
+
+    List<String> types = new ArrayList<>();
+    for (List<ResourceEntry>[] blame : blamer.getTypeToBlamedResources().values()) {
+      types.add(toString(blame));
+    }
+    assertEquals("[[[], [layout/main], [string/app_name], [id/text]]]", types.toString());
+
+    Multimap<PackageChunk, ResourceEntry> packages = blamer.getPackageToBlamedResources();
+    assertEquals(1, packages.keySet().size());
+    assertEquals(3, packages.size());
+    Multimap<TypeChunk.Entry, ResourceEntry> typeEntries = blamer.getTypeEntryToBlamedResources();
+    assertEquals(blamer.getTypeEntryCount(), typeEntries.size());
+    for (int i = 0; i < blamer.getTypeEntryCount(); ++i) {
+      assertEquals(blamer.getResourceEntry(blamer.getTypeEntryBlamedResource(i)),
+          typeEntries.get(blamer.getTypeEntry(i)).iterator().next());
+    }
+
+    // The entry based views are built once.
+    assertSame(blamer.getKeyToBlamedResources(), blamer.getKeyToBlamedResources());
+    assertSame(blamer.getTypeToBlamedResources(), blamer.getTypeToBlamedResources());
+    assertSame(packages, blamer.getPackageToBlamedResources());
+    assertSame(blamer.getStringToBlamedResources(), blamer.getStringToBlamedResources());
+    assertSame(typeEntries, blamer.getTypeEntryToBlamedResources());
+
+    CompactIntMultimap strings = blamer.getStringToBlamedResourceIndices();
+    List<ResourceEntry>[] stringEntries = blamer.getStringToBlamedResources();
+    for (int i = 0; i < strings.keyCount(); ++i) {
+      assertEquals(strings.count(i), stringEntries[i].size());
+      for (int j = 0; j < strings.count(i); ++j) {
+        assertEquals(blamer.getResourceEntry(strings.get(i, j)), stringEntries[i].get(j));
+      }
+    }
+  }
+
+  @Test
+  public void statsMatchBaseline() throws IOException {
+    ResourceEntryStatsCollector collector = new ResourceEntryStatsCollector(blamer, resourceTable);
+    collector.compute();
+    // Computed with the entry-list based blamer that predates the compact index tables.
+    Map<String, String> expected = new TreeMap<>();
+    expected.put("id/text", "140 0 262.6666666666667");
+    expected.put("layout/main", "194 0 330.6666666666667");
+    expected.put("string/app_name", "184 0 320.6666666666667");
+    assertEquals(expected, toString(collector.getStats()));
+  }
+
+  static ResourceTableChunk readResourceTable(File apk) throws IOException {
+    return readResourceTable(readResourceTableBytes(apk));
+  }
+
+  static ResourceTableChunk readResourceTable(byte[] bytes) {
+    return (ResourceTableChunk) new BinaryResourceFile(bytes).getChunks().get(0);
+  }
+
+  static byte[] readResourceTableBytes(File apk) throws IOException {
+    try (ZipFile zipFile = new ZipFile(apk);
+        InputStream in = zipFile.getInputStream(zipFile.getEntry("resources.arsc"))) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+  static Map<String, String> toString(
+      Map<ResourceEntry, ResourceEntryStatsCollector.ResourceStatistics> stats) {
+    Map<String, String> result = new TreeMap<>();
+    for (Map.Entry<ResourceEntry, ResourceEntryStatsCollector.ResourceStatistics> entry
+        : stats.entrySet()) {
+      ResourceEntryStatsCollector.ResourceStatistics value = entry.getValue();
+      result.put(toString(entry.getKey()), value.getPrivateSize() + " " + value.getSharedSize()
+          + " " + value.getProportionalSize());
+    }
+    return result;
+  }
+
+  private static String toString(List<ResourceEntry>[] blame) {
+    List<List<String>> result = new ArrayList<>();
+    for (List<ResourceEntry> entries : blame) {
+      List<String> names = new ArrayList<>();
+      for (ResourceEntry entry : entries) {
+        names.add(toString(entry));
+      }
+      result.add(names);
+    }
+    return result.toString();
+  }
+
+  private static String toString(ResourceEntry entry) {
+    return entry.typeName() + "/" + entry.entryName();
+  }
+}
@@ -26,6 +26,7 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -55,6 +56,25 @@ public final class BinaryResourceFileTest {
     }
   }
 
+  /** Tests that parsing a direct, read-only buffer gives the same result as a byte array. */
+  @Test
+  public void testDirectBuffer() throws Exception {
+    File apk = TestResources.getFile(getClass(), "/arsc_test.apk");
+
+    String regex = "(.*?\\.arsc)|(AndroidManifest\\.xml)|(res/.*?\\.xml)";
+    Map<String, byte[]> resourceFiles = getFiles(apk, Pattern.compile(regex));
+    for (Entry<String, byte[]> entry : resourceFiles.entrySet()) {
+      String name = entry.getKey();
+      byte[] fileBytes = entry.getValue();
+      if (!name.startsWith("res/raw/")) {  // xml files in res/raw/ are not compact XML
+        ByteBuffer buffer = ByteBuffer.allocateDirect(fileBytes.length);
+        buffer.put(fileBytes).flip();
+        BinaryResourceFile file = new BinaryResourceFile(buffer.asReadOnlyBuffer());
+        assertArrayEquals(fileBytes, file.toByteArray());
+      }
+    }
+  }
+
   /**
    * Returns all files in an apk that match a given regular expression.
    *
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.arsc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.android.testutils.TestResources;
+import com.google.common.io.ByteStreams;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.ZipFile;
+
+/** Tests {@link BinaryXmlPullParser}. */
+public final class BinaryXmlPullParserTest {
+
+  /** Tests that the parser reports the same nodes, in the same order, as {@link XmlChunk}. */
+  @Test
+  public void testMatchesXmlChunk() throws Exception {
+    File apk = TestResources.getFile(getClass(), "/arsc_test.apk");
+    byte[] manifest;
+    try (ZipFile zip = new ZipFile(apk);
+        InputStream is = zip.getInputStream(zip.getEntry("AndroidManifest.xml"))) {
+      manifest = ByteStreams.toByteArray(is);
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(manifest.length);
+    buffer.put(manifest).flip();
+    assertTrue(BinaryXmlPullParser.isXmlDocument(buffer));
+    assertEquals(describe(manifest), describe(new BinaryXmlPullParser(buffer.asReadOnlyBuffer())));
+    assertEquals(0, buffer.position());
+  }
+
+  @Test
+  public void testNotXml() {
+    assertFalse(BinaryXmlPullParser.isXmlDocument(ByteBuffer.wrap("<?xml".getBytes())));
+    assertFalse(BinaryXmlPullParser.isXmlDocument(ByteBuffer.allocate(0)));
+  }
+
+  private static List<String> describe(byte[] xml) {
+    XmlChunk chunk = (XmlChunk) new BinaryResourceFile(xml).getChunks().get(0);
+    List<String> result = new ArrayList<>();
+    for (Chunk node : new TreeMap<>(chunk.getChunks()).values()) {
+      if (node instanceof XmlNamespaceStartChunk) {
+        XmlNamespaceStartChunk namespace = (XmlNamespaceStartChunk) node;
+        result.add("xmlns:" + namespace.getPrefix() + "=" + namespace.getUri());
+      } else if (node instanceof XmlStartElementChunk) {
+        XmlStartElementChunk element = (XmlStartElementChunk) node;
+        result.add("<" + element.getName() + " line " + element.getLineNumber());
+        for (XmlAttribute attribute : element.getAttributes()) {
+          result.add(attribute.namespace() + ":" + attribute.name() + "=" + attribute.rawValue()
+              + " " + attribute.typedValue().type() + " " + attribute.typedValue().data());
+        }
+      } else if (node instanceof XmlEndElementChunk) {
+        result.add(">" + ((XmlEndElementChunk) node).getName());
+      }
+    }
+    return result;
+  }
+
+  private static List<String> describe(BinaryXmlPullParser parser) {
+    List<String> result = new ArrayList<>();
+    int depth = 0;
+    for (int event = parser.next(); event != BinaryXmlPullParser.END_DOCUMENT;
+        event = parser.next()) {
+      switch (event) {
+        case BinaryXmlPullParser.START_NAMESPACE:
+          result.add("xmlns:" + parser.getPrefix() + "=" + parser.getNamespaceUri());
+          break;
+        case BinaryXmlPullParser.START_TAG:
+          assertEquals(++depth, parser.getDepth());
+          result.add("<" + parser.getName() + " line " + parser.getLineNumber());
+          for (int i = 0; i < parser.getAttributeCount(); i++) {
+            BinaryResourceValue value = parser.getAttributeTypedValue(i);
+            assertEquals(value.type(), parser.getAttributeValueType(i));
+            assertEquals(value.data(), parser.getAttributeValueData(i));
+            result.add(parser.getAttributeNamespace(i) + ":" + parser.getAttributeName(i) + "="
+                + parser.getAttributeRawValue(i) + " " + value.type() + " " + value.data());
+          }
+          break;
+        case BinaryXmlPullParser.END_TAG:
+          assertEquals(depth--, parser.getDepth());
+          result.add(">" + parser.getName());
+          break;
+        default:
+          break;
+      }
+    }
+    assertEquals(0, depth);
+    assertEquals(BinaryXmlPullParser.END_DOCUMENT, parser.next());
+    return result;
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.tools.apk.analyzer.arsc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/** Tests {@link CompactIntMultimap}. */
+public class CompactIntMultimapTest {
+
+  @Test
+  public void testCreate() {
+    CompactIntMultimap map = CompactIntMultimap.create(4,
+        new int[] {2, 0, 2, 3, 2},
+        new int[] {7, 5, 1, 9, 7});
+    assertEquals(4, map.keyCount());
+    assertEquals(5, map.size());
+    assertArrayEquals(new int[] {5}, map.get(0));
+    assertEquals(0, map.count(1));
+    assertArrayEquals(new int[0], map.get(1));
+    // Values keep their order, duplicates included.
+    assertArrayEquals(new int[] {7, 1, 7}, map.get(2));
+    assertEquals(1, map.get(2, 1));
+    assertArrayEquals(new int[] {9}, map.get(3));
+  }
+
+  @Test
+  public void testEmpty() {
+    CompactIntMultimap map = CompactIntMultimap.create(0, new int[0], new int[0]);
+    assertEquals(0, map.keyCount());
+    assertEquals(0, map.size());
+  }
+}
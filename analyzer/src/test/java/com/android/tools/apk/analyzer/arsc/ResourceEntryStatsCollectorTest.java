@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.arsc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.android.testutils.TestResources;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/** Tests {@link ResourceEntryStatsCollector}. */
+public final class ResourceEntryStatsCollectorTest {
+
+  @Test
+  public void parallelStatsMatchSequential() throws Exception {
+    for (String apk : new String[] {
+        "/arsc_test.apk", "/app_with_virtual_entry.apk", "/app_with_virtual_entries.apk"}) {
+      ResourceTableChunk resourceTable =
+          ArscBlamerTest.readResourceTable(TestResources.getFile(getClass(), apk));
+      // Parallel streams run inside a single-threaded pool are evaluated sequentially.
+      ForkJoinPool sequential = new ForkJoinPool(1);
+      Map<String, String> expected;
+      try {
+        expected = sequential.submit(() -> computeStats(resourceTable)).get();
+      } finally {
+        sequential.shutdown();
+      }
+      assertEquals(expected, computeStats(resourceTable), apk);
+    }
+  }
+
+  @Test
+  public void collidingEntriesAreSummed() throws Exception {
+    byte[] bytes = ArscBlamerTest.readResourceTableBytes(
+        TestResources.getFile(getClass(), "/app_with_virtual_entries.apk"));
+    Map<String, String> separate = ArscBlamerTest.toString(
+        computeCollector(ArscBlamerTest.readResourceTable(bytes)).getStats());
+
+    // Rename the key of string/otherFeature2 to otherFeature1, as collapsing resource names does,
+    // so that two resources have the same ResourceEntry. The last copy of the name is the key.
+    byte[] name = "otherFeature2".getBytes(StandardCharsets.UTF_8);
+    int keyOffset = lastIndexOf(bytes, name);
+    bytes[keyOffset + name.length - 1] = '1';
+    Map<String, String> collapsed = ArscBlamerTest.toString(
+        computeCollector(ArscBlamerTest.readResourceTable(bytes)).getStats());
+
+    assertEquals(separate.size() - 1, collapsed.size());
+    // The one remaining entry is charged for both resources.
+    String[] first = separate.get("string/otherFeature1").split(" ");
+    String[] second = separate.get("string/otherFeature2").split(" ");
+    String summed =
+        (Integer.parseInt(first[0]) + Integer.parseInt(second[0])) + " "
+            + (Integer.parseInt(first[1]) + Integer.parseInt(second[1])) + " "
+            + (Double.parseDouble(first[2]) + Double.parseDouble(second[2]));
+    assertEquals(summed, collapsed.get("string/otherFeature1"));
+  }
+
+  private static int lastIndexOf(byte[] bytes, byte[] target) {
+    for (int i = bytes.length - target.length; i >= 0; --i) {
+      if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + target.length), target)) {
+        return i;
+      }
+    }
+    throw new AssertionError("not found");
+  }
+
+  private static ResourceEntryStatsCollector computeCollector(ResourceTableChunk resourceTable)
+      throws Exception {
+    ArscBlamer blamer = new ArscBlamer(resourceTable);
+    ResourceEntryStatsCollector collector = new ResourceEntryStatsCollector(blamer, resourceTable);
+    collector.compute();
+    return collector;
+  }
+
+  private static Map<String, String> computeStats(ResourceTableChunk resourceTable)
+      throws Exception {
+    return ArscBlamerTest.toString(computeCollector(resourceTable).getStats());
+  }
+}
@@ -0,0 +1,111 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.applier;
+
+import com.android.tools.apk.analyzer.diff.generator.FileByFileV1DeltaGenerator;
+import com.android.tools.apk.analyzer.diff.generator.TempFileHolder;
+import com.android.tools.apk.analyzer.diff.shared.UnitTestZipArchive;
+import com.android.tools.apk.analyzer.diff.shared.UnitTestZipEntry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the throughput of {@link FileByFileV1DeltaApplier} at several thread counts. This is
+ * not a test and is not run with them; run it by hand with {@code main}, optionally passing the
+ * number of entries in the generated archives and the number of timed rounds.
+ */
+public class FileByFileV1DeltaApplierBenchmark {
+  private static final int DEFAULT_ENTRIES = 200;
+  private static final int DEFAULT_ROUNDS = 5;
+
+  /** The untimed rounds that let the JIT compile the applier before the timed ones. */
+  private static final int WARMUP_ROUNDS = 2;
+
+  public static void main(String[] args) throws Exception {
+    int entries = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ENTRIES;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+    try (TempFileHolder oldArchive = new TempFileHolder();
+        TempFileHolder newArchive = new TempFileHolder();
+        TempFileHolder appliedArchive = new TempFileHolder()) {
+      write(oldArchive, UnitTestZipArchive.makeTestZip(makeEntries(entries, false)));
+      byte[] newArchiveBytes = UnitTestZipArchive.makeTestZip(makeEntries(entries, true));
+      write(newArchive, newArchiveBytes);
+      ByteArrayOutputStream patchOut = new ByteArrayOutputStream();
+      new FileByFileV1DeltaGenerator().generateDelta(oldArchive.file, newArchive.file, patchOut);
+      byte[] patch = patchOut.toByteArray();
+      System.out.printf(
+          "%d entries, new archive %d bytes, patch %d bytes%n",
+          entries, newArchiveBytes.length, patch.length);
+
+      List<Integer> threadCounts = new ArrayList<>();
+      for (int threads = 1; threads < Runtime.getRuntime().availableProcessors(); threads *= 2) {
+        threadCounts.add(threads);
+      }
+      threadCounts.add(Runtime.getRuntime().availableProcessors());
+      for (int threads : threadCounts) {
+        FileByFileV1DeltaApplier applier = new FileByFileV1DeltaApplier(null, threads);
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+          apply(applier, oldArchive, patch, appliedArchive);
+        }
+        if (!Arrays.equals(newArchiveBytes, Files.readAllBytes(appliedArchive.file.toPath()))) {
+          throw new IllegalStateException("applied archive differs from the new archive");
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+          apply(applier, oldArchive, patch, appliedArchive);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9 / rounds;
+        System.out.printf(
+            "threads=%d: %.1f ms per apply, %.1f MB/s of new archive%n",
+            threads, seconds * 1000, newArchiveBytes.length / seconds / (1024 * 1024));
+      }
+    }
+  }
+
+  /**
+   * Makes entries at a spread of compression levels, so that the applier has ranges to recompress
+   * with several different parameters. The new entries change the content of every other entry.
+   */
+  private static List<UnitTestZipEntry> makeEntries(int count, boolean changed) {
+    List<UnitTestZipEntry> entries = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      String prefix = "Entry " + i + (changed && i % 2 == 0 ? ", changed." : ".");
+      entries.add(
+          UnitTestZipArchive.makeUnitTestZipEntry("file" + i, 1 + i % 9, prefix, null));
+    }
+    return entries;
+  }
+
+  private static void apply(
+      FileByFileV1DeltaApplier applier,
+      TempFileHolder oldArchive,
+      byte[] patch,
+      TempFileHolder appliedArchive)
+      throws IOException {
+    applier.applyDelta(oldArchive.file, new ByteArrayInputStream(patch), appliedArchive.file);
+  }
+
+  private static void write(TempFileHolder holder, byte[] data) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(holder.file)) {
+      out.write(data);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.applier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.tools.apk.analyzer.diff.generator.FileByFileV1DeltaGenerator;
+import com.android.tools.apk.analyzer.diff.generator.TempFileHolder;
+import com.android.tools.apk.analyzer.diff.shared.UnitTestZipArchive;
+import com.android.tools.apk.analyzer.diff.shared.UnitTestZipEntry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link FileByFileV1DeltaApplier}. These are round trips through {@link
+ * FileByFileV1DeltaGenerator}, as the applier is only correct if it reproduces the new archive
+ * exactly.
+ */
+public class FileByFileV1DeltaApplierTest {
+  private TempFileHolder oldArchive;
+  private TempFileHolder newArchive;
+  private TempFileHolder appliedArchive;
+  private byte[] newArchiveBytes;
+
+  @BeforeEach
+  public void setup() throws IOException {
+    oldArchive = new TempFileHolder();
+    newArchive = new TempFileHolder();
+    appliedArchive = new TempFileHolder();
+    UnitTestZipArchive.saveTestZip(oldArchive.file);
+    // Change one entry, recompress another at a different level, remove one and add two, so that
+    // the patch has ranges to recompress with several different parameters.
+    newArchiveBytes =
+        UnitTestZipArchive.makeTestZip(
+            Arrays.asList(
+                UnitTestZipArchive.makeUnitTestZipEntry(
+                    "file1", 1, "This is the NEW content of file 1, at level 1.", null),
+                UnitTestZipArchive.makeUnitTestZipEntry(
+                    "file2", 9, "Here is some content for file 2, at level 6. No comment.", null),
+                UnitTestZipArchive.makeUnitTestZipEntry(
+                    "file5", 6, "A new file, at level 6.", null),
+                UnitTestZipArchive.entry4,
+                UnitTestZipArchive.makeUnitTestZipEntry(
+                    "file6", 4, "Another new file, at level 4.", "COMMENT6")));
+    write(newArchive.file, newArchiveBytes);
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    oldArchive.close();
+    newArchive.close();
+    appliedArchive.close();
+  }
+
+  private byte[] generatePatch() throws Exception {
+    ByteArrayOutputStream patch = new ByteArrayOutputStream();
+    new FileByFileV1DeltaGenerator().generateDelta(oldArchive.file, newArchive.file, patch);
+    return patch.toByteArray();
+  }
+
+  private static void write(File file, byte[] data) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(data);
+    }
+  }
+
+  @Test
+  public void testApplyDelta_RoundTrip() throws Exception {
+    byte[] patch = generatePatch();
+    for (int threads : new int[] {1, 2, 8}) {
+      new FileByFileV1DeltaApplier(null, threads)
+          .applyDelta(oldArchive.file, new ByteArrayInputStream(patch), appliedArchive.file);
+      assertArrayEquals(newArchiveBytes, Files.readAllBytes(appliedArchive.file.toPath()));
+    }
+  }
+
+  @Test
+  public void testApplyDelta_NoChanges() throws Exception {
+    write(newArchive.file, Files.readAllBytes(oldArchive.file.toPath()));
+    byte[] patch = generatePatch();
+    // Leave a longer file in place, to check that it is truncated.
+    write(appliedArchive.file, new byte[100000]);
+    new FileByFileV1DeltaApplier()
+        .applyDelta(oldArchive.file, new ByteArrayInputStream(patch), appliedArchive.file);
+    assertArrayEquals(
+        Files.readAllBytes(oldArchive.file.toPath()),
+        Files.readAllBytes(appliedArchive.file.toPath()));
+  }
+
+  @Test
+  public void testApplyDelta_WrongOldFile() throws Exception {
+    byte[] patch = generatePatch();
+    write(
+        oldArchive.file,
+        UnitTestZipArchive.makeTestZip(
+            Arrays.<UnitTestZipEntry>asList(UnitTestZipArchive.entry2)));
+    assertThrows(
+        PatchFormatException.class,
+        () ->
+            new FileByFileV1DeltaApplier()
+                .applyDelta(
+                    oldArchive.file, new ByteArrayInputStream(patch), appliedArchive.file));
+  }
+
+  @Test
+  public void testApplyDelta_TruncatedPatch() throws Exception {
+    byte[] patch = generatePatch();
+    assertThrows(
+        PatchFormatException.class,
+        () ->
+            new FileByFileV1DeltaApplier()
+                .applyDelta(
+                    oldArchive.file,
+                    new ByteArrayInputStream(Arrays.copyOf(patch, patch.length - 10)),
+                    appliedArchive.file));
+  }
+}
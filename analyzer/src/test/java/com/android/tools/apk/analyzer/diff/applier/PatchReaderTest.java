@@ -0,0 +1,147 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.applier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.tools.apk.analyzer.diff.generator.PatchWriter;
+import com.android.tools.apk.analyzer.diff.generator.PreDiffPlan;
+import com.android.tools.apk.analyzer.diff.generator.QualifiedRecommendation;
+import com.android.tools.apk.analyzer.diff.shared.JreDeflateParameters;
+import com.android.tools.apk.analyzer.diff.shared.PatchConstants;
+import com.android.tools.apk.analyzer.diff.shared.TypedRange;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link PatchReader}, reading patches written by {@link PatchWriter}.
+ */
+public class PatchReaderTest {
+  // This is Integer.MAX_VALUE + 1.
+  private static final long BIG = 2048L * 1024L * 1024L;
+
+  private static final List<TypedRange<Void>> OLD_FILE_UNCOMPRESSION_PLAN =
+      Arrays.asList(new TypedRange<Void>(30, 40, null), new TypedRange<Void>(BIG, 17, null));
+
+  private static final List<TypedRange<JreDeflateParameters>> RECOMPRESSION_PLAN =
+      Arrays.asList(
+          new TypedRange<JreDeflateParameters>(10, 100, JreDeflateParameters.of(6, 0, true)),
+          new TypedRange<JreDeflateParameters>(BIG, BIG, JreDeflateParameters.of(9, 1, false)));
+
+  private static final long DELTA_FRIENDLY_OLD_FILE_SIZE = BIG + 75L;
+
+  private static final long DELTA_FRIENDLY_NEW_FILE_SIZE = 2 * BIG + 75L;
+
+  private static final String DELTA_CONTENT = "this is a really cool delta, woo";
+
+  private File deltaFile;
+
+  private byte[] patch;
+
+  @BeforeEach
+  public void setup() throws IOException {
+    deltaFile = File.createTempFile("patchreadertest", "delta");
+    deltaFile.deleteOnExit();
+    try (FileOutputStream out = new FileOutputStream(deltaFile)) {
+      out.write(DELTA_CONTENT.getBytes("US-ASCII"));
+    }
+    PreDiffPlan plan =
+        new PreDiffPlan(
+            Collections.<QualifiedRecommendation>emptyList(),
+            OLD_FILE_UNCOMPRESSION_PLAN,
+            Collections.<TypedRange<JreDeflateParameters>>emptyList(),
+            RECOMPRESSION_PLAN);
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    new PatchWriter(plan, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE, deltaFile)
+        .writeV1Patch(buffer);
+    patch = buffer.toByteArray();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    deltaFile.delete();
+  }
+
+  @Test
+  public void testReadPatchApplyPlan() throws IOException {
+    ByteArrayInputStream in = new ByteArrayInputStream(patch);
+    PatchApplyPlan plan = new PatchReader().readPatchApplyPlan(in);
+    assertEquals(OLD_FILE_UNCOMPRESSION_PLAN, plan.getOldFileUncompressionPlan());
+    assertEquals(DELTA_FRIENDLY_OLD_FILE_SIZE, plan.getDeltaFriendlyOldFileSize());
+    assertEquals(RECOMPRESSION_PLAN, plan.getDeltaFriendlyNewFileRecompressionPlan());
+    assertEquals(1, plan.getDeltaDescriptors().size());
+    DeltaDescriptor descriptor = plan.getDeltaDescriptors().get(0);
+    assertEquals(PatchConstants.DeltaFormat.BSDIFF, descriptor.getFormat());
+    assertEquals(
+        new TypedRange<Void>(0, DELTA_FRIENDLY_OLD_FILE_SIZE, null),
+        descriptor.getDeltaFriendlyOldFileRange());
+    assertEquals(
+        new TypedRange<Void>(0, DELTA_FRIENDLY_NEW_FILE_SIZE, null),
+        descriptor.getDeltaFriendlyNewFileRange());
+    assertEquals(DELTA_CONTENT.length(), descriptor.getDeltaLength());
+    // The stream is left at the start of the delta.
+    assertEquals(DELTA_CONTENT.length(), in.available());
+  }
+
+  @Test
+  public void testReadPatchApplyPlan_BadIdentifier() {
+    patch[0] = 'X';
+    assertThrows(
+        PatchFormatException.class,
+        () -> new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(patch)));
+  }
+
+  @Test
+  public void testReadPatchApplyPlan_Truncated() {
+    int headerLength = patch.length - DELTA_CONTENT.length();
+    for (int length = 0; length < headerLength; length++) {
+      byte[] truncated = Arrays.copyOf(patch, length);
+      assertThrows(
+          PatchFormatException.class,
+          () -> new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(truncated)));
+    }
+  }
+
+  @Test
+  public void testReadPatchApplyPlan_OverlappingRanges() {
+    // Move the second old file uncompression range to the start of the first: identifier, flags,
+    // delta-friendly old file size, count, first offset and length.
+    ByteBuffer.wrap(patch).putLong(8 + 4 + 8 + 4 + 16, 50);
+    assertThrows(
+        PatchFormatException.class,
+        () -> new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(patch)));
+  }
+
+  @Test
+  public void testReadPatchApplyPlan_BadDeflateParameters() {
+    // The level of the first recompression range: after the old file uncompression plan, the
+    // count, offset, length and compatibility window.
+    patch[8 + 4 + 8 + 4 + 32 + 4 + 16 + 1] = 10;
+    assertThrows(
+        PatchFormatException.class,
+        () -> new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(patch)));
+  }
+}
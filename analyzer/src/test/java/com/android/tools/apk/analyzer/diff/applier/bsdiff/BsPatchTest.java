@@ -0,0 +1,137 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.applier.bsdiff;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.tools.apk.analyzer.diff.applier.PatchFormatException;
+import com.android.tools.apk.analyzer.diff.generator.bsdiff.BsDiffPatchWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link BsPatch}, applying patches written by {@link BsDiffPatchWriter}.
+ */
+public class BsPatchTest {
+  private File oldFile;
+
+  @BeforeEach
+  public void setup() throws IOException {
+    oldFile = File.createTempFile("bspatchtest", "old");
+    oldFile.deleteOnExit();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    oldFile.delete();
+  }
+
+  private byte[] roundTrip(byte[] oldData, byte[] newData) throws Exception {
+    ByteArrayOutputStream patch = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(oldData, newData, patch);
+    return applyPatch(oldData, patch.toByteArray());
+  }
+
+  private byte[] applyPatch(byte[] oldData, byte[] patch) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(oldFile)) {
+      out.write(oldData);
+    }
+    ByteArrayOutputStream newData = new ByteArrayOutputStream();
+    try (RandomAccessFile oldIn = new RandomAccessFile(oldFile, "r")) {
+      BsPatch.applyPatch(oldIn, newData, new ByteArrayInputStream(patch));
+    }
+    return newData.toByteArray();
+  }
+
+  /**
+   * Returns a copy of the data with some bytes changed, a block inserted and a block removed.
+   */
+  private static byte[] mutate(byte[] data, Random random) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int third = data.length / 3;
+    out.write(data, 0, third);
+    byte[] inserted = new byte[1000];
+    random.nextBytes(inserted);
+    out.write(inserted, 0, inserted.length);
+    out.write(data, third, third);
+    out.write(data, 2 * third + 500, data.length - 2 * third - 500);
+    byte[] result = out.toByteArray();
+    for (int i = 0; i < 100; i++) {
+      result[random.nextInt(result.length)]++;
+    }
+    return result;
+  }
+
+  @Test
+  public void testApplyPatch() throws Exception {
+    Random random = new Random(42);
+    // Bigger than the buffers, so that entries span several of them.
+    byte[] oldData = new byte[300000];
+    random.nextBytes(oldData);
+    byte[] newData = mutate(oldData, random);
+    assertArrayEquals(newData, roundTrip(oldData, newData));
+  }
+
+  @Test
+  public void testApplyPatch_EmptyFiles() throws Exception {
+    byte[] data = "Some data".getBytes("US-ASCII");
+    assertArrayEquals(new byte[0], roundTrip(data, new byte[0]));
+    assertArrayEquals(data, roundTrip(new byte[0], data));
+    assertArrayEquals(data, roundTrip(data, data));
+  }
+
+  @Test
+  public void testApplyPatch_Truncated() throws Exception {
+    Random random = new Random(42);
+    byte[] oldData = new byte[10000];
+    random.nextBytes(oldData);
+    ByteArrayOutputStream patch = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(oldData, mutate(oldData, random), patch);
+    byte[] truncated = Arrays.copyOf(patch.toByteArray(), patch.size() - 1);
+    assertThrows(PatchFormatException.class, () -> applyPatch(oldData, truncated));
+  }
+
+  @Test
+  public void testApplyPatch_BadSignature() throws Exception {
+    ByteArrayOutputStream patch = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(new byte[10], new byte[10], patch);
+    byte[] bytes = patch.toByteArray();
+    bytes[0] = 'X';
+    assertThrows(PatchFormatException.class, () -> applyPatch(new byte[10], bytes));
+  }
+
+  @Test
+  public void testApplyPatch_OutsideOldData() throws Exception {
+    Random random = new Random(42);
+    byte[] oldData = new byte[10000];
+    random.nextBytes(oldData);
+    ByteArrayOutputStream patch = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(oldData, mutate(oldData, random), patch);
+    // Applied to shorter old data, the diffs read past its end.
+    assertThrows(
+        PatchFormatException.class,
+        () -> applyPatch(Arrays.copyOf(oldData, 5000), patch.toByteArray()));
+  }
+}
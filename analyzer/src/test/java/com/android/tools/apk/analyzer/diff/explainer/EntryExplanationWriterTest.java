@@ -0,0 +1,119 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.explainer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.android.tools.apk.analyzer.diff.generator.ByteArrayHolder;
+import com.android.tools.apk.analyzer.diff.generator.RecommendationReason;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link EntryExplanationWriter}.
+ */
+public class EntryExplanationWriterTest {
+  private static final EntryExplanation NEW_ENTRY = makeExplanation("/path1", true, null, 1000);
+  private static final EntryExplanation CHANGED_ENTRY =
+      makeExplanation("/path2", false, RecommendationReason.COMPRESSED_BYTES_CHANGED, 3000);
+
+  private static final String NEW_ENTRY_JSON =
+      "{\"path\":\"/path1\",\"isNew\":true,\"reasonIncluded\":null,\"compressedSizeInPatch\":1000}";
+  private static final String CHANGED_ENTRY_JSON =
+      "{\"path\":\"/path2\",\"isNew\":false,\"reasonIncluded\":\"COMPRESSED_BYTES_CHANGED\","
+          + "\"compressedSizeInPatch\":3000}";
+
+  @Test
+  public void testWrite_Json() throws IOException {
+    StringWriter out = new StringWriter();
+    try (EntryExplanationWriter writer =
+        new EntryExplanationWriter(out, EntryExplanationWriter.Format.JSON)) {
+      writer.write(NEW_ENTRY);
+      writer.write(CHANGED_ENTRY);
+      assertEquals(2, writer.getNumEntriesWritten());
+    }
+    assertEquals("[\n  " + NEW_ENTRY_JSON + ",\n  " + CHANGED_ENTRY_JSON + "\n]\n", out.toString());
+  }
+
+  @Test
+  public void testWrite_Json_Empty() throws IOException {
+    StringWriter out = new StringWriter();
+    new EntryExplanationWriter(out, EntryExplanationWriter.Format.JSON).close();
+    assertEquals("[]\n", out.toString());
+  }
+
+  @Test
+  public void testWrite_Ndjson() throws IOException {
+    // Each line must reach the underlying writer as soon as it is written, not just on close.
+    FlushRecordingWriter out = new FlushRecordingWriter();
+    EntryExplanationWriter writer =
+        new EntryExplanationWriter(out, EntryExplanationWriter.Format.NDJSON);
+    writer.write(NEW_ENTRY);
+    assertEquals(NEW_ENTRY_JSON + "\n", out.flushed);
+    writer.write(CHANGED_ENTRY);
+    assertEquals(NEW_ENTRY_JSON + "\n" + CHANGED_ENTRY_JSON + "\n", out.flushed);
+    writer.close();
+    assertTrue(out.closed);
+    assertEquals(NEW_ENTRY_JSON + "\n" + CHANGED_ENTRY_JSON + "\n", out.toString());
+  }
+
+  @Test
+  public void testWrite_EscapesPath() throws IOException {
+    StringWriter out = new StringWriter();
+    try (EntryExplanationWriter writer =
+        new EntryExplanationWriter(out, EntryExplanationWriter.Format.NDJSON)) {
+      writer.write(makeExplanation("a\"b\\c\nd\u0001é", true, null, 1));
+    }
+    assertTrue(out.toString().startsWith("{\"path\":\"a\\\"b\\\\c\\nd\\u0001é\","));
+  }
+
+  @Test
+  public void testWrite_AfterClose() throws IOException {
+    EntryExplanationWriter writer =
+        new EntryExplanationWriter(new StringWriter(), EntryExplanationWriter.Format.JSON);
+    writer.close();
+    assertThrows(IllegalStateException.class, () -> writer.write(NEW_ENTRY));
+  }
+
+  private static EntryExplanation makeExplanation(
+      String path, boolean isNew, RecommendationReason reason, long compressedSize) {
+    return new EntryExplanation(
+        new ByteArrayHolder(path.getBytes(StandardCharsets.UTF_8)), isNew, reason, compressedSize);
+  }
+
+  /**
+   * A {@link StringWriter} that remembers what had been written at the last flush.
+   */
+  private static class FlushRecordingWriter extends StringWriter {
+    String flushed = "";
+    boolean closed = false;
+
+    @Override
+    public void flush() {
+      super.flush();
+      flushed = toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+      super.close();
+      closed = true;
+    }
+  }
+}
@@ -16,6 +16,9 @@ package com.android.tools.apk.analyzer.diff.explainer;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.android.tools.apk.analyzer.diff.generator.ByteArrayHolder;
 import com.android.tools.apk.analyzer.diff.generator.DeltaGenerator;
@@ -23,7 +26,10 @@ import com.android.tools.apk.analyzer.diff.generator.MinimalZipArchive;
 import com.android.tools.apk.analyzer.diff.generator.MinimalZipEntry;
 import com.android.tools.apk.analyzer.diff.generator.RecommendationReason;
 import com.android.tools.apk.analyzer.diff.generator.TotalRecompressionLimiter;
+import com.android.tools.apk.analyzer.diff.generator.bsdiff.BsDiffDeltaGenerator;
+import com.android.tools.apk.analyzer.diff.generator.bsdiff.SuffixArrayCache;
 import com.android.tools.apk.analyzer.diff.shared.Compressor;
+import com.android.tools.apk.analyzer.diff.shared.DeflateCompressor;
 import com.android.tools.apk.analyzer.diff.shared.UnitTestZipArchive;
 import com.android.tools.apk.analyzer.diff.shared.UnitTestZipEntry;
 import java.io.ByteArrayOutputStream;
@@ -34,8 +40,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import org.junit.jupiter.api.AfterEach;
@@ -63,6 +72,8 @@ public class PatchExplainerTest {
       UnitTestZipArchive.makeUnitTestZipEntry("/path A", 0, "entry A2", null);
   private static final UnitTestZipEntry ENTRY_B_LEVEL_6 =
       UnitTestZipArchive.makeUnitTestZipEntry("/path B", 6, "entry B", null);
+  private static final UnitTestZipEntry ENTRY_B2_LEVEL_9 =
+      UnitTestZipArchive.makeUnitTestZipEntry("/path B", 9, "entry B2", null);
 
   /**
    * A "compressor" that always outputs the same exact string regardless of the input and asserts
@@ -212,6 +223,254 @@ public class PatchExplainerTest {
     checkExplanation(explanations, expected);
   }
 
+  @Test
+  public void testExplainPatch_Concurrent() throws Exception {
+    byte[] oldBytes =
+        UnitTestZipArchive.makeTestZip(Arrays.asList(ENTRY_A1_LEVEL_6, ENTRY_B_LEVEL_6));
+    byte[] newBytes =
+        UnitTestZipArchive.makeTestZip(Arrays.asList(ENTRY_A2_LEVEL_9, ENTRY_B2_LEVEL_9));
+    save(oldBytes, oldFile);
+    save(newBytes, newFile);
+    List<EntryExplanation> expected =
+        new PatchExplainer(new DeflateCompressor(), new BsDiffDeltaGenerator())
+            .explainPatch(oldFile, newFile);
+    List<EntryExplanation> actual =
+        new PatchExplainer(new DeflateCompressor(), new BsDiffDeltaGenerator(), 4)
+            .explainPatch(oldFile, newFile);
+    // Both entries changed, and the explanations must come back in the same order and with the
+    // same sizes no matter how many deltas ran at once.
+    assertEquals(2, expected.size());
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).getPath(), actual.get(i).getPath());
+      assertEquals(
+          expected.get(i).getReasonIncludedIfNotNew(), actual.get(i).getReasonIncludedIfNotNew());
+      assertEquals(
+          expected.get(i).getCompressedSizeInPatch(), actual.get(i).getCompressedSizeInPatch());
+    }
+  }
+
+  @Test
+  public void testExplainPatch_Streaming() throws Exception {
+    byte[] oldBytes =
+        UnitTestZipArchive.makeTestZip(Arrays.asList(ENTRY_A1_LEVEL_6, ENTRY_B_LEVEL_6));
+    byte[] newBytes =
+        UnitTestZipArchive.makeTestZip(Arrays.asList(ENTRY_A2_LEVEL_9, ENTRY_B2_LEVEL_9));
+    save(oldBytes, oldFile);
+    save(newBytes, newFile);
+    List<EntryExplanation> explanations =
+        new PatchExplainer(new DeflateCompressor(), new BsDiffDeltaGenerator())
+            .explainPatch(oldFile, newFile);
+    StringWriter expected = new StringWriter();
+    try (EntryExplanationWriter writer =
+        new EntryExplanationWriter(expected, EntryExplanationWriter.Format.NDJSON)) {
+      for (EntryExplanation explanation : explanations) {
+        writer.write(explanation);
+      }
+    }
+    // The streamed explanations must be the same, in the same order, however many threads ran.
+    StringWriter actual = new StringWriter();
+    try (EntryExplanationWriter writer =
+        new EntryExplanationWriter(actual, EntryExplanationWriter.Format.NDJSON)) {
+      new PatchExplainer(new DeflateCompressor(), new BsDiffDeltaGenerator(), 4)
+          .explainPatch(oldFile, newFile, writer);
+      assertEquals(2, writer.getNumEntriesWritten());
+    }
+    assertEquals(expected.toString(), actual.toString());
+  }
+
+  @Test
+  public void testExplainPatch_StreamingOneThread() throws Exception {
+    byte[] oldBytes =
+        UnitTestZipArchive.makeTestZip(Arrays.asList(ENTRY_A1_LEVEL_6, ENTRY_B_LEVEL_6));
+    byte[] newBytes =
+        UnitTestZipArchive.makeTestZip(Arrays.asList(ENTRY_A2_LEVEL_9, ENTRY_B2_LEVEL_9));
+    save(oldBytes, oldFile);
+    save(newBytes, newFile);
+    // Record how many entries had been written when each delta started.
+    List<Long> entriesWrittenBeforeDelta = new ArrayList<>();
+    try (EntryExplanationWriter writer =
+        new EntryExplanationWriter(new StringWriter(), EntryExplanationWriter.Format.NDJSON)) {
+      DeltaGenerator recordingDeltaGenerator =
+          (oldBlob, newBlob, deltaOut) -> {
+            entriesWrittenBeforeDelta.add(writer.getNumEntriesWritten());
+            deltaOut.write(1);
+          };
+      new PatchExplainer(new DeflateCompressor(), recordingDeltaGenerator, 1)
+          .explainPatch(oldFile, newFile, writer);
+      assertEquals(2, writer.getNumEntriesWritten());
+    }
+    // Both entries changed, and the first was written before the second was explained.
+    assertEquals(Arrays.asList(0L, 1L), entriesWrittenBeforeDelta);
+  }
+
+  @Test
+  public void testExplainPatches() throws Exception {
+    byte[] oldBytes =
+        UnitTestZipArchive.makeTestZip(Arrays.asList(ENTRY_A1_LEVEL_6, ENTRY_B_LEVEL_6));
+    save(oldBytes, oldFile);
+    save(
+        UnitTestZipArchive.makeTestZip(Arrays.asList(ENTRY_A2_LEVEL_9, ENTRY_B2_LEVEL_9)),
+        newFile);
+    File otherNewFile = File.createTempFile("patchexplainertest", "othernew");
+    try (SuffixArrayCache cache = new SuffixArrayCache(SuffixArrayCache.DEFAULT_MAX_BYTES)) {
+      save(
+          UnitTestZipArchive.makeTestZip(Arrays.asList(ENTRY_A2_STORED, ENTRY_B2_LEVEL_9)),
+          otherNewFile);
+      PatchExplainer single =
+          new PatchExplainer(new DeflateCompressor(), new BsDiffDeltaGenerator());
+      List<List<EntryExplanation>> actual =
+          new PatchExplainer(new DeflateCompressor(), new BsDiffDeltaGenerator(cache), 4)
+              .explainPatches(oldFile, Arrays.asList(newFile, otherNewFile, newFile));
+
+      // One report per new file, each the same as explaining the pair on its own.
+      assertEquals(3, actual.size());
+      checkSameExplanations(single.explainPatch(oldFile, newFile), actual.get(0));
+      checkSameExplanations(single.explainPatch(oldFile, otherNewFile), actual.get(1));
+      checkSameExplanations(single.explainPatch(oldFile, newFile), actual.get(2));
+      // The uncompressed old A1 and B are each suffix sorted once.
+      assertEquals(2, cache.getMissCount());
+      assertEquals(4, cache.getHitCount());
+    } finally {
+      otherNewFile.delete();
+    }
+  }
+
+  @Test
+  public void testExplainPatch_RenamedAndModified() throws Exception {
+    // B is A1 under another path with a slightly different prefix.
+    save(UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_A1_LEVEL_6)), oldFile);
+    save(UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_B_LEVEL_6)), newFile);
+    List<EntryExplanation> asNew =
+        new PatchExplainer(new DeflateCompressor(), new BsDiffDeltaGenerator())
+            .explainPatch(oldFile, newFile);
+    assertEquals(1, asNew.size());
+    assertTrue(asNew.get(0).isNew());
+
+    List<EntryExplanation> asChange =
+        new PatchExplainer(
+                new DeflateCompressor(),
+                new BsDiffDeltaGenerator(),
+                1,
+                PatchExplainer.DEFAULT_IN_MEMORY_LIMIT_BYTES,
+                null,
+                1024 * 1024)
+            .explainPatch(oldFile, newFile);
+    // Only explained once, as a delta from A1, which is much smaller than B on its own.
+    assertEquals(1, asChange.size());
+    assertFalse(asChange.get(0).isNew());
+    assertEquals(path(ENTRY_B_LEVEL_6), asChange.get(0).getPath());
+    assertEquals(
+        RecommendationReason.COMPRESSED_BYTES_CHANGED,
+        asChange.get(0).getReasonIncludedIfNotNew());
+    assertTrue(
+        asChange.get(0).getCompressedSizeInPatch() * 5 < asNew.get(0).getCompressedSizeInPatch());
+  }
+
+  @Test
+  public void testExplainPatch_ParsedEntries() throws Exception {
+    save(UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_A1_LEVEL_6)), oldFile);
+    save(
+        UnitTestZipArchive.makeTestZip(Arrays.asList(ENTRY_A2_LEVEL_9, ENTRY_B_LEVEL_6)),
+        newFile);
+    List<MinimalZipEntry> oldEntries = MinimalZipArchive.listEntries(oldFile);
+    List<MinimalZipEntry> newEntries = MinimalZipArchive.listEntries(newFile);
+    PatchExplainer explainer =
+        new PatchExplainer(new DeflateCompressor(), new BsDiffDeltaGenerator());
+    List<EntryExplanation> actual =
+        explainer.explainPatch(oldFile, oldEntries, newFile, newEntries);
+    checkSameExplanations(explainer.explainPatch(oldFile, newFile), actual);
+    // B is new and A changed; both must point at the caller's own entries.
+    for (EntryExplanation explanation : actual) {
+      MinimalZipEntry expected = explanation.isNew() ? newEntries.get(1) : newEntries.get(0);
+      assertSame(expected, explanation.getNewEntry());
+      assertArrayEquals(expected.getFileNameBytes(), explanation.getPath().getData());
+    }
+  }
+
+  @Test
+  public void testExplainPatches_PickSmallestCandidate() throws Exception {
+    // A release checked against several candidate builds, summarizing each report the way the
+    // single-pair reports are summarized, to pick the candidate that is cheapest to update to.
+    save(UnitTestZipArchive.makeTestZip(Arrays.asList(ENTRY_A1_LEVEL_6, ENTRY_B_LEVEL_6)), oldFile);
+    List<File> candidates = new ArrayList<>();
+    try (SuffixArrayCache cache = new SuffixArrayCache(SuffixArrayCache.DEFAULT_MAX_BYTES)) {
+      for (List<UnitTestZipEntry> entries :
+          Arrays.asList(
+              Arrays.asList(ENTRY_A2_LEVEL_9, ENTRY_B2_LEVEL_9),
+              Arrays.asList(ENTRY_A1_LEVEL_9, ENTRY_B_LEVEL_6),
+              Arrays.asList(ENTRY_A2_STORED, ENTRY_B2_LEVEL_9))) {
+        File candidate = File.createTempFile("patchexplainertest", "candidate");
+        candidates.add(candidate);
+        save(UnitTestZipArchive.makeTestZip(entries), candidate);
+      }
+      PatchExplainer explainer =
+          new PatchExplainer(new DeflateCompressor(), new BsDiffDeltaGenerator(cache), 4);
+      List<List<EntryExplanation>> reports = explainer.explainPatches(oldFile, candidates);
+
+      PatchExplainer single =
+          new PatchExplainer(new DeflateCompressor(), new BsDiffDeltaGenerator());
+      int smallest = -1;
+      long smallestSize = Long.MAX_VALUE;
+      for (int i = 0; i < candidates.size(); i++) {
+        PatchExplanation report = new PatchExplanation(reports.get(i));
+        PatchExplanation expected =
+            new PatchExplanation(single.explainPatch(oldFile, candidates.get(i)));
+        assertEquals(expected.getEstimatedNewSize(), report.getEstimatedNewSize());
+        assertEquals(expected.getEstimatedChangedSize(), report.getEstimatedChangedSize());
+        long size = report.getEstimatedNewSize() + report.getEstimatedChangedSize();
+        if (size < smallestSize) {
+          smallest = i;
+          smallestSize = size;
+        }
+      }
+      // Only recompressing A costs nothing once the entries are uncompressed.
+      assertEquals(1, smallest);
+      assertEquals(0, smallestSize);
+    } finally {
+      for (File candidate : candidates) {
+        candidate.delete();
+      }
+    }
+  }
+
+  private static void checkSameExplanations(
+      List<EntryExplanation> expected, List<EntryExplanation> actual) {
+    assertEquals(2, expected.size());
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).getPath(), actual.get(i).getPath());
+      assertEquals(expected.get(i).isNew(), actual.get(i).isNew());
+      assertEquals(
+          expected.get(i).getReasonIncludedIfNotNew(), actual.get(i).getReasonIncludedIfNotNew());
+      assertEquals(
+          expected.get(i).getCompressedSizeInPatch(), actual.get(i).getCompressedSizeInPatch());
+    }
+  }
+
+  @Test
+  public void testExplainPatch_InMemoryMatchesTempFiles() throws Exception {
+    byte[] oldBytes =
+        UnitTestZipArchive.makeTestZip(Arrays.asList(ENTRY_A1_LEVEL_6, ENTRY_B_LEVEL_6));
+    byte[] newBytes =
+        UnitTestZipArchive.makeTestZip(Arrays.asList(ENTRY_A2_LEVEL_9, ENTRY_B2_LEVEL_9));
+    save(oldBytes, oldFile);
+    save(newBytes, newFile);
+    List<EntryExplanation> expected =
+        new PatchExplainer(new DeflateCompressor(), new BsDiffDeltaGenerator(), 1, 0)
+            .explainPatch(oldFile, newFile);
+    List<EntryExplanation> actual =
+        new PatchExplainer(new DeflateCompressor(), new BsDiffDeltaGenerator(), 1, Long.MAX_VALUE)
+            .explainPatch(oldFile, newFile);
+    assertEquals(2, expected.size());
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).getPath(), actual.get(i).getPath());
+      assertEquals(
+          expected.get(i).getCompressedSizeInPatch(), actual.get(i).getCompressedSizeInPatch());
+    }
+  }
+
   @Test
   public void testExplainPatch_CompressedBytesChanged_UncompressedChanged_Limited()
       throws Exception {
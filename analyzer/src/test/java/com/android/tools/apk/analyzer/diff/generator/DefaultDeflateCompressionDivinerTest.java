@@ -106,6 +106,36 @@ public class DefaultDeflateCompressionDivinerTest {
     } // End of iteration on nowrap
   }
 
+  @Test
+  public void testDivineDeflateParameters_LargerThanProbeWindow() throws IOException {
+    // Many slightly different copies of the corpus, so that the compressed delivery is much longer
+    // than what the diviner probes before verifying a candidate against everything.
+    byte[] corpus = testData;
+    ByteArrayOutputStream large = new ByteArrayOutputStream();
+    for (int copy = 0; large.size() < 1024 * 1024; copy++) {
+      byte[] variant = corpus.clone();
+      for (int i = copy % 61; i < variant.length; i += 61 + copy) {
+        variant[i] ^= (byte) copy;
+      }
+      large.write(variant);
+    }
+    testData = large.toByteArray();
+    for (boolean nowrap : new boolean[] {true, false}) {
+      for (int strategy : new int[] {0, 1}) {
+        for (int level : new int[] {1, 4, 5, 6, 8, 9}) {
+          JreDeflateParameters trueParameters = JreDeflateParameters.of(level, strategy, nowrap);
+          if (strategy == 1 && level <= 3) {
+            continue;
+          }
+          JreDeflateParameters divinedParameters =
+              diviner.divineDeflateParameters(
+                  new ByteArrayInputStreamFactory(deflate(trueParameters)));
+          assertEquals(trueParameters, divinedParameters);
+        }
+      }
+    }
+  }
+
   @Test
   public void testDivineDeflateParameters_File() throws IOException {
     File tempFile = File.createTempFile("ddcdt", "tmp");
@@ -140,4 +170,35 @@ public class DefaultDeflateCompressionDivinerTest {
       }
     }
   }
+
+  @Test
+  public void testDivineDeflateParameters_File_Threads() throws IOException {
+    File tempFile = File.createTempFile("ddcdt", "tmp");
+    tempFile.deleteOnExit();
+    try {
+      UnitTestZipArchive.saveTestZip(tempFile);
+      List<DivinationResult> expected =
+          new DefaultDeflateCompressionDiviner(1).divineDeflateParameters(tempFile);
+      // Each thread reuses its (de)compressors, so run enough rounds to reuse them across entries.
+      for (int threads : new int[] {1, 2, 4}) {
+        DefaultDeflateCompressionDiviner threaded = new DefaultDeflateCompressionDiviner(threads);
+        for (int round = 0; round < 3; round++) {
+          List<DivinationResult> actual = threaded.divineDeflateParameters(tempFile);
+          assertEquals(expected.size(), actual.size());
+          for (int x = 0; x < expected.size(); x++) {
+            assertEquals(
+                expected.get(x).minimalZipEntry.getFileName(),
+                actual.get(x).minimalZipEntry.getFileName());
+            assertEquals(expected.get(x).divinedParameters, actual.get(x).divinedParameters);
+          }
+        }
+      }
+    } finally {
+      try {
+        tempFile.delete();
+      } catch (Exception ignoreD) {
+        // Nothing
+      }
+    }
+  }
 }
@@ -0,0 +1,170 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.generator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.android.tools.apk.analyzer.diff.generator.DefaultDeflateCompressionDiviner.DivinationResult;
+import com.android.tools.apk.analyzer.diff.shared.JreDeflateParameters;
+import com.android.tools.apk.analyzer.diff.shared.UnitTestZipArchive;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link DivinationCache}.
+ */
+public class DivinationCacheTest {
+  private File archiveFile;
+  private File cacheFile;
+
+  @BeforeEach
+  public void setup() throws IOException {
+    archiveFile = File.createTempFile("dct", ".zip");
+    archiveFile.deleteOnExit();
+    UnitTestZipArchive.saveTestZip(archiveFile);
+    cacheFile = File.createTempFile("dct", ".cache");
+    cacheFile.deleteOnExit();
+    cacheFile.delete();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    archiveFile.delete();
+    cacheFile.delete();
+  }
+
+  @Test
+  public void testSaveAndLoad() throws IOException {
+    List<DivinationResult> expected =
+        new DefaultDeflateCompressionDiviner(1).divineDeflateParameters(archiveFile);
+    int deflatedCount = 0;
+    for (DivinationResult result : expected) {
+      if (result.minimalZipEntry.isDeflateCompressed()) {
+        deflatedCount++;
+      }
+    }
+    assertTrue(deflatedCount > 0);
+
+    DivinationCache cache = DivinationCache.load(cacheFile);
+    assertEquals(0, cache.size());
+    checkSameResults(
+        expected,
+        new DefaultDeflateCompressionDiviner(2, cache).divineDeflateParameters(archiveFile));
+    assertEquals(deflatedCount, cache.getMissCount());
+    assertEquals(0, cache.getHitCount());
+    assertFalse(cacheFile.exists());
+    cache.save();
+    assertTrue(cacheFile.exists());
+
+    DivinationCache loaded = DivinationCache.load(cacheFile);
+    assertEquals(cache.size(), loaded.size());
+    checkSameResults(
+        expected,
+        new DefaultDeflateCompressionDiviner(2, loaded).divineDeflateParameters(archiveFile));
+    assertEquals(deflatedCount, loaded.getHitCount());
+    assertEquals(0, loaded.getMissCount());
+  }
+
+  @Test
+  public void testUndivinableResultsAreCached() throws IOException {
+    DivinationCache cache = DivinationCache.load(cacheFile);
+    DivinationCache.Key key = new DivinationCache.Key(0x12345678L, 10, 0xcafebabeL, 20);
+    DivinationCache.Key other = new DivinationCache.Key(0x12345678L, 10, 0xcafebabeL, 21);
+    cache.put(key, null);
+    cache.put(other, JreDeflateParameters.of(9, 1, false));
+    cache.save();
+
+    DivinationCache loaded = DivinationCache.load(cacheFile);
+    assertTrue(loaded.contains(key));
+    assertNull(loaded.get(key));
+    assertTrue(loaded.contains(other));
+    assertEquals(JreDeflateParameters.of(9, 1, false), loaded.get(other));
+    assertFalse(loaded.contains(new DivinationCache.Key(0x12345678L, 11, 0xcafebabeL, 20)));
+  }
+
+  @Test
+  public void testIgnoresMalformedLines() throws IOException {
+    DivinationCache cache = DivinationCache.load(cacheFile);
+    DivinationCache.Key key = new DivinationCache.Key(1, 2, 3, 4);
+    cache.put(key, JreDeflateParameters.of(6, 0, true));
+    cache.save();
+    List<String> lines = Files.readAllLines(cacheFile.toPath(), StandardCharsets.UTF_8);
+    lines.addAll(Arrays.asList("", "garbage", "1 2 3 4 x", "1 2 3 5 10 0 1", "zz 2 3 4 6 0 1"));
+    Files.write(cacheFile.toPath(), lines, StandardCharsets.UTF_8);
+
+    DivinationCache loaded = DivinationCache.load(cacheFile);
+    assertEquals(1, loaded.size());
+    assertEquals(JreDeflateParameters.of(6, 0, true), loaded.get(key));
+  }
+
+  @Test
+  public void testIgnoresForeignFile() throws IOException {
+    Files.write(cacheFile.toPath(), Arrays.asList("1 2 3 4 6 0 1"), StandardCharsets.UTF_8);
+    assertEquals(0, DivinationCache.load(cacheFile).size());
+  }
+
+  @Test
+  public void testHeaderIdentifiesRuntime() {
+    String java = " java=" + System.getProperty("java.version") + " ";
+    assertTrue(DivinationCache.HEADER.contains(java));
+    assertTrue(DivinationCache.HEADER.contains(" deflate="));
+  }
+
+  @Test
+  public void testDiscardsFileFromOtherRuntime() throws IOException {
+    DivinationCache cache = DivinationCache.load(cacheFile);
+    DivinationCache.Key key = new DivinationCache.Key(1, 2, 3, 4);
+    cache.put(key, JreDeflateParameters.of(6, 0, true));
+    cache.save();
+    List<String> lines = Files.readAllLines(cacheFile.toPath(), StandardCharsets.UTF_8);
+    assertEquals(DivinationCache.HEADER, lines.get(0));
+    for (String header :
+        Arrays.asList(
+            "# deflate divination cache v1",
+            DivinationCache.HEADER.replace(" java=", " java=0"),
+            DivinationCache.HEADER + "0")) {
+      lines.set(0, header);
+      Files.write(cacheFile.toPath(), lines, StandardCharsets.UTF_8);
+      assertEquals(0, DivinationCache.load(cacheFile).size(), header);
+    }
+
+    // The stale file is replaced on the next save even if nothing new was divined.
+    DivinationCache.load(cacheFile).save();
+    assertEquals(
+        Arrays.asList(DivinationCache.HEADER),
+        Files.readAllLines(cacheFile.toPath(), StandardCharsets.UTF_8));
+  }
+
+  private static void checkSameResults(
+      List<DivinationResult> expected, List<DivinationResult> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int x = 0; x < expected.size(); x++) {
+      assertEquals(
+          expected.get(x).minimalZipEntry.getFileName(),
+          actual.get(x).minimalZipEntry.getFileName());
+      assertEquals(expected.get(x).divinedParameters, actual.get(x).divinedParameters);
+    }
+  }
+}
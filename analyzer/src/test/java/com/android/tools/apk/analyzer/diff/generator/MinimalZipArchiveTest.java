@@ -18,6 +18,7 @@ import com.android.tools.apk.analyzer.diff.shared.UnitTestZipArchive;
 import com.android.tools.apk.analyzer.diff.shared.UnitTestZipEntry;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.AfterEach;
@@ -29,6 +30,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.List;
 import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Tests for {@link MinimalZipParser}.
@@ -107,4 +110,39 @@ public class MinimalZipArchiveTest {
       }
     }
   }
+
+  @Test
+  public void testFindEntry() throws IOException {
+    List<MinimalZipEntry> parsedEntries = MinimalZipArchive.listEntries(tempFile);
+    for (MinimalZipEntry expected : parsedEntries) {
+      MinimalZipEntry actual = MinimalZipArchive.findEntry(tempFile, expected.getFileName());
+      assertEquals(expected, actual);
+      assertEquals(expected.getFileOffsetOfCompressedData(), actual.getFileOffsetOfCompressedData());
+    }
+    assertNull(MinimalZipArchive.findEntry(tempFile, "no/such/entry"));
+  }
+
+  @Test
+  public void testListEntries_Zip64() throws IOException {
+    // ZipOutputStream writes the zip64 end-of-central-directory record and locator once there are
+    // too many entries for the end-of-central-directory record to count.
+    int numEntries = 0x10000 + 3;
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(tempFile))) {
+      out.setComment("comment");
+      for (int x = 0; x < numEntries; x++) {
+        out.putNextEntry(new ZipEntry("entry" + x));
+        out.write(x);
+        out.closeEntry();
+      }
+    }
+    List<MinimalZipEntry> parsedEntries = MinimalZipArchive.listEntries(tempFile);
+    assertEquals(numEntries, parsedEntries.size());
+    assertEquals("entry0", parsedEntries.get(0).getFileName());
+    MinimalZipEntry last = parsedEntries.get(numEntries - 1);
+    assertEquals("entry" + (numEntries - 1), last.getFileName());
+    assertEquals(1, last.getUncompressedSize());
+    assertEquals(
+        last.getFileOffsetOfCompressedData(),
+        MinimalZipArchive.findEntry(tempFile, last.getFileName()).getFileOffsetOfCompressedData());
+  }
 }
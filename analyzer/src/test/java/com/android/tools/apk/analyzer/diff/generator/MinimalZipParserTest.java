@@ -20,6 +20,7 @@ import com.android.tools.apk.analyzer.diff.shared.UnitTestZipEntry;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.BeforeEach;
@@ -29,9 +30,14 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.zip.CRC32;
+import java.util.zip.ZipException;
 
 /**
  * Tests for {@link MinimalZipParser}.
@@ -63,6 +69,31 @@ public class MinimalZipParserTest {
     assertEquals(-1, eocdOffset);
   }
 
+  @Test
+  public void testLocateStartOfEocd_WithArray_EveryOffset() {
+    // The scan works a long at a time, so try every alignment, with decoys: bytes that start a
+    // signature and signatures that are not the last one.
+    for (int length = 0; length <= 40; length++) {
+      for (int offset = 0; offset + 4 <= length; offset++) {
+        byte[] buffer = new byte[length];
+        Arrays.fill(buffer, (byte) 0x50);
+        if (offset >= 9) {
+          System.arraycopy(new byte[] {0x50, 0x4b, 0x05, 0x06}, 0, buffer, offset - 9, 4);
+        }
+        System.arraycopy(new byte[] {0x50, 0x4b, 0x05, 0x06}, 0, buffer, offset, 4);
+        assertEquals(offset, MinimalZipParser.locateStartOfEocd(buffer));
+        // A truncated signature at the very end must not count.
+        if (offset + 7 <= length) {
+          System.arraycopy(new byte[] {0x50, 0x4b, 0x05}, 0, buffer, length - 3, 3);
+          assertEquals(offset, MinimalZipParser.locateStartOfEocd(buffer));
+        }
+      }
+      byte[] noSignature = new byte[length];
+      Arrays.fill(noSignature, (byte) 0x50);
+      assertEquals(-1, MinimalZipParser.locateStartOfEocd(noSignature));
+    }
+  }
+
   @Test
   public void testLocateStartOfEocd_WithFile() throws IOException {
     // Create a temp file with some zeroes, the EOCD header, and more zeroes.
@@ -213,4 +244,84 @@ public class MinimalZipParserTest {
           (int) (parsedEntry.getFileOffsetOfLocalEntry() + relativeDataOffset));
     }
   }
+
+  @Test
+  public void testParseCentralDirectoryEntry_Zip64ExtendedInformation() throws Exception {
+    byte[] fileName = "big".getBytes(StandardCharsets.UTF_8);
+    ByteBuffer extras = ByteBuffer.allocate(4 + 2 + 4 + 16).order(ByteOrder.LITTLE_ENDIAN);
+    // An unrelated extra field first, then the zip64 one with just the values that overflowed.
+    extras.putShort((short) 0xcafe).putShort((short) 2).putShort((short) 0);
+    extras.putShort((short) 0x0001).putShort((short) 16);
+    extras.putLong(0x100000005L).putLong(0x200000000L);
+    byte[] comment = "hi".getBytes(StandardCharsets.UTF_8);
+    ByteBuffer entry =
+        ByteBuffer.allocate(46 + fileName.length + extras.capacity() + comment.length)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    entry.putInt(MinimalZipParser.CENTRAL_DIRECTORY_ENTRY_SIGNATURE);
+    entry.putShort((short) 45).putShort((short) 45); // versions
+    entry.putShort((short) 0).putShort((short) 8); // flags, deflate
+    entry.putShort((short) 0).putShort((short) 0); // time, date
+    entry.putInt(0x12345678); // crc
+    entry.putInt(1234); // compressed size
+    entry.putInt(0xffffffff); // uncompressed size, in the extra field
+    entry.putShort((short) fileName.length);
+    entry.putShort((short) extras.capacity());
+    entry.putShort((short) comment.length);
+    entry.putShort((short) 0).putShort((short) 0).putInt(0); // disk, attributes
+    entry.putInt(0xffffffff); // local entry offset, in the extra field
+    entry.put(fileName).put(extras.array()).put(comment);
+
+    ByteArrayInputStream in = new ByteArrayInputStream(entry.array());
+    MinimalZipEntry parsed = MinimalZipParser.parseCentralDirectoryEntry(in);
+    assertEquals("big", parsed.getFileName());
+    assertEquals(1234, parsed.getCompressedSize());
+    assertEquals(0x100000005L, parsed.getUncompressedSize());
+    assertEquals(0x200000000L, parsed.getFileOffsetOfLocalEntry());
+    assertEquals(0x12345678L, parsed.getCrc32OfUncompressedData());
+    assertEquals(0, in.available());
+  }
+
+  @Test
+  public void testParseCentralDirectoryEntry_Zip64ExtendedInformationMissing() throws Exception {
+    ByteBuffer entry = ByteBuffer.allocate(46 + 1).order(ByteOrder.LITTLE_ENDIAN);
+    entry.putInt(MinimalZipParser.CENTRAL_DIRECTORY_ENTRY_SIGNATURE);
+    entry.position(24);
+    entry.putInt(0xffffffff); // uncompressed size, in an extra field that isn't there
+    entry.putShort((short) 1);
+    entry.position(46);
+    entry.put((byte) 'x');
+    assertThrows(
+        ZipException.class,
+        () -> MinimalZipParser.parseCentralDirectoryEntry(new ByteArrayInputStream(entry.array())));
+  }
+
+  @Test
+  public void testParseZip64EocdAndLocator() throws Exception {
+    ByteBuffer records =
+        ByteBuffer.allocate(
+                MinimalZipParser.ZIP64_EOCD_LENGTH + MinimalZipParser.ZIP64_EOCD_LOCATOR_LENGTH)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    records.putInt(MinimalZipParser.ZIP64_EOCD_SIGNATURE);
+    records.putLong(MinimalZipParser.ZIP64_EOCD_LENGTH - 12); // size of the rest of the record
+    records.putShort((short) 45).putShort((short) 45); // versions
+    records.putInt(0).putInt(0); // disks
+    records.putLong(70000).putLong(70000); // entries on this disk, entries overall
+    records.putLong(0x123456789L); // length of the central directory
+    records.putLong(0x987654321L); // offset of the central directory
+    records.putInt(MinimalZipParser.ZIP64_EOCD_LOCATOR_SIGNATURE);
+    records.putInt(0); // disk
+    records.putLong(0xabcdef0123L); // offset of the zip64 eocd record
+    records.putInt(1); // disks
+
+    ByteArrayInputStream in = new ByteArrayInputStream(records.array());
+    MinimalCentralDirectoryMetadata metadata = MinimalZipParser.parseZip64Eocd(in);
+    assertEquals(70000, metadata.getNumEntriesInCentralDirectory());
+    assertEquals(0x123456789L, metadata.getLengthOfCentralDirectory());
+    assertEquals(0x987654321L, metadata.getOffsetOfCentralDirectory());
+    assertEquals(0xabcdef0123L, MinimalZipParser.parseZip64EocdLocator(in));
+
+    assertThrows(
+        ZipException.class,
+        () -> MinimalZipParser.parseZip64EocdLocator(new ByteArrayInputStream(records.array())));
+  }
 }
@@ -29,6 +29,7 @@ import java.util.List;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
@@ -230,4 +231,40 @@ public class PreDiffExecutorTest {
     assertFileEquals(oldFile, deltaFriendlyOldFile);
     assertFileEquals(newFile, deltaFriendlyNewFile);
   }
+
+  @Test
+  public void testPrepareForDiffing_OneThread() throws IOException {
+    byte[] oldBytes = UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_LEVEL_6));
+    File oldFile = store(oldBytes);
+    byte[] newBytes = UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_LEVEL_9));
+    File newFile = store(newBytes);
+    PreDiffPlan expected =
+        new PreDiffExecutor.Builder()
+            .readingOriginalFiles(oldFile, newFile)
+            .writingDeltaFriendlyFiles(deltaFriendlyOldFile, deltaFriendlyNewFile)
+            .build()
+            .prepareForDiffing();
+    File singleThreadOldFile = newTempFile();
+    File singleThreadNewFile = newTempFile();
+    PreDiffPlan actual =
+        new PreDiffExecutor.Builder()
+            .readingOriginalFiles(oldFile, newFile)
+            .writingDeltaFriendlyFiles(singleThreadOldFile, singleThreadNewFile)
+            .withThreads(1)
+            .build()
+            .prepareForDiffing();
+    assertEquals(expected.getOldFileUncompressionPlan(), actual.getOldFileUncompressionPlan());
+    assertEquals(expected.getNewFileUncompressionPlan(), actual.getNewFileUncompressionPlan());
+    assertEquals(
+        expected.getDeltaFriendlyNewFileRecompressionPlan(),
+        actual.getDeltaFriendlyNewFileRecompressionPlan());
+    assertFileEquals(deltaFriendlyOldFile, singleThreadOldFile);
+    assertFileEquals(deltaFriendlyNewFile, singleThreadNewFile);
+  }
+
+  @Test
+  public void testWithThreads_Invalid() {
+    assertThrows(
+        IllegalArgumentException.class, () -> new PreDiffExecutor.Builder().withThreads(0));
+  }
 }
@@ -236,6 +236,15 @@ public class PreDiffPlannerTest {
   private PreDiffPlan invokeGeneratePreDiffPlan(
       File oldFile, File newFile, RecommendationModifier... recommendationModifiers)
       throws IOException {
+    return invokeGeneratePreDiffPlan(oldFile, newFile, 0, recommendationModifiers);
+  }
+
+  private PreDiffPlan invokeGeneratePreDiffPlan(
+      File oldFile,
+      File newFile,
+      long similarityBudget,
+      RecommendationModifier... recommendationModifiers)
+      throws IOException {
     Map<ByteArrayHolder, MinimalZipEntry> originalOldArchiveZipEntriesByPath =
         new LinkedHashMap<ByteArrayHolder, MinimalZipEntry>();
     Map<ByteArrayHolder, MinimalZipEntry> originalNewArchiveZipEntriesByPath =
@@ -262,6 +271,7 @@ public class PreDiffPlannerTest {
             newFile,
             originalNewArchiveZipEntriesByPath,
             originalNewArchiveJreDeflateParametersByPath,
+            similarityBudget,
             recommendationModifiers);
     return preDiffPlanner.generatePreDiffPlan();
   }
@@ -526,6 +536,32 @@ public class PreDiffPlannerTest {
     assertTrue(plan.getQualifiedRecommendations().isEmpty());
   }
 
+  @Test
+  public void testGeneratePreDiffPlan_TwoDifferentEntries_DifferentPaths_SimilarityBudget()
+      throws IOException {
+    // Same as above, but with a budget to look for renamed entries whose content also changed. A
+    // and B only differ in a short prefix before the corpus, so A is a diff base for B.
+    byte[] oldBytes = UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_A_LEVEL_6));
+    byte[] newBytes = UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_B_LEVEL_6));
+    File oldFile = storeAndMapArchive(oldBytes);
+    File newFile = storeAndMapArchive(newBytes);
+    PreDiffPlan plan = invokeGeneratePreDiffPlan(oldFile, newFile, 1024 * 1024);
+    assertNotNull(plan);
+    assertEquals(1, plan.getOldFileUncompressionPlan().size());
+    assertEquals(1, plan.getNewFileUncompressionPlan().size());
+    checkRecommendation(
+        plan,
+        new QualifiedRecommendation(
+            findEntry(oldFile, ENTRY_A_LEVEL_6),
+            findEntry(newFile, ENTRY_B_LEVEL_6),
+            Recommendation.UNCOMPRESS_BOTH,
+            RecommendationReason.COMPRESSED_BYTES_CHANGED));
+
+    // Without enough budget to read both entries, B stays new.
+    plan = invokeGeneratePreDiffPlan(oldFile, newFile, 1024);
+    assertTrue(plan.getQualifiedRecommendations().isEmpty());
+  }
+
   @Test
   public void testGeneratePreDiffPlan_TwoEntriesEachArchive_SwappingOrder() throws IOException {
     // Test the case where two entries in each archive have both changed, AND they have changed
@@ -22,6 +22,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
@@ -235,6 +236,65 @@ public class BsDiffTest {
     }
   }
 
+  @Test
+  public void lengthOfMatchByteBufferTest() throws IOException {
+    String s1 =
+        "this is a string that starts the same and has some sameness in the middle, but "
+            + "ends differently";
+    String s2 =
+        "this is a string that starts the samish and has some sameness in the middle, but "
+            + "then ends didlyiefferently";
+    ByteBuffer s1b = ByteBuffer.wrap(s1.getBytes(StandardCharsets.US_ASCII));
+    ByteBuffer s2b = ByteBuffer.wrap(s2.getBytes(StandardCharsets.US_ASCII));
+
+    assertEquals(36, BsDiff.lengthOfMatch(s1b, 0, s2b, 0));
+    assertEquals(0, BsDiff.lengthOfMatch(s1b, 5, s2b, 0));
+    assertEquals(31, BsDiff.lengthOfMatch(s1b, 5, s2b, 5));
+    assertEquals(42, BsDiff.lengthOfMatch(s1b, 37, s2b, 39));
+    assertEquals(0, BsDiff.lengthOfMatch(s1b, 38, s2b, 39));
+    assertEquals(32, BsDiff.lengthOfMatch(s1b, 47, s2b, 49));
+    assertEquals(2, BsDiff.lengthOfMatch(s1b, 90, s2b, 83));
+    assertEquals(0, BsDiff.lengthOfMatch(s1b, s1b.limit(), s2b, 0));
+  }
+
+  @Test
+  public void searchForMatchByteBufferTest() throws Exception {
+    String[] testCases = {
+      "a", "banana", "tobeornottobe", "elephantelephantelephantelephantelephant",
+    };
+    String[] queries = {"a", "nab", "ban", "tobeornot", "elephantelephantz", "zz", "antelope"};
+    for (String testCase : testCases) {
+      int size = testCase.length();
+      byte[] bytes = testCase.getBytes(StandardCharsets.US_ASCII);
+      RandomAccessObject input = new RandomAccessObject.RandomAccessByteArrayObject(bytes);
+      RandomAccessObject suffixArray =
+          new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory())
+              .suffixSort(input);
+      ByteBuffer suffixArrayBuffer = BsUtil.asByteBuffer(suffixArray);
+      ByteBuffer inputBuffer = BsUtil.asByteBuffer(input);
+
+      // The buffer version must make the same choices as the RandomAccessObject version.
+      for (String query : queries) {
+        byte[] queryBytes = query.getBytes(StandardCharsets.US_ASCII);
+        for (int start = 0; start < queryBytes.length; ++start) {
+          BsDiff.Match expected =
+              BsDiff.searchForMatch(
+                  suffixArray,
+                  input,
+                  new RandomAccessObject.RandomAccessByteArrayObject(queryBytes),
+                  start,
+                  0,
+                  size);
+          BsDiff.Match actual =
+              BsDiff.searchForMatch(
+                  suffixArrayBuffer, inputBuffer, ByteBuffer.wrap(queryBytes), start, 0, size);
+          assertEquals(expected.start, actual.start);
+          assertEquals(expected.length, actual.length);
+        }
+      }
+    }
+  }
+
   @Test
   public void generatePatchTest() throws Exception {
     ByteArrayOutputStream out = new ByteArrayOutputStream();
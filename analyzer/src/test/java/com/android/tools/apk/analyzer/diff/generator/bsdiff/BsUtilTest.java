@@ -23,6 +23,7 @@ import org.junit.jupiter.api.Test;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 public class BsUtilTest {
@@ -127,4 +128,38 @@ public class BsUtilTest {
     r = BsUtil.lexicographicalCompare(s1ro, 0, 2, s2ro, 0, 1);
     assertTrue(r > 0);
   }
+
+  @Test
+  public void lexicographicalCompareByteBufferTest() throws IOException {
+    // Differences at every offset, including past the last whole word, and bytes >= 0x80.
+    byte[] base = new byte[37];
+    for (int i = 0; i < base.length; i++) {
+      base[i] = (byte) (i * 7);
+    }
+    ByteBuffer baseBuffer = ByteBuffer.wrap(base);
+    RandomAccessObject baseRo = new RandomAccessObject.RandomAccessByteArrayObject(base);
+    for (int diff = 0; diff < base.length; diff++) {
+      for (int delta : new int[] {-0x90, -1, 1, 0x90}) {
+        byte[] other = base.clone();
+        other[diff] = (byte) (other[diff] + delta);
+        ByteBuffer otherBuffer = ByteBuffer.wrap(other);
+        RandomAccessObject otherRo = new RandomAccessObject.RandomAccessByteArrayObject(other);
+        for (int start = 0; start <= diff; start++) {
+          for (int length : new int[] {diff - start, diff - start + 1, base.length - start}) {
+            assertEquals(
+                Integer.signum(
+                    BsUtil.lexicographicalCompare(baseRo, start, length, otherRo, start, length)),
+                Integer.signum(
+                    BsUtil.lexicographicalCompare(
+                        baseBuffer, start, length, otherBuffer, start, length)));
+          }
+          assertEquals(
+              diff - start,
+              BsUtil.mismatch(baseBuffer, start, otherBuffer, start, base.length - start));
+        }
+      }
+    }
+    assertEquals(base.length - 3, BsUtil.mismatch(baseBuffer, 3, baseBuffer, 3, base.length - 3));
+    assertEquals(-1, BsUtil.lexicographicalCompare(baseBuffer, 0, 16, baseBuffer, 0, 17));
+  }
 }
@@ -0,0 +1,100 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.generator.bsdiff;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the suffix sorter tests with type B* substrings sorted on several threads, and checks that
+ * the output is byte-identical to the sequential sort.
+ */
+public class DivSuffixSorterParallelTest extends SuffixSorterTestBase {
+
+  DivSuffixSorter divSuffixSorter;
+
+  @BeforeEach
+  public void setup() {
+    divSuffixSorter =
+        new DivSuffixSorter(
+            new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory(), 4, 0);
+  }
+
+  @Override
+  public SuffixSorter getSuffixSorter() {
+    return divSuffixSorter;
+  }
+
+  @Test
+  public void testMatchesSequential() throws Exception {
+    DivSuffixSorter sequential =
+        new DivSuffixSorter(
+            new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory(),
+            1,
+            Integer.MAX_VALUE);
+    Random rand = new Random(4242);
+    for (int i = 1; i <= 5; i++) {
+      // Random bytes give many small buckets; a small alphabet with repeats gives few large
+      // buckets with long equal substrings.
+      byte[] random = new byte[i * 50000];
+      rand.nextBytes(random);
+      checkMatchesSequential(sequential, random);
+
+      byte[] repetitive = new byte[i * 50000];
+      for (int j = 0; j < repetitive.length; j++) {
+        repetitive[j] = (byte) ((j % 1000 < 500 ? j % 7 : rand.nextInt(4)) + 'a');
+      }
+      checkMatchesSequential(sequential, repetitive);
+    }
+  }
+
+  @Test
+  public void testThreadCountAboveThreshold() throws Exception {
+    // Above the default threshold, so the default sorter uses its own pool and the single-threaded
+    // one, as used under concurrent diffs, does not.
+    byte[] data = new byte[DivSuffixSorter.PARALLEL_THRESHOLD + 1000];
+    new Random(4343).nextBytes(data);
+    RandomAccessObjectFactory factory =
+        new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory();
+    RandomAccessObject expected =
+        new DivSuffixSorter(factory)
+            .suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(data));
+    RandomAccessObject actual =
+        new DivSuffixSorter(factory, 1)
+            .suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(data));
+    assertArrayEquals(randomAccessObjectToIntArray(expected), randomAccessObjectToIntArray(actual));
+  }
+
+  @Test
+  public void testRejectsNoThreads() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            new DivSuffixSorter(
+                new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory(), 0));
+  }
+
+  private void checkMatchesSequential(DivSuffixSorter sequential, byte[] data) throws Exception {
+    RandomAccessObject expected =
+        sequential.suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(data));
+    RandomAccessObject actual =
+        divSuffixSorter.suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(data));
+    assertArrayEquals(randomAccessObjectToIntArray(expected), randomAccessObjectToIntArray(actual));
+  }
+}
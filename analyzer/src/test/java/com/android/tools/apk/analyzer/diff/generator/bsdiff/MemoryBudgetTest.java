@@ -0,0 +1,190 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.generator.bsdiff;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.android.tools.apk.analyzer.diff.generator.bsdiff.RandomAccessObject.RandomAccessByteArrayObject;
+import com.android.tools.apk.analyzer.diff.generator.bsdiff.RandomAccessObject.RandomAccessFileObject;
+import com.android.tools.apk.analyzer.diff.generator.bsdiff.RandomAccessObject.RandomAccessMmapObject;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the suffix sorter tests with a {@link MemoryBudget} that leaves nothing for memory, so that
+ * every suffix array spills to a plain temp file, and checks where allocations are placed.
+ */
+public class MemoryBudgetTest extends SuffixSorterTestBase {
+
+  private MemoryBudget.Share spillingShare;
+
+  @BeforeEach
+  public void setup() {
+    spillingShare = new MemoryBudget(0, 0).open();
+  }
+
+  @AfterEach
+  public void tearDown() {
+    spillingShare.close();
+  }
+
+  @Override
+  public SuffixSorter getSuffixSorter() {
+    return new DivSuffixSorter(spillingShare);
+  }
+
+  @Test
+  public void testPlacement() throws Exception {
+    MemoryBudget budget = new MemoryBudget(100, 100);
+    try (MemoryBudget.Share share = budget.open();
+        RandomAccessObject heap = share.create(60);
+        RandomAccessObject mapped = share.create(60);
+        RandomAccessObject file = share.create(60)) {
+      assertEquals(RandomAccessByteArrayObject.class, heap.getClass());
+      assertEquals(RandomAccessMmapObject.class, mapped.getClass());
+      assertEquals(RandomAccessFileObject.class, file.getClass());
+      assertEquals(60, budget.getHeapBytesUsed());
+      assertEquals(60, budget.getMappedBytesUsed());
+    }
+    assertEquals(0, budget.getHeapBytesUsed());
+    assertEquals(0, budget.getMappedBytesUsed());
+  }
+
+  @Test
+  public void testPlacement_PreferringMapped() throws Exception {
+    MemoryBudget budget = new MemoryBudget(100, 100);
+    try (MemoryBudget.Share share = budget.openPreferringMapped();
+        RandomAccessObject mapped = share.create(60);
+        RandomAccessObject heap = share.create(60);
+        RandomAccessObject file = share.create(60)) {
+      assertEquals(RandomAccessMmapObject.class, mapped.getClass());
+      assertEquals(RandomAccessByteArrayObject.class, heap.getClass());
+      assertEquals(RandomAccessFileObject.class, file.getClass());
+      assertEquals(60, budget.getHeapBytesUsed());
+      assertEquals(60, budget.getMappedBytesUsed());
+    }
+    assertEquals(0, budget.getHeapBytesUsed());
+    assertEquals(0, budget.getMappedBytesUsed());
+  }
+
+  @Test
+  public void testFairShare() throws Exception {
+    MemoryBudget budget = new MemoryBudget(100, 0);
+    try (MemoryBudget.Share first = budget.open();
+        MemoryBudget.Share second = budget.open()) {
+      // Each of the two open shares may hold at most half of the budget.
+      try (RandomAccessObject tooLarge = first.create(60);
+          RandomAccessObject fits = first.create(50);
+          RandomAccessObject other = second.create(50);
+          RandomAccessObject spilled = second.create(1)) {
+        assertTrue(tooLarge instanceof RandomAccessFileObject);
+        assertEquals(RandomAccessByteArrayObject.class, fits.getClass());
+        assertEquals(RandomAccessByteArrayObject.class, other.getClass());
+        assertTrue(spilled instanceof RandomAccessFileObject);
+      }
+    }
+    // Once the others are closed, a share may use the whole budget.
+    try (MemoryBudget.Share only = budget.open();
+        RandomAccessObject all = only.create(100)) {
+      assertEquals(RandomAccessByteArrayObject.class, all.getClass());
+    }
+  }
+
+  @Test
+  public void testAccount() throws Exception {
+    MemoryBudget budget = new MemoryBudget(100, 0);
+    try (MemoryBudget.Share share = budget.open()) {
+      share.account(200);
+      assertEquals(200, budget.getHeapBytesUsed());
+      try (RandomAccessObject spilled = share.create(1)) {
+        assertTrue(spilled instanceof RandomAccessFileObject);
+      }
+    }
+    assertEquals(0, budget.getHeapBytesUsed());
+  }
+
+  @Test
+  public void testClosedShare() throws Exception {
+    MemoryBudget.Share share = new MemoryBudget(100, 100).open();
+    share.close();
+    share.close();
+    assertThrows(IllegalStateException.class, () -> share.create(1));
+  }
+
+  @Test
+  public void testGenerateDelta_SamePatchWherePlaced() throws Exception {
+    Random random = new Random(42);
+    byte[] oldData = new byte[20000];
+    random.nextBytes(oldData);
+    byte[] newData = oldData.clone();
+    for (int i = 0; i < 100; i++) {
+      newData[random.nextInt(newData.length)]++;
+    }
+    // On the heap, in a mapped file and in a plain file.
+    MemoryBudget[] budgets = {
+      new MemoryBudget(Long.MAX_VALUE, 0),
+      new MemoryBudget(0, Long.MAX_VALUE),
+      new MemoryBudget(0, 0)
+    };
+    byte[] expected = null;
+    for (MemoryBudget budget : budgets) {
+      ByteArrayOutputStream patch = new ByteArrayOutputStream();
+      new BsDiffDeltaGenerator(null, budget).generateDelta(oldData, newData, patch);
+      if (expected == null) {
+        expected = patch.toByteArray();
+      } else {
+        assertArrayEquals(expected, patch.toByteArray());
+      }
+      assertEquals(0, budget.getHeapBytesUsed());
+      assertEquals(0, budget.getMappedBytesUsed());
+    }
+  }
+
+  @Test
+  public void testGenerateDelta_CacheBypassesBudget() throws Exception {
+    byte[] oldData = new byte[5000];
+    new Random(42).nextBytes(oldData);
+    byte[] newData = oldData.clone();
+    newData[100]++;
+    MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE, Long.MAX_VALUE);
+    List<Long> heapBytesUsedWhenSorting = new ArrayList<>();
+    List<Long> mappedBytesUsedWhenSorting = new ArrayList<>();
+    RandomAccessObjectFactory cacheStorage =
+        size -> {
+          heapBytesUsedWhenSorting.add(budget.getHeapBytesUsed());
+          mappedBytesUsedWhenSorting.add(budget.getMappedBytesUsed());
+          return new RandomAccessByteArrayObject(size);
+        };
+    try (SuffixArrayCache cache = new SuffixArrayCache(cacheStorage, Long.MAX_VALUE)) {
+      new BsDiffDeltaGenerator(cache, budget)
+          .generateDelta(oldData, newData, new ByteArrayOutputStream());
+      assertEquals(1, cache.getMissCount());
+    }
+    // The suffix array is in the cache's storage; only the blobs are counted against the budget.
+    assertEquals(Collections.singletonList((long) oldData.length + newData.length),
+        heapBytesUsedWhenSorting);
+    assertEquals(Collections.singletonList(0L), mappedBytesUsedWhenSorting);
+    assertEquals(0, budget.getHeapBytesUsed());
+  }
+}
@@ -0,0 +1,183 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.generator.bsdiff;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the suffix sorter tests through a {@link SuffixArrayCache}, and checks its hits, misses and
+ * evictions.
+ */
+public class SuffixArrayCacheTest extends SuffixSorterTestBase {
+
+  SuffixArrayCache cache;
+
+  @BeforeEach
+  public void setup() {
+    cache =
+        new SuffixArrayCache(
+            new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory(),
+            SuffixArrayCache.DEFAULT_MAX_BYTES);
+  }
+
+  @AfterEach
+  public void tearDown() throws Exception {
+    cache.close();
+  }
+
+  @Override
+  public SuffixSorter getSuffixSorter() {
+    return cache;
+  }
+
+  @Test
+  public void testHit() throws Exception {
+    byte[] data = randomBytes(1000, 1);
+    int[] first = sort(cache, data);
+    int[] second = sort(cache, data.clone());
+
+    assertArrayEquals(first, second);
+    assertArrayEquals(sort(new DivSuffixSorter(byteArrayFactory()), data), second);
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(4 * (data.length + 1), cache.getSizeBytes());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    // Room for two suffix arrays of 100 bytes of input.
+    SuffixArrayCache small = new SuffixArrayCache(byteArrayFactory(), 2 * 4 * 101);
+    byte[] a = randomBytes(100, 1);
+    byte[] b = randomBytes(100, 2);
+    byte[] c = randomBytes(100, 3);
+    sort(small, a);
+    sort(small, b);
+    sort(small, a);
+    sort(small, c); // Evicts b, the least recently used.
+    assertEquals(3, small.getMissCount());
+    assertEquals(1, small.getHitCount());
+
+    sort(small, a);
+    assertEquals(2, small.getHitCount());
+    sort(small, b);
+    assertEquals(4, small.getMissCount());
+    assertEquals(2 * 4 * 101, small.getSizeBytes());
+    small.close();
+    assertEquals(0, small.getSizeBytes());
+  }
+
+  @Test
+  public void testViewOutlivesEviction() throws Exception {
+    // Room for one suffix array of 100 bytes of input, in storage that records when it is closed.
+    List<RandomAccessObject> closed = new ArrayList<>();
+    RandomAccessObjectFactory recordingFactory =
+        size ->
+            new RandomAccessObject.RandomAccessByteArrayObject(size) {
+              @Override
+              public void close() {
+                closed.add(this);
+              }
+            };
+    SuffixArrayCache small = new SuffixArrayCache(recordingFactory, 4 * 101);
+    byte[] a = randomBytes(100, 1);
+    int[] expected = sort(new DivSuffixSorter(byteArrayFactory()), a);
+    try (RandomAccessObject view =
+        small.suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(a))) {
+      sort(small, randomBytes(100, 2)); // Evicts a, whose view is still open.
+      assertEquals(4 * 101, small.getSizeBytes());
+      assertTrue(closed.isEmpty());
+      assertArrayEquals(expected, randomAccessObjectToIntArray(view));
+    }
+    // Closing the last view closes the evicted suffix array.
+    assertEquals(1, closed.size());
+    small.close();
+    assertEquals(2, closed.size());
+  }
+
+  @Test
+  public void testCloseWithOpenView() throws Exception {
+    byte[] data = randomBytes(1000, 1);
+    int[] expected = sort(new DivSuffixSorter(byteArrayFactory()), data);
+    try (SuffixArrayCache mmapCache = new SuffixArrayCache(SuffixArrayCache.DEFAULT_MAX_BYTES);
+        RandomAccessObject view =
+            mmapCache.suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(data))) {
+      mmapCache.close();
+      assertEquals(0, mmapCache.getSizeBytes());
+      // The mapped suffix array stays open until its view is closed.
+      assertArrayEquals(expected, randomAccessObjectToIntArray(view));
+    }
+  }
+
+  @Test
+  public void testLargerThanBudgetNotCached() throws Exception {
+    SuffixArrayCache small = new SuffixArrayCache(byteArrayFactory(), 100);
+    byte[] data = randomBytes(100, 1);
+    int[] first = sort(small, data);
+    int[] second = sort(small, data);
+    assertArrayEquals(first, second);
+    assertEquals(0, small.getHitCount());
+    assertEquals(0, small.getMissCount());
+    assertEquals(0, small.getSizeBytes());
+  }
+
+  @Test
+  public void testPatchMatchesUncached() throws Exception {
+    byte[] oldData = randomBytes(20000, 1);
+    byte[] newData = oldData.clone();
+    for (int i = 0; i < newData.length; i += 997) {
+      newData[i]++;
+    }
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(oldData, newData, expected, 16);
+
+    try (SuffixArrayCache mmapCache = new SuffixArrayCache(SuffixArrayCache.DEFAULT_MAX_BYTES)) {
+      for (int i = 0; i < 3; i++) {
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        BsDiffPatchWriter.generatePatchWithSuffixSorter(oldData, newData, actual, mmapCache, 16);
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+      }
+      assertEquals(1, mmapCache.getMissCount());
+      assertEquals(2, mmapCache.getHitCount());
+      assertTrue(mmapCache.getSizeBytes() > 0);
+    }
+  }
+
+  private static RandomAccessObjectFactory byteArrayFactory() {
+    return new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory();
+  }
+
+  private static byte[] randomBytes(int length, long seed) {
+    byte[] result = new byte[length];
+    new Random(seed).nextBytes(result);
+    return result;
+  }
+
+  private static int[] sort(SuffixSorter sorter, byte[] data) throws Exception {
+    try (RandomAccessObject suffixArray =
+        sorter.suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(data))) {
+      return randomAccessObjectToIntArray(suffixArray);
+    }
+  }
+}
@@ -0,0 +1,213 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.generator.similarity;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.android.tools.apk.analyzer.diff.generator.MinimalZipArchive;
+import com.android.tools.apk.analyzer.diff.generator.MinimalZipEntry;
+import com.android.tools.apk.analyzer.diff.shared.UnitTestZipArchive;
+import com.android.tools.apk.analyzer.diff.shared.UnitTestZipEntry;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link MinHashSimilarityFinder}.
+ */
+public class MinHashSimilarityFinderTest {
+  // A and B differ only in a short prefix before the standard corpus.
+  private static final UnitTestZipEntry ENTRY_A =
+      UnitTestZipArchive.makeUnitTestZipEntry("/assets/a.bin", 6, "entry A", null);
+  private static final UnitTestZipEntry ENTRY_B =
+      UnitTestZipArchive.makeUnitTestZipEntry("/assets/renamed.bin", 9, "entry B", null);
+  private static final UnitTestZipEntry ENTRY_B_STORED =
+      UnitTestZipArchive.makeUnitTestZipEntry("/assets/renamed.bin", 0, "entry B", null);
+  private static final UnitTestZipEntry ENTRY_B_OTHER_EXTENSION =
+      UnitTestZipArchive.makeUnitTestZipEntry("/assets/renamed.txt", 6, "entry B", null);
+  private static final UnitTestZipEntry ENTRY_RANDOM =
+      new UnitTestZipEntry("/assets/random.bin", 6, randomText(ENTRY_A.content.length()), null);
+
+  private final List<File> tempFiles = new ArrayList<>();
+
+  @AfterEach
+  public void tearDown() {
+    for (File file : tempFiles) {
+      file.delete();
+    }
+  }
+
+  private static String randomText(int length) {
+    Random random = new Random(1234);
+    StringBuilder builder = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      builder.append((char) ('a' + random.nextInt(26)));
+    }
+    return builder.toString();
+  }
+
+  private File save(UnitTestZipEntry... entries) throws IOException {
+    File file = File.createTempFile("mhsft", "zip");
+    file.deleteOnExit();
+    tempFiles.add(file);
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(UnitTestZipArchive.makeTestZip(Arrays.asList(entries)));
+    }
+    return file;
+  }
+
+  private static MinimalZipEntry find(File file, UnitTestZipEntry entry) throws IOException {
+    for (MinimalZipEntry zipEntry : MinimalZipArchive.listEntries(file)) {
+      if (zipEntry.getFileName().equals(entry.path)) {
+        return zipEntry;
+      }
+    }
+    throw new AssertionError("no entry " + entry.path);
+  }
+
+  @Test
+  public void testFindSimilarFiles_ModifiedRename() throws IOException {
+    File oldFile = save(ENTRY_A, ENTRY_RANDOM);
+    File newFile = save(ENTRY_B);
+    MinHashSimilarityFinder finder =
+        new MinHashSimilarityFinder(oldFile, MinimalZipArchive.listEntries(oldFile));
+    assertEquals(
+        Collections.singletonList(find(oldFile, ENTRY_A)),
+        finder.findSimilarFiles(newFile, find(newFile, ENTRY_B)));
+  }
+
+  @Test
+  public void testFindSimilarFiles_StoredAndDeflatedAlike() throws IOException {
+    File oldFile = save(ENTRY_A);
+    File newFile = save(ENTRY_B_STORED);
+    MinHashSimilarityFinder finder =
+        new MinHashSimilarityFinder(oldFile, MinimalZipArchive.listEntries(oldFile));
+    assertEquals(
+        Collections.singletonList(find(oldFile, ENTRY_A)),
+        finder.findSimilarFiles(newFile, find(newFile, ENTRY_B_STORED)));
+  }
+
+  @Test
+  public void testFindSimilarFiles_MostSimilarFirst() throws IOException {
+    // The random entry is considered first, as it is closest in size, but is not similar at all.
+    File oldFile = save(ENTRY_RANDOM, ENTRY_A);
+    File newFile = save(ENTRY_B);
+    MinHashSimilarityFinder finder =
+        new MinHashSimilarityFinder(
+            oldFile, MinimalZipArchive.listEntries(oldFile), Long.MAX_VALUE, 0.01);
+    List<MinimalZipEntry> similar = finder.findSimilarFiles(newFile, find(newFile, ENTRY_B));
+    assertTrue(!similar.isEmpty());
+    assertEquals(find(oldFile, ENTRY_A), similar.get(0));
+  }
+
+  @Test
+  public void testFindSimilarFiles_DifferentExtension() throws IOException {
+    File oldFile = save(ENTRY_A);
+    File newFile = save(ENTRY_B_OTHER_EXTENSION);
+    MinHashSimilarityFinder finder =
+        new MinHashSimilarityFinder(oldFile, MinimalZipArchive.listEntries(oldFile));
+    assertEquals(
+        Collections.emptyList(),
+        finder.findSimilarFiles(newFile, find(newFile, ENTRY_B_OTHER_EXTENSION)));
+    // Nothing to compare with, so nothing was read.
+    assertEquals(0, finder.getBytesRead());
+  }
+
+  @Test
+  public void testFindSimilarFiles_Dissimilar() throws IOException {
+    File oldFile = save(ENTRY_RANDOM);
+    File newFile = save(ENTRY_B);
+    MinHashSimilarityFinder finder =
+        new MinHashSimilarityFinder(oldFile, MinimalZipArchive.listEntries(oldFile));
+    assertEquals(Collections.emptyList(), finder.findSimilarFiles(newFile, find(newFile, ENTRY_B)));
+  }
+
+  @Test
+  public void testFindSimilarFiles_Budget() throws IOException {
+    File oldFile = save(ENTRY_A, ENTRY_RANDOM);
+    File newFile = save(ENTRY_B);
+    MinimalZipEntry newEntry = find(newFile, ENTRY_B);
+    long newSize = newEntry.getUncompressedSize();
+
+    // Not enough budget for the new entry itself.
+    MinHashSimilarityFinder finder =
+        new MinHashSimilarityFinder(
+            oldFile,
+            MinimalZipArchive.listEntries(oldFile),
+            newSize - 1,
+            MinHashSimilarityFinder.DEFAULT_MIN_SIMILARITY);
+    assertEquals(Collections.emptyList(), finder.findSimilarFiles(newFile, newEntry));
+    assertEquals(0, finder.getBytesRead());
+
+    // Enough for the new entry and the candidate closest in size, which is A.
+    long aSize = find(oldFile, ENTRY_A).getUncompressedSize();
+    finder =
+        new MinHashSimilarityFinder(
+            oldFile,
+            MinimalZipArchive.listEntries(oldFile),
+            newSize + aSize,
+            MinHashSimilarityFinder.DEFAULT_MIN_SIMILARITY);
+    assertEquals(
+        Collections.singletonList(find(oldFile, ENTRY_A)),
+        finder.findSimilarFiles(newFile, newEntry));
+    assertEquals(newSize + aSize, finder.getBytesRead());
+  }
+
+  @Test
+  public void testEstimateSimilarity() throws IOException {
+    byte[] text = randomText(100000).getBytes(StandardCharsets.UTF_8);
+    long[] sketch = sketch(text);
+    assertEquals(MinHashSimilarityFinder.SKETCH_SIZE, sketch.length);
+    assertEquals(1.0, MinHashSimilarityFinder.estimateSimilarity(sketch, sketch));
+
+    // Changing every 64th byte changes a quarter of the 16 byte windows, so 3 in 5 of the windows
+    // of either file are in both.
+    byte[] modified = text.clone();
+    for (int i = 0; i < modified.length; i += 64) {
+      modified[i] ^= 1;
+    }
+    double similarity = MinHashSimilarityFinder.estimateSimilarity(sketch, sketch(modified));
+    assertTrue(similarity > 0.45 && similarity < 0.75, "similarity " + similarity);
+
+    byte[] other = ENTRY_A.content.getBytes(StandardCharsets.UTF_8);
+    assertEquals(0.0, MinHashSimilarityFinder.estimateSimilarity(sketch, sketch(other)));
+  }
+
+  @Test
+  public void testEstimateSimilarity_ShortSketches() throws IOException {
+    // Files with fewer windows than a full sketch are compared exactly.
+    long[] abc = sketch("0123456789abcdefg".getBytes(StandardCharsets.UTF_8));
+    long[] abcd = sketch("0123456789abcdefgh".getBytes(StandardCharsets.UTF_8));
+    assertEquals(2, abc.length);
+    assertEquals(3, abcd.length);
+    assertEquals(2.0 / 3, MinHashSimilarityFinder.estimateSimilarity(abc, abcd), 1e-9);
+    assertEquals(0.0, MinHashSimilarityFinder.estimateSimilarity(abc, new long[0]));
+  }
+
+  private static long[] sketch(byte[] data) throws IOException {
+    MinHashSimilarityFinder.Sketcher sketcher = new MinHashSimilarityFinder.Sketcher();
+    sketcher.write(data);
+    return sketcher.getSketch();
+  }
+}
@@ -28,6 +28,7 @@ import org.junit.jupiter.api.Test;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
@@ -94,6 +95,47 @@ public class DeflateCompressorTest {
     assertArrayEquals(CONTENT, uncompressed);
   }
 
+  @Test
+  public void testNewCompressingStream() throws IOException {
+    for (int level : new int[] {1, 6, 9}) {
+      compressor.setCompressionLevel(level);
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      compressor.compress(new ByteArrayInputStream(CONTENT), expected);
+
+      // Write in odd-sized chunks, and single bytes, to check that chunking does not matter.
+      ByteArrayOutputStream actual = new ByteArrayOutputStream();
+      try (OutputStream out = compressor.newCompressingStream(actual)) {
+        int offset = 0;
+        for (int chunk = 1; offset < CONTENT.length; chunk = chunk * 3 + 1) {
+          int length = Math.min(chunk, CONTENT.length - offset);
+          if (length == 1) {
+            out.write(CONTENT[offset]);
+          } else {
+            out.write(CONTENT, offset, length);
+          }
+          offset += length;
+        }
+      }
+      assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+  }
+
+  @Test
+  public void testNewCompressingStream_DefaultImplementation() throws IOException {
+    // A compressor that only implements compress() gets a stream that spills the data to a temp
+    // file and compresses it from there on close.
+    Compressor plain = (in, out) -> compressor.compress(in, out);
+    compressor.compress(rawContentIn, compressedContentOut);
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    OutputStream out = plain.newCompressingStream(actual);
+    out.write(CONTENT, 0, 10);
+    out.write(CONTENT, 10, CONTENT.length - 10);
+    assertEquals(0, actual.size());
+    out.close();
+    out.close();
+    assertArrayEquals(compressedContentOut.toByteArray(), actual.toByteArray());
+  }
+
   @Test
   public void testCorrectDefaults() {
     // Sanity check to ensure that defaults are as we want them to be. Arguably crufty but nobody
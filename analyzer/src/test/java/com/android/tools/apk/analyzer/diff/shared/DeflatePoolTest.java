@@ -0,0 +1,204 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.shared;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Tests for {@link DeflatePool}.
+ */
+public class DeflatePoolTest {
+  /**
+   * Test data that compresses differently at each level and strategy.
+   */
+  private static final byte[] CONTENT = new DefaultDeflateCompatibilityWindow().getCorpus();
+
+  @Test
+  public void testDeflater_Reused() {
+    DeflatePool pool = new DeflatePool(2);
+    Deflater deflater1 = pool.acquireDeflater(6, 0, true);
+    pool.release(deflater1);
+    assertSame(deflater1, pool.acquireDeflater(6, 0, true));
+    assertEquals(1, pool.getDeflatersCreated());
+    assertEquals(1, pool.getDeflatersReused());
+  }
+
+  @Test
+  public void testDeflater_KeyedByParameters() {
+    DeflatePool pool = new DeflatePool(2);
+    Deflater deflater = pool.acquireDeflater(6, 0, true);
+    pool.release(deflater);
+    assertNotSame(deflater, pool.acquireDeflater(9, 0, true));
+    assertNotSame(deflater, pool.acquireDeflater(6, 1, true));
+    assertNotSame(deflater, pool.acquireDeflater(6, 0, false));
+    assertEquals(4, pool.getDeflatersCreated());
+    assertEquals(0, pool.getDeflatersReused());
+  }
+
+  @Test
+  public void testDeflater_ReusedOutputMatchesFresh() throws Exception {
+    // A deflater whose parameters were changed while borrowed must come back with the ones it was
+    // acquired with, and must produce the same bytes as a new deflater.
+    DeflatePool pool = new DeflatePool(2);
+    Deflater deflater = pool.acquireDeflater(6, 1, true);
+    deflater.setLevel(1);
+    deflater.setStrategy(2);
+    deflate(deflater);
+    pool.release(deflater);
+    Deflater reused = pool.acquireDeflater(6, 1, true);
+    assertSame(deflater, reused);
+    Deflater fresh = new Deflater(6, true);
+    fresh.setStrategy(1);
+    try {
+      assertArrayEquals(deflate(fresh), deflate(reused));
+    } finally {
+      fresh.end();
+    }
+  }
+
+  @Test
+  public void testInflater_Reused() throws Exception {
+    DeflatePool pool = new DeflatePool(2);
+    Inflater inflater = pool.acquireInflater(true);
+    Deflater deflater = pool.acquireDeflater(9, 0, true);
+    byte[] compressed = deflate(deflater);
+    byte[] uncompressed = new byte[CONTENT.length];
+    inflater.setInput(compressed);
+    assertEquals(CONTENT.length, inflater.inflate(uncompressed));
+    pool.release(inflater);
+    assertNotSame(inflater, pool.acquireInflater(false));
+    Inflater reused = pool.acquireInflater(true);
+    assertSame(inflater, reused);
+    // Reset on release, so ready for a new stream.
+    reused.setInput(compressed);
+    assertEquals(CONTENT.length, reused.inflate(uncompressed));
+    assertArrayEquals(CONTENT, uncompressed);
+    assertEquals(2, pool.getInflatersCreated());
+    assertEquals(1, pool.getInflatersReused());
+  }
+
+  @Test
+  public void testMaxIdlePerKey() {
+    DeflatePool pool = new DeflatePool(1);
+    Deflater deflater1 = pool.acquireDeflater(6, 0, true);
+    Deflater deflater2 = pool.acquireDeflater(6, 0, true);
+    pool.release(deflater1);
+    pool.release(deflater2);
+    assertEquals(1, pool.getIdleCount());
+    assertEquals(1, pool.getInstancesEnded());
+    // The one that did not fit was ended.
+    assertThrows(NullPointerException.class, () -> deflater2.reset());
+  }
+
+  @Test
+  public void testRelease_ForeignInstancesEnded() {
+    DeflatePool pool = new DeflatePool(2);
+    Deflater deflater = new Deflater();
+    Inflater inflater = new Inflater();
+    pool.release(deflater);
+    pool.release(inflater);
+    assertEquals(0, pool.getIdleCount());
+    assertThrows(NullPointerException.class, () -> deflater.reset());
+    assertThrows(NullPointerException.class, () -> inflater.reset());
+  }
+
+  @Test
+  public void testClear() {
+    DeflatePool pool = new DeflatePool(2);
+    Deflater deflater = pool.acquireDeflater(6, 0, true);
+    Inflater inflater = pool.acquireInflater(true);
+    pool.release(deflater);
+    pool.release(inflater);
+    assertEquals(2, pool.getIdleCount());
+    pool.clear();
+    assertEquals(0, pool.getIdleCount());
+    assertEquals(2, pool.getInstancesEnded());
+    assertNotSame(deflater, pool.acquireDeflater(6, 0, true));
+  }
+
+  @Test
+  public void testAcquireDeflater_BadParameters() {
+    DeflatePool pool = new DeflatePool(2);
+    assertThrows(IllegalArgumentException.class, () -> pool.acquireDeflater(10, 0, true));
+    assertThrows(IllegalArgumentException.class, () -> pool.acquireDeflater(6, 3, true));
+  }
+
+  @Test
+  public void testConcurrent() throws Exception {
+    // No instance may be handed to two borrowers at once.
+    final DeflatePool pool = new DeflatePool(4);
+    final Set<Deflater> borrowed = Collections.newSetFromMap(new IdentityHashMap<>());
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Void>> results = new ArrayList<>();
+      for (int task = 0; task < 4; task++) {
+        results.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < 200; i++) {
+                    Deflater deflater = pool.acquireDeflater(6, 0, true);
+                    synchronized (borrowed) {
+                      if (!borrowed.add(deflater)) {
+                        throw new AssertionError("Deflater handed out twice");
+                      }
+                    }
+                    deflater.setInput(CONTENT, 0, 64);
+                    deflater.finish();
+                    deflater.deflate(new byte[128]);
+                    synchronized (borrowed) {
+                      borrowed.remove(deflater);
+                    }
+                    pool.release(deflater);
+                  }
+                  return null;
+                }));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(800, pool.getDeflatersCreated() + pool.getDeflatersReused());
+    assertEquals(pool.getDeflatersCreated(), pool.getIdleCount() + pool.getInstancesEnded());
+  }
+
+  private static byte[] deflate(Deflater deflater) throws Exception {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    DeflaterOutputStream out = new DeflaterOutputStream(buffer, deflater);
+    out.write(CONTENT);
+    out.finish();
+    return buffer.toByteArray();
+  }
+}
@@ -0,0 +1,121 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.android.tools.apk.analyzer.diff.shared;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.android.tools.apk.analyzer.diff.generator.MinimalZipArchive;
+import com.android.tools.apk.analyzer.diff.generator.MinimalZipEntry;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for {@link DeltaFriendlyFile}.
+ */
+public class DeltaFriendlyFileTest {
+  private File archiveFile;
+  private File deltaFriendlyFile;
+  private List<TypedRange<String>> ranges;
+  private long[] uncompressedLengths;
+
+  @BeforeEach
+  public void setup() throws IOException {
+    archiveFile = File.createTempFile("dfft", ".zip");
+    archiveFile.deleteOnExit();
+    UnitTestZipArchive.saveTestZip(archiveFile);
+    deltaFriendlyFile = File.createTempFile("dfft", ".df");
+    deltaFriendlyFile.deleteOnExit();
+
+    ranges = new ArrayList<>();
+    List<Long> lengths = new ArrayList<>();
+    for (MinimalZipEntry entry : MinimalZipArchive.listEntries(archiveFile)) {
+      if (entry.isDeflateCompressed()) {
+        ranges.add(
+            new TypedRange<String>(
+                entry.getFileOffsetOfCompressedData(),
+                entry.getCompressedSize(),
+                entry.getFileName()));
+        lengths.add(entry.getUncompressedSize());
+      }
+    }
+    uncompressedLengths = new long[lengths.size()];
+    for (int i = 0; i < uncompressedLengths.length; i++) {
+      uncompressedLengths[i] = lengths.get(i);
+    }
+  }
+
+  @AfterEach
+  public void tearDown() {
+    archiveFile.delete();
+    deltaFriendlyFile.delete();
+  }
+
+  /**
+   * Generates the delta-friendly file by streaming, checks that it has the same inverse ranges as
+   * |parallelInverse| and returns its bytes.
+   */
+  private byte[] stream(List<TypedRange<String>> parallelInverse) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    List<TypedRange<String>> inverse =
+        DeltaFriendlyFile.generateDeltaFriendlyFile(ranges, archiveFile, out);
+    assertEquals(inverse, parallelInverse);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testGenerateDeltaFriendlyFile_Parallel() throws IOException {
+    assertEquals(3, ranges.size());
+    for (int threads : new int[] {1, 2, 8}) {
+      List<TypedRange<String>> inverse =
+          DeltaFriendlyFile.generateDeltaFriendlyFile(
+              ranges, uncompressedLengths, archiveFile, deltaFriendlyFile, threads);
+      assertArrayEquals(stream(inverse), Files.readAllBytes(deltaFriendlyFile.toPath()));
+    }
+  }
+
+  @Test
+  public void testGenerateDeltaFriendlyFile_Parallel_NoRanges() throws IOException {
+    ranges = Collections.emptyList();
+    List<TypedRange<String>> inverse =
+        DeltaFriendlyFile.generateDeltaFriendlyFile(
+            ranges, new long[0], archiveFile, deltaFriendlyFile, 4);
+    assertEquals(0, inverse.size());
+    assertArrayEquals(
+        Files.readAllBytes(archiveFile.toPath()), Files.readAllBytes(deltaFriendlyFile.toPath()));
+  }
+
+  @Test
+  public void testGenerateDeltaFriendlyFile_Parallel_WrongLengths() throws IOException {
+    // Lengths that do not match what the ranges uncompress to are only a hint; the result is the
+    // same as streaming, whether the hint was too short or too long.
+    for (long delta : new long[] {-1, 1}) {
+      long[] wrongLengths = uncompressedLengths.clone();
+      wrongLengths[1] += delta;
+      List<TypedRange<String>> inverse =
+          DeltaFriendlyFile.generateDeltaFriendlyFile(
+              ranges, wrongLengths, archiveFile, deltaFriendlyFile, 4);
+      assertArrayEquals(stream(inverse), Files.readAllBytes(deltaFriendlyFile.toPath()));
+    }
+  }
+}
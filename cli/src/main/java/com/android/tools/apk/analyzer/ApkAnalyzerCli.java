@@ -61,6 +61,7 @@ public class ApkAnalyzerCli {
     private static final String FLAG_PATCH_SIZE = "patch-size";
     private static final String FLAG_FILE_PATH = "file";
     private static final String FLAG_DIFF_ONLY = "different-only";
+    private static final String FLAG_SIMILARITY = "similarity";
     private static final String FLAG_RAW_SIZE = "raw-size";
     private static final String FLAG_DOWNLOAD_SIZE = "download-size";
     private static final String FLAG_HUMAN_READABLE = "human-readable";
@@ -368,6 +369,7 @@ public class ApkAnalyzerCli {
             @Nullable private OptionSpecBuilder diffOnlySpec;
             @Nullable private OptionSpecBuilder filesOnlySpec;
             @Nullable private OptionSpecBuilder patchSpec;
+            @Nullable private OptionSpecBuilder similaritySpec;
             @Nullable private OptionParser parser;
 
             @NonNull
@@ -386,6 +388,11 @@ public class ApkAnalyzerCli {
                             parser.acceptsAll(
                                     Arrays.asList("d", FLAG_DIFF_ONLY),
                                     "Only print directories/files with differences.");
+                    similaritySpec =
+                            parser.accepts(
+                                    FLAG_SIMILARITY,
+                                    "With --patch-size, also diff renamed or modified files against"
+                                            + " the old file with the most similar content.");
                 }
                 return parser;
             }
@@ -408,7 +415,8 @@ public class ApkAnalyzerCli {
                         files.get(1).toPath(),
                         opts.has(patchSpec),
                         opts.has(filesOnlySpec),
-                        opts.has(diffOnlySpec));
+                        opts.has(diffOnlySpec),
+                        opts.has(similaritySpec));
             }
         },
         FILES_LIST(SUBJECT_FILES, ACTION_LIST, "Lists all files in the zip.") {
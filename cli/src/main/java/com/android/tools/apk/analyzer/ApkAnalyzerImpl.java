@@ -53,6 +53,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.DecimalFormat;
@@ -102,11 +104,14 @@ public class ApkAnalyzerImpl {
     public void resXml(@NonNull Path apk, @NonNull String filePath) {
         try (ArchiveContext archiveContext = Archives.open(apk)) {
             Path path = archiveContext.getArchive().getContentRoot().resolve(filePath);
-            byte[] bytes = Files.readAllBytes(path);
-            if (!archiveContext.getArchive().isBinaryXml(path, bytes)) {
+            ByteBuffer xml = Archives.readEntry(archiveContext.getArchive(), path);
+            // only the chunk type at the start of the file is needed to tell binary XML apart
+            byte[] header = new byte[Math.min(xml.remaining(), Chunk.METADATA_SIZE)];
+            xml.duplicate().get(header);
+            if (!archiveContext.getArchive().isBinaryXml(path, header)) {
                 throw new IOException("The supplied file is not a binary XML resource.");
             }
-            out.write(BinaryXmlParser.decodeXml(path.getFileName().toString(), bytes));
+            writeXml(path, xml);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
@@ -203,9 +208,9 @@ public class ApkAnalyzerImpl {
     }
 
     private static ResourceTableChunk getResourceTableChunk(ArchiveContext archiveContext) throws IOException {
-        byte[] resContents =
-                Files.readAllBytes(
-                        archiveContext.getArchive().getContentRoot().resolve("resources.arsc"));
+        Archive archive = archiveContext.getArchive();
+        ByteBuffer resContents =
+                Archives.readEntry(archive, archive.getContentRoot().resolve("resources.arsc"));
         BinaryResourceFile binaryRes = new BinaryResourceFile(resContents);
         List<Chunk> chunks = binaryRes.getChunks();
         if (chunks.isEmpty()) {
@@ -661,13 +666,22 @@ public class ApkAnalyzerImpl {
                             .getArchive()
                             .getContentRoot()
                             .resolve(SdkConstants.ANDROID_MANIFEST_XML);
-            byte[] bytes = Files.readAllBytes(path);
-            out.write(BinaryXmlParser.decodeXml(path.getFileName().toString(), bytes));
+            writeXml(path, Archives.readEntry(archiveContext.getArchive(), path));
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
+    /**
+     * Writes the binary XML file {@code xml} to the output as text, decoding it as it goes. If it
+     * turns out not to be binary XML, it is written as is.
+     */
+    private void writeXml(@NonNull Path path, @NonNull ByteBuffer xml) throws IOException {
+        if (!BinaryXmlParser.decodeXml(path.getFileName().toString(), xml, out)) {
+            Channels.newChannel(out).write(xml.duplicate());
+        }
+    }
+
     public void apkDownloadSize(@NonNull Path apk) {
         ApkSizeCalculator sizeCalculator = ApkSizeCalculator.getDefault();
         out.println(getSize(sizeCalculator.getFullApkDownloadSize(apk)));
@@ -684,11 +698,23 @@ public class ApkAnalyzerImpl {
             boolean patchSize,
             boolean showFilesOnly,
             boolean showDifferentOnly) {
+        apkCompare(oldApkFile, newApkFile, patchSize, showFilesOnly, showDifferentOnly, false);
+    }
+
+    public void apkCompare(
+            @NonNull Path oldApkFile,
+            @NonNull Path newApkFile,
+            boolean patchSize,
+            boolean showFilesOnly,
+            boolean showDifferentOnly,
+            boolean findSimilarFiles) {
         try (ArchiveContext archiveContext1 = Archives.open(oldApkFile);
              ArchiveContext archiveContext2 = Archives.open(newApkFile)) {
             DefaultMutableTreeNode node;
             if (patchSize) {
-                node = ApkFileByFileDiffParser.createTreeNode(archiveContext1, archiveContext2);
+                node =
+                        ApkFileByFileDiffParser.createTreeNode(
+                                archiveContext1, archiveContext2, findSimilarFiles);
             } else {
                 node = ApkDiffParser.createTreeNode(archiveContext1, archiveContext2);
             }
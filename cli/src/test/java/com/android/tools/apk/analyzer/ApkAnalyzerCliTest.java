@@ -53,11 +53,15 @@ public class ApkAnalyzerCliTest {
         verify(impl).apkSummary(Paths.get("apk1"));
 
         cli.run("apk", "compare", "apk1", "apk2");
-        verify(impl).apkCompare(Paths.get("apk1"), Paths.get("apk2"), false, false, false);
+        verify(impl).apkCompare(Paths.get("apk1"), Paths.get("apk2"), false, false, false, false);
 
         cli.run("apk", "compare", "--files-only", "apk1", "apk2");
         cli.run("-h", "apk", "compare", "--files-only", "apk1", "apk2");
-        verify(impl, times(2)).apkCompare(Paths.get("apk1"), Paths.get("apk2"), false, true, false);
+        verify(impl, times(2))
+                .apkCompare(Paths.get("apk1"), Paths.get("apk2"), false, true, false, false);
+
+        cli.run("apk", "compare", "--patch-size", "--similarity", "apk1", "apk2");
+        verify(impl).apkCompare(Paths.get("apk1"), Paths.get("apk2"), true, false, false, true);
 
         cli.run("files", "list", "--raw-size", "apk1");
         verify(impl).filesList(Paths.get("apk1"), true, false, false);